@@ -0,0 +1,62 @@
+package org.alfresco.bm.api.v1;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response.Status;
+
+import org.alfresco.bm.api.AbstractRestResource;
+import org.alfresco.bm.server.DriverMetrics;
+
+import com.mongodb.util.JSON;
+
+/**
+ * <b>REST API V1</b><br/>
+ * <p>
+ * The url pattern:
+ *     <ul>
+ *         <li>&lt;API URL&gt;/v1/metrics</pre></li>
+ *     </ul>
+ * </p>
+ * Reports the internal {@link DriverMetrics metrics} of the driver serving the request.
+ * 
+ * @since 2.2
+ */
+@Path("/v1/metrics")
+public class MetricsAPI extends AbstractRestResource
+{
+    private final DriverMetrics metrics;
+    
+    /**
+     * @param metrics                   the metrics recorded by the driver
+     */
+    public MetricsAPI(DriverMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+    
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public String getMetrics()
+    {
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Inbound: <none>");
+        }
+        try
+        {
+            String json = JSON.serialize(metrics.toDBObject());
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Outbound: " + json);
+            }
+            return json;
+        }
+        catch (Exception e)
+        {
+            throwAndLogException(Status.INTERNAL_SERVER_ERROR, e);
+            return null;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -37,12 +38,15 @@ import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.StreamingOutput;
 
 import org.alfresco.bm.api.AbstractRestResource;
+import org.alfresco.bm.event.LatencyHistogram;
+import org.alfresco.bm.event.ResultAggregate;
 import org.alfresco.bm.event.ResultService;
+import org.alfresco.bm.event.ResultService.ResultAggregateHandler;
 import org.alfresco.bm.event.ResultService.ResultHandler;
+import org.alfresco.bm.event.ResultService.StartDelayResultHandler;
 import org.alfresco.bm.report.CSVReporter;
 import org.alfresco.bm.report.XLSXReporter;
 import org.alfresco.bm.test.TestRunServicesCache;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObjectBuilder;
@@ -233,6 +237,7 @@ public class ResultsRestAPI extends AbstractRestResource
      * 
      * @return                      JSON representing the event start time (x-axis) and the smoothed average execution time
      *                              along with data such as the events per second, failures per second, etc.
+     *                              and, where available, statistics for how late the events started.
      */
     @GET
     @Path("/ts")
@@ -283,18 +288,54 @@ public class ResultsRestAPI extends AbstractRestResource
         
         // This is just too convenient an API
         final BasicDBList events = new BasicDBList();
-        ResultHandler handler = new ResultHandler()
+        ResultAggregateHandler aggregateHandler = new ResultAggregateHandler()
         {
             @Override
             public boolean processResult(
                     long fromTime, long toTime,
-                    Map<String, DescriptiveStatistics> statsByEventName,
+                    Map<String, ResultAggregate> aggregatesByEventName) throws Throwable
+            {
+                for (Map.Entry<String, ResultAggregate> entry : aggregatesByEventName.entrySet())
+                {
+                    ResultAggregate aggregate = entry.getValue();
+                    DBObject eventObj = getTimeSeriesResult(
+                            fromTime, toTime, entry.getKey(),
+                            aggregate.getStats(), aggregate.getFailures());
+                    LatencyHistogram startDelays = aggregate.getStartDelays();
+                    if (startDelays.getN() > 0L)
+                    {
+                        eventObj.put("startDelay", getStartDelayResult(startDelays));
+                    }
+                    events.add(eventObj);
+                }
+                // Go for the next result
+                return true;
+            }
+        };
+        ResultHandler handler = new StartDelayResultHandler()
+        {
+            @Override
+            public boolean processResult(
+                    long fromTime, long toTime,
+                    Map<String, LatencyHistogram> statsByEventName,
                     Map<String, Integer> failuresByEventName) throws Throwable
             {
-                for (Map.Entry<String, DescriptiveStatistics> entry : statsByEventName.entrySet())
+                return processResult(
+                        fromTime, toTime,
+                        statsByEventName, failuresByEventName, Collections.<String, LatencyHistogram>emptyMap());
+            }
+            
+            @Override
+            public boolean processResult(
+                    long fromTime, long toTime,
+                    Map<String, LatencyHistogram> statsByEventName,
+                    Map<String, Integer> failuresByEventName,
+                    Map<String, LatencyHistogram> startDelaysByEventName) throws Throwable
+            {
+                for (Map.Entry<String, LatencyHistogram> entry : statsByEventName.entrySet())
                 {
                     String eventName = entry.getKey();
-                    DescriptiveStatistics stats = entry.getValue();
+                    LatencyHistogram stats = entry.getValue();
                     Integer failures = failuresByEventName.get(eventName);
                     if (failures == null)
                     {
@@ -302,24 +343,14 @@ public class ResultsRestAPI extends AbstractRestResource
                         // Do nothing with it and stop
                         return false;
                     }
-                    // Per second
-                    double numPerSec = (double) stats.getN() / ( (double) (toTime-fromTime) / 1000.0);
-                    double failuresPerSec = (double) failures / ( (double) (toTime-fromTime) / 1000.0);
-                    // Push into an object
-                    DBObject eventObj = BasicDBObjectBuilder
-                            .start()
-                            .add("time", toTime)
-                            .add("name", eventName)
-                            .add("mean", stats.getMean())
-                            .add("min", stats.getMin())
-                            .add("max", stats.getMax())
-                            .add("stdDev", stats.getStandardDeviation())
-                            .add("num", stats.getN())
-                            .add("numPerSec", numPerSec)
-                            .add("fail", failures)
-                            .add("failPerSec", failuresPerSec)
-                            .get();
-                    // Add the object to the list of events
+                    DBObject eventObj = getTimeSeriesResult(
+                            fromTime, toTime, eventName,
+                            stats, failures);
+                    LatencyHistogram startDelays = startDelaysByEventName.get(eventName);
+                    if (startDelays != null && startDelays.getN() > 0L)
+                    {
+                        eventObj.put("startDelay", getStartDelayResult(startDelays));
+                    }
                     events.add(eventObj);
                 }
                 // Go for the next result
@@ -328,8 +359,11 @@ public class ResultsRestAPI extends AbstractRestResource
         };
         try
         {
-            // Get all the results
-            resultService.getResults(handler, fromTime, windowSize, reportPeriodMs, chartOnly);
+            // Use the pre-aggregated results, if possible, otherwise read all the results
+            if (!resultService.getAggregatedResults(aggregateHandler, fromTime, windowSize, reportPeriodMs, chartOnly))
+            {
+                resultService.getResults(handler, fromTime, windowSize, reportPeriodMs, chartOnly);
+            }
             // Muster into JSON
             String json = events.toString();
             
@@ -362,6 +396,58 @@ public class ResultsRestAPI extends AbstractRestResource
     
 
     
+    /**
+     * Build the JSON object for a single time series result, including the
+     * {@link LatencyHistogram#REPORTED_PERCENTILES reported percentiles} e.g. <b>p99</b>
+     */
+    private static DBObject getTimeSeriesResult(
+            long fromTime, long toTime, String eventName,
+            LatencyHistogram stats, long failures)
+    {
+        long num = stats.getN();
+        // Per second
+        double numPerSec = (double) num / ( (double) (toTime-fromTime) / 1000.0);
+        double failuresPerSec = (double) failures / ( (double) (toTime-fromTime) / 1000.0);
+        // Push into an object
+        BasicDBObjectBuilder eventObjBuilder = BasicDBObjectBuilder
+                .start()
+                .add("time", toTime)
+                .add("name", eventName)
+                .add("mean", stats.getMean())
+                .add("min", stats.getMin())
+                .add("max", stats.getMax())
+                .add("stdDev", stats.getStandardDeviation());
+        for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+        {
+            eventObjBuilder.add(LatencyHistogram.getPercentileLabel(percentile), stats.getPercentile(percentile));
+        }
+        DBObject eventObj = eventObjBuilder
+                .add("num", num)
+                .add("numPerSec", numPerSec)
+                .add("fail", failures)
+                .add("failPerSec", failuresPerSec)
+                .get();
+        return eventObj;
+    }
+    
+    /**
+     * Build the JSON object for the start delays of a single time series result, including the
+     * {@link LatencyHistogram#REPORTED_PERCENTILES reported percentiles}
+     */
+    private static DBObject getStartDelayResult(LatencyHistogram startDelays)
+    {
+        BasicDBObjectBuilder delayObjBuilder = BasicDBObjectBuilder
+                .start()
+                .add("mean", startDelays.getMean())
+                .add("min", startDelays.getMin())
+                .add("max", startDelays.getMax());
+        for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+        {
+            delayObjBuilder.add(LatencyHistogram.getPercentileLabel(percentile), startDelays.getPercentile(percentile));
+        }
+        return delayObjBuilder.get();
+    }
+    
     @GET
     @Path("/eventResults")
     @Produces(MediaType.APPLICATION_JSON)
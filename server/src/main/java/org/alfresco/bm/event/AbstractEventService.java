@@ -18,6 +18,9 @@
  */
 package org.alfresco.bm.event;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Services for {@link EventService} implementations.
  * 
@@ -26,4 +29,63 @@ package org.alfresco.bm.event;
  */
 public abstract class AbstractEventService implements EventService
 {
+    /**
+     * Puts the events one at a time using {@link #putEvent(Event)}.
+     * Implementations should override this if the underlying storage is able to
+     * write several events at once.
+     */
+    @Override
+    public List<String> putEvents(List<Event> events)
+    {
+        List<String> eventIds = new ArrayList<String>(events.size());
+        for (Event event : events)
+        {
+            eventIds.add(putEvent(event));
+        }
+        return eventIds;
+    }
+    
+    /**
+     * Deletes the events one at a time using {@link #deleteEvent(Event)}.
+     * Implementations should override this if the underlying storage is able to
+     * delete several events at once.
+     */
+    @Override
+    public int deleteEvents(List<Event> events)
+    {
+        int deleted = 0;
+        for (Event event : events)
+        {
+            if (deleteEvent(event))
+            {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+    
+    /**
+     * Claims the events one at a time using {@link #nextEvent(String, long)}.
+     * Implementations should override this if the underlying storage is able to
+     * claim several events at once.
+     */
+    @Override
+    public List<Event> nextEvents(String driverId, long latestScheduledTime, int maxCount)
+    {
+        if (maxCount < 1)
+        {
+            throw new IllegalArgumentException("'maxCount' must be at least 1.");
+        }
+        List<Event> events = new ArrayList<Event>(maxCount);
+        while (events.size() < maxCount)
+        {
+            Event event = nextEvent(driverId, latestScheduledTime);
+            if (event == null)
+            {
+                break;
+            }
+            events.add(event);
+        }
+        return events;
+    }
 }
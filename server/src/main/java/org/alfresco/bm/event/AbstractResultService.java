@@ -18,16 +18,14 @@
  */
 package org.alfresco.bm.event;
 
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
 /**
  * Common implementation around event results.
@@ -39,258 +37,164 @@ public abstract class AbstractResultService implements ResultService
 {
     protected Log logger = LogFactory.getLog(this.getClass());
     
+    private int significantDigits = LatencyHistogram.DEFAULT_SIGNIFICANT_DIGITS;
+    /** Result listeners keyed by event name */
+    private final ConcurrentMap<String, List<EventRecordHandler>> resultListeners = new ConcurrentHashMap<String, List<EventRecordHandler>>(13);
+    
     /**
-     * {@inheritDoc}
+     * Set the precision of the statistics reported by {@link #getResults(ResultHandler, long, long, long, boolean)}
+     * 
+     * @param significantDigits     the number of significant digits of the result times to preserve
+     *                              (default {@link LatencyHistogram#DEFAULT_SIGNIFICANT_DIGITS})
      */
+    public void setSignificantDigits(int significantDigits)
+    {
+        new LatencyHistogram(significantDigits);            // Validate
+        this.significantDigits = significantDigits;
+    }
+    
     @Override
-    public void getResults(
-            ResultHandler handler,
-            long startTime,
-            long windowSize,
-            long reportPeriod,
-            boolean chartOnly)
+    public void addResultListener(String eventName, EventRecordHandler listener)
     {
-        /*
-         * Keep track of all events' statistics.
-         * It is possible to report more frequently than the window size.
-         * For each report period in the reporting window, the statistics for the events need to be maintained.
-         */
-        
-        if (handler == null)
+        if (eventName == null || listener == null)
         {
-            throw new IllegalArgumentException("A result handler must be supplied.");
+            throw new IllegalArgumentException("An event name and listener must be supplied.");
         }
-        if (windowSize <= 0L)
+        List<EventRecordHandler> listeners = resultListeners.get(eventName);
+        if (listeners == null)
         {
-            throw new IllegalArgumentException("'windowSize' must be a non-zero, positive number.");
+            listeners = new CopyOnWriteArrayList<EventRecordHandler>();
+            List<EventRecordHandler> existing = resultListeners.putIfAbsent(eventName, listeners);
+            listeners = (existing == null) ? listeners : existing;
         }
-        if (reportPeriod <= 0L)
-        {
-            throw new IllegalArgumentException("'reportPeriod' must be a non-zero, positive number.");
-        }
-        if (reportPeriod > windowSize)
-        {
-            throw new IllegalArgumentException("'reportPeriod' cannot more than the 'windowSize'.");
-        }
-        if (windowSize % reportPeriod != 0L)
-        {
-            throw new IllegalArgumentException("'windowSize' must be a multiple of 'reportPeriod'.");
-        }
-        
-        // We have to keep statistics for each reporting period
-        int windowMultiple = (int) (windowSize / reportPeriod);
-        
-        // Build stats for reporting back
-        // Each LinkedList will have 'windowMultiple' entries.
-        // The newest statistics will be the last in the linked list; results will be reported from the first entry each time.
-        Map<String, LinkedList<DescriptiveStatistics>> statsByEventName = new HashMap<String, LinkedList<DescriptiveStatistics>>(13);
-        Map<String, LinkedList<AtomicInteger>> failuresByEventName = new HashMap<String, LinkedList<AtomicInteger>>(13);
-        
-        // Our even queries use separate windows
-        EventRecord firstResult = getFirstResult();
-        if (firstResult == null)
-        {
-            // There is nothing
-            return;
-        }
-        long firstResultStartTime = firstResult.getStartTime();
-        EventRecord lastResult = getLastResult();
-        long lastResultStartTime = lastResult.getStartTime();
+        listeners.add(listener);
+    }
 
-        long queryWindowStartTime = Math.max(firstResultStartTime, startTime);                       // The start time is inclusive
-        long queryWindowSize = lastResult.getStartTime() - firstResult.getStartTime();
-        if (queryWindowSize < 60000L)
+    @Override
+    public void removeResultListener(String eventName, EventRecordHandler listener)
+    {
+        List<EventRecordHandler> listeners = resultListeners.get(eventName);
+        if (listeners != null)
         {
-            queryWindowSize = 60000L;                                           // Query window is at least a minute
+            listeners.remove(listener);
         }
-        else if (queryWindowSize > (60000L * 60L))
+    }
+    
+    /**
+     * Pass a result to the listeners for its event name.  Implementations must call this
+     * each time a result is recorded.
+     */
+    protected void notifyResultListeners(EventRecord result)
+    {
+        List<EventRecordHandler> listeners = resultListeners.get(result.getEvent().getName());
+        if (listeners == null)
         {
-            queryWindowSize = 60000L * 60L;                                     // Query window is at most an hour
+            return;
         }
-        long queryWindowEndTime = queryWindowStartTime + queryWindowSize;
-
-        // Rebase the aggregation window to encompasse the first event
-        long currentWindowEndTime = (long) Math.floor((firstResultStartTime + reportPeriod) / reportPeriod) * reportPeriod;
-        long currentWindowStartTime = currentWindowEndTime - windowSize;
-        
-        // Iterate over the results
-        int skip = 0;
-        int limit = 10000;
-        boolean stop = false;
-        boolean unreportedResults = false;
-breakStop:
-        while (!stop)
+        for (EventRecordHandler listener : listeners)
         {
-            List<EventRecord> results = getResults(queryWindowStartTime, queryWindowEndTime, chartOnly, skip, limit);
-            if (results.size() == 0)
+            try
             {
-                if (queryWindowEndTime > lastResultStartTime)
-                {
-                    // The query window has included the last event, so we have extracted all results
-                    if (unreportedResults)
-                    {
-                        // The query window ends in the future, so we are done
-                        reportAndCycleStats(statsByEventName, failuresByEventName, currentWindowStartTime, currentWindowEndTime, windowMultiple, handler);
-                        unreportedResults = false;
-                    }
-                    stop = true;
-                }
-                else
+                if (!listener.processResult(result))
                 {
-                    // Move the query window up
-                    queryWindowStartTime = queryWindowEndTime;
-                    queryWindowEndTime+= queryWindowSize;
-                    // Reset the skip count as we are in a new query window
-                    skip = 0;
+                    listeners.remove(listener);
                 }
-                // We continue
-                continue;
             }
-            // Process each result found in the query window
-            for (EventRecord eventRecord : results)
+            catch (Throwable e)
             {
-                String eventRecordName = eventRecord.getEvent().getName();
-                long eventRecordStartTime = eventRecord.getStartTime();
-                long eventRecordTime = eventRecord.getTime();
-                boolean eventRecordSuccess = eventRecord.isSuccess();
-                
-                // If the current event is past the reporting period, then report
-                if (eventRecordStartTime >= currentWindowEndTime)
-                {
-                    // Report the current stats
-                    stop = reportAndCycleStats(statsByEventName, failuresByEventName, currentWindowStartTime, currentWindowEndTime, windowMultiple, handler);
-                    unreportedResults = false;
-                    // Shift the window up by one report period
-                    currentWindowStartTime += reportPeriod;
-                    currentWindowEndTime += reportPeriod;
-                    // Check for stop
-                    if (stop)
-                    {
-                        break breakStop;
-                    }
-                }
-                // Increase the skip with each window result
-                skip++;
-                
-                // Ignore results we don't wish to chart
-                if (chartOnly && !eventRecord.isChart())
-                {
-                    continue;
-                }
-
-                // We have to report this result at some point
-                unreportedResults = true;
-                
-                // Get the linked list of stats for the event
-                LinkedList<DescriptiveStatistics> eventStatsLL = statsByEventName.get(eventRecordName);
-                if (eventStatsLL == null)
-                {
-                    // Create a LL for the event
-                    eventStatsLL = new LinkedList<DescriptiveStatistics>();
-                    statsByEventName.put(eventRecordName, eventStatsLL);
-                    // We need at least one entry in order to record stats
-                    eventStatsLL.add(new DescriptiveStatistics());
-                }
-                // Write the current event to all the stats for the event
-                for (DescriptiveStatistics eventStats : eventStatsLL)
-                {
-                    eventStats.addValue(eventRecordTime);
-                }
-
-                // Get the linked list of failure counts for the event
-                LinkedList<AtomicInteger> eventFailuresLL = failuresByEventName.get(eventRecordName);
-                if (eventFailuresLL == null)
-                {
-                    // Create a LL for the event
-                    eventFailuresLL = new LinkedList<AtomicInteger>();
-                    failuresByEventName.put(eventRecordName, eventFailuresLL);
-                    // Need one entry to record failures
-                    eventFailuresLL.add(new AtomicInteger(0));
-                }
-                // Write any failures to all counts for the event
-                if (!eventRecordSuccess)
-                {
-                    for (AtomicInteger eventFailures : eventFailuresLL)
-                    {
-                        eventFailures.incrementAndGet();
-                    }
-                }
+                logger.error("Exception while notifying result listener: " + listener, e);
             }
         }
     }
     
     /**
-     * Reports the oldest stats for the events and pops it off the list
+     * {@inheritDoc}
      * 
-     * @param windowMultiple        the number of reporting entries to hold per event
-     * @return                      <tt>true</tt> to stop processing
+     * @see WindowedResultHandler
      */
-    private boolean reportAndCycleStats(
-            Map<String, LinkedList<DescriptiveStatistics>> statsByEventName,
-            Map<String, LinkedList<AtomicInteger>> failuresByEventName,
-            long currentWindowStartTime,
-            long currentWindowEndTime,
-            int windowMultiple,
-            ResultHandler handler)
+    @Override
+    public void getResults(
+            ResultHandler handler,
+            long startTime,
+            long windowSize,
+            long reportPeriod,
+            boolean chartOnly)
     {
-        // Handle stats
-        Map<String, DescriptiveStatistics> stats = new HashMap<String, DescriptiveStatistics>(statsByEventName.size() + 7);
-        for (Map.Entry<String, LinkedList<DescriptiveStatistics>> entry : statsByEventName.entrySet())
+        EventRecord firstResult = getFirstResult();
+        if (firstResult == null)
         {
-            // Grab the OLDEST stats from the beginning of the list
-            String eventName = entry.getKey();
-            LinkedList<DescriptiveStatistics> ll = entry.getValue();
-            try
-            {
-                DescriptiveStatistics eventStats = ll.getFirst();
-                stats.put(eventName, eventStats);
-                if (ll.size() == windowMultiple)
-                {
-                    // We have enough reporting points for the window, so pop the first and add a new to the end
-                    ll.pop();
-                }
-                ll.add(new DescriptiveStatistics());
-            }
-            catch (NoSuchElementException e)
-            {
-                throw new RuntimeException("An event name did not have a result for the reporting period: " + statsByEventName);
-            }
+            // Still check the arguments
+            new WindowedResultHandler(handler, 0L, windowSize, reportPeriod, chartOnly, significantDigits);
+            // There is nothing
+            return;
         }
+        EventRecord lastResult = getLastResult();
+        WindowedResultHandler windowedResultHandler = new WindowedResultHandler(
+                handler, firstResult.getStartTime(), windowSize, reportPeriod, chartOnly, significantDigits);
         
-        // Handle failures
-        Map<String, Integer> failures = new HashMap<String, Integer>(statsByEventName.size() + 7);
-        for (Map.Entry<String, LinkedList<AtomicInteger>> entry : failuresByEventName.entrySet())
+        long queryStartTime = Math.max(firstResult.getStartTime(), startTime);                       // The start time is inclusive
+        long queryEndTime = lastResult.getStartTime() + 1L;                                         // The end time is exclusive
+        streamResults(queryStartTime, queryEndTime, chartOnly, windowedResultHandler);
+        // We have extracted all results
+        windowedResultHandler.finish();
+    }
+    
+    /**
+     * Aggregates are not kept by default, so the client must fall back to reading the results.
+     * 
+     * @return                  <tt>false</tt> always
+     */
+    @Override
+    public boolean getAggregatedResults(
+            ResultAggregateHandler handler,
+            long startTime,
+            long windowSize,
+            long reportPeriod,
+            boolean chartOnly)
+    {
+        return false;
+    }
+    
+    /**
+     * Pages through the results in time windows.  Implementations should override this
+     * with a method that does not need to skip over the results already seen.
+     */
+    @Override
+    public long streamResults(
+            long startTime,
+            long endTime,
+            boolean chartOnly,
+            EventRecordHandler handler)
+    {
+        if (handler == null)
         {
-            // Grab the OLDEST stats from the beginning of the list
-            String eventName = entry.getKey();
-            LinkedList<AtomicInteger> ll = entry.getValue();
-            try
+            throw new IllegalArgumentException("A result handler must be supplied.");
+        }
+        long count = 0L;
+        long queryWindowSize = TimeUnit.HOURS.toMillis(1L);
+        int limit = 10000;
+        for (long queryWindowStartTime = startTime; queryWindowStartTime < endTime; queryWindowStartTime += queryWindowSize)
+        {
+            long queryWindowEndTime = Math.min(endTime, queryWindowStartTime + queryWindowSize);
+            int skip = 0;
+            while (true)
             {
-                AtomicInteger eventFailures = ll.getFirst();
-                failures.put(eventName, Integer.valueOf(eventFailures.get()));
-                if (ll.size() == windowMultiple)
+                List<EventRecord> results = getResults(queryWindowStartTime, queryWindowEndTime, chartOnly, skip, limit);
+                for (EventRecord eventRecord : results)
                 {
-                    // We have enough reporting points for the window, so pop the first and add a new to the end
-                    ll.pop();
+                    count++;
+                    if (!handler.processResult(eventRecord))
+                    {
+                        return count;
+                    }
                 }
-                ll.add(new AtomicInteger());
-            }
-            catch (NoSuchElementException e)
-            {
-                throw new RuntimeException("An event name did not have a failure count for the reporting period: " + failuresByEventName);
+                if (results.size() < limit)
+                {
+                    break;
+                }
+                skip += results.size();
             }
         }
-        
-        boolean stop = false;
-        try
-        {
-            boolean go = handler.processResult(currentWindowStartTime, currentWindowEndTime, stats, failures);
-            stop = !go;
-        }
-        catch (Throwable e)
-        {
-            logger.error("Exception while making callback.", e);
-        }
-        return stop;
+        return count;
     }
 }
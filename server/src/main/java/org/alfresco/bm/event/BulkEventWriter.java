@@ -0,0 +1,263 @@
+package org.alfresco.bm.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.bm.log.LogService.LogLevel;
+import org.alfresco.bm.log.TestRunLogService;
+import org.alfresco.bm.test.LifecycleListener;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded, asynchronous write-behind stage for the event queue changes made once an
+ * event has been processed.
+ * <p/>
+ * {@link EventWork} hands over the next events to publish along with the event that was
+ * processed.  A single background thread collects the pending writes and turns them into
+ * one bulk {@link EventService#putEvents(List) insert} followed by one bulk
+ * {@link EventService#deleteEvents(List) delete}.  The processed events are only removed
+ * once the insert of the next events has completed, so the event queue never appears empty
+ * while there is still work pending.  If the insert fails, the processed events are
+ * {@link EventService#unlockEvent(Event) unlocked} instead so that they are processed again.
+ * <p/>
+ * When the queue of pending writes is full, callers block until there is space available.
+ * Writes that arrive when the stage is not running are made directly by the caller.
+ *
+ * @since 2.2
+ */
+public class BulkEventWriter implements LifecycleListener, Runnable
+{
+    private static final Log logger = LogFactory.getLog(BulkEventWriter.class);
+
+    private final EventService eventService;
+    private final TestRunLogService logService;
+    private final int batchSize;
+    private final BlockingQueue<PendingWrite> queue;
+    private final Thread thread;
+    private volatile boolean running;
+
+    /**
+     * The changes to make to the queue once an event has been processed
+     */
+    private static class PendingWrite
+    {
+        private final Event event;
+        private final List<Event> nextEvents;
+        private PendingWrite(Event event, List<Event> nextEvents)
+        {
+            this.event = event;
+            this.nextEvents = nextEvents;
+        }
+    }
+
+    /**
+     * @param name              a name used for the background thread
+     * @param eventService      the event queue to write to
+     * @param logService        the service to report any issues
+     * @param queueSize         the maximum number of processed events that can be waiting to be written
+     * @param batchSize         the maximum number of processed events written in one go
+     */
+    public BulkEventWriter(String name, EventService eventService, TestRunLogService logService, int queueSize, int batchSize)
+    {
+        if (queueSize < 1)
+        {
+            throw new IllegalArgumentException("'queueSize' must be greater than zero.");
+        }
+        if (batchSize < 1)
+        {
+            throw new IllegalArgumentException("'batchSize' must be greater than zero.");
+        }
+        this.eventService = eventService;
+        this.logService = logService;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<PendingWrite>(queueSize);
+        this.thread = new Thread(this, name + "-EventWriter");
+        this.thread.setDaemon(true);
+    }
+
+    @Override
+    public void start()
+    {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stop accepting asynchronous writes and write everything that is still pending
+     */
+    @Override
+    public void stop()
+    {
+        running = false;
+        try { thread.join(); } catch (InterruptedException e) {}
+        // Pick up anything that slipped in while the thread was stopping
+        List<PendingWrite> pendingWrites = new ArrayList<PendingWrite>(queue.size());
+        queue.drainTo(pendingWrites);
+        if (pendingWrites.size() > 0)
+        {
+            write(pendingWrites);
+        }
+    }
+
+    /**
+     * @return                  the number of processed events waiting to be written
+     */
+    public int getQueueSize()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Queue the next events for insertion followed by the removal of the event that was processed.
+     * This call blocks if the maximum number of pending writes has been reached.
+     *
+     * @param event             the event that was processed and must be removed from the queue
+     * @param nextEvents        the events to add to the queue
+     */
+    public void write(Event event, List<Event> nextEvents)
+    {
+        PendingWrite pendingWrite = new PendingWrite(event, nextEvents);
+        if (running)
+        {
+            try
+            {
+                queue.put(pendingWrite);
+                return;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // We have to do the work ourselves
+        write(Collections.singletonList(pendingWrite));
+    }
+
+    @Override
+    public void run()
+    {
+        List<PendingWrite> pendingWrites = new ArrayList<PendingWrite>(batchSize);
+        while (true)
+        {
+            PendingWrite pendingWrite = null;
+            try
+            {
+                pendingWrite = queue.poll(1L, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                // Check the run state
+            }
+            if (pendingWrite == null)
+            {
+                if (!running)
+                {
+                    break;
+                }
+                continue;
+            }
+            pendingWrites.add(pendingWrite);
+            queue.drainTo(pendingWrites, batchSize - 1);
+            try
+            {
+                write(pendingWrites);
+            }
+            catch (Throwable e)
+            {
+                logger.error("Failed to write events to the queue.", e);
+            }
+            pendingWrites.clear();
+        }
+    }
+
+    /**
+     * Insert all the next events and only then remove all the processed events.
+     * If the insert fails, the processed events are released rather than removed.
+     */
+    private void write(List<PendingWrite> pendingWrites)
+    {
+        List<Event> events = new ArrayList<Event>(pendingWrites.size());
+        List<Event> nextEvents = new ArrayList<Event>(pendingWrites.size() * 2);
+        for (PendingWrite pendingWrite : pendingWrites)
+        {
+            events.add(pendingWrite.event);
+            nextEvents.addAll(pendingWrite.nextEvents);
+        }
+
+        // Persist the next events
+        if (nextEvents.size() > 0)
+        {
+            try
+            {
+                eventService.putEvents(nextEvents);
+            }
+            catch (Throwable e)
+            {
+                String stack = ExceptionUtils.getStackTrace(e);
+                String msg = "Failed to insert events into queue for " + events.size() + " inbound events.  The inbound events will be processed again.";
+                logService.log(LogLevel.ERROR, msg + "\n" + stack);
+                logger.error(msg, e);
+                // The processed events must stay in the queue
+                unlock(events);
+                return;
+            }
+        }
+
+        // Remove the processed events from the queue
+        try
+        {
+            int deleted = eventService.deleteEvents(events);
+            if (deleted != events.size())
+            {
+                String msg = "Only " + deleted + " of " + events.size() + " events were deleted from the queue: " + events;
+                logger.error(msg);
+                logService.log(LogLevel.ERROR, msg);
+            }
+        }
+        catch (Throwable e)
+        {
+            String stack = ExceptionUtils.getStackTrace(e);
+            String msg = "Failed to remove events from the queue: " + events;
+            logger.error(msg, e);
+            logService.log(LogLevel.ERROR, msg + "\n" + stack);
+        }
+
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Wrote " + nextEvents.size() + " next events for " + events.size() + " processed events.");
+        }
+    }
+
+    /**
+     * Make processed events available again when their next events could not be written
+     */
+    private void unlock(List<Event> events)
+    {
+        for (Event event : events)
+        {
+            try
+            {
+                if (!eventService.unlockEvent(event))
+                {
+                    String msg = "Event could not be released after a failed write: " + event;
+                    logger.error(msg);
+                    logService.log(LogLevel.ERROR, msg);
+                }
+            }
+            catch (Throwable e)
+            {
+                String stack = ExceptionUtils.getStackTrace(e);
+                String msg = "Failed to release event after a failed write: " + event;
+                logger.error(msg, e);
+                logService.log(LogLevel.ERROR, msg + "\n" + stack);
+            }
+        }
+    }
+}
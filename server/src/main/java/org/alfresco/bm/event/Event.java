@@ -36,6 +36,7 @@ public class Event
     public static final String FIELD_SCHEDULED_TIME= "scheduledTime";
     public static final String FIELD_LOCK_OWNER = "lockOwner";
     public static final String FIELD_LOCK_TIME = "lockTime";
+    public static final String FIELD_LOCK_TOKEN = "lockToken";
     public static final String FIELD_DATA = "data";
     public static final String FIELD_DATA_OWNER = "dataOwner";
     public static final String FIELD_DRIVER = "driver";
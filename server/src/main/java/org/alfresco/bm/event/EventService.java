@@ -47,6 +47,19 @@ public interface EventService
      */
     String putEvent(Event event);
     
+    /**
+     * Adds several events to the provider in one go.  The events are written without any
+     * specific ordering; a failure to write any one of the events does not prevent the
+     * others from being written.
+     * 
+     * @param events            the events to add (the {@link Event#getId() event IDs} must be <tt>null</tt>
+     * @return                  the IDs of the events in the same order as they were given
+     * @throws RuntimeException if any of the events could not be written
+     * 
+     * @since 2.2
+     */
+    List<String> putEvents(List<Event> events);
+    
     /**
      * Retrieve an event by ID
      * 
@@ -79,6 +92,24 @@ public interface EventService
      */
     Event nextEvent(String driverId, long latestScheduledTime);
     
+    /**
+     * Retrieve a batch of the next events in the queue.  The same driver and scheduling rules
+     * apply as for {@link #nextEvent(String, long) single event retrieval}, but up to <tt>maxCount</tt>
+     * events are claimed in one go.
+     * <p/>
+     * Every event returned must be locked by this service in the same way as if it had been
+     * retrieved individually i.e. no other driver may be given any of the events.
+     * 
+     * @param driverId              the ID of the driver performing the search or <tt>null</tt> to
+     *                              fetch events belonging to any driver
+     * @param latestScheduledTime   the maximum scheduled time for events
+     * @param maxCount              the maximum number of events to claim (at least 1)
+     * @return                      Returns the events claimed, ordered by scheduled time (never <tt>null</tt>)
+     * 
+     * @since 2.2
+     */
+    List<Event> nextEvents(String driverId, long latestScheduledTime, int maxCount);
+    
     /**
      * Delete an event from the provider.  This can be done after the event has
      * been fully processed and there is no further requirement for it.
@@ -90,6 +121,40 @@ public interface EventService
      */
     boolean deleteEvent(Event event);
     
+    /**
+     * Delete several events from the provider in one go.
+     * 
+     * @param events            the events to delete
+     * @return                  the number of events actually deleted
+     * 
+     * @since 2.2
+     */
+    int deleteEvents(List<Event> events);
+    
+    /**
+     * Release the lock on an event that was claimed but will not be processed, making it available
+     * to be claimed again.  The event is only released if it is still held by the same claim.
+     * 
+     * @param event             the event as it was returned when claimed
+     * @return                  <tt>true</tt> if the event was released otherwise <tt>false</tt>
+     * 
+     * @since 2.2
+     */
+    boolean unlockEvent(Event event);
+    
+    /**
+     * Change when an event is due, provided that it has not been claimed yet.  This allows an event
+     * to be brought forward when it is known that it can be processed now.
+     * 
+     * @param event             the event to reschedule
+     * @param scheduledTime     the new scheduled time of the event
+     * @return                  <tt>true</tt> if the event was rescheduled or <tt>false</tt> if it
+     *                          has been claimed or deleted
+     * 
+     * @since 2.2
+     */
+    boolean rescheduleEvent(Event event, long scheduledTime);
+    
     /**
      * Clears all recorded data
      * 
@@ -28,6 +28,7 @@ import org.alfresco.bm.event.producer.EventProducer;
 import org.alfresco.bm.event.producer.EventProducerRegistry;
 import org.alfresco.bm.log.LogService.LogLevel;
 import org.alfresco.bm.log.TestRunLogService;
+import org.alfresco.bm.server.DriverMetrics;
 import org.alfresco.bm.session.SessionService;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.commons.lang3.time.StopWatch;
@@ -58,6 +59,8 @@ public class EventWork implements Runnable
     private final ResultService resultService;
     private final SessionService sessionService;
     private final TestRunLogService logService;
+    private final BulkEventWriter eventWriter;
+    private DriverMetrics metrics;
     
     /**
      * Construct work to be executed by a thread
@@ -80,6 +83,35 @@ public class EventWork implements Runnable
             EventProcessor processor, EventProducerRegistry eventProducers,
             EventService eventService, ResultService resultService, SessionService sessionService,
             TestRunLogService logService)
+    {
+        this(
+                driverId, testRunFqn,
+                event,
+                driverIds,
+                processor, eventProducers,
+                eventService, resultService, sessionService,
+                logService,
+                null);
+    }
+    
+    /**
+     * Construct work to be executed by a thread, optionally handing the event queue updates
+     * to a write-behind stage
+     * 
+     * @param eventWriter       the shared stage that writes next events and removes processed events
+     *                          or <tt>null</tt> to write directly to the event service
+     * 
+     * @see #EventWork(String, String, Event, String[], EventProcessor, EventProducerRegistry, EventService, ResultService, SessionService, TestRunLogService)
+     * @since 2.2
+     */
+    public EventWork(
+            String driverId, String testRunFqn,
+            Event event,
+            String[] driverIds,
+            EventProcessor processor, EventProducerRegistry eventProducers,
+            EventService eventService, ResultService resultService, SessionService sessionService,
+            TestRunLogService logService,
+            BulkEventWriter eventWriter)
     {
         this.driverId = driverId;
         this.testRunFqn = testRunFqn;
@@ -91,11 +123,25 @@ public class EventWork implements Runnable
         this.resultService = resultService;
         this.sessionService = sessionService;
         this.logService = logService;
+        this.eventWriter = eventWriter;
+    }
+    
+    /**
+     * Record the time taken to write the result and next events
+     * 
+     * @param metrics           the driver metrics or <tt>null</tt> to record nothing
+     * @since 2.2
+     */
+    public void setMetrics(DriverMetrics metrics)
+    {
+        this.metrics = metrics;
     }
 
     @Override
     public void run()
     {
+        // The event may have been waiting for a thread since it was due
+        long runTime = System.currentTimeMillis();
         // Set the start and end times for the event
         long warnDelay = processor.getWarnDelay();
         boolean chart = processor.isChart();
@@ -140,6 +186,9 @@ public class EventWork implements Runnable
         EventRecord recordedEvent = new EventRecord(driverId, wasSuccess, before, time, data, event);
         recordedEvent.setChart(chart);
         recordedEvent.setProcessedBy(processor.getName());
+        // Measure the lag from when the work started rather than when the processor started timing
+        long scheduledTime = event.getScheduledTime();
+        recordedEvent.setStartDelay((scheduledTime == 0L) ? 0L : Math.max(0L, runTime - scheduledTime));
         
         // Check the time taken against the time allowed
         if (time > warnDelay)
@@ -160,9 +209,14 @@ public class EventWork implements Runnable
         }
 
         // Record the event
+        long recordStart = System.currentTimeMillis();
         try
         {
             resultService.recordResult(recordedEvent);
+            if (metrics != null)
+            {
+                metrics.getHistogram(DriverMetrics.METRIC_RESULTS_RECORD).record(System.currentTimeMillis() - recordStart);
+            }
         }
         catch (Throwable e)
         {
@@ -193,7 +247,8 @@ public class EventWork implements Runnable
             driverSelector.add(100, driverId);
         }
 
-        // Publish the next events
+        // Prepare the next events
+        List<Event> eventsToPublish = new ArrayList<Event>(nextEvents.size());
         for (Event nextEvent : nextEvents)
         {
             if (nextEvent == null)
@@ -225,17 +280,43 @@ public class EventWork implements Runnable
                 nextEvent.setDriver(driverIdForNextEvent);
             }
             
-            // Persist the event
+            eventsToPublish.add(nextEvent);
+        }
+        
+        long writeStart = System.currentTimeMillis();
+        writeNextEvents(eventsToPublish, eventNamesSeen);
+        if (metrics != null)
+        {
+            metrics.getHistogram(DriverMetrics.METRIC_EVENTS_FAN_OUT).record(eventsToPublish.size());
+            metrics.getHistogram(DriverMetrics.METRIC_EVENTS_NEXT_WRITE).record(System.currentTimeMillis() - writeStart);
+        }
+    }
+    
+    /**
+     * Put the next events on the queue and remove the event processed
+     */
+    private void writeNextEvents(List<Event> eventsToPublish, Set<String> eventNamesSeen)
+    {
+        // Hand the queue updates over if there is a write-behind stage
+        if (eventWriter != null)
+        {
+            eventWriter.write(event, eventsToPublish);
+            return;
+        }
+        
+        // Persist the events
+        if (eventsToPublish.size() > 0)
+        {
             try
             {
-                eventService.putEvent(nextEvent);
+                eventService.putEvents(eventsToPublish);
             }
             catch (Throwable e)
             {
                 String stack = ExceptionUtils.getStackTrace(e);
                 String msg =
-                        "Failed to insert event into queue: \n" +
-                        "  Event to insert:     " + nextEvent + "\n" +
+                        "Failed to insert events into queue: \n" +
+                        "  Events to insert:    " + eventsToPublish + "\n" +
                         "  Inbound event:       " + event + "\n" +
                         "  Process used:        " + processor + "\n" +
                         "  Events produced:     " + eventNamesSeen;
@@ -0,0 +1,335 @@
+package org.alfresco.bm.event;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Mergeable statistics for event result times that do not hold on to the individual values.
+ * <p/>
+ * Values are counted in buckets that preserve a configurable number of significant
+ * (decimal) digits, in the style of an HDR histogram: values are split into ranges
+ * by powers of two and each range is divided into the same number of linear sub-buckets.
+ * Memory use therefore depends only on the precision and the size of the largest value
+ * recorded and not on the number of values recorded.  At the default precision of two
+ * significant digits, percentiles are accurate to within 1%.
+ * <p/>
+ * The count, sum, sum of squares, minimum and maximum are kept exactly so that the
+ * mean and standard deviation are not subject to the bucket precision.
+ * <p/>
+ * This class is not thread-safe.
+ *
+ * @since 2.2
+ */
+public class LatencyHistogram
+{
+    public static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+    public static final int MAX_SIGNIFICANT_DIGITS = 5;
+    /** The percentiles that are reported by default */
+    public static final double[] REPORTED_PERCENTILES = new double[] {50.0, 90.0, 95.0, 99.0, 99.9};
+
+    private final int significantDigits;
+    /** The number of bits needed to count the first range of values one-to-one */
+    private final int subBucketBits;
+    private final int subBucketCount;
+    private final int subBucketHalfCount;
+    private final long subBucketMask;
+
+    private long[] counts;
+    private long n;
+    private double sum;
+    private double sumOfSquares;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    /**
+     * Construct a histogram with the {@link #DEFAULT_SIGNIFICANT_DIGITS default precision}
+     */
+    public LatencyHistogram()
+    {
+        this(DEFAULT_SIGNIFICANT_DIGITS);
+    }
+
+    /**
+     * @param significantDigits     the number of significant decimal digits to preserve (1 to 5)
+     */
+    public LatencyHistogram(int significantDigits)
+    {
+        if (significantDigits < 1 || significantDigits > MAX_SIGNIFICANT_DIGITS)
+        {
+            throw new IllegalArgumentException("'significantDigits' must be between 1 and " + MAX_SIGNIFICANT_DIGITS);
+        }
+        this.significantDigits = significantDigits;
+        long largestSingleUnitValue = 2L * (long) Math.pow(10, significantDigits);
+        this.subBucketBits = 64 - Long.numberOfLeadingZeros(largestSingleUnitValue - 1L);
+        this.subBucketCount = 1 << subBucketBits;
+        this.subBucketHalfCount = subBucketCount / 2;
+        this.subBucketMask = subBucketCount - 1;
+        this.counts = new long[subBucketCount];
+    }
+
+    /**
+     * @return                  the number of significant decimal digits preserved
+     */
+    public int getSignificantDigits()
+    {
+        return significantDigits;
+    }
+
+    /**
+     * Get the index into the counts for a value
+     */
+    private int getIndex(long value)
+    {
+        int bucketIndex = (64 - Long.numberOfLeadingZeros(value | subBucketMask)) - subBucketBits;
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return (bucketIndex * subBucketHalfCount) + subBucketIndex;
+    }
+
+    /**
+     * @return                  the number of powers of two by which the bucket at the index was scaled
+     */
+    private int getBucketIndex(int index)
+    {
+        return (index < subBucketCount) ? 0 : ((index - subBucketCount) / subBucketHalfCount) + 1;
+    }
+
+    private long getLowestValue(int index)
+    {
+        int bucketIndex = getBucketIndex(index);
+        long subBucketIndex = index - (bucketIndex * subBucketHalfCount);
+        return subBucketIndex << bucketIndex;
+    }
+
+    private long getHighestValue(int index)
+    {
+        return getLowestValue(index) + (1L << getBucketIndex(index)) - 1L;
+    }
+
+    /**
+     * Get the smallest value that is counted in the same bucket as the given value
+     *
+     * @param value             a value (negative values are treated as <tt>0</tt>)
+     * @return                  the lower bound of the bucket holding the value
+     */
+    public long getLowestEquivalentValue(long value)
+    {
+        return getLowestValue(getIndex(Math.max(0L, value)));
+    }
+
+    private void addCount(int index, long count)
+    {
+        if (index >= counts.length)
+        {
+            counts = Arrays.copyOf(counts, Math.max(index + 1, counts.length + subBucketHalfCount));
+        }
+        counts[index] += count;
+    }
+
+    /**
+     * Record a single value
+     *
+     * @param value             the value to record
+     * @throws IllegalArgumentException if the value is negative
+     */
+    public void recordValue(long value)
+    {
+        if (value < 0L)
+        {
+            throw new IllegalArgumentException("Negative values cannot be recorded: " + value);
+        }
+        addCount(getIndex(value), 1L);
+        n++;
+        sum += value;
+        sumOfSquares += (double) value * value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add pre-aggregated statistics.  The bucket counts do not need to have been recorded
+     * with the same precision as this histogram.
+     *
+     * @param buckets           the number of values keyed by a value in the bucket
+     * @see #getBuckets()
+     */
+    public void add(long n, double sum, double sumOfSquares, long min, long max, Map<Long, Long> buckets)
+    {
+        if (n == 0L)
+        {
+            return;
+        }
+        this.n += n;
+        this.sum += sum;
+        this.sumOfSquares += sumOfSquares;
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+        for (Map.Entry<Long, Long> entry : buckets.entrySet())
+        {
+            addCount(getIndex(Math.max(0L, entry.getKey())), entry.getValue());
+        }
+    }
+
+    /**
+     * Combine the values from another histogram into this one
+     *
+     * @param other             a histogram with the same precision
+     */
+    public void add(LatencyHistogram other)
+    {
+        if (other.significantDigits != significantDigits)
+        {
+            throw new IllegalArgumentException(
+                    "Histograms with different precision cannot be added: " +
+                    significantDigits + " and " + other.significantDigits);
+        }
+        if (other.n == 0L)
+        {
+            return;
+        }
+        n += other.n;
+        sum += other.sum;
+        sumOfSquares += other.sumOfSquares;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        if (other.counts.length > counts.length)
+        {
+            counts = Arrays.copyOf(counts, other.counts.length);
+        }
+        for (int i = 0; i < other.counts.length; i++)
+        {
+            counts[i] += other.counts[i];
+        }
+    }
+
+    /**
+     * @return                  the number of values recorded
+     */
+    public long getN()
+    {
+        return n;
+    }
+
+    public double getSum()
+    {
+        return sum;
+    }
+
+    public double getSumOfSquares()
+    {
+        return sumOfSquares;
+    }
+
+    /**
+     * @return                  the minimum value or <tt>NaN</tt> if there are no values
+     */
+    public double getMin()
+    {
+        return (n == 0L) ? Double.NaN : min;
+    }
+
+    /**
+     * @return                  the maximum value or <tt>NaN</tt> if there are no values
+     */
+    public double getMax()
+    {
+        return (n == 0L) ? Double.NaN : max;
+    }
+
+    /**
+     * @return                  the mean value or <tt>NaN</tt> if there are no values
+     */
+    public double getMean()
+    {
+        return (n == 0L) ? Double.NaN : sum / n;
+    }
+
+    /**
+     * @return                  the sample standard deviation of the values, <tt>NaN</tt> if there are
+     *                          no values and <tt>0</tt> if there is only one
+     */
+    public double getStandardDeviation()
+    {
+        if (n == 0L)
+        {
+            return Double.NaN;
+        }
+        else if (n == 1L)
+        {
+            return 0.0;
+        }
+        double variance = (sumOfSquares - (sum * sum) / n) / (n - 1);
+        return Math.sqrt(Math.max(0.0, variance));
+    }
+
+    /**
+     * Get the value at a percentile.  The value returned is the largest value that is
+     * counted in the same bucket as the value at the percentile, but never more than the
+     * maximum or less than the minimum value recorded.
+     *
+     * @param percentile        the percentile (0 to 100)
+     * @return                  the value at the percentile or <tt>NaN</tt> if there are no values
+     */
+    public double getPercentile(double percentile)
+    {
+        if (n == 0L)
+        {
+            return Double.NaN;
+        }
+        long rank = Math.max(1L, (long) Math.ceil((Math.min(100.0, percentile) / 100.0) * n));
+        long count = 0L;
+        for (int i = 0; i < counts.length; i++)
+        {
+            count += counts[i];
+            if (count >= rank)
+            {
+                return Math.max(min, Math.min(max, getHighestValue(i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return                  the value counts keyed by the lower bound of each non-empty bucket
+     */
+    public Map<Long, Long> getBuckets()
+    {
+        Map<Long, Long> buckets = new TreeMap<Long, Long>();
+        for (int i = 0; i < counts.length; i++)
+        {
+            if (counts[i] > 0L)
+            {
+                buckets.put(getLowestValue(i), counts[i]);
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Get a short label for a percentile e.g. <b>p99.9</b>
+     */
+    public static String getPercentileLabel(double percentile)
+    {
+        if (percentile == Math.rint(percentile))
+        {
+            return "p" + (long) percentile;
+        }
+        else
+        {
+            return "p" + percentile;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LatencyHistogram " +
+                "[n=" + n +
+                ", mean=" + getMean() +
+                ", min=" + getMin() +
+                ", max=" + getMax() +
+                ", p50=" + getPercentile(50.0) +
+                ", p99=" + getPercentile(99.0) +
+                "]";
+    }
+}
@@ -0,0 +1,521 @@
+package org.alfresco.bm.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.alfresco.bm.event.mongo.MongoEventService;
+import org.alfresco.bm.test.LifecycleListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * An {@link EventService} that keeps the event queue in local memory.
+ * <p/>
+ * Available events are held in a concurrent set ordered by {@link Event#getScheduledTime() scheduled time};
+ * claiming an event removes it from the set, so each event is handed out once.  Claimed events remain
+ * part of the {@link #count() count} until they are deleted, as for the persistent implementations.
+ * <p/>
+ * The queue is not visible to other drivers and should only be used for single-driver test runs.
+ * Optionally, changes to the queue can be written periodically to a MongoDB collection in the same
+ * format as the {@link MongoEventService}; the events found there are reloaded when the service is
+ * started so that an interrupted test can carry on.  Events that keep their
+ * {@link Event#getDataInMemory() data in memory} are never written out.
+ * 
+ * @since 2.2
+ */
+public class LocalEventService extends AbstractEventService implements LifecycleListener
+{
+    /** Snapshots are disabled by default */
+    public static final long DEFAULT_SNAPSHOT_PERIOD = 0L;
+    
+    private static Log logger = LogFactory.getLog(LocalEventService.class);
+    
+    /** Order by scheduled time, using the unique ID to distinguish events scheduled at the same time */
+    private static final Comparator<Event> EVENT_ORDER = new Comparator<Event>()
+    {
+        @Override
+        public int compare(Event e1, Event e2)
+        {
+            int compare = Long.compare(e1.getScheduledTime(), e2.getScheduledTime());
+            return (compare != 0) ? compare : e1.getId().compareTo(e2.getId());
+        }
+    };
+    
+    private final DBCollection collection;
+    private final String lockOwner;
+    private final ConcurrentMap<String, Event> eventsById;
+    private final ConcurrentSkipListSet<Event> availableEvents;
+    private final ConcurrentLinkedQueue<Event> snapshotInserts;
+    private final ConcurrentLinkedQueue<String> snapshotDeletes;
+    private long snapshotPeriod = DEFAULT_SNAPSHOT_PERIOD;
+    private volatile Thread snapshotThread;
+    
+    /**
+     * Construct an event service that can snapshot its events to the given Mongo database and collection
+     * 
+     * @param db                the database used for snapshots
+     * @param collection        the name of the collection that holds snapshots
+     */
+    public LocalEventService(DB db, String collection)
+    {
+        this.collection = db.getCollection(collection);
+        this.lockOwner = UUID.randomUUID().toString();
+        this.eventsById = new ConcurrentHashMap<String, Event>(1024);
+        this.availableEvents = new ConcurrentSkipListSet<Event>(EVENT_ORDER);
+        this.snapshotInserts = new ConcurrentLinkedQueue<Event>();
+        this.snapshotDeletes = new ConcurrentLinkedQueue<String>();
+    }
+
+    /**
+     * Override the {@link #DEFAULT_SNAPSHOT_PERIOD default} time (milliseconds) between writing
+     * changes to the event queue to the snapshot collection.  Use <tt>0</tt> to keep the events
+     * in memory only.
+     */
+    public void setSnapshotPeriod(long snapshotPeriod)
+    {
+        if (snapshotPeriod < 0L)
+        {
+            throw new IllegalArgumentException("'snapshotPeriod' may not be negative.");
+        }
+        this.snapshotPeriod = snapshotPeriod;
+    }
+
+    /**
+     * Reloads any events left in the snapshot collection and starts writing snapshots, if enabled
+     */
+    @Override
+    public void start() throws Exception
+    {
+        if (snapshotPeriod <= 0L)
+        {
+            return;
+        }
+        int loaded = 0;
+        DBCursor cursor = collection.find();
+        try
+        {
+            while (cursor.hasNext())
+            {
+                Event event = convertDBObject(cursor.next());
+                if (event != null && eventsById.putIfAbsent(event.getId(), event) == null)
+                {
+                    availableEvents.add(event);
+                    loaded++;
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        if (loaded > 0)
+        {
+            logger.info("Reloaded " + loaded + " events from snapshot " + collection.getFullName());
+        }
+        
+        Thread thread = new Thread(new SnapshotWriter(), "LocalEventService-" + collection.getName());
+        thread.setDaemon(true);
+        snapshotThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the snapshots after writing the latest changes
+     */
+    @Override
+    public void stop() throws Exception
+    {
+        Thread thread = snapshotThread;
+        if (thread != null)
+        {
+            snapshotThread = null;
+            LockSupport.unpark(thread);
+            try { thread.join(); } catch (InterruptedException e) {}
+            snapshot();
+        }
+    }
+    
+    /**
+     * Background writer of snapshots
+     */
+    private class SnapshotWriter implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            long snapshotPeriodNs = TimeUnit.MILLISECONDS.toNanos(snapshotPeriod);
+            while (snapshotThread == Thread.currentThread())
+            {
+                LockSupport.parkNanos(this, snapshotPeriodNs);
+                try
+                {
+                    snapshot();
+                }
+                catch (Throwable e)
+                {
+                    logger.error("Failed to write event snapshot to " + collection.getFullName(), e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Write the events added and removed since the last snapshot
+     */
+    private synchronized void snapshot()
+    {
+        // Take the deletes first so that we never delete an event that we have not inserted
+        Set<String> deletes = new HashSet<String>(snapshotDeletes.size() * 2 + 1);
+        for (String id = snapshotDeletes.poll(); id != null; id = snapshotDeletes.poll())
+        {
+            deletes.add(id);
+        }
+        List<Event> inserts = new ArrayList<Event>(snapshotInserts.size());
+        for (Event event = snapshotInserts.poll(); event != null; event = snapshotInserts.poll())
+        {
+            inserts.add(event);
+        }
+        
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        int writes = 0;
+        for (Event event : inserts)
+        {
+            // Events that came and went between snapshots are never written
+            if (!deletes.remove(event.getId()))
+            {
+                DBObject insertObj = MongoEventService.convertEvent(event);
+                insertObj.removeField(Event.FIELD_LOCK_OWNER);
+                insertObj.removeField(Event.FIELD_LOCK_TIME);
+                bulk.insert(insertObj);
+                writes++;
+            }
+        }
+        if (deletes.size() > 0)
+        {
+            List<ObjectId> ids = new ArrayList<ObjectId>(deletes.size());
+            for (String id : deletes)
+            {
+                ids.add(new ObjectId(id));
+            }
+            DBObject queryObj = BasicDBObjectBuilder
+                    .start()
+                    .push(Event.FIELD_ID)
+                        .add("$in", ids)
+                        .pop()
+                    .get();
+            bulk.find(queryObj).remove();
+            writes++;
+        }
+        if (writes == 0)
+        {
+            return;
+        }
+        
+        try
+        {
+            bulk.execute();
+        }
+        catch (BulkWriteException e)
+        {
+            // Events that are already present e.g. after a reload
+            logger.warn("Event snapshot to " + collection.getFullName() + " had " + e.getWriteErrors().size() + " write errors.");
+        }
+        catch (MongoException e)
+        {
+            throw new RuntimeException("Failed to write event snapshot to " + collection.getFullName(), e);
+        }
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Event snapshot: " + inserts.size() + " inserts and " + deletes.size() + " deletes.");
+        }
+    }
+    
+    /**
+     * Helper method to convert a snapshot entry into an available {@link Event}
+     * 
+     * @return              the event or <tt>null</tt> if its data was held in memory by a previous instance
+     */
+    private Event convertDBObject(DBObject obj)
+    {
+        String id = obj.get(Event.FIELD_ID).toString();
+        if (obj.get(Event.FIELD_DATA_OWNER) != null)
+        {
+            logger.warn("Event data is not available in the VM; dropping event from snapshot: " + obj);
+            return null;
+        }
+        Object data = obj.get(Event.FIELD_DATA);
+        String name = (String) obj.get(Event.FIELD_NAME);
+        long scheduledTime = obj.containsField(Event.FIELD_SCHEDULED_TIME) ?
+                ((Date) obj.get(Event.FIELD_SCHEDULED_TIME)).getTime() :
+                Long.valueOf(0L);
+        
+        Event event = new Event(name, scheduledTime, data);
+        event.setId(id);
+        event.setSessionId((String) obj.get(Event.FIELD_SESSION_ID));
+        event.setDriver((String) obj.get(Event.FIELD_DRIVER));
+        return event;
+    }
+    
+    /**
+     * Make a copy of the event so that the queue is not affected by changes made by the caller
+     */
+    private static Event copyEvent(Event event, String id)
+    {
+        Event copy = new Event(event.getName(), event.getScheduledTime(), event.getData(), event.getDataInMemory());
+        copy.setId(id);
+        copy.setSessionId(event.getSessionId());
+        copy.setDriver(event.getDriver());
+        return copy;
+    }
+
+    @Override
+    public long count()
+    {
+        return eventsById.size();
+    }
+
+    @Override
+    public String putEvent(Event event)
+    {
+        if (event == null)
+        {
+            throw new IllegalArgumentException("'event' may not be null.");
+        }
+        if (event.getDataInMemory() && event.getDriver() != null)
+        {
+            throw new IllegalStateException("Events cannot be assigned a specific driver when they have their data bound in memory: " + event);
+        }
+        String eventId = (event.getId() == null) ? new ObjectId().toString() : event.getId();
+        Event copy = copyEvent(event, eventId);
+        if (eventsById.putIfAbsent(eventId, copy) != null)
+        {
+            throw new RuntimeException(
+                    "Failed to insert event with duplicate ID:\n" +
+                    "   Event: " + event);
+        }
+        availableEvents.add(copy);
+        if (snapshotThread != null && !copy.getDataInMemory())
+        {
+            snapshotInserts.add(copy);
+        }
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Put event: " + copy);
+        }
+        return eventId;
+    }
+
+    @Override
+    public Event getEvent(String id)
+    {
+        return eventsById.get(id);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Events are returned in order of scheduled time.
+     */
+    @Override
+    public List<Event> getEvents(int skip, int limit)
+    {
+        List<Event> allEvents = new ArrayList<Event>(eventsById.values());
+        Collections.sort(allEvents, EVENT_ORDER);
+        if (skip >= allEvents.size())
+        {
+            return Collections.<Event>emptyList();
+        }
+        int end = (int) Math.min((long) skip + limit, allEvents.size());
+        return new ArrayList<Event>(allEvents.subList(skip, end));
+    }
+
+    @Override
+    public Event nextEvent(String driverId, long latestScheduledTime)
+    {
+        List<Event> events = nextEvents(driverId, latestScheduledTime, 1);
+        return events.isEmpty() ? null : events.get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The available events are walked in order of scheduled time; an event is claimed
+     * by the thread that manages to remove it from the available set.
+     */
+    @Override
+    public List<Event> nextEvents(String driverId, long latestScheduledTime, int maxCount)
+    {
+        if (maxCount < 1)
+        {
+            throw new IllegalArgumentException("'maxCount' must be at least 1.");
+        }
+        List<Event> events = new ArrayList<Event>(Math.min(maxCount, 64));
+        long now = System.currentTimeMillis();
+        Iterator<Event> iterator = availableEvents.iterator();
+        while (iterator.hasNext() && events.size() < maxCount)
+        {
+            Event event = iterator.next();
+            if (event.getScheduledTime() > latestScheduledTime)
+            {
+                // Everything else is scheduled later
+                break;
+            }
+            String driver = event.getDriver();
+            if (driverId != null && driver != null && !driverId.equals(driver))
+            {
+                // Assigned to another driver
+                continue;
+            }
+            if (availableEvents.remove(event))
+            {
+                event.setLockOwner(lockOwner);
+                event.setLockTime(now);
+                events.add(event);
+            }
+        }
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("\n" +
+                    "Fetched next events: \n" +
+                    "   Latest scheduled time:  " + latestScheduledTime + "\n" +
+                    "   Driver ID:              " + driverId + "\n" +
+                    "   Claimed:                " + events.size());
+        }
+        return events;
+    }
+
+    @Override
+    public boolean deleteEvent(Event event)
+    {
+        String id = event.getId();
+        Event removed = eventsById.remove(id);
+        if (removed == null)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Failed to removed event: " + event);
+            }
+            return false;
+        }
+        availableEvents.remove(removed);
+        if (snapshotThread != null && !removed.getDataInMemory())
+        {
+            snapshotDeletes.add(id);
+        }
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Removed event: " + event);
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The event is put back into the set of available events.
+     */
+    @Override
+    public boolean unlockEvent(Event event)
+    {
+        Event held = eventsById.get(event.getId());
+        if (held == null || held.getLockOwner() == null ||
+                !held.getLockOwner().equals(event.getLockOwner()) ||
+                held.getLockTime() != event.getLockTime())
+        {
+            return false;
+        }
+        held.setLockOwner(null);
+        held.setLockTime(0L);
+        availableEvents.add(held);
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Unlocked event: " + held);
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The event is taken out of the set of available events, so it cannot be claimed while it
+     * is being moved.  Snapshots keep the original scheduled time.
+     */
+    @Override
+    public boolean rescheduleEvent(Event event, long scheduledTime)
+    {
+        Event held = eventsById.get(event.getId());
+        if (held == null || !availableEvents.remove(held))
+        {
+            return false;
+        }
+        Event moved = new Event(held.getName(), scheduledTime, held.getData(), held.getDataInMemory());
+        moved.setId(held.getId());
+        moved.setSessionId(held.getSessionId());
+        moved.setDriver(held.getDriver());
+        if (!eventsById.replace(held.getId(), held, moved))
+        {
+            // Deleted in the meantime
+            return false;
+        }
+        availableEvents.add(moved);
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Rescheduled event: " + moved);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean clear()
+    {
+        eventsById.clear();
+        availableEvents.clear();
+        snapshotInserts.clear();
+        snapshotDeletes.clear();
+        try
+        {
+            this.collection.drop();
+            return true;
+        }
+        catch(MongoException mex)
+        {
+            logger.error("Unable to drop colection '" + this.collection.getName() + "'");
+            return false;
+        }
+    }
+}
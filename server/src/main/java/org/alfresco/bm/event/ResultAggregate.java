@@ -0,0 +1,189 @@
+package org.alfresco.bm.event;
+
+import java.util.Map;
+
+/**
+ * Mergeable statistics for a set of event results, kept without holding on to
+ * the individual results.
+ * <p/>
+ * The result times are kept in a {@link LatencyHistogram} with the default precision
+ * and the number of failures is counted alongside.  The {@link EventRecord#getStartDelay() start delays}
+ * are kept in a second histogram so that drivers falling behind schedule can be seen.
+ * <p/>
+ * This class is not thread-safe.
+ * 
+ * @since 2.2
+ */
+public class ResultAggregate
+{
+    private long failures;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LatencyHistogram startDelays = new LatencyHistogram();
+    
+    /**
+     * Add a single result
+     * 
+     * @param time              the time the event took (negative values are recorded as <tt>0</tt>)
+     * @param success           <tt>true</tt> if the event succeeded
+     */
+    public void addValue(long time, boolean success)
+    {
+        if (!success)
+        {
+            failures++;
+        }
+        histogram.recordValue(Math.max(0L, time));
+    }
+    
+    /**
+     * Add a single result along with how late it started
+     * 
+     * @param startDelay        the time between the event being due and it starting
+     *                          (negative values are recorded as <tt>0</tt>)
+     * 
+     * @see #addValue(long, boolean)
+     */
+    public void addValue(long time, long startDelay, boolean success)
+    {
+        addValue(time, success);
+        startDelays.recordValue(Math.max(0L, startDelay));
+    }
+    
+    /**
+     * Add pre-aggregated statistics
+     * 
+     * @param histogram         the result counts keyed by a value in each histogram bucket
+     */
+    public void add(long n, long failures, double sum, double sumOfSquares, long min, long max, Map<Long, Long> histogram)
+    {
+        this.failures += failures;
+        this.histogram.add(n, sum, sumOfSquares, min, max, histogram);
+    }
+    
+    /**
+     * Add pre-aggregated start delays
+     * 
+     * @param histogram         the start delay counts keyed by a value in each histogram bucket
+     */
+    public void addStartDelays(long n, double sum, double sumOfSquares, long min, long max, Map<Long, Long> histogram)
+    {
+        this.startDelays.add(n, sum, sumOfSquares, min, max, histogram);
+    }
+    
+    /**
+     * Combine the statistics from another aggregate into this one
+     */
+    public void merge(ResultAggregate other)
+    {
+        this.failures += other.failures;
+        this.histogram.add(other.histogram);
+        this.startDelays.add(other.startDelays);
+    }
+    
+    /**
+     * @return                  the number of results
+     */
+    public long getN()
+    {
+        return histogram.getN();
+    }
+    
+    /**
+     * @return                  the number of failed results
+     */
+    public long getFailures()
+    {
+        return failures;
+    }
+    
+    public double getSum()
+    {
+        return histogram.getSum();
+    }
+    
+    public double getSumOfSquares()
+    {
+        return histogram.getSumOfSquares();
+    }
+    
+    /**
+     * @return                  the minimum result time or <tt>NaN</tt> if there are no results
+     */
+    public double getMin()
+    {
+        return histogram.getMin();
+    }
+    
+    /**
+     * @return                  the maximum result time or <tt>NaN</tt> if there are no results
+     */
+    public double getMax()
+    {
+        return histogram.getMax();
+    }
+    
+    /**
+     * @return                  the mean result time or <tt>NaN</tt> if there are no results
+     */
+    public double getMean()
+    {
+        return histogram.getMean();
+    }
+    
+    /**
+     * @return                  the sample standard deviation of the result times, <tt>NaN</tt> if there are
+     *                          no results and <tt>0</tt> if there is only one
+     */
+    public double getStandardDeviation()
+    {
+        return histogram.getStandardDeviation();
+    }
+    
+    /**
+     * @param percentile        the percentile (0 to 100)
+     * @return                  the result time at the percentile or <tt>NaN</tt> if there are no results
+     * 
+     * @see LatencyHistogram#getPercentile(double)
+     */
+    public double getPercentile(double percentile)
+    {
+        return histogram.getPercentile(percentile);
+    }
+    
+    /**
+     * @return                  the statistics for the result times
+     */
+    public LatencyHistogram getStats()
+    {
+        return histogram;
+    }
+    
+    /**
+     * @return                  the statistics for the start delays, which may cover fewer results
+     *                          than the {@link #getStats() result times}
+     */
+    public LatencyHistogram getStartDelays()
+    {
+        return startDelays;
+    }
+    
+    /**
+     * @return                  the histogram bucket counts keyed by the bucket lower bound
+     */
+    public Map<Long, Long> getHistogram()
+    {
+        return histogram.getBuckets();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ResultAggregate " +
+                "[n=" + getN() +
+                ", failures=" + failures +
+                ", mean=" + getMean() +
+                ", min=" + getMin() +
+                ", max=" + getMax() +
+                "]";
+    }
+}
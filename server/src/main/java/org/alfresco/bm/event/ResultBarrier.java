@@ -18,6 +18,12 @@
  */
 package org.alfresco.bm.event;
 
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.alfresco.bm.event.ResultService.EventRecordHandler;
 
 /**
  * Simple barrier that reschedules itself until a number of eventresults ({@link RecordedEvent}s) are
@@ -34,7 +40,9 @@ package org.alfresco.bm.event;
  * 
  * <h1>Actions</h1>
  * 
- * Periodic check is performed to see if number is reached. If not, event is scheduled.
+ * Periodic check is performed to see if number is reached. If an {@link #setEventService(EventService) event service}
+ * is available, the barrier also listens for results recorded by this server and brings the next check forward
+ * as soon as the number is reached.  The barrier never waits for results while processing an event.
  * 
  * <h1>Output</h1>
  * 
@@ -51,6 +59,9 @@ public class ResultBarrier extends AbstractEventProcessor
     private long expectedCount;
     private long checkInterval;
     private ResultService resultService;
+    private EventService eventService;
+    /** Listens for the results needed to release the barrier; <tt>null</tt> if not listening */
+    private final AtomicReference<ResultWaker> currentWaker = new AtomicReference<ResultWaker>();
     
     /**
      * Create a new barrier.
@@ -71,25 +82,99 @@ public class ResultBarrier extends AbstractEventProcessor
     @Override
     public EventResult processEvent(Event event) throws Exception
     {
+        // Stop listening on behalf of the previous check
+        ResultWaker waker = currentWaker.getAndSet(null);
+        if (waker != null)
+        {
+            resultService.removeResultListener(countEventName, waker);
+        }
+        if (eventService != null)
+        {
+            // Listen before counting so that no result is missed.  Results counted twice just wake us early.
+            waker = new ResultWaker();
+            resultService.addResultListener(countEventName, waker);
+        }
+        
         long count = resultService.countResultsByEventName(countEventName);
         if(count < expectedCount)
         {
             long scheduledTime = System.currentTimeMillis() + checkInterval;
             Event reschedule = new Event(event.getName(), scheduledTime, null);
-            
-            return new EventResult(
+            String msg =
                     "Not enough results for '" + countEventName + "' (" +  count + "/" + expectedCount +
-                    "), barrier not releasing",
-                    reschedule);
+                    "), barrier not releasing";
+            if (waker == null)
+            {
+                return new EventResult(msg, reschedule);
+            }
+            // Queue the next check here so that the listener can bring it forward
+            reschedule.setId(eventService.putEvent(reschedule));
+            currentWaker.set(waker);
+            waker.arm(reschedule, expectedCount - count);
+            return new EventResult(msg, Collections.<Event>emptyList());
         }
         else
         {
+            if (waker != null)
+            {
+                resultService.removeResultListener(countEventName, waker);
+            }
             return new EventResult(
                     "Enough results for '" + countEventName + "', barrier released", 
                     new Event(getNextEventName(), System.currentTimeMillis(), null));
         }
     }
     
+    /**
+     * Counts the results recorded by this server and, once there are enough to release the
+     * barrier, makes the next check due immediately.  If the check has already been claimed,
+     * it will count the results itself.
+     */
+    private class ResultWaker implements EventRecordHandler
+    {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicBoolean woken = new AtomicBoolean();
+        private volatile Event check;
+        private volatile long target = Long.MAX_VALUE;
+        
+        /**
+         * Start waking the given check event once the number of results is reached
+         */
+        private void arm(Event check, long target)
+        {
+            this.check = check;
+            this.target = target;
+            // Results may have arrived while the check was being queued
+            wakeIfReady();
+        }
+        
+        @Override
+        public boolean processResult(EventRecord eventRecord)
+        {
+            count.incrementAndGet();
+            return !wakeIfReady();
+        }
+        
+        /**
+         * @return                  <tt>true</tt> if the check has been woken and no more results are needed
+         */
+        private boolean wakeIfReady()
+        {
+            Event check = this.check;
+            if (check == null || count.get() < target)
+            {
+                return false;
+            }
+            if (woken.compareAndSet(false, true))
+            {
+                currentWaker.compareAndSet(this, null);
+                resultService.removeResultListener(countEventName, this);
+                eventService.rescheduleEvent(check, System.currentTimeMillis());
+            }
+            return true;
+        }
+    }
+    
     /**
      * @param nextEventName name of the event to queue when number is reached.
      */
@@ -115,4 +200,17 @@ public class ResultBarrier extends AbstractEventProcessor
     {
         this.checkInterval = checkInterval;
     }
+    
+    /**
+     * Provide the event queue so that the next check can be brought forward as soon as this server
+     * has recorded enough results.  Without it, the barrier is only checked every
+     * {@link #setCheckInterval(long) check interval}.
+     * 
+     * @param eventService      the event service of the test run
+     * @since 2.2
+     */
+    public void setEventService(EventService eventService)
+    {
+        this.eventService = eventService;
+    }
 }
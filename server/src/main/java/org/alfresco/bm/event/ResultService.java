@@ -23,7 +23,6 @@ import java.util.Map;
 
 import org.alfresco.bm.api.v1.EventDetails;
 import org.alfresco.bm.api.v1.EventResultFilter;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
 /**
  * Service interface providing methods to store and query for event results.
@@ -45,6 +44,29 @@ public interface ResultService
      */
     void recordResult(EventRecord result);
     
+    /**
+     * Register a listener that is given each result for an event name as it is
+     * {@link #recordResult(EventRecord) recorded}.  The listener is removed when it returns <tt>false</tt>.
+     * <p/>
+     * Listeners only see results recorded by this instance of the service.
+     * 
+     * @param eventName         the name of the event to listen for
+     * @param listener          the listener to call for each result
+     * 
+     * @since 2.2
+     */
+    void addResultListener(String eventName, EventRecordHandler listener);
+    
+    /**
+     * Remove a listener registered using {@link #addResultListener(String, EventRecordHandler)}
+     * 
+     * @param eventName         the name of the event the listener is listening for
+     * @param listener          the listener to remove
+     * 
+     * @since 2.2
+     */
+    void removeResultListener(String eventName, EventRecordHandler listener);
+    
     /**
      * Retrieve the first result by start time
      * 
@@ -82,6 +104,40 @@ public interface ResultService
             boolean chartOnly,
             int skip, int limit);
     
+    /**
+     * Callback handler for individual event results.
+     * 
+     * @since 2.2
+     */
+    public interface EventRecordHandler
+    {
+        /**
+         * Process a single result
+         * 
+         * @param eventRecord   the next result in order of start time
+         * @return              <tt>true</tt> to continue processing otherwise <tt>false</tt>
+         */
+        boolean processResult(EventRecord eventRecord);
+    }
+    
+    /**
+     * Pass all event results in a time window, in order of start time, to a handler.
+     * <p/>
+     * Unlike paging through the results using {@link #getResults(long, long, boolean, int, int)},
+     * the cost of visiting each result does not grow with the number of results already visited.
+     * 
+     * @param startTime         the first event time (inclusive, milliseconds)
+     * @param endTime           the last event time (exclusive, milliseconds)
+     * @param chartOnly         <tt>true</tt> to only retrieve results for charting
+     * @param handler           the client callback implementation
+     * @return                  the number of results passed to the handler
+     */
+    long streamResults(
+            long startTime,
+            long endTime,
+            boolean chartOnly,
+            EventRecordHandler handler);
+    
     /**
      * Callback handler for aggregated results.  The results include all results for the
      * given window of time, even if there are multiple callbacks covering the same time
@@ -105,10 +161,32 @@ public interface ResultService
         boolean processResult(
                 long fromTime,
                 long toTime,
-                Map<String, DescriptiveStatistics> statsByEventName,
+                Map<String, LatencyHistogram> statsByEventName,
                 Map<String, Integer> failuresByEventName) throws Throwable;
     }
     
+    /**
+     * A {@link ResultHandler} that is also given statistics for how late the events started.
+     * The start delays are only gathered when the handler asks for them.
+     * 
+     * @since 2.2
+     */
+    public interface StartDelayResultHandler extends ResultHandler
+    {
+        /**
+         * The callback of statistics for a given time window, including the start delays
+         * 
+         * @param startDelaysByEventName    the start delays for the time window keyed by event name
+         * @see ResultHandler#processResult(long, long, Map, Map)
+         */
+        boolean processResult(
+                long fromTime,
+                long toTime,
+                Map<String, LatencyHistogram> statsByEventName,
+                Map<String, Integer> failuresByEventName,
+                Map<String, LatencyHistogram> startDelaysByEventName) throws Throwable;
+    }
+    
     /**
      * Get result statistics for discrete time intervals.
      * <p/>
@@ -129,6 +207,55 @@ public interface ResultService
             long windowSize,
             long reportPeriod,
             boolean chartOnly);
+    
+    /**
+     * Callback handler for results that were aggregated as they were recorded.
+     * 
+     * @since 2.2
+     */
+    public interface ResultAggregateHandler
+    {
+        /**
+         * The callback of aggregated results for a given time window.
+         * 
+         * @param fromTime      the start of the time window (inclusive)
+         * @param toTime        the end of the time window (exclusive)
+         * @param aggregatesByEventName statistics for the time window keyed by event name;
+         *                      events without results in the window are not present
+         * @return              <tt>true</tt> to continue processing otherwise <tt>false</tt>
+         * @throws              all exceptions will be handled
+         */
+        boolean processResult(
+                long fromTime,
+                long toTime,
+                Map<String, ResultAggregate> aggregatesByEventName) throws Throwable;
+    }
+    
+    /**
+     * Get result statistics for discrete time intervals using only aggregates that are kept
+     * up to date as results are recorded.  This does not read the individual results, making
+     * it suitable for frequent polling.
+     * <p/>
+     * A callback will be received for every time period, starting with the first period ending
+     * after the given start time, in which there were results.
+     * 
+     * @param handler           the client callback implementation
+     * @param startTime         only report windows that end after this time (milliseconds)
+     * @param windowSize        the length (milliseconds) of a time window.  This must be a multiple of the 'reportPeriod'.
+     * @param reportPeriod      the result time report period (milliseconds)
+     * @param chartOnly         <tt>true</tt> if only {@link EventRecord#isChart() chartable} results must be reported
+     * @return                  <tt>true</tt> if the results were reported or <tt>false</tt> if aggregates are not
+     *                          available for the results or the report period, in which case
+     *                          {@link #getResults(ResultHandler, long, long, long, boolean)} must be used
+     * 
+     * @since 2.2
+     */
+    boolean getAggregatedResults(
+            ResultAggregateHandler handler,
+            long startTime,
+            long windowSize,
+            long reportPeriod,
+            boolean chartOnly);
 
     /**
      * Query and returns event result details as requested.
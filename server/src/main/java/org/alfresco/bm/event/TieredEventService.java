@@ -0,0 +1,650 @@
+package org.alfresco.bm.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.alfresco.bm.event.mongo.MongoEventService;
+import org.alfresco.bm.test.LifecycleListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.DB;
+
+/**
+ * An {@link EventService} that serves the events meant for this driver from local memory and
+ * shares everything else through a {@link MongoEventService MongoDB} collection.
+ * <p/>
+ * An event is kept in the local tier when:
+ * <ul>
+ *  <li>its {@link Event#getDataInMemory() data is held in memory} i.e. no other driver could process it anyway</li>
+ *  <li>it is assigned to this driver, is scheduled within the local window and the local tier is not full</li>
+ * </ul>
+ * All other events, including events for this driver that are scheduled too far ahead or that overflow
+ * the local tier, are spilled to the shared tier.  When searching for events, the local tier is used
+ * first and the shared tier tops up the batch; the shared tier is also searched first periodically
+ * so that spilled events are picked up in good time even when the local tier is busy.  At the same
+ * time, spilled events for this driver that have come within the local window are moved back into
+ * the local tier if there is room for them.
+ * <p/>
+ * While the local tier holds events, a placeholder is kept in the shared collection so that drivers
+ * and servers looking at the shared {@link #count() count} do not consider the test run to be finished.
+ * The placeholder is assigned to this driver and is scheduled to {@link #setHoldExpiry(long) expire};
+ * it is renewed while the driver is searching for events.  Should the driver die, the placeholder falls
+ * due and is removed by the first driver to claim it.  When the service is stopped, events held locally
+ * are spilled to the shared tier and the placeholder is removed.
+ * 
+ * @since 2.2
+ */
+public class TieredEventService extends AbstractEventService implements LifecycleListener
+{
+    /** The default time ahead (milliseconds) that events are kept in the local tier */
+    public static final long DEFAULT_LOCAL_WINDOW = 60000L;
+    /** The default maximum number of events kept in the local tier */
+    public static final int DEFAULT_LOCAL_CAPACITY = 10000;
+    /** The default time (milliseconds) between searches of the shared tier ahead of the local tier */
+    public static final long DEFAULT_SHARED_SEARCH_PERIOD = 1000L;
+    /** The default time (milliseconds) after which a placeholder that is not renewed can be removed */
+    public static final long DEFAULT_HOLD_EXPIRY = 300000L;
+    
+    /** The name of the placeholder event that stands in for events held in the local tier */
+    public static final String EVENT_NAME_LOCAL_HOLD = "tiered.localHold";
+    
+    private static Log logger = LogFactory.getLog(TieredEventService.class);
+    
+    private static final Comparator<Event> SCHEDULED_TIME_ORDER = new Comparator<Event>()
+    {
+        @Override
+        public int compare(Event e1, Event e2)
+        {
+            return Long.compare(e1.getScheduledTime(), e2.getScheduledTime());
+        }
+    };
+    
+    private final String driverId;
+    private final LocalEventService localEventService;
+    private final MongoEventService sharedEventService;
+    private long localWindow = DEFAULT_LOCAL_WINDOW;
+    private int localCapacity = DEFAULT_LOCAL_CAPACITY;
+    private long sharedSearchPeriod = DEFAULT_SHARED_SEARCH_PERIOD;
+    private long holdExpiry = DEFAULT_HOLD_EXPIRY;
+    
+    /** Guards the local event count and the placeholder in the shared tier */
+    private final Object localHoldLock = new Object();
+    private int localCount;
+    private Event localHold;
+    private volatile long localHoldRenewTime = Long.MAX_VALUE;
+    private volatile long lastSharedSearchTime;
+    
+    /**
+     * @param db                the database holding the shared events
+     * @param collection        the name of the collection holding the shared events
+     * @param driverId          the ID of the driver using this service or <tt>null</tt> (or empty)
+     *                          if the service is only used to examine the event queue
+     */
+    public TieredEventService(DB db, String collection, String driverId)
+    {
+        this.driverId = (driverId == null || driverId.length() == 0) ? null : driverId;
+        this.localEventService = new LocalEventService(db, collection);
+        this.sharedEventService = new MongoEventService(db, collection);
+    }
+
+    /**
+     * Override the {@link #DEFAULT_LOCAL_WINDOW default} time (milliseconds) ahead of now
+     * that events for this driver can be scheduled and still be kept in the local tier
+     */
+    public void setLocalWindow(long localWindow)
+    {
+        if (localWindow < 0L)
+        {
+            throw new IllegalArgumentException("'localWindow' may not be negative.");
+        }
+        this.localWindow = localWindow;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_LOCAL_CAPACITY default} number of events that can be kept in
+     * the local tier.  Events that have their data in memory are always kept locally.
+     */
+    public void setLocalCapacity(int localCapacity)
+    {
+        if (localCapacity < 0)
+        {
+            throw new IllegalArgumentException("'localCapacity' may not be negative.");
+        }
+        this.localCapacity = localCapacity;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_SHARED_SEARCH_PERIOD default} time (milliseconds) between
+     * searches of the shared tier made ahead of the local tier
+     */
+    public void setSharedSearchPeriod(long sharedSearchPeriod)
+    {
+        this.sharedSearchPeriod = sharedSearchPeriod;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_HOLD_EXPIRY default} time (milliseconds) that the placeholder for
+     * the local events is scheduled ahead.  The placeholder is renewed when half of this time has
+     * passed; if the driver does not renew it, any driver can remove it once it falls due.
+     */
+    public void setHoldExpiry(long holdExpiry)
+    {
+        if (holdExpiry < 2L)
+        {
+            throw new IllegalArgumentException("'holdExpiry' must be at least 2ms.");
+        }
+        this.holdExpiry = holdExpiry;
+    }
+
+    @Override
+    public void start() throws Exception
+    {
+        localEventService.start();
+        sharedEventService.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Events held locally are spilled to the shared tier so that they can be picked up by other drivers;
+     * only events with their data held in memory are lost.
+     */
+    @Override
+    public void stop() throws Exception
+    {
+        spillLocal();
+        sharedEventService.stop();
+        localEventService.stop();
+    }
+    
+    /**
+     * Move all events that can be shared from the local tier to the shared tier and drop the placeholder
+     */
+    private void spillLocal()
+    {
+        List<Event> heldEvents = localEventService.getEvents(0, Integer.MAX_VALUE);
+        List<Event> spillEvents = new ArrayList<Event>(heldEvents.size());
+        int removed = 0;
+        int lost = 0;
+        for (Event event : heldEvents)
+        {
+            if (!localEventService.deleteEvent(event))
+            {
+                // Removed in the meantime
+                continue;
+            }
+            removed++;
+            if (event.getDataInMemory())
+            {
+                lost++;
+            }
+            else
+            {
+                spillEvents.add(copyEvent(event));
+            }
+        }
+        try
+        {
+            if (spillEvents.size() > 0)
+            {
+                sharedEventService.putEvents(spillEvents);
+            }
+        }
+        finally
+        {
+            removeLocal(removed);
+        }
+        if (lost > 0)
+        {
+            logger.warn("EventService dropped " + lost + " events with data held in memory.");
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Spilled " + spillEvents.size() + " local events to the shared tier.");
+        }
+    }
+    
+    /**
+     * Copy an event, without any lock, so that it can be written to the shared tier
+     */
+    private static Event copyEvent(Event event)
+    {
+        Event copy = new Event(event.getName(), event.getScheduledTime(), event.getData());
+        copy.setId(event.getId());
+        copy.setSessionId(event.getSessionId());
+        copy.setDriver(event.getDriver());
+        return copy;
+    }
+    
+    /**
+     * Account for events added to the local tier, placing a hold in the shared tier if there were none
+     */
+    private void addLocal(int count)
+    {
+        synchronized (localHoldLock)
+        {
+            if (localCount == 0 && count > 0)
+            {
+                placeHold(System.currentTimeMillis());
+            }
+            localCount += count;
+        }
+    }
+    
+    /**
+     * Account for events removed from the local tier, removing the hold in the shared tier if there are none left
+     */
+    private void removeLocal(int count)
+    {
+        synchronized (localHoldLock)
+        {
+            localCount -= count;
+            if (localCount <= 0 && localHold != null)
+            {
+                sharedEventService.deleteEvent(localHold);
+                localHold = null;
+                localHoldRenewTime = Long.MAX_VALUE;
+                localCount = 0;
+            }
+        }
+    }
+    
+    /**
+     * Put a new placeholder into the shared tier.  The caller must hold the {@link #localHoldLock}.
+     */
+    private void placeHold(long now)
+    {
+        Event hold = new Event(EVENT_NAME_LOCAL_HOLD, now + holdExpiry, null);
+        hold.setDriver(driverId);
+        String holdId = sharedEventService.putEvent(hold);
+        hold.setId(holdId);
+        localHold = hold;
+        localHoldRenewTime = now + holdExpiry / 2;
+    }
+    
+    /**
+     * Replace the placeholder with one that expires later, if it is due to be renewed
+     */
+    private void renewHold(long now)
+    {
+        if (now < localHoldRenewTime)
+        {
+            return;
+        }
+        synchronized (localHoldLock)
+        {
+            Event oldHold = localHold;
+            if (oldHold == null || now < localHoldRenewTime)
+            {
+                return;
+            }
+            // The new placeholder goes in before the old one comes out
+            placeHold(now);
+            sharedEventService.deleteEvent(oldHold);
+        }
+    }
+    
+    /**
+     * Remove a placeholder that has been claimed from the shared tier.  If it belongs to this service,
+     * it is replaced straight away.
+     */
+    private void reapHold(Event hold, long now)
+    {
+        synchronized (localHoldLock)
+        {
+            boolean ownHold = localHold != null && localHold.getId().equals(hold.getId());
+            if (ownHold)
+            {
+                placeHold(now);
+            }
+            sharedEventService.deleteEvent(hold);
+            if (!ownHold)
+            {
+                logger.warn("Removed expired placeholder left by driver " + hold.getDriver() + ": " + hold);
+            }
+        }
+    }
+    
+    /**
+     * Claim events from the shared tier, removing any expired placeholders found on the way
+     */
+    private List<Event> nextSharedEvents(String driverId, long latestScheduledTime, int maxCount, long now)
+    {
+        List<Event> events = sharedEventService.nextEvents(driverId, latestScheduledTime, maxCount);
+        Iterator<Event> iterator = events.iterator();
+        while (iterator.hasNext())
+        {
+            Event event = iterator.next();
+            if (EVENT_NAME_LOCAL_HOLD.equals(event.getName()))
+            {
+                reapHold(event, now);
+                iterator.remove();
+            }
+        }
+        return events;
+    }
+    
+    /**
+     * Move spilled events for this driver that are now within the local window back into the local tier
+     */
+    private void rehydrateLocal(long now)
+    {
+        if (driverId == null)
+        {
+            return;
+        }
+        long room = localCapacity - localEventService.count();
+        if (room <= 0L)
+        {
+            return;
+        }
+        List<Event> spilledEvents = sharedEventService.nextAssignedEvents(driverId, now + localWindow, (int) room);
+        int moved = 0;
+        for (Event event : spilledEvents)
+        {
+            if (EVENT_NAME_LOCAL_HOLD.equals(event.getName()))
+            {
+                reapHold(event, now);
+                continue;
+            }
+            // Added locally before it is removed from the shared tier so that the count does not dip
+            addLocal(1);
+            try
+            {
+                localEventService.putEvent(event);
+            }
+            catch (RuntimeException e)
+            {
+                removeLocal(1);
+                throw e;
+            }
+            sharedEventService.deleteEvent(event);
+            moved++;
+        }
+        
+        // Done
+        if (logger.isDebugEnabled() && moved > 0)
+        {
+            logger.debug("Moved " + moved + " spilled events back into the local tier.");
+        }
+    }
+    
+    /**
+     * Determine if the event can go into the local tier
+     * 
+     * @param pendingCount      the number of events already bound for the local tier
+     */
+    private boolean isLocal(Event event, long now, int pendingCount)
+    {
+        if (event.getDataInMemory())
+        {
+            return true;
+        }
+        return driverId != null &&
+                driverId.equals(event.getDriver()) &&
+                event.getScheduledTime() <= now + localWindow &&
+                localEventService.count() + pendingCount < localCapacity;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The count includes the events in both tiers but not this driver's placeholder.
+     */
+    @Override
+    public long count()
+    {
+        long count = localEventService.count() + sharedEventService.count();
+        synchronized (localHoldLock)
+        {
+            if (localHold != null)
+            {
+                count--;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String putEvent(Event event)
+    {
+        if (event == null)
+        {
+            throw new IllegalArgumentException("'event' may not be null.");
+        }
+        if (isLocal(event, System.currentTimeMillis(), 0))
+        {
+            addLocal(1);
+            try
+            {
+                return localEventService.putEvent(event);
+            }
+            catch (RuntimeException e)
+            {
+                removeLocal(1);
+                throw e;
+            }
+        }
+        else
+        {
+            return sharedEventService.putEvent(event);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Events bound for the shared tier are written in bulk.
+     */
+    @Override
+    public List<String> putEvents(List<Event> events)
+    {
+        long now = System.currentTimeMillis();
+        List<Event> localEvents = new ArrayList<Event>(events.size());
+        List<Event> sharedEvents = new ArrayList<Event>(events.size());
+        for (Event event : events)
+        {
+            if (event == null)
+            {
+                throw new IllegalArgumentException("'event' may not be null.");
+            }
+            if (isLocal(event, now, localEvents.size()))
+            {
+                localEvents.add(event);
+            }
+            else
+            {
+                sharedEvents.add(event);
+            }
+        }
+        
+        // Write to both tiers
+        List<String> localIds = Collections.<String>emptyList();
+        if (localEvents.size() > 0)
+        {
+            addLocal(localEvents.size());
+            localIds = new ArrayList<String>(localEvents.size());
+            for (Event event : localEvents)
+            {
+                try
+                {
+                    localIds.add(localEventService.putEvent(event));
+                }
+                catch (RuntimeException e)
+                {
+                    removeLocal(localEvents.size() - localIds.size());
+                    throw e;
+                }
+            }
+        }
+        List<String> sharedIds = sharedEventService.putEvents(sharedEvents);
+        
+        // Put the IDs back into the original order
+        List<String> eventIds = new ArrayList<String>(events.size());
+        int localIndex = 0;
+        int sharedIndex = 0;
+        for (Event event : events)
+        {
+            if (localIndex < localEvents.size() && localEvents.get(localIndex) == event)
+            {
+                eventIds.add(localIds.get(localIndex++));
+            }
+            else
+            {
+                eventIds.add(sharedIds.get(sharedIndex++));
+            }
+        }
+        return eventIds;
+    }
+
+    @Override
+    public Event getEvent(String id)
+    {
+        Event event = localEventService.getEvent(id);
+        return (event != null) ? event : sharedEventService.getEvent(id);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Local events are listed before shared events.
+     */
+    @Override
+    public List<Event> getEvents(int skip, int limit)
+    {
+        List<Event> events = new ArrayList<Event>(localEventService.getEvents(skip, limit));
+        if (events.size() < limit)
+        {
+            int sharedSkip = (int) Math.max(0L, skip - localEventService.count());
+            events.addAll(sharedEventService.getEvents(sharedSkip, limit - events.size()));
+        }
+        return events;
+    }
+
+    @Override
+    public Event nextEvent(String driverId, long latestScheduledTime)
+    {
+        List<Event> events = nextEvents(driverId, latestScheduledTime, 1);
+        return events.isEmpty() ? null : events.get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The local tier is searched first and the shared tier is only searched if the batch is not full,
+     * unless the shared tier has not been searched for a while.  Placeholders are never returned.
+     */
+    @Override
+    public List<Event> nextEvents(String driverId, long latestScheduledTime, int maxCount)
+    {
+        if (maxCount < 1)
+        {
+            throw new IllegalArgumentException("'maxCount' must be at least 1.");
+        }
+        long now = System.currentTimeMillis();
+        renewHold(now);
+        boolean sharedFirst = (now - lastSharedSearchTime) >= sharedSearchPeriod;
+        List<Event> events = new ArrayList<Event>(maxCount);
+        if (sharedFirst)
+        {
+            lastSharedSearchTime = now;
+            rehydrateLocal(now);
+            events.addAll(nextSharedEvents(driverId, latestScheduledTime, maxCount, now));
+        }
+        if (events.size() < maxCount)
+        {
+            // Everything in the local tier belongs to this driver
+            events.addAll(localEventService.nextEvents(null, latestScheduledTime, maxCount - events.size()));
+        }
+        if (!sharedFirst && events.size() < maxCount)
+        {
+            lastSharedSearchTime = now;
+            events.addAll(nextSharedEvents(driverId, latestScheduledTime, maxCount - events.size(), now));
+        }
+        Collections.sort(events, SCHEDULED_TIME_ORDER);
+        return events;
+    }
+
+    @Override
+    public boolean deleteEvent(Event event)
+    {
+        if (localEventService.deleteEvent(event))
+        {
+            removeLocal(1);
+            return true;
+        }
+        return sharedEventService.deleteEvent(event);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Events from the shared tier are deleted in bulk.
+     */
+    @Override
+    public int deleteEvents(List<Event> events)
+    {
+        int deleted = 0;
+        List<Event> sharedEvents = new ArrayList<Event>(events.size());
+        for (Event event : events)
+        {
+            if (localEventService.deleteEvent(event))
+            {
+                deleted++;
+            }
+            else
+            {
+                sharedEvents.add(event);
+            }
+        }
+        if (deleted > 0)
+        {
+            removeLocal(deleted);
+        }
+        if (sharedEvents.size() > 0)
+        {
+            deleted += sharedEventService.deleteEvents(sharedEvents);
+        }
+        return deleted;
+    }
+
+    @Override
+    public boolean unlockEvent(Event event)
+    {
+        return localEventService.unlockEvent(event) || sharedEventService.unlockEvent(event);
+    }
+
+    @Override
+    public boolean rescheduleEvent(Event event, long scheduledTime)
+    {
+        return localEventService.rescheduleEvent(event, scheduledTime) || sharedEventService.rescheduleEvent(event, scheduledTime);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The placeholder is removed along with the shared events.
+     */
+    @Override
+    public boolean clear()
+    {
+        boolean localCleared = localEventService.clear();
+        boolean sharedCleared;
+        synchronized (localHoldLock)
+        {
+            sharedCleared = sharedEventService.clear();
+            if (!sharedCleared && localHold != null)
+            {
+                sharedEventService.deleteEvent(localHold);
+            }
+            localCount = 0;
+            localHold = null;
+            localHoldRenewTime = Long.MAX_VALUE;
+        }
+        return localCleared && sharedCleared;
+    }
+}
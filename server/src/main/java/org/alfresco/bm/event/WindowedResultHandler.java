@@ -0,0 +1,295 @@
+package org.alfresco.bm.event;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.bm.event.ResultService.EventRecordHandler;
+import org.alfresco.bm.event.ResultService.ResultHandler;
+import org.alfresco.bm.event.ResultService.StartDelayResultHandler;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Feeds individual results, in order of start time, into statistics for a sliding window
+ * and passes the statistics to a {@link ResultHandler} each time a result falls past the
+ * end of the current window.
+ * <p/>
+ * It is possible to report more frequently than the window size.  For each report period
+ * in the reporting window, the statistics for the events are kept separately and merged
+ * when the window is reported.
+ * <p/>
+ * The start delays of the events are also reported if the handler is a
+ * {@link StartDelayResultHandler}.
+ * <p/>
+ * Once all the results have been passed in, {@link #finish()} must be called to report
+ * the last window.
+ *
+ * @since 2.2
+ */
+public class WindowedResultHandler implements EventRecordHandler
+{
+    private static Log logger = LogFactory.getLog(WindowedResultHandler.class);
+
+    private final ResultHandler handler;
+    private final long reportPeriod;
+    private final int windowMultiple;
+    private final boolean chartOnly;
+    private final int significantDigits;
+
+    // Each LinkedList will have 'windowMultiple' entries, each holding the statistics for one report period.
+    // The newest statistics will be the last in the linked list; results are recorded only there and
+    // the entries are merged when the window is reported.
+    private final Map<String, LinkedList<LatencyHistogram>> statsByEventName;
+    private final Map<String, LinkedList<AtomicInteger>> failuresByEventName;
+    /** Kept in the same way as the statistics; <tt>null</tt> if start delays are not reported */
+    private final Map<String, LinkedList<LatencyHistogram>> startDelaysByEventName;
+    private long currentWindowStartTime;
+    private long currentWindowEndTime;
+    private boolean unreportedResults;
+    private boolean stop;
+
+    /**
+     * @param handler               the client callback implementation
+     * @param firstResultStartTime  the start time of the first result.  The first reporting window
+     *                              is rebased to the report period that contains this time.
+     * @param windowSize            the length (milliseconds) of a time window.  This must be a multiple of the 'reportPeriod'.
+     * @param reportPeriod          the result time report period (milliseconds).  This cannot be <i>more</i> than the 'windowSize'.
+     * @param chartOnly             <tt>true</tt> if only {@link EventRecord#isChart() chartable} results must be reported
+     * @param significantDigits     the precision of the statistics reported
+     */
+    public WindowedResultHandler(
+            ResultHandler handler,
+            long firstResultStartTime,
+            long windowSize,
+            long reportPeriod,
+            boolean chartOnly,
+            int significantDigits)
+    {
+        if (handler == null)
+        {
+            throw new IllegalArgumentException("A result handler must be supplied.");
+        }
+        if (windowSize <= 0L)
+        {
+            throw new IllegalArgumentException("'windowSize' must be a non-zero, positive number.");
+        }
+        if (reportPeriod <= 0L)
+        {
+            throw new IllegalArgumentException("'reportPeriod' must be a non-zero, positive number.");
+        }
+        if (reportPeriod > windowSize)
+        {
+            throw new IllegalArgumentException("'reportPeriod' cannot more than the 'windowSize'.");
+        }
+        if (windowSize % reportPeriod != 0L)
+        {
+            throw new IllegalArgumentException("'windowSize' must be a multiple of 'reportPeriod'.");
+        }
+        new LatencyHistogram(significantDigits);            // Validate
+
+        this.handler = handler;
+        this.reportPeriod = reportPeriod;
+        // We have to keep statistics for each reporting period
+        this.windowMultiple = (int) (windowSize / reportPeriod);
+        this.chartOnly = chartOnly;
+        this.significantDigits = significantDigits;
+        this.statsByEventName = new HashMap<String, LinkedList<LatencyHistogram>>(13);
+        this.failuresByEventName = new HashMap<String, LinkedList<AtomicInteger>>(13);
+        this.startDelaysByEventName = (handler instanceof StartDelayResultHandler)
+                ? new HashMap<String, LinkedList<LatencyHistogram>>(13)
+                : null;
+
+        // Rebase the aggregation window to encompasse the first event
+        this.currentWindowEndTime = (long) Math.floor((firstResultStartTime + reportPeriod) / reportPeriod) * reportPeriod;
+        this.currentWindowStartTime = currentWindowEndTime - windowSize;
+    }
+
+    @Override
+    public boolean processResult(EventRecord eventRecord)
+    {
+        if (stop)
+        {
+            return false;
+        }
+        String eventRecordName = eventRecord.getEvent().getName();
+        long eventRecordStartTime = eventRecord.getStartTime();
+        long eventRecordTime = eventRecord.getTime();
+        boolean eventRecordSuccess = eventRecord.isSuccess();
+
+        // If the current event is past the reporting period, then report
+        if (eventRecordStartTime >= currentWindowEndTime)
+        {
+            // Report the current stats
+            stop = reportAndCycleStats();
+            unreportedResults = false;
+            // Shift the window up by one report period
+            currentWindowStartTime += reportPeriod;
+            currentWindowEndTime += reportPeriod;
+            // Check for stop
+            if (stop)
+            {
+                return false;
+            }
+        }
+
+        // Ignore results we don't wish to chart
+        if (chartOnly && !eventRecord.isChart())
+        {
+            return true;
+        }
+
+        // We have to report this result at some point
+        unreportedResults = true;
+
+        // Get the linked list of stats for the event
+        LinkedList<LatencyHistogram> eventStatsLL = statsByEventName.get(eventRecordName);
+        if (eventStatsLL == null)
+        {
+            // Create a LL for the event
+            eventStatsLL = new LinkedList<LatencyHistogram>();
+            statsByEventName.put(eventRecordName, eventStatsLL);
+            // We need at least one entry in order to record stats
+            eventStatsLL.add(new LatencyHistogram(significantDigits));
+        }
+        // Write the current event to the stats for the current report period
+        eventStatsLL.getLast().recordValue(Math.max(0L, eventRecordTime));
+        
+        if (startDelaysByEventName != null)
+        {
+            LinkedList<LatencyHistogram> eventStartDelaysLL = startDelaysByEventName.get(eventRecordName);
+            if (eventStartDelaysLL == null)
+            {
+                eventStartDelaysLL = new LinkedList<LatencyHistogram>();
+                startDelaysByEventName.put(eventRecordName, eventStartDelaysLL);
+                eventStartDelaysLL.add(new LatencyHistogram(significantDigits));
+            }
+            eventStartDelaysLL.getLast().recordValue(Math.max(0L, eventRecord.getStartDelay()));
+        }
+
+        // Get the linked list of failure counts for the event
+        LinkedList<AtomicInteger> eventFailuresLL = failuresByEventName.get(eventRecordName);
+        if (eventFailuresLL == null)
+        {
+            // Create a LL for the event
+            eventFailuresLL = new LinkedList<AtomicInteger>();
+            failuresByEventName.put(eventRecordName, eventFailuresLL);
+            // Need one entry to record failures
+            eventFailuresLL.add(new AtomicInteger(0));
+        }
+        // Write any failures to all counts for the event
+        if (!eventRecordSuccess)
+        {
+            for (AtomicInteger eventFailures : eventFailuresLL)
+            {
+                eventFailures.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Report the last window if there are results that have not been reported
+     * and the handler has not asked to stop
+     */
+    public void finish()
+    {
+        if (!stop && unreportedResults)
+        {
+            stop = reportAndCycleStats();
+            unreportedResults = false;
+        }
+    }
+
+    /**
+     * Reports the stats for the events across the window and pops the oldest off the list
+     *
+     * @return                      <tt>true</tt> to stop processing
+     */
+    private boolean reportAndCycleStats()
+    {
+        // Handle stats
+        Map<String, LatencyHistogram> stats = mergeAndCycle(statsByEventName);
+
+        // Handle failures
+        Map<String, Integer> failures = new HashMap<String, Integer>(statsByEventName.size() + 7);
+        for (Map.Entry<String, LinkedList<AtomicInteger>> entry : failuresByEventName.entrySet())
+        {
+            // Grab the OLDEST stats from the beginning of the list
+            String eventName = entry.getKey();
+            LinkedList<AtomicInteger> ll = entry.getValue();
+            try
+            {
+                AtomicInteger eventFailures = ll.getFirst();
+                failures.put(eventName, Integer.valueOf(eventFailures.get()));
+                if (ll.size() == windowMultiple)
+                {
+                    // We have enough reporting points for the window, so pop the first and add a new to the end
+                    ll.pop();
+                }
+                ll.add(new AtomicInteger());
+            }
+            catch (NoSuchElementException e)
+            {
+                throw new RuntimeException("An event name did not have a failure count for the reporting period: " + failuresByEventName);
+            }
+        }
+
+        boolean stop = false;
+        try
+        {
+            boolean go;
+            if (startDelaysByEventName != null)
+            {
+                Map<String, LatencyHistogram> startDelays = mergeAndCycle(startDelaysByEventName);
+                go = ((StartDelayResultHandler) handler).processResult(
+                        currentWindowStartTime, currentWindowEndTime, stats, failures, startDelays);
+            }
+            else
+            {
+                go = handler.processResult(currentWindowStartTime, currentWindowEndTime, stats, failures);
+            }
+            stop = !go;
+        }
+        catch (Throwable e)
+        {
+            logger.error("Exception while making callback.", e);
+        }
+        return stop;
+    }
+    
+    /**
+     * Merge the statistics for all the report periods in the window and start a new report period
+     * 
+     * @return                      the statistics for the window keyed by event name
+     */
+    private Map<String, LatencyHistogram> mergeAndCycle(Map<String, LinkedList<LatencyHistogram>> histogramsByEventName)
+    {
+        Map<String, LatencyHistogram> merged = new HashMap<String, LatencyHistogram>(histogramsByEventName.size() + 7);
+        for (Map.Entry<String, LinkedList<LatencyHistogram>> entry : histogramsByEventName.entrySet())
+        {
+            // Merge the stats for all the report periods in the window
+            String eventName = entry.getKey();
+            LinkedList<LatencyHistogram> ll = entry.getValue();
+            if (ll.isEmpty())
+            {
+                throw new RuntimeException("An event name did not have a result for the reporting period: " + histogramsByEventName);
+            }
+            LatencyHistogram eventStats = new LatencyHistogram(significantDigits);
+            for (LatencyHistogram periodStats : ll)
+            {
+                eventStats.add(periodStats);
+            }
+            merged.put(eventName, eventStats);
+            if (ll.size() == windowMultiple)
+            {
+                // We have enough reporting points for the window, so pop the first and add a new to the end
+                ll.pop();
+            }
+            ll.add(new LatencyHistogram(significantDigits));
+        }
+        return merged;
+    }
+}
@@ -35,6 +35,9 @@ import org.apache.commons.logging.LogFactory;
 import org.bson.types.ObjectId;
 
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -188,8 +191,11 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
         return event;
     }
     
-    @Override
-    public String putEvent(Event event)
+    /**
+     * Convert an event for insertion, assigning an ID and moving in-memory data to
+     * the local store as required.
+     */
+    private DBObject convertEventForInsert(Event event)
     {
         if (event == null)
         {
@@ -220,6 +226,14 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
             // thread to pull the event before the local data is even in the map.
             runLocalData.put(eventId, data);
         }
+        return insertObj;
+    }
+    
+    @Override
+    public String putEvent(Event event)
+    {
+        DBObject insertObj = convertEventForInsert(event);
+        String eventId = insertObj.get(Event.FIELD_ID).toString();
         
         try
         {
@@ -242,6 +256,71 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
         return eventId;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The events are inserted using a single, unordered bulk write.
+     */
+    @Override
+    public List<String> putEvents(List<Event> events)
+    {
+        if (events == null)
+        {
+            throw new IllegalArgumentException("'events' may not be null.");
+        }
+        if (events.size() == 0)
+        {
+            return Collections.<String>emptyList();
+        }
+        
+        List<DBObject> insertObjs = new ArrayList<DBObject>(events.size());
+        List<String> eventIds = new ArrayList<String>(events.size());
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (Event event : events)
+        {
+            DBObject insertObj = convertEventForInsert(event);
+            insertObjs.add(insertObj);
+            eventIds.add(insertObj.get(Event.FIELD_ID).toString());
+            bulk.insert(insertObj);
+        }
+        
+        try
+        {
+            bulk.execute();
+        }
+        catch (BulkWriteException e)
+        {
+            // Some of the events went in, so only drop the local data for the failures
+            StringBuilder sb = new StringBuilder(1024);
+            for (BulkWriteError error : e.getWriteErrors())
+            {
+                DBObject insertObj = insertObjs.get(error.getIndex());
+                runLocalData.remove(eventIds.get(error.getIndex()));
+                sb.append("\n   Event: ").append(insertObj).append(" (").append(error.getMessage()).append(")");
+            }
+            throw new RuntimeException(
+                    "Failed to insert " + e.getWriteErrors().size() + " of " + events.size() + " events:" + sb.toString(),
+                    e);
+        }
+        catch (MongoException e)
+        {
+            for (String eventId : eventIds)
+            {
+                runLocalData.remove(eventId);
+            }
+            throw new RuntimeException(
+                    "Failed to insert " + events.size() + " events.",
+                    e);
+        }
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Put " + events.size() + " events: " + eventIds);
+        }
+        return eventIds;
+    }
+
     @Override
     public Event getEvent(String id)
     {
@@ -284,12 +363,20 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
     }
 
     /**
-     * {@inheritDoc}
+     * Build the query that finds events that are available for processing
      */
-    @Override
-    public Event nextEvent(String driverId, long latestScheduledTime)
+    private DBObject getNextEventsQuery(String driverId, long latestScheduledTime)
+    {
+        return getNextEventsQuery(driverId, latestScheduledTime, false);
+    }
+
+    /**
+     * Build the query that finds events that are available for processing
+     * 
+     * @param assignedOnly          <tt>true</tt> to ignore unassigned events when a driver is given
+     */
+    private DBObject getNextEventsQuery(String driverId, long latestScheduledTime, boolean assignedOnly)
     {
-        // Build query
         BasicDBObjectBuilder qb = BasicDBObjectBuilder
                 .start()
                 .push(Event.FIELD_SCHEDULED_TIME)                   // Must be scheduled to execute
@@ -299,13 +386,27 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
                 .push(Event.FIELD_DATA_OWNER)                       // We must own the data it or it must be unowned
                     .add("$in", new String[] {dataOwner, null})
                     .pop();
-        if (driverId != null)
+        if (driverId != null && assignedOnly)
+        {
+            qb.add(Event.FIELD_DRIVER, driverId);                   // Must be assigned to the given driver
+        }
+        else if (driverId != null)
         {
             qb.push(Event.FIELD_DRIVER)                             // Must be assigned to the given driver or must be unassigned
                 .add("$in", new String[] {driverId, null})
                 .pop();
         }
-        DBObject queryObj = qb.get();
+        return qb.get();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Event nextEvent(String driverId, long latestScheduledTime)
+    {
+        // Build query
+        DBObject queryObj = getNextEventsQuery(driverId, latestScheduledTime);
         // Build sort
         DBObject sortObj = BasicDBObjectBuilder
                 .start()
@@ -343,6 +444,153 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
         return event;
     }
     
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The available events are found first and then locked using a single update that
+     * tags them with a unique lock token.  Only events that are still unlocked at the time
+     * of the update are claimed, so events grabbed by other drivers in the meantime are
+     * simply dropped from the batch.  The claimed events are then fetched by their token.
+     */
+    @Override
+    public List<Event> nextEvents(String driverId, long latestScheduledTime, int maxCount)
+    {
+        if (maxCount < 1)
+        {
+            throw new IllegalArgumentException("'maxCount' must be at least 1.");
+        }
+        else if (maxCount == 1)
+        {
+            // A findAndModify is cheaper for single events
+            Event event = nextEvent(driverId, latestScheduledTime);
+            return (event == null) ? Collections.<Event>emptyList() : Collections.singletonList(event);
+        }
+        
+        DBObject queryObj = getNextEventsQuery(driverId, latestScheduledTime);
+        return claimEvents(queryObj, driverId, latestScheduledTime, maxCount);
+    }
+    
+    /**
+     * Claim the next events that are explicitly assigned to the given driver, ignoring any
+     * unassigned events.  The events are claimed in the same way as for
+     * {@link #nextEvents(String, long, int)}.
+     * 
+     * @param driverId              the driver that the events must be assigned to
+     * @param latestScheduledTime   the latest scheduled time of the events to claim
+     * @param maxCount              the maximum number of events to claim
+     * @return                      the events claimed, in order of scheduled time
+     */
+    public List<Event> nextAssignedEvents(String driverId, long latestScheduledTime, int maxCount)
+    {
+        if (driverId == null)
+        {
+            throw new IllegalArgumentException("'driverId' is required.");
+        }
+        if (maxCount < 1)
+        {
+            throw new IllegalArgumentException("'maxCount' must be at least 1.");
+        }
+        DBObject queryObj = getNextEventsQuery(driverId, latestScheduledTime, true);
+        return claimEvents(queryObj, driverId, latestScheduledTime, maxCount);
+    }
+    
+    /**
+     * Find and lock up to the given number of events that match the query
+     */
+    private List<Event> claimEvents(DBObject queryObj, String driverId, long latestScheduledTime, int maxCount)
+    {
+        // Build sort
+        DBObject sortObj = BasicDBObjectBuilder
+                .start()
+                .add(Event.FIELD_SCHEDULED_TIME, Integer.valueOf(1))
+                .get();
+        DBObject fieldsObj = BasicDBObjectBuilder
+                .start()
+                .add(Event.FIELD_ID, Integer.valueOf(1))
+                .get();
+        
+        // Find the candidate events
+        List<ObjectId> candidateIds = new ArrayList<ObjectId>(maxCount);
+        DBCursor cursor = collection.find(queryObj, fieldsObj).sort(sortObj).limit(maxCount);
+        try
+        {
+            while (cursor.hasNext())
+            {
+                candidateIds.add((ObjectId) cursor.next().get(Event.FIELD_ID));
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        if (candidateIds.size() == 0)
+        {
+            return Collections.<Event>emptyList();
+        }
+        
+        // Lock the candidates that have not been grabbed in the meantime
+        String lockToken = new ObjectId().toString();
+        long now = System.currentTimeMillis();
+        DBObject lockQueryObj = BasicDBObjectBuilder
+                .start()
+                .push(Event.FIELD_ID)
+                    .add("$in", candidateIds)
+                    .pop()
+                .add(Event.FIELD_LOCK_OWNER, null)                  // Must still not be locked
+                .get();
+        DBObject updateObj = BasicDBObjectBuilder
+                .start()
+                .push("$set")
+                    .add(Event.FIELD_LOCK_OWNER, dataOwner)
+                    .add(Event.FIELD_LOCK_TIME, new Date(now))
+                    .add(Event.FIELD_LOCK_TOKEN, lockToken)
+                .pop()
+                .get();
+        WriteResult wr = collection.updateMulti(lockQueryObj, updateObj);
+        if (wr.getN() == 0)
+        {
+            // Other drivers got there first
+            return Collections.<Event>emptyList();
+        }
+        
+        // Fetch the events we locked
+        DBObject claimedQueryObj = BasicDBObjectBuilder
+                .start()
+                .push(Event.FIELD_ID)
+                    .add("$in", candidateIds)
+                    .pop()
+                .add(Event.FIELD_LOCK_TOKEN, lockToken)
+                .get();
+        List<Event> events = new ArrayList<Event>(wr.getN());
+        cursor = collection.find(claimedQueryObj).sort(sortObj);
+        try
+        {
+            while (cursor.hasNext())
+            {
+                Event event = convertDBObject(cursor.next());
+                event.setLockOwner(dataOwner);
+                event.setLockTime(now);
+                events.add(event);
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("\n" +
+                    "Fetched next events (no lock present): \n" +
+                    "   Latest scheduled time:  " + latestScheduledTime + "\n" +
+                    "   Driver ID:              " + driverId + "\n" +
+                    "   Candidates:             " + candidateIds.size() + "\n" +
+                    "   Claimed:                " + events.size());
+        }
+        return events;
+    }
+    
     @Override
     public boolean deleteEvent(Event event)
     {
@@ -378,6 +626,113 @@ public class MongoEventService extends AbstractEventService implements Lifecycle
         }
     }
     
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The lock is removed with a single update that only matches the event while it has
+     * the same lock owner and lock time as when it was claimed.
+     */
+    @Override
+    public boolean unlockEvent(Event event)
+    {
+        String lockOwner = event.getLockOwner();
+        if (lockOwner == null)
+        {
+            throw new IllegalArgumentException("Event has not been claimed: " + event);
+        }
+        DBObject queryObj = BasicDBObjectBuilder
+                .start()
+                .add(Event.FIELD_ID, new ObjectId(event.getId()))
+                .add(Event.FIELD_LOCK_OWNER, lockOwner)
+                .add(Event.FIELD_LOCK_TIME, new Date(event.getLockTime()))
+                .get();
+        DBObject updateObj = BasicDBObjectBuilder
+                .start()
+                .push("$unset")
+                    .add(Event.FIELD_LOCK_OWNER, Integer.valueOf(1))
+                    .add(Event.FIELD_LOCK_TIME, Integer.valueOf(1))
+                    .add(Event.FIELD_LOCK_TOKEN, Integer.valueOf(1))
+                .pop()
+                .get();
+        WriteResult wr = collection.update(queryObj, updateObj);
+        boolean unlocked = wr.getN() == 1;
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug((unlocked ? "Unlocked event: " : "Failed to unlock event: ") + event);
+        }
+        return unlocked;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The event is only updated if it has no lock owner.
+     */
+    @Override
+    public boolean rescheduleEvent(Event event, long scheduledTime)
+    {
+        DBObject queryObj = BasicDBObjectBuilder
+                .start()
+                .add(Event.FIELD_ID, new ObjectId(event.getId()))
+                .push(Event.FIELD_LOCK_OWNER)
+                    .add("$exists", Boolean.FALSE)
+                .pop()
+                .get();
+        DBObject updateObj = BasicDBObjectBuilder
+                .start()
+                .push("$set")
+                    .add(Event.FIELD_SCHEDULED_TIME, new Date(scheduledTime))
+                .pop()
+                .get();
+        WriteResult wr = collection.update(queryObj, updateObj);
+        boolean rescheduled = wr.getN() == 1;
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug((rescheduled ? "Rescheduled event: " : "Failed to reschedule event: ") + event + " to " + scheduledTime);
+        }
+        return rescheduled;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The events are removed using a single remove by ID.
+     */
+    @Override
+    public int deleteEvents(List<Event> events)
+    {
+        if (events.size() == 0)
+        {
+            return 0;
+        }
+        List<ObjectId> ids = new ArrayList<ObjectId>(events.size());
+        for (Event event : events)
+        {
+            String id = event.getId();
+            ids.add(new ObjectId(id));
+            // Drop any associated memory data
+            runLocalData.remove(id);
+        }
+        DBObject queryObj = BasicDBObjectBuilder
+                .start()
+                .push(Event.FIELD_ID)
+                    .add("$in", ids)
+                    .pop()
+                .get();
+        WriteResult wr = collection.remove(queryObj);
+        
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Removed " + wr.getN() + " of " + events.size() + " events.");
+        }
+        return wr.getN();
+    }
+    
     @Override
     public boolean clear()
     {
@@ -19,24 +19,44 @@
 package org.alfresco.bm.event.mongo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.alfresco.bm.api.v1.EventDetails;
 import org.alfresco.bm.api.v1.EventResultFilter;
 import org.alfresco.bm.event.AbstractResultService;
 import org.alfresco.bm.event.Event;
 import org.alfresco.bm.event.EventRecord;
+import org.alfresco.bm.event.LatencyHistogram;
+import org.alfresco.bm.event.ResultAggregate;
+import org.alfresco.bm.server.DriverMetrics;
 import org.alfresco.bm.test.LifecycleListener;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
 import com.mongodb.MongoCommandException;
 import com.mongodb.MongoException;
 import com.mongodb.QueryBuilder;
@@ -51,8 +71,59 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
 {
     private static Log logger = LogFactory.getLog(MongoResultService.class);
 
+    /** Default number of results written in one go; 0 means results are written as they are recorded */
+    public static final int DEFAULT_RECORD_BATCH_SIZE = 0;
+    /** Default maximum time (ms) that a recorded result may wait before being written */
+    public static final long DEFAULT_RECORD_FLUSH_PERIOD = 1000L;
+    /** Default maximum number of recorded results waiting to be written */
+    public static final int DEFAULT_RECORD_QUEUE_SIZE = 10000;
+    /** The time span (ms) of each pre-aggregated bucket of results */
+    public static final long RESULT_BUCKET_SIZE = 1000L;
+    /** The number of results fetched by each query when streaming results */
+    public static final int RESULT_STREAM_PAGE_SIZE = 10000;
+    
+    private static final String FIELD_BUCKET_NAME = "name";
+    private static final String FIELD_BUCKET_CHART = "chart";
+    private static final String FIELD_BUCKET_TIME = "time";
+    private static final String FIELD_BUCKET_N = "n";
+    private static final String FIELD_BUCKET_FAILURES = "fail";
+    private static final String FIELD_BUCKET_SUM = "sum";
+    private static final String FIELD_BUCKET_SUM_OF_SQUARES = "sum2";
+    private static final String FIELD_BUCKET_MIN = "min";
+    private static final String FIELD_BUCKET_MAX = "max";
+    private static final String FIELD_BUCKET_HISTOGRAM = "hist";
+    /** The start delay statistics, held in a sub-document with the same fields as the result times */
+    private static final String FIELD_BUCKET_START_DELAY = "delay";
+    private static final String FIELD_COUNT_SUCCESS = "success";
+    private static final String FIELD_COUNT_FAILURE = "fail";
+    /** The error code of a write that would duplicate a unique key */
+    private static final int ERROR_DUPLICATE_KEY = 11000;
+    /** The number of times an upsert that loses a race to insert a document is repeated */
+    private static final int MAX_UPSERT_RETRIES = 3;
+    /** The number of times a buffered result is written before it is given up on */
+    private static final int MAX_RECORD_WRITE_ATTEMPTS = 10;
+
     private DBCollection collection;
+    /** Results aggregated by event name, chartability and time as they are recorded */
+    private DBCollection bucketCollection;
+    /** Success and failure counts for each event name, keyed by the event name */
+    private DBCollection countCollection;
     private boolean checkIndexes = false;
+    
+    private int recordBatchSize = DEFAULT_RECORD_BATCH_SIZE;
+    private long recordFlushPeriod = DEFAULT_RECORD_FLUSH_PERIOD;
+    private int recordQueueSize = DEFAULT_RECORD_QUEUE_SIZE;
+    /** Results waiting to be written */
+    private final ConcurrentLinkedQueue<DBObject> recordQueue = new ConcurrentLinkedQueue<DBObject>();
+    /** The number of results buffered or being written, tracked without having to iterate over the {@link #recordQueue} */
+    private final AtomicInteger recordQueueDepth = new AtomicInteger(0);
+    /** The number of failed writes of each buffered result that has failed, guarded by the {@link #recordQueue} */
+    private final Map<DBObject, Integer> recordWriteFailures = new IdentityHashMap<DBObject, Integer>();
+    private final AtomicLong recordFlushCount = new AtomicLong(0L);
+    private final AtomicLong recordFlushTime = new AtomicLong(0L);
+    private final AtomicLong recordFlushTimeMax = new AtomicLong(0L);
+    private volatile Thread recordFlushThread;
+    private volatile DriverMetrics metrics;
 
     /**
      * Construct a test result provider against a Mongo database and given collection name
@@ -75,12 +146,85 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
             this.collection = db.getCollection(collection);
             this.checkIndexes = false;
         }
+        this.bucketCollection = db.getCollection(collection + ".buckets");
+        this.countCollection = db.getCollection(collection + ".counts");
+    }
+    
+    /**
+     * Override the {@link #DEFAULT_RECORD_BATCH_SIZE default} number of results to write in one go.
+     * When greater than zero, {@link #recordResult(EventRecord) recorded results} are buffered
+     * and written by a background thread when the batch is full or the
+     * {@link #setRecordFlushPeriod(long) flush period} expires.
+     * <p/>
+     * When zero, each result costs three blocking round trips on the recording thread: the
+     * result is inserted and then its event count and time bucket are upserted.  Batches
+     * group the count and bucket updates, so a batch costs the same three writes.
+     * 
+     * @since 2.2
+     */
+    public void setRecordBatchSize(int recordBatchSize)
+    {
+        if (recordBatchSize < 0)
+        {
+            throw new IllegalArgumentException("'recordBatchSize' may not be negative.");
+        }
+        this.recordBatchSize = recordBatchSize;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_RECORD_FLUSH_PERIOD default} maximum time (milliseconds) that
+     * buffered results can wait before being written.
+     * 
+     * @since 2.2
+     */
+    public void setRecordFlushPeriod(long recordFlushPeriod)
+    {
+        if (recordFlushPeriod < 1L)
+        {
+            throw new IllegalArgumentException("'recordFlushPeriod' must be greater than zero.");
+        }
+        this.recordFlushPeriod = recordFlushPeriod;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_RECORD_QUEUE_SIZE default} number of buffered results allowed.
+     * Once this is reached, threads recording results write the buffered results themselves.
+     * 
+     * @since 2.2
+     */
+    public void setRecordQueueSize(int recordQueueSize)
+    {
+        if (recordQueueSize < 1)
+        {
+            throw new IllegalArgumentException("'recordQueueSize' must be greater than zero.");
+        }
+        this.recordQueueSize = recordQueueSize;
     }
     
+    /**
+     * Record the time taken to write results in the registry shared by all test runs on the driver
+     * 
+     * @param metrics           the driver metrics or <tt>null</tt> to record nothing
+     * @since 2.2
+     */
+    public void setMetrics(DriverMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
     @Override
     public void start() throws Exception
     {
         checkIndexes();
+        checkCounts();
+        
+        if (recordBatchSize > 0)
+        {
+            Thread thread = new Thread(new RecordFlusher(), "MongoResultService-" + collection.getName());
+            thread.setDaemon(true);
+            recordFlushThread = thread;
+            thread.start();
+        }
     }
     
     private void checkIndexes() throws Exception
@@ -111,14 +255,16 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
                 .get();
         collection.createIndex(idx_SUCCESS_START, opt_SUCCESS_START);
         
-        DBObject idx_START = BasicDBObjectBuilder
+        // The ID is included so that results can be streamed in a stable order
+        DBObject idx_START_ID = BasicDBObjectBuilder
                 .start(EventRecord.FIELD_START_TIME, Integer.valueOf(1))
+                .add(EventRecord.FIELD_ID, Integer.valueOf(1))
                 .get();
-        DBObject opt_START = BasicDBObjectBuilder
-                .start("name", "IDX_START")
+        DBObject opt_START_ID = BasicDBObjectBuilder
+                .start("name", "IDX_START_ID")
                 .add("unique", Boolean.FALSE)
                 .get();
-        collection.createIndex(idx_START, opt_START);
+        collection.createIndex(idx_START_ID, opt_START_ID);
         
         DBObject idx_SESSION_START = BasicDBObjectBuilder
                 .start(EventRecord.FIELD_EVENT_SESSION_ID, Integer.valueOf(1))
@@ -129,11 +275,699 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
                 .add("unique", Boolean.FALSE)
                 .get();
         collection.createIndex(idx_SESSION_START, opt_SESSION_START);
+        
+        DBObject idx_BUCKET = BasicDBObjectBuilder
+                .start(FIELD_BUCKET_TIME, Integer.valueOf(1))
+                .add(FIELD_BUCKET_NAME, Integer.valueOf(1))
+                .add(FIELD_BUCKET_CHART, Integer.valueOf(1))
+                .get();
+        DBObject opt_BUCKET = BasicDBObjectBuilder
+                .start("name", "IDX_BUCKET")
+                .add("unique", Boolean.TRUE)
+                .get();
+        bucketCollection.createIndex(idx_BUCKET, opt_BUCKET);
     }
 
+    /**
+     * Stops any background writing of results and writes all buffered results
+     */
     @Override
     public void stop() throws Exception
     {
+        Thread thread = recordFlushThread;
+        if (thread != null)
+        {
+            recordFlushThread = null;
+            LockSupport.unpark(thread);
+            try { thread.join(); } catch (InterruptedException e) {}
+        }
+        flushRecords();
+        int depth = recordQueueDepth.get();
+        if (depth > 0)
+        {
+            logger.error("Stopped with " + depth + " event results that could not be written to " + collection.getFullName());
+        }
+    }
+    
+    /**
+     * Background writer of buffered results
+     */
+    private class RecordFlusher implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            long flushPeriodNs = TimeUnit.MILLISECONDS.toNanos(recordFlushPeriod);
+            while (recordFlushThread == Thread.currentThread())
+            {
+                LockSupport.parkNanos(this, flushPeriodNs);
+                try
+                {
+                    flushRecords();
+                }
+                catch (Throwable e)
+                {
+                    logger.error("Failed to write results to " + collection.getFullName(), e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Write all buffered results in batches.  This is done before any results are read
+     * so that results recorded by this instance are always visible to it.
+     * <p/>
+     * Failures are logged rather than thrown, as this is called when reading results.
+     * Results that could not be written are kept for the next flush.
+     */
+    private void flushRecords()
+    {
+        // The depth includes results that are being written, so there is nothing in flight if it is zero
+        if (recordQueueDepth.get() == 0)
+        {
+            return;
+        }
+        int batchSize = Math.max(recordBatchSize, 1);
+        List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+        List<DBObject> failedObjs = new ArrayList<DBObject>(0);
+        // Only one thread writes at a time, so callers wait for any results in flight
+        synchronized (recordQueue)
+        {
+            while (true)
+            {
+                DBObject insertObj;
+                while (batch.size() < batchSize && (insertObj = recordQueue.poll()) != null)
+                {
+                    batch.add(insertObj);
+                }
+                if (batch.size() == 0)
+                {
+                    break;
+                }
+                List<DBObject> batchFailedObjs;
+                try
+                {
+                    batchFailedObjs = insertRecords(batch);
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Failed to write " + batch.size() + " event results to " + collection.getFullName(), e);
+                    batchFailedObjs = new ArrayList<DBObject>(batch);
+                }
+                if (!recordWriteFailures.isEmpty())
+                {
+                    // Forget the failures of results that have now been written
+                    Set<DBObject> batchFailedObjSet = Collections.newSetFromMap(new IdentityHashMap<DBObject, Boolean>());
+                    batchFailedObjSet.addAll(batchFailedObjs);
+                    for (DBObject batchObj : batch)
+                    {
+                        if (!batchFailedObjSet.contains(batchObj))
+                        {
+                            recordWriteFailures.remove(batchObj);
+                        }
+                    }
+                }
+                recordQueueDepth.addAndGet(batchFailedObjs.size() - batch.size());
+                failedObjs.addAll(batchFailedObjs);
+                batch.clear();
+            }
+            // Keep the results that were not written for the next flush
+            int dropped = 0;
+            for (DBObject failedObj : failedObjs)
+            {
+                Integer failures = recordWriteFailures.get(failedObj);
+                failures = (failures == null) ? 1 : failures + 1;
+                if (failures < MAX_RECORD_WRITE_ATTEMPTS)
+                {
+                    recordWriteFailures.put(failedObj, failures);
+                    recordQueue.add(failedObj);
+                }
+                else
+                {
+                    recordWriteFailures.remove(failedObj);
+                    recordQueueDepth.decrementAndGet();
+                    dropped++;
+                }
+            }
+            if (dropped > 0)
+            {
+                logger.error("Gave up writing " + dropped + " event results to " + collection.getFullName() + " after " + MAX_RECORD_WRITE_ATTEMPTS + " attempts.");
+            }
+        }
+    }
+    
+    /**
+     * Write a batch of results in a single, unordered bulk insert.  Only the results that
+     * were written are counted and aggregated.
+     * 
+     * @return                  the results that were not written
+     */
+    private List<DBObject> insertRecords(List<DBObject> insertObjs)
+    {
+        long before = System.nanoTime();
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (DBObject insertObj : insertObjs)
+        {
+            bulk.insert(insertObj);
+        }
+        List<DBObject> insertedObjs = insertObjs;
+        List<DBObject> failedObjs = Collections.emptyList();
+        try
+        {
+            bulk.execute();
+        }
+        catch (BulkWriteException e)
+        {
+            // A duplicate key means that the result was written by an earlier attempt that appeared to fail
+            Set<Integer> failedIndexes = new HashSet<Integer>(e.getWriteErrors().size() * 2);
+            for (BulkWriteError error : e.getWriteErrors())
+            {
+                if (error.getCode() != ERROR_DUPLICATE_KEY)
+                {
+                    failedIndexes.add(error.getIndex());
+                }
+            }
+            if (!failedIndexes.isEmpty())
+            {
+                insertedObjs = new ArrayList<DBObject>(insertObjs.size() - failedIndexes.size());
+                failedObjs = new ArrayList<DBObject>(failedIndexes.size());
+                for (int i = 0; i < insertObjs.size(); i++)
+                {
+                    (failedIndexes.contains(i) ? failedObjs : insertedObjs).add(insertObjs.get(i));
+                }
+            }
+            logger.error("Failed to write " + failedObjs.size() + " of " + insertObjs.size() + " event results to " + collection.getFullName(), e);
+        }
+        catch (MongoException e)
+        {
+            // Nothing is known to have been written
+            logger.error("Failed to write " + insertObjs.size() + " event results to " + collection.getFullName(), e);
+            return insertObjs;
+        }
+        if (!insertedObjs.isEmpty())
+        {
+            countRecords(insertedObjs);
+            aggregateRecords(insertedObjs);
+        }
+        long flushTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - before);
+        recordFlushCount.incrementAndGet();
+        recordFlushTime.addAndGet(flushTime);
+        long flushTimeMax = recordFlushTimeMax.get();
+        while (flushTime > flushTimeMax && !recordFlushTimeMax.compareAndSet(flushTimeMax, flushTime))
+        {
+            flushTimeMax = recordFlushTimeMax.get();
+        }
+        DriverMetrics metrics = this.metrics;
+        if (metrics != null)
+        {
+            metrics.getHistogram(DriverMetrics.METRIC_RESULTS_FLUSH).record(flushTime);
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Recorded " + insertedObjs.size() + " results in " + flushTime + "ms.");
+        }
+        return failedObjs;
+    }
+    
+    /**
+     * Ensure that the success and failure counts exist, counting any results recorded
+     * before the counts were kept
+     */
+    @SuppressWarnings("unchecked")
+    private void checkCounts()
+    {
+        if (countCollection.findOne() != null || collection.findOne() == null)
+        {
+            return;
+        }
+        for (String name : (List<String>) collection.distinct(EventRecord.FIELD_EVENT_NAME))
+        {
+            DBObject successQueryObj = BasicDBObjectBuilder.start()
+                    .add(EventRecord.FIELD_EVENT_NAME, name)
+                    .add(EventRecord.FIELD_SUCCESS, Boolean.TRUE)
+                    .get();
+            long success = collection.count(successQueryObj);
+            DBObject failureQueryObj = BasicDBObjectBuilder.start()
+                    .add(EventRecord.FIELD_EVENT_NAME, name)
+                    .add(EventRecord.FIELD_SUCCESS, Boolean.FALSE)
+                    .get();
+            long failure = collection.count(failureQueryObj);
+            DBObject queryObj = new BasicDBObject(EventRecord.FIELD_ID, name);
+            DBObject updateObj = BasicDBObjectBuilder.start()
+                    .push("$setOnInsert")
+                        .add(FIELD_COUNT_SUCCESS, success)
+                        .add(FIELD_COUNT_FAILURE, failure)
+                    .pop()
+                    .get();
+            try
+            {
+                countCollection.update(queryObj, updateObj, true, false);
+            }
+            catch (DuplicateKeyException e)
+            {
+                // Another driver got there first
+            }
+        }
+        // Done
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Counted the event results recorded before counts were kept in " + collection.getFullName());
+        }
+    }
+    
+    /**
+     * Add the results to the success and failure counts for each event name
+     */
+    private void countRecords(List<DBObject> insertObjs)
+    {
+        Map<String, long[]> counts = new HashMap<String, long[]>(17);
+        for (DBObject insertObj : insertObjs)
+        {
+            String name = (String) ((DBObject) insertObj.get(EventRecord.FIELD_EVENT)).get(Event.FIELD_NAME);
+            long[] count = counts.get(name);
+            if (count == null)
+            {
+                count = new long[2];
+                counts.put(name, count);
+            }
+            boolean success = (Boolean) insertObj.get(EventRecord.FIELD_SUCCESS);
+            count[success ? 0 : 1]++;
+        }
+        
+        List<DBObject> queryObjs = new ArrayList<DBObject>(counts.size());
+        List<DBObject> updateObjs = new ArrayList<DBObject>(counts.size());
+        for (Map.Entry<String, long[]> entry : counts.entrySet())
+        {
+            DBObject queryObj = new BasicDBObject(EventRecord.FIELD_ID, entry.getKey());
+            DBObject updateObj = BasicDBObjectBuilder
+                    .start()
+                    .push("$inc")
+                        .add(FIELD_COUNT_SUCCESS, entry.getValue()[0])
+                        .add(FIELD_COUNT_FAILURE, entry.getValue()[1])
+                        .pop()
+                    .get();
+            queryObjs.add(queryObj);
+            updateObjs.add(updateObj);
+        }
+        try
+        {
+            // Drivers and threads race to create the count for the first result of each event name
+            upsert(countCollection, queryObjs, updateObjs);
+        }
+        catch (MongoException e)
+        {
+            // The raw results are safe, so only the counts are affected
+            logger.error("Failed to count " + insertObjs.size() + " event results in " + countCollection.getFullName(), e);
+        }
+    }
+    
+    /**
+     * Get the success and failure counts for each event name
+     * 
+     * @return                  the success and failure counts keyed by event name or <tt>null</tt>
+     *                          if the results were recorded before they were counted
+     */
+    private Map<String, long[]> getCounts()
+    {
+        Map<String, long[]> counts = new HashMap<String, long[]>(17);
+        DBCursor cursor = countCollection.find();
+        try
+        {
+            while (cursor.hasNext())
+            {
+                DBObject countObj = cursor.next();
+                long success = ((Number) countObj.get(FIELD_COUNT_SUCCESS)).longValue();
+                long failure = ((Number) countObj.get(FIELD_COUNT_FAILURE)).longValue();
+                counts.put((String) countObj.get(EventRecord.FIELD_ID), new long[] {success, failure});
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        if (counts.isEmpty() && collection.findOne() != null)
+        {
+            return null;
+        }
+        return counts;
+    }
+    
+    /**
+     * Roll the results up into the per-event, per-bucket aggregates.  The results are grouped
+     * first so that there is only one update for each bucket touched by the results.
+     */
+    private void aggregateRecords(List<DBObject> insertObjs)
+    {
+        Map<List<Object>, ResultAggregate> aggregates = new HashMap<List<Object>, ResultAggregate>(17);
+        for (DBObject insertObj : insertObjs)
+        {
+            String name = (String) ((DBObject) insertObj.get(EventRecord.FIELD_EVENT)).get(Event.FIELD_NAME);
+            Boolean chart = (Boolean) insertObj.get(EventRecord.FIELD_CHART);
+            long startTime = ((Date) insertObj.get(EventRecord.FIELD_START_TIME)).getTime();
+            long bucketTime = (startTime / RESULT_BUCKET_SIZE) * RESULT_BUCKET_SIZE;
+            List<Object> key = Arrays.<Object>asList(name, chart, bucketTime);
+            ResultAggregate aggregate = aggregates.get(key);
+            if (aggregate == null)
+            {
+                aggregate = new ResultAggregate();
+                aggregates.put(key, aggregate);
+            }
+            aggregate.addValue(
+                    (Long) insertObj.get(EventRecord.FIELD_TIME),
+                    (Long) insertObj.get(EventRecord.FIELD_START_DELAY),
+                    (Boolean) insertObj.get(EventRecord.FIELD_SUCCESS));
+        }
+        
+        List<DBObject> queryObjs = new ArrayList<DBObject>(aggregates.size());
+        List<DBObject> updateObjs = new ArrayList<DBObject>(aggregates.size());
+        for (Map.Entry<List<Object>, ResultAggregate> entry : aggregates.entrySet())
+        {
+            List<Object> key = entry.getKey();
+            ResultAggregate aggregate = entry.getValue();
+            DBObject queryObj = BasicDBObjectBuilder
+                    .start()
+                    .add(FIELD_BUCKET_TIME, new Date((Long) key.get(2)))
+                    .add(FIELD_BUCKET_NAME, key.get(0))
+                    .add(FIELD_BUCKET_CHART, key.get(1))
+                    .get();
+            BasicDBObjectBuilder incBuilder = BasicDBObjectBuilder
+                    .start()
+                    .add(FIELD_BUCKET_N, aggregate.getN())
+                    .add(FIELD_BUCKET_FAILURES, aggregate.getFailures())
+                    .add(FIELD_BUCKET_SUM, aggregate.getSum())
+                    .add(FIELD_BUCKET_SUM_OF_SQUARES, aggregate.getSumOfSquares());
+            for (Map.Entry<Long, Long> bin : aggregate.getHistogram().entrySet())
+            {
+                incBuilder.add(FIELD_BUCKET_HISTOGRAM + "." + bin.getKey(), bin.getValue());
+            }
+            LatencyHistogram startDelays = aggregate.getStartDelays();
+            String delayPrefix = FIELD_BUCKET_START_DELAY + ".";
+            incBuilder
+                    .add(delayPrefix + FIELD_BUCKET_N, startDelays.getN())
+                    .add(delayPrefix + FIELD_BUCKET_SUM, startDelays.getSum())
+                    .add(delayPrefix + FIELD_BUCKET_SUM_OF_SQUARES, startDelays.getSumOfSquares());
+            for (Map.Entry<Long, Long> bin : startDelays.getBuckets().entrySet())
+            {
+                incBuilder.add(delayPrefix + FIELD_BUCKET_HISTOGRAM + "." + bin.getKey(), bin.getValue());
+            }
+            DBObject updateObj = BasicDBObjectBuilder
+                    .start()
+                    .add("$inc", incBuilder.get())
+                    .push("$min")
+                        .add(FIELD_BUCKET_MIN, (long) aggregate.getMin())
+                        .add(delayPrefix + FIELD_BUCKET_MIN, (long) startDelays.getMin())
+                        .pop()
+                    .push("$max")
+                        .add(FIELD_BUCKET_MAX, (long) aggregate.getMax())
+                        .add(delayPrefix + FIELD_BUCKET_MAX, (long) startDelays.getMax())
+                        .pop()
+                    .get();
+            queryObjs.add(queryObj);
+            updateObjs.add(updateObj);
+        }
+        try
+        {
+            upsert(bucketCollection, queryObjs, updateObjs);
+        }
+        catch (MongoException e)
+        {
+            // The raw results are safe, so only the pre-aggregated views are affected
+            logger.error("Failed to aggregate " + insertObjs.size() + " event results in " + bucketCollection.getFullName(), e);
+        }
+    }
+    
+    /**
+     * Apply updates in a single, unordered bulk write, inserting the documents that are missing.
+     * <p/>
+     * When writers race to insert the same document, the losers fail with a duplicate key error.
+     * The document exists by then, so the failed updates are repeated rather than lost.
+     * 
+     * @param queryObjs         the query for each document, which must select a unique key
+     * @param updateObjs        the update for each document
+     */
+    private static void upsert(DBCollection collection, List<DBObject> queryObjs, List<DBObject> updateObjs)
+    {
+        for (int attempt = 0; !queryObjs.isEmpty(); attempt++)
+        {
+            BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+            for (int i = 0; i < queryObjs.size(); i++)
+            {
+                bulk.find(queryObjs.get(i)).upsert().updateOne(updateObjs.get(i));
+            }
+            try
+            {
+                bulk.execute();
+                return;
+            }
+            catch (BulkWriteException e)
+            {
+                if (e.getWriteErrors().isEmpty() || attempt >= MAX_UPSERT_RETRIES)
+                {
+                    throw e;
+                }
+                List<DBObject> retryQueryObjs = new ArrayList<DBObject>(e.getWriteErrors().size());
+                List<DBObject> retryUpdateObjs = new ArrayList<DBObject>(e.getWriteErrors().size());
+                for (BulkWriteError error : e.getWriteErrors())
+                {
+                    if (error.getCode() != ERROR_DUPLICATE_KEY)
+                    {
+                        throw e;
+                    }
+                    retryQueryObjs.add(queryObjs.get(error.getIndex()));
+                    retryUpdateObjs.add(updateObjs.get(error.getIndex()));
+                }
+                queryObjs = retryQueryObjs;
+                updateObjs = retryUpdateObjs;
+            }
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Results are aggregated into buckets of {@link #RESULT_BUCKET_SIZE} as they are recorded,
+     * so the report period must be a multiple of the bucket size.
+     */
+    @Override
+    public boolean getAggregatedResults(
+            ResultAggregateHandler handler,
+            long startTime,
+            long windowSize,
+            long reportPeriod,
+            boolean chartOnly)
+    {
+        if (handler == null)
+        {
+            throw new IllegalArgumentException("A result handler must be supplied.");
+        }
+        if (reportPeriod <= 0L || windowSize <= 0L || windowSize % reportPeriod != 0L)
+        {
+            throw new IllegalArgumentException("'windowSize' must be a positive multiple of a positive 'reportPeriod'.");
+        }
+        if (reportPeriod % RESULT_BUCKET_SIZE != 0L)
+        {
+            // The buckets are too coarse
+            return false;
+        }
+        flushRecords();
+        
+        DBObject queryObj = new BasicDBObject();
+        if (chartOnly)
+        {
+            queryObj.put(FIELD_BUCKET_CHART, Boolean.TRUE);
+        }
+        DBObject firstObj = bucketCollection.findOne(queryObj, null, new BasicDBObject(FIELD_BUCKET_TIME, Integer.valueOf(1)));
+        if (firstObj == null)
+        {
+            // Either there is nothing to report or the results were recorded before they were aggregated
+            return collection.count() == 0L;
+        }
+        DBObject lastObj = bucketCollection.findOne(queryObj, null, new BasicDBObject(FIELD_BUCKET_TIME, Integer.valueOf(-1)));
+        long firstTime = ((Date) firstObj.get(FIELD_BUCKET_TIME)).getTime();
+        long lastTime = ((Date) lastObj.get(FIELD_BUCKET_TIME)).getTime();
+        
+        // Reports end on multiples of the report period, starting with the first report period with results
+        long firstReportEnd = (firstTime / reportPeriod + 1L) * reportPeriod;
+        if (startTime >= firstReportEnd)
+        {
+            firstReportEnd = (startTime / reportPeriod + 1L) * reportPeriod;
+        }
+        long lastReportEnd = (lastTime / reportPeriod + 1L) * reportPeriod;
+        long queryStartTime = firstReportEnd - windowSize;
+        
+        queryObj.put(FIELD_BUCKET_TIME, BasicDBObjectBuilder
+                .start("$gte", new Date(queryStartTime))
+                .add("$lt", new Date(lastReportEnd))
+                .get());
+        DBCursor cursor = bucketCollection.find(queryObj).sort(new BasicDBObject(FIELD_BUCKET_TIME, Integer.valueOf(1)));
+        
+        // Keep the aggregates for each report period in the window
+        int windowMultiple = (int) (windowSize / reportPeriod);
+        LinkedList<Map<String, ResultAggregate>> periods = new LinkedList<Map<String, ResultAggregate>>();
+        Map<String, ResultAggregate> period = new HashMap<String, ResultAggregate>(17);
+        long periodEnd = queryStartTime + reportPeriod;
+        try
+        {
+            while (true)
+            {
+                DBObject bucketObj = cursor.hasNext() ? cursor.next() : null;
+                long bucketTime = (bucketObj == null) ? lastReportEnd : ((Date) bucketObj.get(FIELD_BUCKET_TIME)).getTime();
+                // Report every period that ends before this bucket
+                while (periodEnd <= bucketTime && periodEnd <= lastReportEnd)
+                {
+                    periods.add(period);
+                    if (periods.size() > windowMultiple)
+                    {
+                        periods.removeFirst();
+                    }
+                    if (periodEnd >= firstReportEnd && !reportAggregates(handler, periodEnd - windowSize, periodEnd, periods))
+                    {
+                        return true;
+                    }
+                    period = new HashMap<String, ResultAggregate>(17);
+                    periodEnd += reportPeriod;
+                }
+                if (bucketObj == null)
+                {
+                    break;
+                }
+                String name = (String) bucketObj.get(FIELD_BUCKET_NAME);
+                ResultAggregate aggregate = period.get(name);
+                if (aggregate == null)
+                {
+                    aggregate = new ResultAggregate();
+                    period.put(name, aggregate);
+                }
+                addBucket(aggregate, bucketObj);
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return true;
+    }
+    
+    /**
+     * Merge the aggregates for the report periods in the window and hand them to the client
+     * 
+     * @return                  <tt>true</tt> to continue processing
+     */
+    private boolean reportAggregates(
+            ResultAggregateHandler handler,
+            long fromTime, long toTime,
+            List<Map<String, ResultAggregate>> periods)
+    {
+        Map<String, ResultAggregate> aggregates = new HashMap<String, ResultAggregate>(17);
+        for (Map<String, ResultAggregate> period : periods)
+        {
+            for (Map.Entry<String, ResultAggregate> entry : period.entrySet())
+            {
+                ResultAggregate aggregate = aggregates.get(entry.getKey());
+                if (aggregate == null)
+                {
+                    aggregate = new ResultAggregate();
+                    aggregates.put(entry.getKey(), aggregate);
+                }
+                aggregate.merge(entry.getValue());
+            }
+        }
+        if (aggregates.size() == 0)
+        {
+            // Nothing happened in this window
+            return true;
+        }
+        try
+        {
+            return handler.processResult(fromTime, toTime, aggregates);
+        }
+        catch (Throwable e)
+        {
+            logger.error("Exception while making callback.", e);
+            return true;
+        }
+    }
+    
+    /**
+     * Add a persisted bucket to an aggregate
+     */
+    private void addBucket(ResultAggregate aggregate, DBObject bucketObj)
+    {
+        aggregate.add(
+                ((Number) bucketObj.get(FIELD_BUCKET_N)).longValue(),
+                ((Number) bucketObj.get(FIELD_BUCKET_FAILURES)).longValue(),
+                ((Number) bucketObj.get(FIELD_BUCKET_SUM)).doubleValue(),
+                ((Number) bucketObj.get(FIELD_BUCKET_SUM_OF_SQUARES)).doubleValue(),
+                ((Number) bucketObj.get(FIELD_BUCKET_MIN)).longValue(),
+                ((Number) bucketObj.get(FIELD_BUCKET_MAX)).longValue(),
+                getBucketHistogram(bucketObj));
+        // Buckets written by earlier versions do not have start delays
+        DBObject delayObj = (DBObject) bucketObj.get(FIELD_BUCKET_START_DELAY);
+        if (delayObj != null)
+        {
+            aggregate.addStartDelays(
+                    ((Number) delayObj.get(FIELD_BUCKET_N)).longValue(),
+                    ((Number) delayObj.get(FIELD_BUCKET_SUM)).doubleValue(),
+                    ((Number) delayObj.get(FIELD_BUCKET_SUM_OF_SQUARES)).doubleValue(),
+                    ((Number) delayObj.get(FIELD_BUCKET_MIN)).longValue(),
+                    ((Number) delayObj.get(FIELD_BUCKET_MAX)).longValue(),
+                    getBucketHistogram(delayObj));
+        }
+    }
+    
+    /**
+     * @return                  the histogram counts keyed by bucket value
+     */
+    private Map<Long, Long> getBucketHistogram(DBObject obj)
+    {
+        Map<Long, Long> histogram = new HashMap<Long, Long>(31);
+        DBObject histogramObj = (DBObject) obj.get(FIELD_BUCKET_HISTOGRAM);
+        if (histogramObj != null)
+        {
+            for (String bin : histogramObj.keySet())
+            {
+                histogram.put(Long.valueOf(bin), ((Number) histogramObj.get(bin)).longValue());
+            }
+        }
+        return histogram;
+    }
+    
+    /**
+     * @return                  the number of recorded results waiting to be written
+     * @since 2.2
+     */
+    public int getRecordQueueDepth()
+    {
+        return recordQueueDepth.get();
+    }
+    
+    /**
+     * @return                  the number of bulk writes of buffered results
+     * @since 2.2
+     */
+    public long getRecordFlushCount()
+    {
+        return recordFlushCount.get();
+    }
+    
+    /**
+     * @return                  the average time (ms) taken to write a batch of buffered results
+     * @since 2.2
+     */
+    public double getRecordFlushTimeAverage()
+    {
+        long count = recordFlushCount.get();
+        return (count == 0L) ? 0.0 : (double) recordFlushTime.get() / count;
+    }
+    
+    /**
+     * @return                  the longest time (ms) taken to write a batch of buffered results
+     * @since 2.2
+     */
+    public long getRecordFlushTimeMax()
+    {
+        return recordFlushTimeMax.get();
     }
 
     /**
@@ -305,6 +1139,25 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         }
         DBObject insertObj = insertObjBuilder.get();
         
+        // Buffer the result if it will be written in the background
+        if (recordFlushThread != null)
+        {
+            recordQueue.add(insertObj);
+            int depth = recordQueueDepth.incrementAndGet();
+            if (depth >= recordQueueSize)
+            {
+                // Apply back-pressure: the writer has fallen behind, so help out
+                flushRecords();
+            }
+            else if (depth >= recordBatchSize)
+            {
+                LockSupport.unpark(recordFlushThread);
+            }
+            notifyResultListeners(result);
+            return;
+        }
+        
+        // Three round trips: the result, its count and its bucket.  Batching amortizes these.
         try
         {
             collection.insert(insertObj);
@@ -316,6 +1169,9 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
                     "   Result: " + insertObj,
                     e);
         }
+        countRecords(Collections.singletonList(insertObj));
+        aggregateRecords(Collections.singletonList(insertObj));
+        notifyResultListeners(result);
         // Done
         if (logger.isDebugEnabled())
         {
@@ -332,6 +1188,7 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
     @Override
     public EventRecord getFirstResult()
     {
+        flushRecords();
         DBObject sortObj = BasicDBObjectBuilder.start()
                 .add(EventRecord.FIELD_START_TIME, Integer.valueOf(1))
                 .get();
@@ -349,6 +1206,7 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
     @Override
     public EventRecord getLastResult()
     {
+        flushRecords();
         DBObject sortObj = BasicDBObjectBuilder.start()
                 .add(EventRecord.FIELD_START_TIME, Integer.valueOf(-1))
                 .get();
@@ -366,6 +1224,7 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
     @Override
     public List<EventRecord> getResults(String eventName, int skip, int limit)
     {
+        flushRecords();
         DBObject queryObj = QueryBuilder
                 .start()
                 .get();
@@ -419,6 +1278,7 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
             boolean chartOnly,
             int skip, int limit)
     {
+        flushRecords();
         QueryBuilder queryBuilder = QueryBuilder
                 .start()
                 .and(EventRecord.FIELD_START_TIME).greaterThanEquals(new Date(startTime))
@@ -467,9 +1327,99 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         return results;
     }
 
+    /**
+     * Results are fetched in pages ordered by start time and ID.  Each page continues from
+     * the start time and ID of the last result of the previous page, so no results are skipped
+     * over and the index is used to go directly to the next page.
+     */
+    @Override
+    public long streamResults(
+            long startTime,
+            long endTime,
+            boolean chartOnly,
+            EventRecordHandler handler)
+    {
+        if (handler == null)
+        {
+            throw new IllegalArgumentException("A result handler must be supplied.");
+        }
+        flushRecords();
+        DBObject sortObj = BasicDBObjectBuilder
+                .start()
+                .add(EventRecord.FIELD_START_TIME, Integer.valueOf(1))
+                .add(EventRecord.FIELD_ID, Integer.valueOf(1))
+                .get();
+        
+        long count = 0L;
+        Date lastStartTime = null;
+        Object lastId = null;
+        while (true)
+        {
+            QueryBuilder queryBuilder = QueryBuilder
+                    .start()
+                    .and(EventRecord.FIELD_START_TIME).lessThan(new Date(endTime));
+            if (lastId == null)
+            {
+                queryBuilder.and(EventRecord.FIELD_START_TIME).greaterThanEquals(new Date(startTime));
+            }
+            else
+            {
+                // Continue after the last result
+                queryBuilder.and(EventRecord.FIELD_START_TIME).greaterThanEquals(lastStartTime);
+                queryBuilder.or(
+                        QueryBuilder.start(EventRecord.FIELD_START_TIME).greaterThan(lastStartTime).get(),
+                        QueryBuilder.start(EventRecord.FIELD_START_TIME).is(lastStartTime).and(EventRecord.FIELD_ID).greaterThan(lastId).get());
+            }
+            if (chartOnly)
+            {
+                queryBuilder.and(EventRecord.FIELD_CHART).is(true);
+            }
+            DBObject queryObj = queryBuilder.get();
+            
+            DBCursor cursor = collection.find(queryObj);
+            cursor.sort(sortObj);
+            cursor.limit(RESULT_STREAM_PAGE_SIZE);
+            int pageCount = 0;
+            try
+            {
+                while (cursor.hasNext())
+                {
+                    DBObject obj = cursor.next();
+                    pageCount++;
+                    count++;
+                    lastStartTime = (Date) obj.get(EventRecord.FIELD_START_TIME);
+                    lastId = obj.get(EventRecord.FIELD_ID);
+                    EventRecord eventRecord = convertToEventRecord(obj);
+                    if (!handler.processResult(eventRecord))
+                    {
+                        return count;
+                    }
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+            // Done
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("\n" +
+                        "Streamed results: \n" +
+                        "   Query:          " + queryObj + "\n" +
+                        "   Results:        " + pageCount);
+            }
+            if (pageCount < RESULT_STREAM_PAGE_SIZE)
+            {
+                break;
+            }
+        }
+        return count;
+    }
+
     @Override
     public List<String> getEventNames()
     {
+        flushRecords();
         @SuppressWarnings("unchecked")
         List<String> results = (List<String>) collection.distinct(EventRecord.FIELD_EVENT_NAME);
         
@@ -483,10 +1433,28 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         return results;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Results are counted as they are recorded, so this does not count the results themselves.
+     */
     @Override
     public long countResults()
     {
-        long count = collection.count();
+        flushRecords();
+        long count = 0L;
+        Map<String, long[]> counts = getCounts();
+        if (counts == null)
+        {
+            count = collection.count();
+        }
+        else
+        {
+            for (long[] eventCount : counts.values())
+            {
+                count += eventCount[0] + eventCount[1];
+            }
+        }
 
         // Done
         if(logger.isDebugEnabled())
@@ -496,15 +1464,29 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         return count;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Results are counted as they are recorded, so this does not count the results themselves.
+     */
     @Override
     public long countResultsByEventName(String name)
     {
-        DBObject queryObj = QueryBuilder
-                .start()
-                .and(EventRecord.FIELD_EVENT_NAME).is(name)
-                .get();
-        
-        long count = collection.count(queryObj);
+        flushRecords();
+        long count = 0L;
+        DBObject countObj = countCollection.findOne(new BasicDBObject(EventRecord.FIELD_ID, name));
+        if (countObj != null)
+        {
+            count = ((Number) countObj.get(FIELD_COUNT_SUCCESS)).longValue() + ((Number) countObj.get(FIELD_COUNT_FAILURE)).longValue();
+        }
+        else if (getCounts() == null)
+        {
+            DBObject queryObj = QueryBuilder
+                    .start()
+                    .and(EventRecord.FIELD_EVENT_NAME).is(name)
+                    .get();
+            count = collection.count(queryObj);
+        }
 
         // Done
         if(logger.isDebugEnabled())
@@ -514,15 +1496,16 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         return count;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Results are counted as they are recorded, so this does not count the results themselves.
+     */
     @Override
     public long countResultsBySuccess()
     {
-        DBObject queryObj = QueryBuilder
-                .start()
-                .and(EventRecord.FIELD_SUCCESS).is(true)
-                .get();
-        
-        long count = collection.count(queryObj);
+        flushRecords();
+        long count = countResultsBySuccess(true);
 
         // Done
         if(logger.isDebugEnabled())
@@ -532,15 +1515,16 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         return count;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Results are counted as they are recorded, so this does not count the results themselves.
+     */
     @Override
     public long countResultsByFailure()
     {
-        DBObject queryObj = QueryBuilder
-                .start()
-                .and(EventRecord.FIELD_SUCCESS).is(false)
-                .get();
-        
-        long count = collection.count(queryObj);
+        flushRecords();
+        long count = countResultsBySuccess(false);
 
         // Done
         if(logger.isDebugEnabled())
@@ -549,10 +1533,33 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
         }
         return count;
     }
+    
+    /**
+     * Total the successful or failed results for all event names
+     */
+    private long countResultsBySuccess(boolean success)
+    {
+        Map<String, long[]> counts = getCounts();
+        if (counts == null)
+        {
+            DBObject queryObj = QueryBuilder
+                    .start()
+                    .and(EventRecord.FIELD_SUCCESS).is(success)
+                    .get();
+            return collection.count(queryObj);
+        }
+        long count = 0L;
+        for (long[] eventCount : counts.values())
+        {
+            count += eventCount[success ? 0 : 1];
+        }
+        return count;
+    }
 
     @Override
     public List<EventDetails> getEventDetails(EventResultFilter filter, String filterEventName, int skip, int limit)
     {
+        flushRecords();
         QueryBuilder queryBuilder = QueryBuilder.start();
         
         // apply filter
@@ -609,9 +1616,16 @@ public class MongoResultService extends AbstractResultService implements Lifecyc
     @Override
     public boolean clear()
     {
+        // Discard any buffered results
+        while (recordQueue.poll() != null)
+        {
+            recordQueueDepth.decrementAndGet();
+        }
         try
         {
             this.collection.drop();
+            this.bucketCollection.drop();
+            this.countCollection.drop();
             return true;
         }
         catch(MongoException mex)
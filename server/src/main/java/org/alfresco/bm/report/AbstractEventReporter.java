@@ -18,11 +18,8 @@
  */
 package org.alfresco.bm.report;
 
-import java.util.List;
 import java.util.TreeMap;
-import java.util.concurrent.TimeUnit;
 
-import org.alfresco.bm.event.EventRecord;
 import org.alfresco.bm.event.ResultService;
 import org.alfresco.bm.test.TestConstants;
 import org.alfresco.bm.test.TestRunServicesCache;
@@ -85,64 +82,22 @@ public abstract class AbstractEventReporter implements ReportGenerator, TestCons
         return this.getClass().getSimpleName() + " [test=" + test + ", run=" + run + "]";
     }
 
+    /**
+     * Read all the results and collate a summary for each event.  Reports that need more
+     * than the summaries should register a {@link ResultSummaryAggregator} with their own
+     * {@link ResultScan} instead, so that the results are read only once.
+     * 
+     * @param chartOnly         <tt>true</tt> to only include charted results
+     * @return                  the summaries keyed and sorted by event name
+     */
     protected TreeMap<String, ResultSummary> collateResults(boolean chartOnly)
     {
-        ResultService resultService = getResultService();
-        // Do a quick check to see if there are results
-        EventRecord firstEvent = resultService.getFirstResult();
-        if (firstEvent == null)
-        {
-            return new TreeMap<String, ResultSummary>();
-        }
-        EventRecord lastEvent = resultService.getLastResult();
-
-        long oneHour = TimeUnit.HOURS.toMillis(1L);
-        long queryWindowStartTime = firstEvent.getStartTime();
-        long queryWindowEndTime = queryWindowStartTime + oneHour;
-        
-        // Prepare recorded data
-        TreeMap<String, ResultSummary> results = new TreeMap<String, ResultSummary>();
-        int limit = 10000;
-        int skip = 0;
-        
-        while (true)
-        {
-            List<EventRecord> data = resultService.getResults(queryWindowStartTime, queryWindowEndTime, chartOnly, skip, limit);
-            if (data.size() == 0)
-            {
-                if (queryWindowEndTime > lastEvent.getStartTime())
-                {
-                    // The query window covered all known events, so we're done
-                    break;
-                }
-                else
-                {
-                    // Push the window up
-                    queryWindowStartTime = queryWindowEndTime;
-                    queryWindowEndTime += oneHour;
-                    skip = 0;
-                    // Requery
-                    continue;
-                }
-            }
-            for (EventRecord eventRecord : data)
-            {
-                skip++;
-                // Add the data
-                String eventName = eventRecord.getEvent().getName();
-                ResultSummary resultSummary = results.get(eventName);
-                if (resultSummary == null)
-                {
-                    resultSummary = new ResultSummary(eventName);
-                    results.put(eventName, resultSummary);
-                }
-                boolean resultSuccess = eventRecord.isSuccess();
-                long resultTime = eventRecord.getTime();
-                resultSummary.addSample(resultSuccess, resultTime);
-            }
-        }
+        ResultSummaryAggregator summaryAggregator = new ResultSummaryAggregator(chartOnly);
+        ResultScan scan = new ResultScan(getResultService());
+        scan.addAggregator(summaryAggregator);
+        scan.scan();
         // Done
-        return results;
+        return summaryAggregator.getSummaries();
     }
     
     /**
@@ -26,10 +26,10 @@ import java.util.Map;
 import java.util.TreeMap;
 
 import org.alfresco.bm.event.EventRecord;
+import org.alfresco.bm.event.LatencyHistogram;
 import org.alfresco.bm.event.ResultService;
 import org.alfresco.bm.test.TestRunServicesCache;
 import org.apache.commons.lang3.time.DurationFormatUtils;
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 
 import com.mongodb.DBObject;
 
@@ -47,6 +47,7 @@ import com.mongodb.DBObject;
  *   <li><b>Max (ms):</b> Maximum event time (successes only).</li>
  *   <li><b>Arithmetic Mean (ms):</b> The arithmetic mean of all successful event times.</li>
  *   <li><b>Standard Deviation:</b> The standard deviation of all successful event times.</li>
+ *   <li><b>p50 (ms) ... p99.9 (ms):</b> The {@link LatencyHistogram#REPORTED_PERCENTILES percentiles} of all successful event times.</li>
  * </ul>
  * 
  * @author Derek Hulley
@@ -139,6 +140,15 @@ public class CSVReporter extends AbstractEventReporter
         writer.write(
                 "Event Name,Total Count,Success Count,Failure Count,Success Rate (%)," +
                 "Min (ms), Max (ms), Arithmetic Mean (ms), Standard Deviation (ms)");
+        for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+        {
+            writer.write(", " + LatencyHistogram.getPercentileLabel(percentile) + " (ms)");
+        }
+        writer.write(", Start Delay Mean (ms), Start Delay Max (ms)");
+        for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+        {
+            writer.write(", Start Delay " + LatencyHistogram.getPercentileLabel(percentile) + " (ms)");
+        }
         writer.write(NEW_LINE);
         TreeMap<String, ResultSummary> summaries = collateResults(true);
         for (Map.Entry<String, ResultSummary> entry : summaries.entrySet())
@@ -146,8 +156,9 @@ public class CSVReporter extends AbstractEventReporter
             writer.write(",,");
             String eventName = entry.getKey();
             ResultSummary summary = entry.getValue();
-            SummaryStatistics statsSuccess = summary.getStats(true);
-            SummaryStatistics statsFail = summary.getStats(false);
+            LatencyHistogram statsSuccess = summary.getStats(true);
+            LatencyHistogram statsFail = summary.getStats(false);
+            LatencyHistogram startDelays = summary.getStartDelays();
             // Event Name
             writer.write(String.format("%s,", eventName));
             // Total Count
@@ -165,7 +176,22 @@ public class CSVReporter extends AbstractEventReporter
             // Arithmetic Mean (ms)
             writer.write(String.format("%10d,", (long)statsSuccess.getMean()));
             // Standard Deviation (ms)
-            writer.write(String.format("%10d%s", (long)statsSuccess.getStandardDeviation(), NEW_LINE));
+            writer.write(String.format("%10d", (long)statsSuccess.getStandardDeviation()));
+            // Percentiles (ms)
+            for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+            {
+                writer.write(String.format(",%10d", (long)statsSuccess.getPercentile(percentile)));
+            }
+            // Start Delay Mean (ms)
+            writer.write(String.format(",%10d", (long)startDelays.getMean()));
+            // Start Delay Max (ms)
+            writer.write(String.format(",%10d", (long)startDelays.getMax()));
+            // Start Delay Percentiles (ms)
+            for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+            {
+                writer.write(String.format(",%10d", (long)startDelays.getPercentile(percentile)));
+            }
+            writer.write(NEW_LINE);
         }
         // Done
         
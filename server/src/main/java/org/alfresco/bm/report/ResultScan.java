@@ -0,0 +1,100 @@
+package org.alfresco.bm.report;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.alfresco.bm.event.EventRecord;
+import org.alfresco.bm.event.ResultService;
+import org.alfresco.bm.event.ResultService.EventRecordHandler;
+
+/**
+ * Reads all the results for a test run once, passing each result to every
+ * registered {@link ResultAggregator aggregator}.  Reports that need several views
+ * of the results (summary, time series, etc) register an aggregator for each view
+ * rather than reading the results once per view.
+ * <p/>
+ * All results are passed to the aggregators, including results that are not
+ * {@link EventRecord#isChart() charted}; aggregators must do their own filtering.
+ *
+ * @since 2.2
+ */
+public class ResultScan
+{
+    /**
+     * A consumer of the results read by the scan
+     *
+     * @since 2.2
+     */
+    public interface ResultAggregator extends EventRecordHandler
+    {
+        /**
+         * Called once after the last result has been read.  This is called even if the
+         * aggregator asked for no more results.
+         */
+        void finish();
+    }
+
+    private final ResultService resultService;
+    private final List<ResultAggregator> aggregators;
+
+    /**
+     * @param resultService         the results to read
+     */
+    public ResultScan(ResultService resultService)
+    {
+        this.resultService = resultService;
+        this.aggregators = new ArrayList<ResultAggregator>(5);
+    }
+
+    /**
+     * Register an aggregator to receive the results
+     */
+    public void addAggregator(ResultAggregator aggregator)
+    {
+        if (aggregator == null)
+        {
+            throw new IllegalArgumentException("'aggregator' may not be null.");
+        }
+        aggregators.add(aggregator);
+    }
+
+    /**
+     * Read all the results, passing each result to the aggregators that still want results.
+     * The scan stops early once no aggregator wants more results.
+     *
+     * @return                      the number of results read
+     */
+    public long scan()
+    {
+        long count = 0L;
+        EventRecord firstResult = resultService.getFirstResult();
+        EventRecord lastResult = resultService.getLastResult();
+        if (firstResult != null && lastResult != null && aggregators.size() > 0)
+        {
+            final List<ResultAggregator> activeAggregators = new ArrayList<ResultAggregator>(aggregators);
+            EventRecordHandler handler = new EventRecordHandler()
+            {
+                @Override
+                public boolean processResult(EventRecord eventRecord)
+                {
+                    Iterator<ResultAggregator> iterator = activeAggregators.iterator();
+                    while (iterator.hasNext())
+                    {
+                        if (!iterator.next().processResult(eventRecord))
+                        {
+                            iterator.remove();
+                        }
+                    }
+                    return activeAggregators.size() > 0;
+                }
+            };
+            count = resultService.streamResults(firstResult.getStartTime(), lastResult.getStartTime() + 1L, false, handler);
+        }
+        for (ResultAggregator aggregator : aggregators)
+        {
+            aggregator.finish();
+        }
+        return count;
+    }
+}
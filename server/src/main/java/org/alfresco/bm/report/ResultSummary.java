@@ -18,10 +18,13 @@
  */
 package org.alfresco.bm.report;
 
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.alfresco.bm.event.LatencyHistogram;
 
 /**
- * Class assisting with the gathering of statistics for an event
+ * Class assisting with the gathering of statistics for an event.
+ * <p/>
+ * The result times are kept in {@link LatencyHistogram histograms}, so memory use does not
+ * grow with the number of samples and percentiles can be reported.
  * 
  * @author Derek Hulley
  * @since 2.0
@@ -29,14 +32,24 @@ import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 public class ResultSummary
 {
     private final String name;
-    private SummaryStatistics statsSuccess;
-    private SummaryStatistics statsFailure;
+    private LatencyHistogram statsSuccess;
+    private LatencyHistogram statsFailure;
+    private LatencyHistogram startDelays;
 
     public ResultSummary(String name)
+    {
+        this(name, LatencyHistogram.DEFAULT_SIGNIFICANT_DIGITS);
+    }
+    
+    /**
+     * @param significantDigits the number of significant digits of the sample times to preserve
+     */
+    public ResultSummary(String name, int significantDigits)
     {
         this.name = name;
-        this.statsSuccess = new SummaryStatistics();
-        this.statsFailure = new SummaryStatistics();
+        this.statsSuccess = new LatencyHistogram(significantDigits);
+        this.statsFailure = new LatencyHistogram(significantDigits);
+        this.startDelays = new LatencyHistogram(significantDigits);
     }
     
     /**
@@ -50,12 +63,29 @@ public class ResultSummary
         }
         if (success)
         {
-            statsSuccess.addValue(time);
+            statsSuccess.recordValue(time);
         }
         else
         {
-            statsFailure.addValue(time);
+            statsFailure.recordValue(time);
+        }
+    }
+    
+    /**
+     * Add another sample to the event along with how late it started
+     * 
+     * @param startDelay        the time between the event being due and it starting
+     * 
+     * @since 2.2
+     */
+    public void addSample(boolean success, long time, long startDelay)
+    {
+        if (startDelay < 0L)
+        {
+            throw new IllegalArgumentException("Start delay cannot be negative.");
         }
+        addSample(success, time);
+        startDelays.recordValue(startDelay);
     }
     
     public String getName()
@@ -70,7 +100,7 @@ public class ResultSummary
      *                          <tt>false</tt> to return failure statistics
      * @return                  the statics for success or failure
      */
-    public SummaryStatistics getStats(boolean success)
+    public LatencyHistogram getStats(boolean success)
     {
         if (success)
         {
@@ -82,6 +112,16 @@ public class ResultSummary
         }
     }
     
+    /**
+     * @return                  the statistics for how late the events started (success and failure)
+     * 
+     * @since 2.2
+     */
+    public LatencyHistogram getStartDelays()
+    {
+        return startDelays;
+    }
+    
     /**
      * Get the total number of results (success and failure)
      */
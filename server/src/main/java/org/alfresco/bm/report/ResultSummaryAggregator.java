@@ -0,0 +1,61 @@
+package org.alfresco.bm.report;
+
+import java.util.TreeMap;
+
+import org.alfresco.bm.event.EventRecord;
+import org.alfresco.bm.report.ResultScan.ResultAggregator;
+
+/**
+ * Collates a {@link ResultSummary} for each event name
+ *
+ * @since 2.2
+ */
+public class ResultSummaryAggregator implements ResultAggregator
+{
+    private final boolean chartOnly;
+    private final TreeMap<String, ResultSummary> summaries;
+
+    /**
+     * @param chartOnly             <tt>true</tt> to only include {@link EventRecord#isChart() charted} results
+     */
+    public ResultSummaryAggregator(boolean chartOnly)
+    {
+        this.chartOnly = chartOnly;
+        this.summaries = new TreeMap<String, ResultSummary>();
+    }
+
+    @Override
+    public boolean processResult(EventRecord eventRecord)
+    {
+        if (chartOnly && !eventRecord.isChart())
+        {
+            return true;
+        }
+        // Add the data
+        String eventName = eventRecord.getEvent().getName();
+        ResultSummary resultSummary = summaries.get(eventName);
+        if (resultSummary == null)
+        {
+            resultSummary = new ResultSummary(eventName);
+            summaries.put(eventName, resultSummary);
+        }
+        boolean resultSuccess = eventRecord.isSuccess();
+        long resultTime = eventRecord.getTime();
+        long resultStartDelay = eventRecord.getStartDelay();
+        resultSummary.addSample(resultSuccess, Math.max(0L, resultTime), Math.max(0L, resultStartDelay));
+        return true;
+    }
+
+    @Override
+    public void finish()
+    {
+    }
+
+    /**
+     * @return                      the summaries keyed and sorted by event name
+     */
+    public TreeMap<String, ResultSummary> getSummaries()
+    {
+        return summaries;
+    }
+}
@@ -29,9 +29,12 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.alfresco.bm.api.AbstractRestResource;
 import org.alfresco.bm.event.EventRecord;
+import org.alfresco.bm.event.LatencyHistogram;
 import org.alfresco.bm.event.ResultService;
 import org.alfresco.bm.event.ResultService.ResultHandler;
+import org.alfresco.bm.event.WindowedResultHandler;
 import org.alfresco.bm.exception.ObjectNotFoundException;
+import org.alfresco.bm.report.ResultScan.ResultAggregator;
 import org.alfresco.bm.test.TestRunServicesCache;
 import org.alfresco.bm.test.TestService;
 import org.alfresco.bm.test.TestService.NotFoundException;
@@ -39,8 +42,6 @@ import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.commons.lang3.time.FastDateFormat;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.poi.POIXMLProperties.CoreProperties;
 import org.apache.poi.openxml4j.util.Nullable;
 import org.apache.poi.ss.usermodel.Cell;
@@ -122,9 +123,20 @@ public class XLSXReporter extends AbstractEventReporter
     private void writeToWorkbook(XSSFWorkbook workbook) throws IOException, NotFoundException
     {
         writeMetadata(workbook);
-        createSummarySheet(workbook);
+        // The summary comes first but can only be filled in once the results have been read
+        XSSFSheet summarySheet = workbook.createSheet("Summary");
         createPropertiesSheet(workbook);
-        createEventSheets(workbook);
+        // Read the results once for both the summary and the event sheets
+        ResultSummaryAggregator summaryAggregator = new ResultSummaryAggregator(true);
+        ResultScan scan = new ResultScan(getResultService());
+        scan.addAggregator(summaryAggregator);
+        ResultAggregator eventSheetsAggregator = createEventSheetsAggregator(workbook);
+        if (eventSheetsAggregator != null)
+        {
+            scan.addAggregator(eventSheetsAggregator);
+        }
+        scan.scan();
+        createSummarySheet(summarySheet, summaryAggregator.getSummaries());
         createExtraDataSheet(workbook);
     }
 
@@ -326,14 +338,15 @@ public class XLSXReporter extends AbstractEventReporter
     }
 
     /**
-     * Create a 'Summary' sheet containing the table of averages
+     * Fill in the 'Summary' sheet containing the table of averages
+     * 
+     * @param sheet             the sheet to write to
+     * @param summaries         the summaries for each event
      */
-    private void createSummarySheet(XSSFWorkbook workbook) throws IOException, NotFoundException
+    private void createSummarySheet(XSSFSheet sheet, TreeMap<String, ResultSummary> summaries) throws IOException, NotFoundException
     {
         DBObject testRunObj = getTestService().getTestRunMetadata(test, run);
-
-        // Create the sheet
-        XSSFSheet sheet = workbook.createSheet("Summary");
+        XSSFWorkbook workbook = sheet.getWorkbook();
 
         // Create the fonts we need
         Font fontBold = workbook.createFont();
@@ -434,9 +447,28 @@ public class XLSXReporter extends AbstractEventReporter
             cell.setCellStyle(headerStyle);
             cell.setCellValue(header);
         }
+        for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+        {
+            XSSFCell cell = row.getCell(columnCount++);
+            cell.setCellStyle(headerStyle);
+            cell.setCellValue(LatencyHistogram.getPercentileLabel(percentile) + " (ms)");
+        }
+        String[] startDelayHeaders = new String[] { "Start Delay Mean (ms)", "Start Delay Max (ms)" };
+        for (String header : startDelayHeaders)
+        {
+            XSSFCell cell = row.getCell(columnCount++);
+            cell.setCellStyle(headerStyle);
+            cell.setCellValue(header);
+        }
+        for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+        {
+            XSSFCell cell = row.getCell(columnCount++);
+            cell.setCellStyle(headerStyle);
+            cell.setCellValue("Start Delay " + LatencyHistogram.getPercentileLabel(percentile) + " (ms)");
+        }
+        int columnTotal = columnCount;
         // Grab results and output them
         columnCount = 0;
-        TreeMap<String, ResultSummary> summaries = collateResults(true);
         for (Map.Entry<String, ResultSummary> entry : summaries.entrySet())
         {
             // Reset column count
@@ -445,8 +477,9 @@ public class XLSXReporter extends AbstractEventReporter
             row = sheet.createRow(rowCount++);
             String eventName = entry.getKey();
             ResultSummary summary = entry.getValue();
-            SummaryStatistics statsSuccess = summary.getStats(true);
-            SummaryStatistics statsFail = summary.getStats(false);
+            LatencyHistogram statsSuccess = summary.getStats(true);
+            LatencyHistogram statsFail = summary.getStats(false);
+            LatencyHistogram startDelays = summary.getStartDelays();
             // Event Name
             row.getCell(columnCount++).setCellValue(eventName);
             // Total Count
@@ -465,10 +498,24 @@ public class XLSXReporter extends AbstractEventReporter
             row.getCell(columnCount++).setCellValue((long) statsSuccess.getMean());
             // Standard Deviation (ms)
             row.getCell(columnCount++).setCellValue((long) statsSuccess.getStandardDeviation());
+            // Percentiles (ms)
+            for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+            {
+                row.getCell(columnCount++).setCellValue((long) statsSuccess.getPercentile(percentile));
+            }
+            // Start Delay Mean (ms)
+            row.getCell(columnCount++).setCellValue((long) startDelays.getMean());
+            // Start Delay Max (ms)
+            row.getCell(columnCount++).setCellValue((long) startDelays.getMax());
+            // Start Delay Percentiles (ms)
+            for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+            {
+                row.getCell(columnCount++).setCellValue((long) startDelays.getPercentile(percentile));
+            }
         }
 
         // Auto-size the columns
-        for (int i = 0; i < 10; i++)
+        for (int i = 0; i < columnTotal; i++)
         {
             sheet.autoSizeColumn(i);
         }
@@ -594,7 +641,13 @@ public class XLSXReporter extends AbstractEventReporter
         sheet.getHeader().setCenter(title);
     }
 
-    private void createEventSheets(final XSSFWorkbook workbook)
+    /**
+     * Create an aggregator that writes a sheet of time series results for each event
+     * and adds charts to the sheets once all the results have been seen
+     * 
+     * @return                  the aggregator or <tt>null</tt> if there are no results
+     */
+    private ResultAggregator createEventSheetsAggregator(final XSSFWorkbook workbook)
     {
         // Create the fonts we need
         Font fontBold = workbook.createFont();
@@ -616,7 +669,7 @@ public class XLSXReporter extends AbstractEventReporter
         EventRecord lastResult = resultService.getLastResult();
         if (firstResult == null || lastResult == null)
         {
-            return;
+            return null;
         }
         long start = firstResult.getStartTime();
         long end = lastResult.getStartTime();
@@ -631,7 +684,7 @@ public class XLSXReporter extends AbstractEventReporter
         {
             @Override
             public boolean processResult(long fromTime, long toTime,
-                    Map<String, DescriptiveStatistics> statsByEventName, Map<String, Integer> failuresByEventName)
+                    Map<String, LatencyHistogram> statsByEventName, Map<String, Integer> failuresByEventName)
                     throws Throwable
             {
                 // Get or create a sheet for each event
@@ -714,16 +767,17 @@ public class XLSXReporter extends AbstractEventReporter
                         cell = row.createCell(8);
                         cell.setCellStyle(headerStyle);
                         cell.setCellValue("failPerSec");
+                        for (int i = 0; i < LatencyHistogram.REPORTED_PERCENTILES.length; i++)
+                        {
+                            cell = row.createCell(9 + i);
+                            cell.setCellStyle(headerStyle);
+                            cell.setCellValue(LatencyHistogram.getPercentileLabel(LatencyHistogram.REPORTED_PERCENTILES[i]));
+                        }
                         // Size the columns
-                        sheet.autoSizeColumn(0);
-                        sheet.autoSizeColumn(1);
-                        sheet.autoSizeColumn(2);
-                        sheet.autoSizeColumn(3);
-                        sheet.autoSizeColumn(4);
-                        sheet.autoSizeColumn(5);
-                        sheet.autoSizeColumn(6);
-                        sheet.autoSizeColumn(7);
-                        sheet.autoSizeColumn(8);
+                        for (int i = 0; i < 9 + LatencyHistogram.REPORTED_PERCENTILES.length; i++)
+                        {
+                            sheet.autoSizeColumn(i);
+                        }
                     }
                     AtomicInteger rowNum = rowNums.get(eventName);
                     if (rowNum == null)
@@ -732,7 +786,7 @@ public class XLSXReporter extends AbstractEventReporter
                         rowNums.put(eventName, rowNum);
                     }
 
-                    DescriptiveStatistics stats = statsByEventName.get(eventName);
+                    LatencyHistogram stats = statsByEventName.get(eventName);
                     Integer failures = failuresByEventName.get(eventName);
 
                     double numPerSec = (double) stats.getN() / ((double) (toTime - fromTime) / 1000.0);
@@ -764,13 +818,42 @@ public class XLSXReporter extends AbstractEventReporter
                     cell.setCellValue(stats.getMax());
                     cell = row.createCell(4, Cell.CELL_TYPE_NUMERIC);
                     cell.setCellValue(stats.getStandardDeviation());
+                    for (int i = 0; i < LatencyHistogram.REPORTED_PERCENTILES.length; i++)
+                    {
+                        cell = row.createCell(9 + i, Cell.CELL_TYPE_NUMERIC);
+                        cell.setCellValue(stats.getPercentile(LatencyHistogram.REPORTED_PERCENTILES[i]));
+                    }
                 }
                 return true;
             }
         };
-        resultService.getResults(handler, start, windowSize, windowSize, false);
-
-        // Create charts in the sheets
+        final WindowedResultHandler windowedResultHandler = new WindowedResultHandler(
+                handler, start, windowSize, windowSize, false, LatencyHistogram.DEFAULT_SIGNIFICANT_DIGITS);
+        return new ResultAggregator()
+        {
+            @Override
+            public boolean processResult(EventRecord eventRecord)
+            {
+                return windowedResultHandler.processResult(eventRecord);
+            }
+            
+            @Override
+            public void finish()
+            {
+                windowedResultHandler.finish();
+                createEventCharts(sheetNames, sheets, rowNums);
+            }
+        };
+    }
+    
+    /**
+     * Create charts in the event sheets
+     */
+    private void createEventCharts(
+            Map<String, String> sheetNames,
+            Map<String, XSSFSheet> sheets,
+            Map<String, AtomicInteger> rowNums)
+    {
         for (String eventName : sheetNames.keySet())
         {
             // Get the sheet name
@@ -0,0 +1,72 @@
+package org.alfresco.bm.server;
+
+import java.util.List;
+
+import org.alfresco.bm.event.Event;
+
+/**
+ * Decides when the {@link EventController} may claim events from the event queue and
+ * when each claimed event is handed over for processing.
+ * <p/>
+ * The controller thread drives the scheduler in a loop:
+ * <ol>
+ *  <li>{@link #awaitClaim(int, long) wait} for permission to claim events</li>
+ *  <li>claim events scheduled up to {@link #getLookAhead() look-ahead} milliseconds from now</li>
+ *  <li>hand the {@link #claimed(List, int) claimed} events to the scheduler</li>
+ *  <li>{@link #drainDue(List, long) dispatch} the events that are due</li>
+ * </ol>
+ * Implementations are only ever called by the controller thread and need not be thread-safe.
+ * 
+ * @since 2.2
+ */
+public interface DispatchScheduler
+{
+    /**
+     * Wait until events may be claimed from the queue.  The wait can end early, in which case
+     * no events may be claimed and the caller must come back.
+     * 
+     * @param maxCount          the largest number of events the caller wants to claim
+     * @param maxWait           the longest time (milliseconds) to wait
+     * @return                  the number of events that may be claimed (0 to <tt>maxCount</tt>)
+     */
+    int awaitClaim(int maxCount, long maxWait);
+    
+    /**
+     * @return                  how far (milliseconds) beyond the current time events may be claimed
+     */
+    long getLookAhead();
+    
+    /**
+     * Accept the events that were claimed after {@link #awaitClaim(int, long) permission} was given
+     * 
+     * @param events            the events claimed (may be empty)
+     * @param claimCount        the number of events that the claim was allowed to fetch
+     */
+    void claimed(List<Event> events, int claimCount);
+    
+    /**
+     * Move the events that are due for processing into the given list, waiting
+     * for the next event to become due if necessary.  Callers that have no room to
+     * claim events call this without claiming, so it must not return straight away
+     * while held events are not yet due.
+     * 
+     * @param dueEvents         the list to add due events to
+     * @param maxWait           the longest time (milliseconds) to wait for an event to become due
+     * @return                  the number of events added
+     */
+    int drainDue(List<Event> dueEvents, long maxWait);
+    
+    /**
+     * Move all held events into the given list, whether they are due or not.  This is used
+     * to hand back claimed events that will not be dispatched.
+     * 
+     * @param events            the list to add the held events to
+     * @return                  the number of events added
+     */
+    int drainAll(List<Event> events);
+    
+    /**
+     * @return                  the number of claimed events that have not been dispatched
+     */
+    int getPendingCount();
+}
@@ -0,0 +1,278 @@
+package org.alfresco.bm.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
+
+/**
+ * Registry of the internal measurements taken by a driver while it processes events:
+ * how long it takes to claim events from the queue, how busy the event threads are,
+ * how long results and next events take to write, and so on.  These show whether the
+ * driver or the system under test is holding a test run back.
+ * <p/>
+ * The measurements are shared by all test runs on the driver and are cheap enough to
+ * take on every event:
+ * <ul>
+ *  <li>{@link Counter counters} are striped to avoid contention between threads</li>
+ *  <li>{@link Histogram histograms} count values in power-of-two buckets, so their
+ *      memory use is fixed and recording a value does not need a lock</li>
+ * </ul>
+ * Metrics are created when first used and are never removed.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @since 2.2
+ */
+public class DriverMetrics
+{
+    /* The metrics recorded by the driver */
+    /** Time (ms) to claim events from the event queue */
+    public static final String METRIC_EVENTS_CLAIM = "events.claim";
+    /** Number of events claimed from the event queue */
+    public static final String METRIC_EVENTS_CLAIMED = "events.claimed";
+    /** Number of events handed to the event threads */
+    public static final String METRIC_EVENTS_DISPATCHED = "events.dispatched";
+    /** Number of events dispatched but not yet processed */
+    public static final String METRIC_EVENTS_IN_FLIGHT = "events.inFlight";
+    /** Time (ms) the controller waited for room to dispatch events */
+    public static final String METRIC_EVENTS_BACK_PRESSURE = "events.backPressure";
+    /** Time (ms) dispatched events waited for a thread */
+    public static final String METRIC_EVENTS_DISPATCH_WAIT = "events.dispatchWait";
+    /** Time (ms) taken to process events, including recording the results */
+    public static final String METRIC_EVENTS_PROCESSING = "events.processing";
+    /** Number of next events raised by each event */
+    public static final String METRIC_EVENTS_FAN_OUT = "events.fanOut";
+    /** Time (ms) to write the next events and remove the processed event */
+    public static final String METRIC_EVENTS_NEXT_WRITE = "events.nextWrite";
+    /** Time (ms) to hand a result to the result service */
+    public static final String METRIC_RESULTS_RECORD = "results.record";
+    /** Time (ms) to write a batch of buffered results */
+    public static final String METRIC_RESULTS_FLUSH = "results.flush";
+
+    public static final String FIELD_TIME = "time";
+    public static final String FIELD_COUNTERS = "counters";
+    public static final String FIELD_HISTOGRAMS = "histograms";
+    public static final String FIELD_COUNT = "count";
+    public static final String FIELD_MEAN = "mean";
+    public static final String FIELD_MAX = "max";
+
+    /** The percentiles of histogram values that are reported */
+    private static final double[] REPORTED_PERCENTILES = new double[] {50.0, 90.0, 99.0};
+
+    /**
+     * A value that can be changed by many threads at once
+     */
+    public static class Counter
+    {
+        private final LongAdder value = new LongAdder();
+
+        private Counter()
+        {
+        }
+
+        public void increment()
+        {
+            value.increment();
+        }
+
+        public void decrement()
+        {
+            value.decrement();
+        }
+
+        public void add(long delta)
+        {
+            value.add(delta);
+        }
+
+        /**
+         * @return                  the current value, which is not a snapshot if the counter is being changed
+         */
+        public long get()
+        {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Distribution of positive values, counted in buckets that double in size.
+     * The bucket for a value is the position of its highest bit, so percentiles are
+     * reported as the upper bound of a bucket i.e. to within a factor of two.
+     */
+    public static class Histogram
+    {
+        private static final int BUCKET_COUNT = 64;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram()
+        {
+        }
+
+        /**
+         * @param value             the value to record (negative values are recorded as <tt>0</tt>)
+         */
+        public void record(long value)
+        {
+            value = Math.max(0L, value);
+            // Bucket i holds the values from 2^(i-1) to 2^i - 1
+            counts.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            long currentMax = max.get();
+            while (value > currentMax && !max.compareAndSet(currentMax, value))
+            {
+                currentMax = max.get();
+            }
+        }
+
+        public long getCount()
+        {
+            return count.sum();
+        }
+
+        /**
+         * @return                  the mean value or <tt>0</tt> if there are no values
+         */
+        public double getMean()
+        {
+            long n = count.sum();
+            return (n == 0L) ? 0.0 : (double) sum.sum() / (double) n;
+        }
+
+        public long getMax()
+        {
+            return max.get();
+        }
+
+        /**
+         * @param percentile        the percentile (0 to 100)
+         * @return                  the upper bound of the bucket holding the percentile
+         *                          or <tt>0</tt> if there are no values
+         */
+        public long getPercentile(double percentile)
+        {
+            long[] snapshot = new long[BUCKET_COUNT];
+            long total = 0L;
+            for (int i = 0; i < BUCKET_COUNT; i++)
+            {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0L)
+            {
+                return 0L;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0L;
+            for (int i = 0; i < BUCKET_COUNT; i++)
+            {
+                seen += snapshot[i];
+                if (seen >= rank)
+                {
+                    long upperBound = (1L << i) - 1L;
+                    return Math.min(upperBound, getMax());
+                }
+            }
+            return getMax();
+        }
+    }
+
+    private final ConcurrentMap<String, Counter> counters;
+    private final ConcurrentMap<String, Histogram> histograms;
+
+    public DriverMetrics()
+    {
+        this.counters = new ConcurrentHashMap<String, Counter>(17);
+        this.histograms = new ConcurrentHashMap<String, Histogram>(17);
+    }
+
+    /**
+     * @return                  the counter with the given name, which is created if necessary
+     */
+    public Counter getCounter(String name)
+    {
+        Counter counter = counters.get(name);
+        if (counter == null)
+        {
+            counter = new Counter();
+            Counter existing = counters.putIfAbsent(name, counter);
+            if (existing != null)
+            {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return                  the histogram with the given name, which is created if necessary
+     */
+    public Histogram getHistogram(String name)
+    {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null)
+        {
+            histogram = new Histogram();
+            Histogram existing = histograms.putIfAbsent(name, histogram);
+            if (existing != null)
+            {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Get the current values of all the metrics in the form:
+     * <pre>
+     * {
+     *    "time" : ...,
+     *    "counters" : { "events.claimed" : 100, ... },
+     *    "histograms" : { "events.claim" : { "count" : 10, "mean" : 2.5, "max" : 8, "p50" : 3, ... }, ... }
+     * }
+     * </pre>
+     *
+     * @return                  the current values of the metrics, ordered by name
+     */
+    public DBObject toDBObject()
+    {
+        DBObject countersObj = new BasicDBObject();
+        for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(counters).entrySet())
+        {
+            countersObj.put(entry.getKey(), entry.getValue().get());
+        }
+        DBObject histogramsObj = new BasicDBObject();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet())
+        {
+            Histogram histogram = entry.getValue();
+            BasicDBObjectBuilder histogramObjBuilder = BasicDBObjectBuilder
+                    .start()
+                    .add(FIELD_COUNT, histogram.getCount())
+                    .add(FIELD_MEAN, histogram.getMean())
+                    .add(FIELD_MAX, histogram.getMax());
+            for (double percentile : REPORTED_PERCENTILES)
+            {
+                histogramObjBuilder.add("p" + (int) percentile, histogram.getPercentile(percentile));
+            }
+            histogramsObj.put(entry.getKey(), histogramObjBuilder.get());
+        }
+        return BasicDBObjectBuilder
+                .start()
+                .add(FIELD_TIME, System.currentTimeMillis())
+                .add(FIELD_COUNTERS, countersObj)
+                .add(FIELD_HISTOGRAMS, histogramsObj)
+                .get();
+    }
+}
@@ -18,17 +18,25 @@
  */
 package org.alfresco.bm.server;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import org.alfresco.bm.event.BulkEventWriter;
 import org.alfresco.bm.event.DoNothingEventProcessor;
 import org.alfresco.bm.event.Event;
 import org.alfresco.bm.event.EventProcessor;
@@ -68,9 +76,57 @@ import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
  */
 public class EventController implements LifecycleListener, ApplicationContextAware, Runnable
 {
+    /**
+     * The built-in ways of deciding when events are dispatched for processing
+     * 
+     * @since 2.2
+     */
+    public static enum DispatchModel
+    {
+        /** Search the queue at the maximum event rate and process events as soon as they are found */
+        CLOSED,
+        /** Claim events ahead of time and process each event at its scheduled time */
+        OPEN
+    }
+    
+    /**
+     * The built-in ways of running events once they have been dispatched
+     * 
+     * @since 2.2
+     */
+    public static enum ExecutionModel
+    {
+        /** Run events on a fixed pool of threads, one thread per concurrent event */
+        POOLED,
+        /**
+         * Run each event on its own virtual thread, allowing a very large number of concurrent
+         * events that spend most of their time waiting.  Virtual threads need Java 21 or later;
+         * on earlier versions of Java the {@link #POOLED pooled} model is used.
+         */
+        VIRTUAL
+    }
+    
     private static final int DEFAULT_EVENTS_PER_SECOND_PER_THREAD = 2;
+    /** The number of events claimed from the queue in a single call */
+    private static final int DEFAULT_EVENT_BATCH_SIZE = 1;
+    /** The number of processed events that can wait to be written back to the queue (0 to write directly) */
+    private static final int DEFAULT_EVENT_WRITE_QUEUE_SIZE = 0;
+    /** The largest number of processed events written back to the queue in one go */
+    private static final int MAX_EVENT_WRITE_BATCH_SIZE = 1000;
     /** How long a driver has to grab assigned events */
     private static final long DEFAULT_ASSIGNED_EVENT_GRACE_PERIOD = 5000L;
+    /** How events are dispatched for processing */
+    private static final DispatchModel DEFAULT_DISPATCH_MODEL = DispatchModel.CLOSED;
+    /** How far ahead events are claimed when dispatching at their scheduled times */
+    private static final long DEFAULT_DISPATCH_LOOK_AHEAD = 1000L;
+    /** How long to wait before searching an exhausted queue when dispatching at scheduled times */
+    private static final long DISPATCH_POLL_PERIOD = 100L;
+    /** The longest time the controller will wait before checking the run state */
+    private static final long DISPATCH_MAX_WAIT = 1000L;
+    /** How events are run once dispatched */
+    private static final ExecutionModel DEFAULT_EXECUTION_MODEL = ExecutionModel.POOLED;
+    /** The number of dispatched events that can wait for a free thread */
+    private static final int DEFAULT_DISPATCH_QUEUE_SIZE = 16;
     
     private static final Log logger = LogFactory.getLog(EventController.class);
     
@@ -80,7 +136,6 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
     private final EventProducerRegistry eventProducers;
     private final EventProcessorRegistry eventProcessors;
     private final Thread thread;
-    private final ExecutorService executor;
     private final ResultService resultService;
     private final SessionService sessionService;
     private final TestRunLogService logService;
@@ -88,6 +143,27 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
 
     private int eventsPerSecondPerThread = DEFAULT_EVENTS_PER_SECOND_PER_THREAD;
     private long assignedEventGracePeriod = DEFAULT_ASSIGNED_EVENT_GRACE_PERIOD;
+    private int eventBatchSize = DEFAULT_EVENT_BATCH_SIZE;
+    private int eventWriteQueueSize = DEFAULT_EVENT_WRITE_QUEUE_SIZE;
+    private BulkEventWriter eventWriter;
+    private DispatchModel dispatchModel = DEFAULT_DISPATCH_MODEL;
+    private long dispatchLookAhead = DEFAULT_DISPATCH_LOOK_AHEAD;
+    private DispatchScheduler dispatchScheduler;
+    private ExecutionModel executionModel = DEFAULT_EXECUTION_MODEL;
+    private int virtualThreadCount;
+    /** The number of events that can run at the same time, set on start */
+    private int concurrency;
+    private int dispatchQueueSize = DEFAULT_DISPATCH_QUEUE_SIZE;
+    private ExecutorService executor;
+    /** One permit for each event that is running or waiting to run */
+    private Semaphore executionPermits;
+    /* Dispatch statistics */
+    private final AtomicLong dispatchCount = new AtomicLong();
+    private final AtomicLong dispatchWaitTime = new AtomicLong();
+    private final AtomicLong processingTime = new AtomicLong();
+    private final AtomicLong backPressureCount = new AtomicLong();
+    private final AtomicLong backPressureTime = new AtomicLong();
+    private DriverMetrics metrics = new DriverMetrics();
 
     private volatile String[] driverIds = new String[0];
     private ApplicationContext ctx;
@@ -132,19 +208,57 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
         this.sessionService = sessionService;
         this.logService = logService;
         this.threadCount = threadCount;
+        
+        setRunning(true);
+    }
+    
+    /**
+     * Create the pool of threads that run events.  Events are never run by the controller thread;
+     * the {@link #executionPermits execution permits} keep the work queue within its bounds.
+     */
+    private ExecutorService createPooledExecutor()
+    {
         // Configure threads
         CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(testRunFqn + "-");
         threadFactory.setThreadGroup(thread.getThreadGroup());
         threadFactory.setDaemon(true);
         // Configure work queue
-        SynchronousQueue<Runnable> queue = new SynchronousQueue<Runnable>(true);
+        BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>(threadCount + dispatchQueueSize);
         // Configure executor
-        RejectedExecutionHandler abortPolicy = new ThreadPoolExecutor.CallerRunsPolicy();
-        executor = new ThreadPoolExecutor(
+        RejectedExecutionHandler abortPolicy = new ThreadPoolExecutor.AbortPolicy();
+        return new ThreadPoolExecutor(
                 threadCount, threadCount, 60, TimeUnit.SECONDS,
                 queue, threadFactory, abortPolicy);
-        
-        setRunning(true);
+    }
+    
+    /**
+     * Create an executor that starts a new virtual thread for each task.  Reflection is used
+     * so that the server still runs on versions of Java that do not have virtual threads.
+     * 
+     * @param namePrefix        the prefix of the thread names
+     * @return                  the executor or <tt>null</tt> if virtual threads are not available
+     */
+    static ExecutorService createVirtualThreadExecutor(String namePrefix)
+    {
+        try
+        {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, threadFactory);
+        }
+        catch (Exception e)
+        {
+            // Not available on this JVM
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Virtual threads are not available: " + e);
+            }
+            return null;
+        }
     }
 
     /**
@@ -171,6 +285,150 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
         this.assignedEventGracePeriod = assignedEventGracePeriod;
     }
 
+    /**
+     * Override the {@link #DEFAULT_EVENT_BATCH_SIZE default} number of events that can be claimed
+     * from the event queue in one go.  The events are still only claimed at the rate allowed
+     * by the {@link #setEventsPerSecondPerThread(int) event rate}.
+     * 
+     * @since 2.2
+     */
+    public void setEventBatchSize(int eventBatchSize)
+    {
+        if (eventBatchSize < 1)
+        {
+            throw new IllegalArgumentException("eventBatchSize must be greater than zero.");
+        }
+        this.eventBatchSize = eventBatchSize;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_EVENT_WRITE_QUEUE_SIZE default} number of processed events
+     * that can be waiting for their next events to be written to the queue.  When greater than
+     * zero, the queue updates are handed over to a shared {@link BulkEventWriter write-behind stage};
+     * processing threads will block if the stage falls behind by this number of events.
+     * 
+     * @since 2.2
+     */
+    public void setEventWriteQueueSize(int eventWriteQueueSize)
+    {
+        if (eventWriteQueueSize < 0)
+        {
+            throw new IllegalArgumentException("eventWriteQueueSize may not be negative.");
+        }
+        this.eventWriteQueueSize = eventWriteQueueSize;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_DISPATCH_MODEL default} way of dispatching events.
+     * <p/>
+     * In the {@link DispatchModel#CLOSED closed} model, the queue is searched at the
+     * {@link #setEventsPerSecondPerThread(int) event rate} using a token bucket.
+     * In the {@link DispatchModel#OPEN open} model, events are claimed ahead of time and
+     * dispatched at their scheduled times; the event rate then limits the number of events
+     * held ahead of time for each second of {@link #setDispatchLookAhead(long) look-ahead}.
+     * 
+     * @since 2.2
+     */
+    public void setDispatchModel(DispatchModel dispatchModel)
+    {
+        if (dispatchModel == null)
+        {
+            throw new IllegalArgumentException("dispatchModel may not be null.");
+        }
+        this.dispatchModel = dispatchModel;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_DISPATCH_LOOK_AHEAD default} time (milliseconds) ahead
+     * of their schedule that events are claimed when using the {@link DispatchModel#OPEN open}
+     * dispatch model.
+     * 
+     * @since 2.2
+     */
+    public void setDispatchLookAhead(long dispatchLookAhead)
+    {
+        if (dispatchLookAhead < 0L)
+        {
+            throw new IllegalArgumentException("dispatchLookAhead may not be negative.");
+        }
+        this.dispatchLookAhead = dispatchLookAhead;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_EXECUTION_MODEL default} way of running events.
+     * In both models, the number of events running at the same time is limited to the thread count,
+     * unless a {@link #setVirtualThreadCount(int) virtual thread count} is given.
+     * 
+     * @since 2.2
+     */
+    public void setExecutionModel(ExecutionModel executionModel)
+    {
+        if (executionModel == null)
+        {
+            throw new IllegalArgumentException("executionModel may not be null.");
+        }
+        this.executionModel = executionModel;
+    }
+
+    /**
+     * Set the number of events that can run at the same time when using the
+     * {@link ExecutionModel#VIRTUAL virtual} execution model.  The thread pool size is
+     * kept within the limits of a real thread pool and is used when this is <tt>0</tt>.
+     * 
+     * @since 2.2
+     */
+    public void setVirtualThreadCount(int virtualThreadCount)
+    {
+        if (virtualThreadCount < 0)
+        {
+            throw new IllegalArgumentException("virtualThreadCount may not be negative.");
+        }
+        this.virtualThreadCount = virtualThreadCount;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_DISPATCH_QUEUE_SIZE default} number of dispatched events that
+     * can wait for a free thread when using the {@link ExecutionModel#POOLED pooled} execution model.
+     * Events are only claimed from the event queue while there is room for them; otherwise the
+     * controller waits for running events to finish.
+     * 
+     * @since 2.2
+     */
+    public void setDispatchQueueSize(int dispatchQueueSize)
+    {
+        if (dispatchQueueSize < 0)
+        {
+            throw new IllegalArgumentException("dispatchQueueSize may not be negative.");
+        }
+        this.dispatchQueueSize = dispatchQueueSize;
+    }
+
+    /**
+     * Record the timings of event claims, dispatch and processing in a registry shared
+     * by all test runs on the driver
+     * 
+     * @since 2.2
+     */
+    public void setMetrics(DriverMetrics metrics)
+    {
+        if (metrics == null)
+        {
+            throw new IllegalArgumentException("metrics may not be null.");
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * Provide a custom scheduler that decides when events are claimed and dispatched.
+     * This replaces the scheduler chosen by the {@link #setDispatchModel(DispatchModel) dispatch model}.
+     * 
+     * @since 2.2
+     */
+    public void setDispatchScheduler(DispatchScheduler dispatchScheduler)
+    {
+        this.dispatchScheduler = dispatchScheduler;
+    }
+
     /**
      * Update the list of driver IDs in use.  This list can change at run time.
      */
@@ -214,6 +472,50 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
     @Override
     public void start()
     {
+        switch (executionModel)
+        {
+            case VIRTUAL:
+                executor = createVirtualThreadExecutor(testRunFqn + "-");
+                if (executor != null)
+                {
+                    // Every event gets a thread straight away
+                    concurrency = (virtualThreadCount > 0) ? virtualThreadCount : threadCount;
+                    executionPermits = new Semaphore(concurrency);
+                    break;
+                }
+                String msg = "Virtual threads are not available on this version of Java; events will run on a thread pool.";
+                logger.warn(msg);
+                logService.log(LogLevel.WARN, msg);
+                executionModel = ExecutionModel.POOLED;
+                // Fall through
+            case POOLED:
+            default:
+                executor = createPooledExecutor();
+                concurrency = threadCount;
+                executionPermits = new Semaphore(threadCount + dispatchQueueSize);
+                break;
+        }
+        if (dispatchScheduler == null)
+        {
+            int eventsPerSecond = (concurrency * eventsPerSecondPerThread);
+            switch (dispatchModel)
+            {
+                case OPEN:
+                    int capacity = (int) Math.max(eventBatchSize, (eventsPerSecond * Math.max(dispatchLookAhead, 1000L)) / 1000L);
+                    dispatchScheduler = new ScheduledTimeDispatchScheduler(dispatchLookAhead, DISPATCH_POLL_PERIOD, capacity);
+                    break;
+                case CLOSED:
+                default:
+                    dispatchScheduler = new TokenBucketDispatchScheduler(eventsPerSecond, Math.max(eventBatchSize, eventsPerSecond));
+                    break;
+            }
+        }
+        if (eventWriteQueueSize > 0)
+        {
+            int eventWriteBatchSize = Math.min(eventWriteQueueSize, MAX_EVENT_WRITE_BATCH_SIZE);
+            eventWriter = new BulkEventWriter(testRunFqn, eventService, logService, eventWriteQueueSize, eventWriteBatchSize);
+            eventWriter.start();
+        }
         thread.start();
     }
     
@@ -221,6 +523,11 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
     public void stop()
     {
         setRunning(false);
+        if (executor == null)
+        {
+            // Never started
+            return;
+        }
         // Stop the event processors
         this.executor.shutdown();
         // If another thread is making this call then make sure we wait for the thread to kill itself
@@ -231,6 +538,7 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
                 // Wake the EventController thread up
                 this.notify();
             }
+            LockSupport.unpark(thread);
             // Wait for the EventController thread to stop
             try { thread.join(); } catch (InterruptedException e) {}
         }
@@ -245,6 +553,11 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
                 logger.warn(testRunFqn + ": " + runnables.size() + " event processor threads did not stop within 30s.");
             }
         }
+        // Write back anything still pending
+        if (eventWriter != null)
+        {
+            eventWriter.stop();
+        }
     }
     
     @Override
@@ -286,140 +599,299 @@ public class EventController implements LifecycleListener, ApplicationContextAwa
     {
         Set<String> staleDrivers = new HashSet<String>(3);              // Keep track of any stale drivers
         
-        int eventsPerSecond = (threadCount * eventsPerSecondPerThread);
-        String msgStarted = "Event processing started: " + testRunFqn + " (" + eventsPerSecond + " events per second using " + threadCount + " threads)";
+        int eventsPerSecond = (concurrency * eventsPerSecondPerThread);
+        String threads = (executionModel == ExecutionModel.VIRTUAL) ? " virtual threads, " : " threads, ";
+        String msgStarted = "Event processing started: " + testRunFqn + " (" + eventsPerSecond + " events per second using " + concurrency + threads + dispatchScheduler.getClass().getSimpleName() + ")";
         logger.info("\t" + msgStarted);
         logService.log(LogLevel.INFO, msgStarted);
 
-        // Keep details on when we started looking for events
-        long eventProcessStartTime = System.currentTimeMillis();
-        int eventSearchesPerformed = 0;
+        List<Event> dueEvents = new ArrayList<Event>(eventBatchSize);
         
-runStateChanged:
         while (isRunning())
         {
-            long eventProcessSearchTime = System.currentTimeMillis();
-            // Make sure we don't look for events too frequently
-            while (true)
+            // Only claim events that can be dispatched without waiting
+            int capacity = executionPermits.availablePermits() - dispatchScheduler.getPendingCount();
+            if (capacity <= 0 && dispatchScheduler.getPendingCount() == 0)
             {
-                if (!isRunning())
+                // Back off until a running event finishes
+                awaitCapacity();
+                continue;
+            }
+            // Claim as many events as the scheduler allows, up to the batch size.
+            // Without room, nothing is claimed and the scheduler waits for held events to become due.
+            int eventsToClaim = (capacity <= 0) ? 0 : dispatchScheduler.awaitClaim(Math.min(eventBatchSize, capacity), DISPATCH_MAX_WAIT);
+            if (!isRunning())
+            {
+                break;
+            }
+            if (eventsToClaim > 0)
+            {
+                long eventProcessSearchTime = System.currentTimeMillis();
+                // First look for events specific to this driver
+                List<Event> events = eventService.nextEvents(driverId, eventProcessSearchTime + dispatchScheduler.getLookAhead(), eventsToClaim);
+                if (events.size() == 0)
                 {
-                    break runStateChanged;
+                    // Nothing found for the driver.
+                    // Look for events from other drivers, giving them a grace period
+                    events = eventService.nextEvents(null, eventProcessSearchTime - assignedEventGracePeriod, eventsToClaim);
+                    for (Event event : events)
+                    {
+                        String driver = event.getDriver();
+                        if (staleDrivers.add(driver))
+                        {
+                            logger.error("Driver " + driver + " is leaving stale events.  Check server load.");
+                        }
+                    }
                 }
-                // Calculate how many searches we are allowed to have performed
-                long eventProcessElapsedTime = eventProcessSearchTime - eventProcessStartTime;
-                int eventSearchesAllowed = (int) Math.floor((eventProcessElapsedTime/1000.0) * eventsPerSecond);
-                if (eventSearchesPerformed < eventSearchesAllowed)
+                metrics.getHistogram(DriverMetrics.METRIC_EVENTS_CLAIM).record(System.currentTimeMillis() - eventProcessSearchTime);
+                metrics.getCounter(DriverMetrics.METRIC_EVENTS_CLAIMED).add(events.size());
+                // The scheduler records the event search regardless of missing or hit in the queue
+                dispatchScheduler.claimed(events, eventsToClaim);
+                // Have we run out of events?
+                if (events.size() == 0 && dispatchScheduler.getPendingCount() == 0)
                 {
-                    // Yield to other threads
-                    Thread.yield();
-                    // We are allowed to do more
-                    break;
+                    checkForStartOrEnd();
                 }
-                // We need to wait and allow enough time to elapse.
-                // We cut the mean time between checks in half
-                long toSleep = (long) (1000L / eventsPerSecond) / 2;
-                toSleep = (toSleep < 10L) ? 10L : toSleep;
-                synchronized (this)
+            }
+            // Dispatch each of the events that are due
+            dispatchScheduler.drainDue(dueEvents, DISPATCH_MAX_WAIT);
+            for (int i = 0; i < dueEvents.size(); i++)
+            {
+                if (!dispatch(dueEvents.get(i)))
                 {
-                    try { this.wait(toSleep); } catch (InterruptedException e) {}
+                    // Stopping
+                    releaseEvents(dueEvents.subList(i, dueEvents.size()));
+                    break;
                 }
-                // Now go back around the see if we are allowed to proceed
-                eventProcessSearchTime = System.currentTimeMillis();
             }
-            // We record the event search regardless of missing or hit in the queue
-            eventSearchesPerformed++;
-            // Grab an event
-            // First look for events specific to this driver
-            Event event = eventService.nextEvent(driverId, eventProcessSearchTime);
-            if (event == null)
+            dueEvents.clear();
+        }
+        // Hand back anything claimed but not yet due
+        dispatchScheduler.drainAll(dueEvents);
+        releaseEvents(dueEvents);
+        dueEvents.clear();
+        
+        long dispatched = dispatchCount.get();
+        if (dispatched > 0L)
+        {
+            String msgStats = "Event dispatch: " + dispatched + " events; " +
+                    "average wait for a thread " + (dispatchWaitTime.get() / dispatched) + "ms; " +
+                    "average processing time " + (processingTime.get() / dispatched) + "ms; " +
+                    "waited for capacity " + backPressureCount.get() + " times (" + backPressureTime.get() + "ms)";
+            logger.info("\t" + msgStats);
+            logService.log(LogLevel.INFO, msgStats);
+        }
+        String msgStopped = "Event processing stopped: " + testRunFqn;
+        logger.info("\t" + msgStopped);
+        logService.log(LogLevel.INFO, msgStopped);
+    }
+    
+    /**
+     * Called when no events were found:  starts the test if it has never been started
+     * or signals the end of the test if all events have been processed.
+     */
+    private void checkForStartOrEnd()
+    {
+        long count = eventService.count();
+        if (count == 0)
+        {
+            // Look in the results to see if the run was started at some point
+            List<EventRecord> startRecords = resultService.getResults(Event.EVENT_NAME_START, 0, 1);
+            if (startRecords.size() == 0)
             {
-                // Nothing found for the driver.
-                // Look for events from other drivers, giving them a grace period
-                event = eventService.nextEvent(null, eventProcessSearchTime - assignedEventGracePeriod);
-                if (event != null)
+                // The test has not *ever* been started.
+                // We do that now; note that the event name will enforce a unique ID
+                Event event = new Event(Event.EVENT_NAME_START, 0L, null);
+                try
                 {
-                    String driver = event.getDriver();
-                    if (staleDrivers.add(driver))
-                    {
-                        logger.error("Driver " + driver + " is leaving stale events.  Check server load.");
-                    }
+                    eventService.putEvent(event);
+                    // There is no guarantee that it actually went in
+                }
+                catch (RuntimeException e)
+                {
+                    // We were unable to start the whole process.
+                    // We assume that someone else has.
                 }
             }
-            // Do we have an event to process?
-            if (event == null)
+            else
             {
-                long count = eventService.count();
-                if (count == 0)
+                // The test was started but there are no more events remaining.
+                // Quit
+                if (ctx != null)        // The controller might have been run manually
                 {
-                    // Look in the results to see if the run was started at some point
-                    List<EventRecord> startRecords = resultService.getResults(Event.EVENT_NAME_START, 0, 1);
-                    if (startRecords.size() == 0)
-                    {
-                        // The test has not *ever* been started.
-                        // We do that now; note that the event name will enforce a unique ID
-                        event = new Event(Event.EVENT_NAME_START, 0L, null);
-                        try
-                        {
-                            eventService.putEvent(event);
-                            // There is no guarantee that it actually went in
-                        }
-                        catch (RuntimeException e)
-                        {
-                            // We were unable to start the whole process.
-                            // We assume that someone else has.
-                        }
-                    }
-                    else
-                    {
-                        // The test was started but there are no more events remaining.
-                        // Quit
-                        if (ctx != null)        // The controller might have been run manually
-                        {
-                            ctx.publishEvent(new ContextStoppedEvent(ctx));
-                        }
-                    }
+                    ctx.publishEvent(new ContextStoppedEvent(ctx));
                 }
-                // Go back to the queue
-                continue;
             }
-            // Find the processor for the event
-            EventProcessor processor = getProcessor(event);
-            
-            // Schedule it
-            EventWork work = new EventWork(
-                    driverId, testRunFqn,
-                    event,
-                    driverIds,
-                    processor, eventProducers,
-                    eventService, resultService, sessionService,
-                    logService);
+        }
+    }
+    
+    /**
+     * Hand an event over to the executor for processing
+     * 
+     * @return                  <tt>true</tt> if the event was dispatched or <tt>false</tt> if the controller is stopping
+     */
+    private boolean dispatch(Event event)
+    {
+        // Find the processor for the event
+        EventProcessor processor = getProcessor(event);
+    
+        // Schedule it
+        EventWork work = new EventWork(
+                driverId, testRunFqn,
+                event,
+                driverIds,
+                processor, eventProducers,
+                eventService, resultService, sessionService,
+                logService,
+                eventWriter);
+        work.setMetrics(metrics);
+        // Make sure there is room for the event
+        if (!acquireExecutionPermit())
+        {
+            // Stopping; the caller must release the event
+            return false;
+        }
+        try
+        {
+            // Grabbing an event automatically applies a short-lived lock to prevent
+            // any other drivers from grabbing the same event before the event is locked
+            // for execution.
+            metrics.getCounter(DriverMetrics.METRIC_EVENTS_IN_FLIGHT).increment();
+            executor.execute(new DispatchedWork(work));
+            metrics.getCounter(DriverMetrics.METRIC_EVENTS_DISPATCHED).increment();
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            executionPermits.release();
+            metrics.getCounter(DriverMetrics.METRIC_EVENTS_IN_FLIGHT).decrement();
+            // Only happens when the executor is shut down
+            return false;
+        }
+    }
+    
+    /**
+     * Release the locks on claimed events that will not be dispatched so that they can be claimed again.
+     * Nothing else will unlock them, so they would otherwise stay in the queue for good.
+     */
+    private void releaseEvents(List<Event> events)
+    {
+        if (events.isEmpty())
+        {
+            return;
+        }
+        int released = 0;
+        for (Event event : events)
+        {
             try
             {
-                // Grabbing an event automatically applies a short-lived lock to prevent
-                // any other drivers from grabbing the same event before the event is locked
-                // for execution.
-                executor.execute(work);
+                if (eventService.unlockEvent(event))
+                {
+                    released++;
+                }
             }
-            catch (RejectedExecutionException e)
+            catch (RuntimeException e)
             {
-                // Should not occur as the caller executes
-                eventSearchesPerformed += threadCount;
-                // Log it
-                logService.log(
-                        LogLevel.WARN, "EventController's execution of an event was rejected.  "
-                        + "Are there enough drivers to handle the event load?");
+                logger.error("Failed to release claimed event: " + event, e);
             }
-            catch (RuntimeException e)
+        }
+        String msg = "EventController released " + released + " of " + events.size() + " claimed events while stopping.";
+        logger.info("\t" + msg);
+        logService.log(LogLevel.WARN, msg);
+    }
+    
+    /**
+     * Wait until a running event finishes, without taking its permit
+     */
+    private void awaitCapacity()
+    {
+        long before = System.currentTimeMillis();
+        try
+        {
+            if (executionPermits.tryAcquire(DISPATCH_MAX_WAIT, TimeUnit.MILLISECONDS))
             {
-                // Put here in case a CallerRunsPolicy is used
-                logger.error("execute failed (pool or CallerRunsPolicy)", e);
+                executionPermits.release();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // The run state is checked by the caller
+        }
+        long waited = System.currentTimeMillis() - before;
+        backPressureCount.incrementAndGet();
+        backPressureTime.addAndGet(waited);
+        metrics.getHistogram(DriverMetrics.METRIC_EVENTS_BACK_PRESSURE).record(waited);
+    }
+    
+    /**
+     * Wait for room to dispatch an event
+     * 
+     * @return                  <tt>true</tt> if a permit was acquired or <tt>false</tt> if the controller is stopping
+     */
+    private boolean acquireExecutionPermit()
+    {
+        if (executionPermits.tryAcquire())
+        {
+            return true;
+        }
+        long before = System.currentTimeMillis();
+        backPressureCount.incrementAndGet();
+        try
+        {
+            while (isRunning())
+            {
+                if (executionPermits.tryAcquire(DISPATCH_MAX_WAIT, TimeUnit.MILLISECONDS))
+                {
+                    return true;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Stopping
+        }
+        finally
+        {
+            long waited = System.currentTimeMillis() - before;
+            backPressureTime.addAndGet(waited);
+            metrics.getHistogram(DriverMetrics.METRIC_EVENTS_BACK_PRESSURE).record(waited);
+        }
+        return false;
+    }
+    
+    /**
+     * Records how long a dispatched event waited for a thread and how long it took to process
+     * and gives back its permit once processed
+     */
+    private class DispatchedWork implements Runnable
+    {
+        private final Runnable work;
+        private final long dispatchTime;
+        private DispatchedWork(Runnable work)
+        {
+            this.work = work;
+            this.dispatchTime = System.currentTimeMillis();
+        }
+        @Override
+        public void run()
+        {
+            long startTime = System.currentTimeMillis();
+            try
+            {
+                work.run();
+            }
+            finally
+            {
+                executionPermits.release();
+                long time = System.currentTimeMillis() - startTime;
+                processingTime.addAndGet(time);
+                dispatchWaitTime.addAndGet(startTime - dispatchTime);
+                dispatchCount.incrementAndGet();
+                metrics.getCounter(DriverMetrics.METRIC_EVENTS_IN_FLIGHT).decrement();
+                metrics.getHistogram(DriverMetrics.METRIC_EVENTS_PROCESSING).record(time);
+                metrics.getHistogram(DriverMetrics.METRIC_EVENTS_DISPATCH_WAIT).record(startTime - dispatchTime);
             }
         }
-        
-        String msgStopped = "Event processing stopped: " + testRunFqn;
-        logger.info("\t" + msgStopped);
-        logService.log(LogLevel.INFO, msgStopped);
     }
     
     /** Keep track of event names that have been warned about w.r.t. missing event processors. */
@@ -0,0 +1,141 @@
+package org.alfresco.bm.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.alfresco.bm.test.LifecycleListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Periodically writes the {@link DriverMetrics driver metrics} to a Mongo collection so that
+ * the metrics of all drivers can be compared after a test run.  Each document holds the
+ * {@link DriverMetrics#toDBObject() metric values} along with the driver that recorded them.
+ * Documents expire after a week.
+ * 
+ * @since 2.2
+ */
+public class MongoMetricsPublisher implements LifecycleListener
+{
+    public static final String COLLECTION_METRICS = "driver.metrics";
+    public static final String FIELD_DRIVER = "driver";
+    /** How long (seconds) published metrics are kept */
+    private static final int METRICS_TTL = 7 * 24 * 3600;
+    
+    private static Log logger = LogFactory.getLog(MongoMetricsPublisher.class);
+    
+    private final DriverMetrics metrics;
+    private final DBCollection collection;
+    private final long publishPeriod;
+    private final String driver;
+    private volatile Thread publishThread;
+    
+    /**
+     * @param metrics           the metrics to publish
+     * @param db                the database to write to
+     * @param publishPeriod     how often (milliseconds) to write the metrics or <tt>0</tt> to never write them
+     */
+    public MongoMetricsPublisher(DriverMetrics metrics, DB db, long publishPeriod)
+    {
+        if (publishPeriod < 0L)
+        {
+            throw new IllegalArgumentException("'publishPeriod' may not be negative.");
+        }
+        this.metrics = metrics;
+        this.collection = db.getCollection(COLLECTION_METRICS);
+        this.publishPeriod = publishPeriod;
+        // The process name identifies the driver before it is registered
+        this.driver = ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    @Override
+    public void start() throws Exception
+    {
+        if (publishPeriod <= 0L)
+        {
+            return;
+        }
+        checkIndexes();
+        Thread thread = new Thread(new Publisher(), "MongoMetricsPublisher");
+        thread.setDaemon(true);
+        publishThread = thread;
+        thread.start();
+    }
+
+    @Override
+    public void stop() throws Exception
+    {
+        Thread thread = publishThread;
+        if (thread != null)
+        {
+            publishThread = null;
+            LockSupport.unpark(thread);
+            try { thread.join(); } catch (InterruptedException e) {}
+        }
+    }
+    
+    /**
+     * Ensure that the MongoDB collection has the required indexes
+     */
+    private void checkIndexes()
+    {
+        // Expire old metrics
+        DBObject idxTime = BasicDBObjectBuilder.start()
+                .add(DriverMetrics.FIELD_TIME, 1)
+                .get();
+        DBObject optTime = BasicDBObjectBuilder.start()
+                .add("expireAfterSeconds", METRICS_TTL)
+                .get();
+        collection.createIndex(idxTime, optTime);
+        
+        // Select by driver, order by time
+        DBObject idxDriverTime = BasicDBObjectBuilder.start()
+                .add(FIELD_DRIVER, 1)
+                .add(DriverMetrics.FIELD_TIME, -1)
+                .get();
+        collection.createIndex(idxDriverTime);
+    }
+    
+    /**
+     * Write the current metrics
+     */
+    private void publish()
+    {
+        DBObject metricsObj = metrics.toDBObject();
+        // Dates are needed for expiry
+        metricsObj.put(DriverMetrics.FIELD_TIME, new Date((Long) metricsObj.get(DriverMetrics.FIELD_TIME)));
+        metricsObj.put(FIELD_DRIVER, driver);
+        collection.insert(metricsObj);
+    }
+    
+    /**
+     * Background writer of metrics
+     */
+    private class Publisher implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            long publishPeriodNs = TimeUnit.MILLISECONDS.toNanos(publishPeriod);
+            while (publishThread == Thread.currentThread())
+            {
+                LockSupport.parkNanos(this, publishPeriodNs);
+                try
+                {
+                    publish();
+                }
+                catch (Throwable e)
+                {
+                    logger.error("Failed to write driver metrics to " + collection.getFullName(), e);
+                }
+            }
+        }
+    }
+}
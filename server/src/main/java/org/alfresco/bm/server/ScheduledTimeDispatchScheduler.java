@@ -0,0 +1,190 @@
+package org.alfresco.bm.server;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.bm.event.Event;
+
+/**
+ * An <i>open model</i> {@link DispatchScheduler} that dispatches each event at its
+ * {@link Event#getScheduledTime() scheduled time}, regardless of how long previous
+ * events took to process.
+ * <p/>
+ * Events scheduled up to the look-ahead time are claimed in advance and held in a
+ * {@link DelayQueue} until they are due.  The number of events held is limited; when
+ * a claim does not fill the request, the queue is not searched again for the poll period.
+ * 
+ * @since 2.2
+ */
+public class ScheduledTimeDispatchScheduler implements DispatchScheduler
+{
+    private final long lookAhead;
+    private final long pollPeriod;
+    private final int capacity;
+    private final DelayQueue<DelayedEvent> pending;
+    private long nextPollTime;
+    /** Whether events were claimed since due events were last drained */
+    private boolean claimedSinceDrain;
+    
+    /**
+     * Wraps an event so that it becomes available at its scheduled time
+     */
+    private static class DelayedEvent implements Delayed
+    {
+        private final Event event;
+        private DelayedEvent(Event event)
+        {
+            this.event = event;
+        }
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(event.getScheduledTime() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+        @Override
+        public int compareTo(Delayed o)
+        {
+            long otherScheduledTime = ((DelayedEvent) o).event.getScheduledTime();
+            return Long.compare(event.getScheduledTime(), otherScheduledTime);
+        }
+    }
+    
+    /**
+     * @param lookAhead         how far (milliseconds) in advance events are claimed
+     * @param pollPeriod        how long (milliseconds) to wait before searching again when the queue runs dry
+     * @param capacity          the maximum number of events held until they are due
+     */
+    public ScheduledTimeDispatchScheduler(long lookAhead, long pollPeriod, int capacity)
+    {
+        if (lookAhead < 0L)
+        {
+            throw new IllegalArgumentException("'lookAhead' may not be negative.");
+        }
+        if (pollPeriod < 1L)
+        {
+            throw new IllegalArgumentException("'pollPeriod' must be greater than zero.");
+        }
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("'capacity' must be greater than zero.");
+        }
+        this.lookAhead = lookAhead;
+        this.pollPeriod = pollPeriod;
+        this.capacity = capacity;
+        this.pending = new DelayQueue<DelayedEvent>();
+        this.nextPollTime = 0L;
+    }
+
+    /**
+     * Never waits; the waiting is done while {@link #drainDue(List, long) draining} due events
+     */
+    @Override
+    public int awaitClaim(int maxCount, long maxWait)
+    {
+        if (System.currentTimeMillis() < nextPollTime)
+        {
+            return 0;
+        }
+        return Math.max(0, Math.min(maxCount, capacity - pending.size()));
+    }
+
+    @Override
+    public long getLookAhead()
+    {
+        return lookAhead;
+    }
+
+    /**
+     * Holds the events until they are due and backs off if the claim came up short
+     */
+    @Override
+    public void claimed(List<Event> events, int claimCount)
+    {
+        for (Event event : events)
+        {
+            pending.add(new DelayedEvent(event));
+        }
+        claimedSinceDrain = true;
+        if (events.size() < claimCount)
+        {
+            // There is nothing more to claim for now
+            nextPollTime = System.currentTimeMillis() + pollPeriod;
+        }
+    }
+
+    /**
+     * Waits until the next event is due but not beyond the time of the next poll.
+     * <p/>
+     * There is no wait if events were just claimed and more can be claimed.  If the caller did
+     * not claim anything, usually because there is no room to run more events, the wait stops
+     * the caller from spinning while the held events are not yet due.
+     */
+    @Override
+    public int drainDue(List<Event> dueEvents, long maxWait)
+    {
+        int count = 0;
+        long now = System.currentTimeMillis();
+        long wait;
+        if (now < nextPollTime)
+        {
+            // Wait for events to become due until it is time to search again
+            wait = Math.min(maxWait, nextPollTime - now);
+        }
+        else if (pending.size() >= capacity)
+        {
+            // There is no room to claim more
+            wait = maxWait;
+        }
+        else if (claimedSinceDrain)
+        {
+            // The caller can go straight back to claiming more
+            wait = 0L;
+        }
+        else
+        {
+            // The caller could not claim anything, but may be able to shortly
+            wait = Math.min(maxWait, pollPeriod);
+        }
+        claimedSinceDrain = false;
+        DelayedEvent delayedEvent = null;
+        try
+        {
+            delayedEvent = (wait > 0L) ? pending.poll(wait, TimeUnit.MILLISECONDS) : pending.poll();
+        }
+        catch (InterruptedException e)
+        {
+            // Let the caller check the run state
+        }
+        while (delayedEvent != null)
+        {
+            dueEvents.add(delayedEvent.event);
+            count++;
+            delayedEvent = pending.poll();
+        }
+        return count;
+    }
+
+    @Override
+    public int drainAll(List<Event> events)
+    {
+        int count = 0;
+        // Polling only returns events that are due
+        Iterator<DelayedEvent> iterator = pending.iterator();
+        while (iterator.hasNext())
+        {
+            events.add(iterator.next().event);
+            iterator.remove();
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int getPendingCount()
+    {
+        return pending.size();
+    }
+}
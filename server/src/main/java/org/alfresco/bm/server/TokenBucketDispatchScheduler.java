@@ -0,0 +1,132 @@
+package org.alfresco.bm.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.alfresco.bm.event.Event;
+
+/**
+ * A <i>closed model</i> {@link DispatchScheduler} that limits the rate at which the event
+ * queue is searched using a token bucket.
+ * <p/>
+ * Each search of the queue costs one token per event claimed and at least one token when
+ * nothing is found.  Tokens are added continuously at the given rate, up to the bucket capacity,
+ * and the caller is parked for exactly as long as it takes for the next token to be added.
+ * Claimed events are due immediately.
+ * 
+ * @since 2.2
+ */
+public class TokenBucketDispatchScheduler implements DispatchScheduler
+{
+    private final double tokensPerNano;
+    private final double capacity;
+    private final List<Event> pending;
+    private double tokens;
+    private long lastRefillTime;
+    
+    /**
+     * @param eventsPerSecond   the rate at which tokens are added
+     * @param capacity          the maximum number of tokens that can accumulate
+     */
+    public TokenBucketDispatchScheduler(double eventsPerSecond, int capacity)
+    {
+        if (eventsPerSecond <= 0.0)
+        {
+            throw new IllegalArgumentException("'eventsPerSecond' must be greater than zero.");
+        }
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("'capacity' must be greater than zero.");
+        }
+        this.tokensPerNano = eventsPerSecond / TimeUnit.SECONDS.toNanos(1L);
+        this.capacity = capacity;
+        this.pending = new ArrayList<Event>(capacity);
+        // Start empty so that the rate is respected from the start
+        this.tokens = 0.0;
+        this.lastRefillTime = System.nanoTime();
+    }
+    
+    /**
+     * Add the tokens earned since the last refill
+     */
+    private void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillTime) * tokensPerNano);
+        lastRefillTime = now;
+    }
+    
+    /**
+     * Take up to the given number of whole tokens
+     */
+    private int take(int maxCount)
+    {
+        int count = (int) Math.min(maxCount, Math.floor(tokens));
+        tokens -= count;
+        return count;
+    }
+
+    @Override
+    public int awaitClaim(int maxCount, long maxWait)
+    {
+        refill();
+        if (tokens < 1.0)
+        {
+            // Wait for exactly as long as it takes to get the next token
+            long waitNanos = (long) Math.ceil((1.0 - tokens) / tokensPerNano);
+            waitNanos = Math.min(waitNanos, TimeUnit.MILLISECONDS.toNanos(maxWait));
+            LockSupport.parkNanos(this, waitNanos);
+            refill();
+        }
+        return take(maxCount);
+    }
+
+    /**
+     * @return                  <tt>0</tt> always
+     */
+    @Override
+    public long getLookAhead()
+    {
+        return 0L;
+    }
+
+    /**
+     * Keeps the events for immediate dispatch and hands back the tokens that were not used
+     */
+    @Override
+    public void claimed(List<Event> events, int claimCount)
+    {
+        int unused = claimCount - Math.max(1, events.size());
+        if (unused > 0)
+        {
+            tokens = Math.min(capacity, tokens + unused);
+        }
+        pending.addAll(events);
+    }
+
+    /**
+     * All claimed events are due immediately, so this never waits
+     */
+    @Override
+    public int drainDue(List<Event> dueEvents, long maxWait)
+    {
+        int count = pending.size();
+        dueEvents.addAll(pending);
+        pending.clear();
+        return count;
+    }
+
+    @Override
+    public int drainAll(List<Event> events)
+    {
+        return drainDue(events, 0L);
+    }
+
+    @Override
+    public int getPendingCount()
+    {
+        return pending.size();
+    }
+}
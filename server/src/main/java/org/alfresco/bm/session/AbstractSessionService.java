@@ -18,16 +18,103 @@
  */
 package org.alfresco.bm.session;
 
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 
 /**
  * Abstract implemnetation for methods that don't persist or retrieve values directly.
+ * <p/>
+ * Session data is held in a bounded, expiring cache so that repeated lookups for the same
+ * session do not go back to the persistence layer.  All updates are written through to the
+ * persistence layer before the cache is updated.  Changes made to a session by another
+ * server are seen once the cached entry {@link #setCacheExpiry(long) expires}.
  *
  * @author Derek Hulley
  * @since 1.4
  */
 public abstract class AbstractSessionService implements SessionService
 {
+    public static final long DEFAULT_CACHE_SIZE = 10000L;
+    public static final long DEFAULT_CACHE_EXPIRY = 60000L;
+    
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+    private long cacheExpiry = DEFAULT_CACHE_EXPIRY;
+    private volatile Cache<String, SessionData> cache = buildCache();
+    
+    /**
+     * Override the {@link #DEFAULT_CACHE_SIZE default} number of sessions to cache
+     * 
+     * @param cacheSize             the maximum number of sessions to cache or <tt>0</tt> to disable caching
+     */
+    public synchronized void setCacheSize(long cacheSize)
+    {
+        if (cacheSize < 0L)
+        {
+            throw new IllegalArgumentException("'cacheSize' may not be negative.");
+        }
+        this.cacheSize = cacheSize;
+        this.cache = buildCache();
+    }
+
+    /**
+     * Override the {@link #DEFAULT_CACHE_EXPIRY default} time that sessions are cached for
+     * 
+     * @param cacheExpiry           the time (ms) after which a cached session is read again
+     */
+    public synchronized void setCacheExpiry(long cacheExpiry)
+    {
+        if (cacheExpiry <= 0L)
+        {
+            throw new IllegalArgumentException("'cacheExpiry' must be a non-zero, positive number.");
+        }
+        this.cacheExpiry = cacheExpiry;
+        this.cache = buildCache();
+    }
+    
+    private Cache<String, SessionData> buildCache()
+    {
+        return CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(cacheExpiry, TimeUnit.MILLISECONDS)
+                .build();
+    }
+    
+    /**
+     * Remove all cached session data; derived classes must call this when they remove sessions.
+     */
+    protected void clearCache()
+    {
+        cache.invalidateAll();
+    }
+    
+    /**
+     * Copy session data so that cached values are isolated from clients
+     */
+    private static DBObject copyData(DBObject data)
+    {
+        if (data instanceof BasicDBObject)
+        {
+            return (DBObject) ((BasicDBObject) data).copy();
+        }
+        return data;
+    }
+    
+    /**
+     * Cache an unchanging copy of the session data
+     */
+    private void cacheSessionData(String sessionId, long startTime, long endTime, DBObject data)
+    {
+        SessionData sessionData = new SessionData(copyData(data));
+        sessionData.setId(sessionId);
+        sessionData.setStartTime(startTime);
+        sessionData.setEndTime(endTime);
+        cache.put(sessionId, sessionData);
+    }
+    
     /**
      * Persist session data.
      * <p/>
@@ -56,7 +143,9 @@ public abstract class AbstractSessionService implements SessionService
     public String startSession(DBObject data)
     {
         SessionData sessionData = new SessionData(data);    // Start time will be set
-        return newSession(sessionData);
+        String sessionId = newSession(sessionData);
+        cacheSessionData(sessionId, sessionData.getStartTime(), sessionData.getEndTime(), data);
+        return sessionId;
     }
     
     /**
@@ -64,11 +153,17 @@ public abstract class AbstractSessionService implements SessionService
      */
     private SessionData getSessionDataNotNull(String sessionId)
     {
-        SessionData sessionData = findSessionData(sessionId);
+        SessionData sessionData = cache.getIfPresent(sessionId);
+        if (sessionData != null)
+        {
+            return sessionData;
+        }
+        sessionData = findSessionData(sessionId);
         if (sessionData == null)
         {
             throw new RuntimeException("Session ID not recorded: " + sessionId);
         }
+        cacheSessionData(sessionId, sessionData.getStartTime(), sessionData.getEndTime(), sessionData.getData());
         return sessionData;
     }
 
@@ -77,19 +172,33 @@ public abstract class AbstractSessionService implements SessionService
     {
         long now = System.currentTimeMillis();
         updateSessionEndTime(sessionId, now);
+        SessionData sessionData = cache.getIfPresent(sessionId);
+        if (sessionData != null)
+        {
+            cacheSessionData(sessionId, sessionData.getStartTime(), now, sessionData.getData());
+        }
     }
 
     @Override
     public void setSessionData(String sessionId, DBObject data)
     {
-        updateSessionData(sessionId, data);
+        boolean updated = updateSessionData(sessionId, data);
+        SessionData sessionData = cache.getIfPresent(sessionId);
+        if (updated && sessionData != null)
+        {
+            cacheSessionData(sessionId, sessionData.getStartTime(), sessionData.getEndTime(), data);
+        }
+        else
+        {
+            cache.invalidate(sessionId);
+        }
     }
 
     @Override
     public DBObject getSessionData(String sessionId)
     {
         SessionData sessionData =  getSessionDataNotNull(sessionId);
-        return sessionData.getData();
+        return copyData(sessionData.getData());
     }
 
     @Override
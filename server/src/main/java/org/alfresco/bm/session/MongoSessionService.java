@@ -23,16 +23,22 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bson.types.ObjectId;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
 import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 
 /**
  * Mongo implementation of service providing access and management of {@link SessionData}.
+ * <p/>
+ * The number of sessions started and ended is counted in a single document in a separate
+ * <b>.stats</b> collection so that the session counts can be read without counting the
+ * sessions themselves.
  *
  * @author Derek Hulley
  * @since 1.4
@@ -46,7 +52,12 @@ public class MongoSessionService extends AbstractSessionService implements Lifec
     public static final String FIELD_START_TIME = "startTime";
     public static final String FIELD_END_TIME = "endTime";
     
+    private static final String STATS_ID = "counts";
+    private static final String FIELD_STARTED = "started";
+    private static final String FIELD_ENDED = "ended";
+    
     private DBCollection collection;
+    private DBCollection statsCollection;
     
     /**
      * Construct an instance providing the DB and collection name to use
@@ -54,12 +65,14 @@ public class MongoSessionService extends AbstractSessionService implements Lifec
     public MongoSessionService(DB db, String collection)
     {
         this.collection = db.getCollection(collection);
+        this.statsCollection = db.getCollection(collection + ".stats");
     }
     
     @Override
     public void start() throws Exception
     {
         checkIndexes();
+        checkStats();
     }
 
     @Override
@@ -99,6 +112,102 @@ public class MongoSessionService extends AbstractSessionService implements Lifec
         collection.createIndex(idxEndTimeStartTime, optEndTimeStartTime);
     }
     
+    /**
+     * Ensure that the session counts exist, counting any sessions recorded before the
+     * counts were kept.
+     * <p/>
+     * Other drivers may be counting or starting sessions at the same time, so the counts
+     * are only ever raised to the numbers found.
+     */
+    private void checkStats()
+    {
+        statsCollection.setWriteConcern(WriteConcern.SAFE);
+        
+        DBObject queryObj = BasicDBObjectBuilder.start()
+                .add(FIELD_ID, STATS_ID)
+                .get();
+        if (statsCollection.findOne(queryObj) != null)
+        {
+            return;
+        }
+        long started = collection.count();
+        DBObject endedQueryObj = BasicDBObjectBuilder.start()
+                .push(FIELD_END_TIME)
+                    .append("$gt", 0)
+                .pop()
+                .get();
+        long ended = collection.count(endedQueryObj);
+        DBObject updateObj = BasicDBObjectBuilder.start()
+                .push("$max")
+                    .add(FIELD_STARTED, started)
+                    .add(FIELD_ENDED, ended)
+                .pop()
+                .get();
+        upsertStats(updateObj);
+    }
+    
+    /**
+     * Add to the session counts
+     */
+    private void incrementStats(long started, long ended)
+    {
+        DBObject updateObj = BasicDBObjectBuilder.start()
+                .push("$inc")
+                    .add(FIELD_STARTED, started)
+                    .add(FIELD_ENDED, ended)
+                .pop()
+                .get();
+        try
+        {
+            upsertStats(updateObj);
+        }
+        catch (MongoException e)
+        {
+            throw new RuntimeException(
+                    "Failed to update session counts: \n" +
+                    "   Started:      " + started + "\n" +
+                    "   Ended:        " + ended,
+                    e);
+        }
+    }
+    
+    /**
+     * Update the session counts, creating them if necessary
+     */
+    private void upsertStats(DBObject updateObj)
+    {
+        DBObject queryObj = BasicDBObjectBuilder.start()
+                .add(FIELD_ID, STATS_ID)
+                .get();
+        try
+        {
+            statsCollection.update(queryObj, updateObj, true, false);
+        }
+        catch (DuplicateKeyException e)
+        {
+            // Another thread or driver created the counts first, so this is now an update
+            statsCollection.update(queryObj, updateObj, true, false);
+        }
+    }
+    
+    /**
+     * @return                  the session counts or an empty object if no sessions were counted
+     */
+    private DBObject getStats()
+    {
+        DBObject queryObj = BasicDBObjectBuilder.start()
+                .add(FIELD_ID, STATS_ID)
+                .get();
+        DBObject statsObj = statsCollection.findOne(queryObj);
+        return (statsObj == null) ? new BasicDBObject() : statsObj;
+    }
+    
+    private static long getLong(DBObject obj, String field)
+    {
+        Number value = (Number) obj.get(field);
+        return (value == null) ? 0L : value.longValue();
+    }
+    
     private SessionData fromDBObject(DBObject sessionDataObj)
     {
         SessionData sessionData = new SessionData();
@@ -122,7 +231,6 @@ public class MongoSessionService extends AbstractSessionService implements Lifec
         try
         {
             collection.insert(insertObj);
-            return id.toString();
         }
         catch (MongoException e)
         {
@@ -131,6 +239,8 @@ public class MongoSessionService extends AbstractSessionService implements Lifec
                     "   Session: " + sessionData,
                     e);
         }
+        incrementStats(1L, sessionData.getEndTime() > 0L ? 1L : 0L);
+        return id.toString();
     }
 
     @Override
@@ -153,6 +263,11 @@ public class MongoSessionService extends AbstractSessionService implements Lifec
     @Override
     protected void updateSessionEndTime(String sessionId, long endTime)
     {
+        // Only the first end of a session is counted
+        DBObject firstEndQueryObj = BasicDBObjectBuilder.start()
+                .add(FIELD_ID, new ObjectId(sessionId))
+                .add(FIELD_END_TIME, -1L)
+                .get();
         DBObject queryObj = BasicDBObjectBuilder.start()
                 .add(FIELD_ID, new ObjectId(sessionId))
                 .get();
@@ -163,7 +278,16 @@ public class MongoSessionService extends AbstractSessionService implements Lifec
                 .get();
         try
         {
-            collection.update(queryObj, updateObj);
+            WriteResult wr = collection.update(firstEndQueryObj, updateObj);
+            if (wr.getN() > 0)
+            {
+                incrementStats(0L, 1L);
+            }
+            else
+            {
+                // The session was already ended or does not exist
+                collection.update(queryObj, updateObj);
+            }
         }
         catch (MongoException e)
         {
@@ -204,27 +328,20 @@ public class MongoSessionService extends AbstractSessionService implements Lifec
     @Override
     public long getActiveSessionsCount()
     {
-        DBObject queryObj = BasicDBObjectBuilder.start()
-                .add(FIELD_END_TIME, -1L)
-                .get();
-        return collection.count(queryObj);
+        DBObject statsObj = getStats();
+        return getLong(statsObj, FIELD_STARTED) - getLong(statsObj, FIELD_ENDED);
     }
     
     @Override
     public long getCompletedSessionsCount()
     {
-        DBObject queryObj = BasicDBObjectBuilder.start()
-                .push(FIELD_END_TIME)
-                    .append("$gt", 0)
-                .pop()
-                .get();
-        return collection.count(queryObj);
+        return getLong(getStats(), FIELD_ENDED);
     }
 
     @Override
     public long getAllSessionsCount()
     {
-        return collection.count();
+        return getLong(getStats(), FIELD_STARTED);
     }
 
     @Override
@@ -233,6 +350,8 @@ public class MongoSessionService extends AbstractSessionService implements Lifec
         try
         {
             this.collection.drop();
+            this.statsCollection.drop();
+            clearCache();
             return true;
         }
         catch(MongoException mex)
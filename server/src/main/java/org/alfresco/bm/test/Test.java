@@ -32,7 +32,10 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+import org.alfresco.bm.exception.ObjectNotFoundException;
 import org.alfresco.bm.log.LogService;
 import org.alfresco.bm.test.mongo.MongoTestDAO;
 import org.alfresco.bm.test.prop.TestProperty;
@@ -45,6 +48,7 @@ import org.springframework.context.ApplicationContextAware;
 
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
 
 /**
  * Implementation of service managing and querying the server instances
@@ -58,6 +62,8 @@ public class Test implements
 {
     /** default test run monitor time */
     private static final long DEFAULT_TEST_RUN_MONITOR_PERIOD = 5000L;
+    /** default time between searches for new test runs */
+    private static final long DEFAULT_TEST_RUN_DISCOVERY_PERIOD = 60000L;
     
     private static Log logger = LogFactory.getLog(Test.class);
     
@@ -82,6 +88,12 @@ public class Test implements
     private final TestRunPingTask testRunPingTask;
     /** The time between test run monitor runs */
     private long testRunMonitorPeriod = DEFAULT_TEST_RUN_MONITOR_PERIOD;
+    /** The time between searches for new test runs while the test run events are followed */
+    private long testRunDiscoveryPeriod = DEFAULT_TEST_RUN_DISCOVERY_PERIOD;
+    /** The timer used to check test runs */
+    private Timer testRunTimer;
+    /** The thread following the test run events */
+    private volatile Thread testRunEventThread;
     
     /**
      * @param testDAO               data persistence
@@ -119,6 +131,17 @@ public class Test implements
         this.testRunMonitorPeriod = testRunMonitorPeriod;
     }
 
+    /**
+     * Override the {@link #DEFAULT_TEST_RUN_DISCOVERY_PERIOD default} time between searches for new test runs.
+     * <p/>
+     * New and changed test runs are normally picked up from the test run events as soon as they are
+     * published; the search only catches anything that was missed.
+     */
+    public void setTestRunDiscoveryPeriod(long testRunDiscoveryPeriod)
+    {
+        this.testRunDiscoveryPeriod = testRunDiscoveryPeriod;
+    }
+
     /**
      * Keep track of the parent application context, which will act as a parent context for all test runs.
      */
@@ -209,6 +232,7 @@ public class Test implements
     {
         private boolean active = true;                      // Start off active
         private final Map<ObjectId, TestRun> testRuns;
+        private long lastDiscovery = 0L;
         
         /**
          * Internal constructor for containing class only
@@ -242,8 +266,22 @@ public class Test implements
             return testRuns.get(testRunId);
         }
         
+        /**
+         * Check the known test runs and, if it is time to do so, look for new test runs.
+         * The search is done every time if the test run events are not being followed.
+         */
         @Override
         public synchronized void run()
+        {
+            boolean discover = testRunEventThread == null ||
+                    System.currentTimeMillis() - lastDiscovery >= testRunDiscoveryPeriod;
+            run(discover);
+        }
+        
+        /**
+         * @param discover              <tt>true</tt> to search all tests for test runs that need monitors
+         */
+        public synchronized void run(boolean discover)
         {
             if (!active)
             {
@@ -252,6 +290,24 @@ public class Test implements
                 return;
             }
             
+            if (discover)
+            {
+                discover();
+                lastDiscovery = System.currentTimeMillis();
+            }
+            
+            // Call each monitor to get it to check itself
+            for (TestRun testRun : testRuns.values())
+            {
+                testRun.checkState();
+            }
+        }
+        
+        /**
+         * Search all the tests for test runs that need monitors and remove monitors that are no longer needed
+         */
+        private void discover()
+        {
             // Keep track of all test runs so that we can remove redundant instances
             Set<ObjectId> redundantTestRunIds = new HashSet<ObjectId>(testRuns.keySet());
             
@@ -302,11 +358,201 @@ public class Test implements
                     logger.debug("Removed redundant TestRun monitor: " + testRunId);
                 }
             }
+        }
+        
+        /**
+         * Check a single test run after it has changed, creating a monitor for it if it
+         * belongs to this driver's test and needs one.
+         * 
+         * @param testRunId             the ID of the test run that changed
+         */
+        public synchronized void checkTestRun(ObjectId testRunId)
+        {
+            if (!active)
+            {
+                return;
+            }
+            TestRun testRun = testRuns.get(testRunId);
+            if (testRun == null)
+            {
+                DBObject testRunObj;
+                try
+                {
+                    testRunObj = testDAO.getTestRun(testRunId, false);
+                }
+                catch (ObjectNotFoundException e)
+                {
+                    // It has already been deleted
+                    return;
+                }
+                TestRunState state = TestRunState.valueOf((String) testRunObj.get(FIELD_STATE));
+                if (state != TestRunState.SCHEDULED && state != TestRunState.STARTED)
+                {
+                    return;
+                }
+                // Only monitor runs of the tests that this driver can run
+                DBObject testObj = testDAO.getTest((ObjectId) testRunObj.get(FIELD_TEST), false);
+                if (testObj == null ||
+                        !release.equals(testObj.get(FIELD_RELEASE)) ||
+                        !schema.equals(testObj.get(FIELD_SCHEMA)))
+                {
+                    return;
+                }
+                // Build a test run
+                testRun = new TestRun(testDAO, logService, testRunId, ctx, driverId);
+                testRuns.put(testRunId, testRun);
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Created TestRun monitor: " + testRunObj);
+                }
+            }
+            testRun.checkState();
+        }
+    }
+    
+    /**
+     * Follows the test run events so that test runs are started and stopped as soon as
+     * they are scheduled or terminated, rather than when the test runs are next checked.
+     * 
+     * @since 2.2
+     */
+    private class TestRunEventListener implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            ObjectId lastEventId = testDAO.getLastTestRunEventId();
+            DBCursor cursor = null;
+            // Events are read in insertion order, which their IDs do not follow, so skip to the last event seen
+            boolean skipping = false;
+            while (testRunEventThread == Thread.currentThread())
+            {
+                try
+                {
+                    if (cursor == null)
+                    {
+                        cursor = testDAO.getTestRunEvents();
+                        skipping = (lastEventId != null);
+                    }
+                    // This waits a short while for new events
+                    DBObject eventObj = cursor.tryNext();
+                    if (eventObj != null)
+                    {
+                        ObjectId eventId = (ObjectId) eventObj.get(FIELD_ID);
+                        if (skipping)
+                        {
+                            skipping = !eventId.equals(lastEventId);
+                            continue;
+                        }
+                        lastEventId = eventId;
+                        try
+                        {
+                            onTestRunEvent(eventObj);
+                        }
+                        catch (Throwable e)
+                        {
+                            // Keep listening for other test runs
+                            logger.error("Failed to handle test run event: " + eventObj, e);
+                        }
+                        continue;
+                    }
+                    if (skipping)
+                    {
+                        // The last event seen was overwritten, so events may have been missed
+                        if (logger.isDebugEnabled())
+                        {
+                            logger.debug("Test run event " + lastEventId + " is no longer available.  Searching for test runs.");
+                        }
+                    }
+                    else if (cursor.getCursorId() != 0L)
+                    {
+                        // Still following
+                        continue;
+                    }
+                    else if (logger.isDebugEnabled())
+                    {
+                        // The cursor is dead, most likely because events were overwritten before we read them
+                        logger.debug("Test run events cursor closed after event " + lastEventId + ".  Searching for test runs.");
+                    }
+                }
+                catch (MongoException e)
+                {
+                    logger.warn("Failed to read test run events after event " + lastEventId + ".", e);
+                }
+                catch (IllegalStateException e)
+                {
+                    // The cursor was closed under us
+                }
+                if (cursor != null)
+                {
+                    cursor.close();
+                    cursor = null;
+                }
+                // Wait a bit and catch up on anything that was missed
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(testRunMonitorPeriod));
+                if (testRunEventThread != Thread.currentThread())
+                {
+                    break;
+                }
+                try
+                {
+                    lastEventId = testDAO.getLastTestRunEventId();
+                    testRunPingTask.run(true);
+                }
+                catch (MongoException e)
+                {
+                    logger.warn("Failed to search for test runs.", e);
+                }
+                catch (Throwable e)
+                {
+                    logger.error("Failed to check test runs.", e);
+                }
+            }
+            if (cursor != null)
+            {
+                cursor.close();
+            }
+        }
+        
+        /**
+         * Check the test run named in the event and, if it has been scheduled for later,
+         * check it again when it is due to start
+         */
+        private void onTestRunEvent(DBObject eventObj)
+        {
+            final ObjectId testRunId = (ObjectId) eventObj.get(FIELD_RUN);
+            if (testRunId == null)
+            {
+                return;
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Received test run event: " + eventObj);
+            }
+            testRunPingTask.checkTestRun(testRunId);
             
-            // Call each monitor to get it to check itself
-            for (TestRun testRun : testRuns.values())
+            Long scheduled = (Long) eventObj.get(FIELD_SCHEDULED);
+            long delay = (scheduled == null) ? -1L : scheduled - System.currentTimeMillis();
+            if (TestRunState.SCHEDULED.toString().equals(eventObj.get(FIELD_STATE)) && delay >= 0L)
             {
-                testRun.checkState();
+                TimerTask scheduledCheck = new TimerTask()
+                {
+                    @Override
+                    public void run()
+                    {
+                        // An exception would kill the timer
+                        try
+                        {
+                            testRunPingTask.checkTestRun(testRunId);
+                        }
+                        catch (Throwable e)
+                        {
+                            logger.error("Failed to check scheduled test run: " + testRunId, e);
+                        }
+                    }
+                };
+                // The test run only starts once its scheduled time has passed
+                testRunTimer.schedule(scheduledCheck, delay + 1L);
             }
         }
     }
@@ -351,10 +597,15 @@ public class Test implements
             timer.schedule(refreshRegistrationTask, 0L, TestDriverPingTask.PING_TIMEOUT/2);
             
             // Create monitors for all test runs of interest
-            testRunPingTask.run();
+            testRunPingTask.run(true);
             // Keep it refreshed
-            timer = new Timer("TestRunPing-" + release + "-" + schema, true);
-            timer.schedule(testRunPingTask, testRunMonitorPeriod, testRunMonitorPeriod);
+            testRunTimer = new Timer("TestRunPing-" + release + "-" + schema, true);
+            testRunTimer.schedule(testRunPingTask, testRunMonitorPeriod, testRunMonitorPeriod);
+            // React to test run changes as they happen
+            Thread thread = new Thread(new TestRunEventListener(), "TestRunEvents-" + release + "-" + schema);
+            thread.setDaemon(true);
+            testRunEventThread = thread;
+            thread.start();
         }
         else
         {
@@ -367,7 +618,7 @@ public class Test implements
      */
     public void forcePing()
     {
-        testRunPingTask.run();
+        testRunPingTask.run(true);
     }
     
     @Override
@@ -381,6 +632,13 @@ public class Test implements
             testDAO.unregisterDriver(driverId);
         }
         // Kill monitoring
+        Thread thread = testRunEventThread;
+        if (thread != null)
+        {
+            testRunEventThread = null;
+            LockSupport.unpark(thread);
+            try { thread.join(); } catch (InterruptedException e) {}
+        }
         testRunPingTask.deactivate();
     }
 
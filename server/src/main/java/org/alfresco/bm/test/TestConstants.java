@@ -40,6 +40,7 @@ public interface TestConstants
     
     public static final String PROP_SYSTEM_CAPABILITIES = "system.capabilities";
     public static final String PROP_TEST_RUN_MONITOR_PERIOD = "test.run.monitor-period";
+    public static final String PROP_TEST_RUN_DISCOVERY_PERIOD = "test.run.discovery-period";
     
     public static final String CAPABILITY_JAVA6 = "java6";
     public static final String CAPABILITY_JAVA7 = "java7";
@@ -100,6 +101,7 @@ public interface TestConstants
     public static final String FIELD_CAPABILITIES = "capabilities";
     public static final String FIELD_NAME = "name";
     public static final String FIELD_VERSION = "version";
+    public static final String FIELD_PROPS_VERSION = "propsVersion";
     public static final String FIELD_ORIGIN = "origin";
     public static final String FIELD_DEFAULT = "default";
     public static final String FIELD_TITLE = "title";
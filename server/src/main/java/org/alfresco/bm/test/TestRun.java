@@ -340,7 +340,8 @@ public class TestRun implements TestConstants
      */
     private synchronized void start()
     {
-        DBObject runObj = getRunObj(true);
+        // The properties are only needed to create the context
+        DBObject runObj = getRunObj(testRunCtx == null);
         if (runObj == null)
         {
             // Nothing much we can do here
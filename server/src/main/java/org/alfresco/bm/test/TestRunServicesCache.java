@@ -154,7 +154,7 @@ public class TestRunServicesCache implements LifecycleListener, TestConstants
             testRunCtx.refresh();
             testRunCtx.start();
             // Make sure that the required components are present
-            testRunCtx.getBean(EventService.class);
+            testRunCtx.getBean("eventService", EventService.class);
             testRunCtx.getBean(ResultService.class);
             testRunCtx.getBean(SessionService.class);
         }
@@ -292,7 +292,7 @@ public class TestRunServicesCache implements LifecycleListener, TestConstants
         {
             return null;
         }
-        return ctx.getBean(EventService.class);
+        return ctx.getBean("eventService", EventService.class);
     }
 
     /**
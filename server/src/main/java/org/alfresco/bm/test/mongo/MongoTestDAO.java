@@ -24,6 +24,8 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -50,6 +52,7 @@ import org.bson.types.ObjectId;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.Bytes;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -75,11 +78,21 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
     public static final String COLLECTION_TESTS = "tests";
     public static final String COLLECTION_TEST_PROPS = "test.props";
     public static final String COLLECTION_TEST_RUNS = "test.runs";
+    public static final String COLLECTION_TEST_RUN_EVENTS = "test.run.events";
+
+    /** The size (bytes) of the capped collection of test run events */
+    private static final int TEST_RUN_EVENTS_SIZE = 1024 * 1024;
+    /** The maximum number of test runs for which resolved properties are cached */
+    private static final int TEST_RUN_PROPS_CACHE_SIZE = 256;
 
     private static Log logger = LogFactory.getLog(MongoTestDAO.class);
 
     private final Map<String, TestDefEntry> testDefCache;
     private final ReentrantReadWriteLock testDefCacheLock;
+    private final Map<ObjectId, TestRunPropsEntry> testRunPropsCache;
+    private final ReentrantReadWriteLock testRunPropsCacheLock;
+    /** Incremented whenever cached test run properties are invalidated */
+    private long testRunPropsCacheGeneration;
 
     private final DB db;
     private final DBCollection testDrivers;
@@ -87,6 +100,7 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
     private final DBCollection tests;
     private final DBCollection testRuns;
     private final DBCollection testProps;
+    private final DBCollection testRunEvents;
 
     /**
      * Construct the DAO using the Mongo DB directly
@@ -97,6 +111,18 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
 
         this.testDefCache = new HashMap<String, TestDefEntry>(17);
         this.testDefCacheLock = new ReentrantReadWriteLock();
+        this.testRunPropsCache = new LinkedHashMap<ObjectId, TestRunPropsEntry>(17)
+        {
+            private static final long serialVersionUID = -3585326862183386404L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ObjectId, TestRunPropsEntry> eldest)
+            {
+                return size() > TEST_RUN_PROPS_CACHE_SIZE;
+            }
+        };
+        this.testRunPropsCacheLock = new ReentrantReadWriteLock();
+        this.testRunPropsCacheGeneration = 0L;
 
         this.db = db;
         this.testDrivers = db.getCollection(COLLECTION_TEST_DRIVERS);
@@ -104,6 +130,32 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
         this.tests = db.getCollection(COLLECTION_TESTS);
         this.testRuns = db.getCollection(COLLECTION_TEST_RUNS);
         this.testProps = db.getCollection(COLLECTION_TEST_PROPS);
+        this.testRunEvents = createTestRunEvents(db);
+    }
+
+    /**
+     * Get or create the capped collection of test run events.  Capped collections keep
+     * the insertion order and can be read using tailable cursors.
+     */
+    private static DBCollection createTestRunEvents(DB db)
+    {
+        try
+        {
+            DBObject options = BasicDBObjectBuilder
+                    .start()
+                    .add("capped", true)
+                    .add("size", TEST_RUN_EVENTS_SIZE)
+                    .get();
+            return db.createCollection(COLLECTION_TEST_RUN_EVENTS, options);
+        }
+        catch (MongoException ex)
+        {
+            if (!db.getCollectionNames().contains(COLLECTION_TEST_RUN_EVENTS))
+            {
+                throw ex;
+            }
+            return db.getCollection(COLLECTION_TEST_RUN_EVENTS);
+        }
     }
 
     /**
@@ -286,6 +338,13 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
                 .add("unique", Boolean.TRUE)
                 .get();
         testProps.createIndex(idx_TEST_PROPS_UNIQUE_TEST_NAME, opts_TEST_PROPS_UNIQUE_TEST_NAME);
+
+        // @since 2.2
+        // A tailable cursor on an empty capped collection is closed immediately, so make sure there is an event
+        if (testRunEvents.count() == 0L)
+        {
+            testRunEvents.insert(new BasicDBObject(FIELD_TIME, System.currentTimeMillis()));
+        }
     }
 
     @Override
@@ -749,6 +808,195 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
         }
     }
 
+    /**
+     * The resolved properties of a test run along with the versions of the test and
+     * test run that they were resolved against
+     */
+    private static class TestRunPropsEntry
+    {
+        public final ObjectId testObjId;
+        public final Integer testVersion;
+        public final Integer runVersion;
+        public final Integer testPropsVersion;
+        public final Integer runPropsVersion;
+        public final Map<String, DBObject> propsMap;
+
+        public TestRunPropsEntry(
+                ObjectId testObjId,
+                Integer testVersion, Integer runVersion,
+                Integer testPropsVersion, Integer runPropsVersion,
+                Map<String, DBObject> propsMap)
+        {
+            this.testObjId = testObjId;
+            this.testVersion = testVersion;
+            this.runVersion = runVersion;
+            this.testPropsVersion = testPropsVersion;
+            this.runPropsVersion = runPropsVersion;
+            this.propsMap = Collections.unmodifiableMap(propsMap);
+        }
+
+        public boolean isCurrent(
+                ObjectId testObjId,
+                Integer testVersion, Integer runVersion,
+                Integer testPropsVersion, Integer runPropsVersion)
+        {
+            return this.testObjId.equals(testObjId) &&
+                    equals(this.testVersion, testVersion) &&
+                    equals(this.runVersion, runVersion) &&
+                    equals(this.testPropsVersion, testPropsVersion) &&
+                    equals(this.runPropsVersion, runPropsVersion);
+        }
+
+        private static boolean equals(Integer a, Integer b)
+        {
+            return (a == null) ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * Retrieve the cached properties of a test run
+     * 
+     * @return the resolved properties or <tt>null</tt> if they are not cached
+     *         for the given test and test run versions
+     */
+    private Map<String, DBObject> getTestRunPropsCached(
+            ObjectId testObjId, ObjectId runObjId,
+            Integer testVersion, Integer runVersion,
+            Integer testPropsVersion, Integer runPropsVersion)
+    {
+        testRunPropsCacheLock.readLock().lock();
+        try
+        {
+            TestRunPropsEntry entry = testRunPropsCache.get(runObjId);
+            if (entry != null && entry.isCurrent(testObjId, testVersion, runVersion, testPropsVersion, runPropsVersion))
+            {
+                return entry.propsMap;
+            }
+            return null;
+        }
+        finally
+        {
+            testRunPropsCacheLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the current generation of the cached test run properties, which
+     *         must be fetched <b>before</b> the properties are read
+     */
+    private long getTestRunPropsCacheGeneration()
+    {
+        testRunPropsCacheLock.readLock().lock();
+        try
+        {
+            return testRunPropsCacheGeneration;
+        }
+        finally
+        {
+            testRunPropsCacheLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Cache the resolved properties of a test run unless properties have been
+     * invalidated since they were read
+     * 
+     * @param generation
+     *        the {@link #getTestRunPropsCacheGeneration() generation} before
+     *        the properties were read
+     */
+    private void putTestRunPropsCached(
+            long generation,
+            ObjectId testObjId, ObjectId runObjId,
+            Integer testVersion, Integer runVersion,
+            Integer testPropsVersion, Integer runPropsVersion,
+            Map<String, DBObject> propsMap)
+    {
+        testRunPropsCacheLock.writeLock().lock();
+        try
+        {
+            if (generation == testRunPropsCacheGeneration)
+            {
+                testRunPropsCache.put(
+                        runObjId,
+                        new TestRunPropsEntry(testObjId, testVersion, runVersion, testPropsVersion, runPropsVersion, propsMap));
+            }
+        }
+        finally
+        {
+            testRunPropsCacheLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Record a change to the property overrides of a test or test run so that
+     * properties cached by other servers and drivers are no longer used.  The
+     * test and test run versions are left alone as they guard user edits.
+     * 
+     * @param testObjId
+     *        the ID of the test, used if no test run is given
+     * @param runObjId
+     *        the ID of the test run or <tt>null</tt> if the test overrides changed
+     */
+    private void incrementPropsVersion(ObjectId testObjId, ObjectId runObjId)
+    {
+        DBObject incObj = new BasicDBObject("$inc", new BasicDBObject(FIELD_PROPS_VERSION, Integer.valueOf(1)));
+        try
+        {
+            if (runObjId != null)
+            {
+                testRuns.update(new BasicDBObject(FIELD_ID, runObjId), incObj);
+            }
+            else
+            {
+                tests.update(new BasicDBObject(FIELD_ID, testObjId), incObj);
+            }
+        }
+        catch (MongoException e)
+        {
+            logger.error("Failed to record a change to the properties of test " + testObjId + ", run " + runObjId, e);
+        }
+    }
+
+    /**
+     * Remove cached properties after they have been changed
+     * 
+     * @param testObjId
+     *        the ID of the test whose runs are affected or <tt>null</tt> to
+     *        use the test run ID alone
+     * @param runObjId
+     *        the ID of the affected test run or <tt>null</tt> for all runs of
+     *        the test
+     */
+    private void invalidateTestRunProps(ObjectId testObjId, ObjectId runObjId)
+    {
+
+        testRunPropsCacheLock.writeLock().lock();
+        try
+        {
+            testRunPropsCacheGeneration++;
+            if (runObjId != null)
+            {
+                testRunPropsCache.remove(runObjId);
+            }
+            else if (testObjId != null)
+            {
+                Iterator<TestRunPropsEntry> iterator = testRunPropsCache.values().iterator();
+                while (iterator.hasNext())
+                {
+                    if (testObjId.equals(iterator.next().testObjId))
+                    {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            testRunPropsCacheLock.writeLock().unlock();
+        }
+    }
+
     /**
      * Retrieve a specific (and full) test definition
      * 
@@ -1238,6 +1486,7 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
                 .add(FIELD_TEST, testObjId)
                 .get();
         testProps.remove(propDelObj);
+        invalidateTestRunProps(testObjId, null);
 
         // Done
         if (logger.isDebugEnabled())
@@ -1445,7 +1694,8 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
                 .add(FIELD_RESULTS_FAIL, true)
                 .add(FIELD_RESULTS_TOTAL, true)
                 .add(FIELD_SUCCESS_RATE, true)
-                .add(FIELD_DRIVERS, true);
+                .add(FIELD_DRIVERS, true)
+                .add(FIELD_PROPS_VERSION, true);
         DBObject fieldsObj = fieldsObjBuilder.get();
 
         DBObject runObj = testRuns.findOne(queryObj, fieldsObj);
@@ -1454,6 +1704,8 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
             // The test run no longer exists
             throw new ObjectNotFoundException("Test run");
         }
+        // Only used to check cached properties
+        Integer runPropsVersion = (Integer) runObj.removeField(FIELD_PROPS_VERSION);
 
         if (includeProperties)
         {
@@ -1461,7 +1713,10 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
             String testName = runObj.get(FIELD_TEST).toString();
             String runName = runObj.get(FIELD_NAME).toString();
 
-            BasicDBList propsList = getTestRunProperties(testObjId, runObjId, testName, runName);
+            Integer runVersion = (Integer) runObj.get(FIELD_VERSION);
+
+            Map<String, DBObject> propsMap = getTestRunPropertiesMap(testObjId, runObjId, runVersion, runPropsVersion, testName, runName);
+            BasicDBList propsList = MongoTestDAO.getPropertyList(propsMap);
             runObj.put(FIELD_PROPERTIES, propsList);
         }
 
@@ -1508,7 +1763,11 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
     }
 
     /**
-     * Returns the "final" test run properties of the test run.
+     * Returns the map with "final" test run properties of the test run.
+     * <p/>
+     * The resolved properties are cached against the versions of the test and
+     * test run, so the returned map and properties are copies that may be
+     * changed by the caller.
      * 
      * @param testObjId
      *        (ObjectId, optional)
@@ -1519,43 +1778,33 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
      * @param testRunName
      *        (String, mandatory)
      * 
-     * @return final property collection with overrides of the test/run or
-     *         exception
+     * @return (Map<String, DBObject>) or exception
      * 
      * @throws ObjectNotFoundException
      */
-    private BasicDBList getTestRunProperties(
+    public Map<String, DBObject> getTestRunPropertiesMap(
             ObjectId testObjId,
             ObjectId runObjId,
             String testName,
             String testRunName) throws ObjectNotFoundException
     {
-        // get map of properties
-        Map<String, DBObject> propsMap = getTestRunPropertiesMap(testObjId, runObjId, testName, testRunName);
-
-        // Turn into a list and return
-        return MongoTestDAO.getPropertyList(propsMap);
+        return getTestRunPropertiesMap(testObjId, runObjId, null, null, testName, testRunName);
     }
 
     /**
-     * Returns the map with "final" test run properties of the test run.
-     * 
-     * @param testObjId
-     *        (ObjectId, optional)
-     * @param runObjId
-     *        (ObjectId, optional)
-     * @param testName
-     *        (String, mandatory)
-     * @param testRunName
-     *        (String, mandatory)
+     * @param runVersion
+     *        (Integer, optional) the current version of the test run, if known
+     * @param runPropsVersion
+     *        (Integer, optional) the current version of the test run's properties,
+     *        only used if the test run version is given
      * 
-     * @return (Map<String, DBObject>) or exception
-     * 
-     * @throws ObjectNotFoundException
+     * @see #getTestRunPropertiesMap(ObjectId, ObjectId, String, String)
      */
-    public Map<String, DBObject> getTestRunPropertiesMap(
+    private Map<String, DBObject> getTestRunPropertiesMap(
             ObjectId testObjId,
             ObjectId runObjId,
+            Integer runVersion,
+            Integer runPropsVersion,
             String testName,
             String testRunName) throws ObjectNotFoundException
     {
@@ -1580,39 +1829,84 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
                 throw new ObjectNotFoundException(testName + "." + testRunName);
             }
         }
+        if (null == runVersion)
+        {
+            DBObject runObj = testRuns.findOne(
+                    new BasicDBObject(FIELD_ID, runObjId),
+                    BasicDBObjectBuilder.start(FIELD_VERSION, true).add(FIELD_PROPS_VERSION, true).get());
+            if (runObj == null)
+            {
+                throw new ObjectNotFoundException(testName + "." + testRunName);
+            }
+            runVersion = (Integer) runObj.get(FIELD_VERSION);
+            runPropsVersion = (Integer) runObj.get(FIELD_PROPS_VERSION);
+        }
+
+        // This must be fetched before anything is read
+        long cacheGeneration = getTestRunPropsCacheGeneration();
 
         // Retrieve the test
-        DBObject testObj = getTest(testObjId, false);
+        DBObject testObj = tests.findOne(
+                new BasicDBObject(FIELD_ID, testObjId),
+                BasicDBObjectBuilder
+                    .start(FIELD_VERSION, true)
+                    .add(FIELD_PROPS_VERSION, true)
+                    .add(FIELD_RELEASE, true)
+                    .add(FIELD_SCHEMA, true)
+                    .get());
         if (testObj == null)
         {
+            logger.warn("Test not found: " + testObjId);
             cleanup(testName, testRunName);
             throw new ObjectNotFoundException(testName + "." + testRunName);
         }
+        Integer testVersion = (Integer) testObj.get(FIELD_VERSION);
+        Integer testPropsVersion = (Integer) testObj.get(FIELD_PROPS_VERSION);
 
-        // Get the associated test definition
-        String release = (String) testObj.get(FIELD_RELEASE);
-        Integer schema = (Integer) testObj.get(FIELD_SCHEMA);
-        TestDefEntry testDefEntry = getTestDefCached(release, schema);
-        if (testDefEntry == null)
+        // The common case: the properties have not changed
+        Map<String, DBObject> propsMap = getTestRunPropsCached(
+                testObjId, runObjId,
+                testVersion, runVersion,
+                testPropsVersion, runPropsVersion);
+        if (propsMap == null)
         {
-            cleanup(testName, testRunName);
-            throw new ObjectNotFoundException(testName + "." + testRunName);
-        }
+            // Get the associated test definition
+            String release = (String) testObj.get(FIELD_RELEASE);
+            Integer schema = (Integer) testObj.get(FIELD_SCHEMA);
+            TestDefEntry testDefEntry = getTestDefCached(release, schema);
+            if (testDefEntry == null)
+            {
+                cleanup(testName, testRunName);
+                throw new ObjectNotFoundException(testName + "." + testRunName);
+            }
 
-        // now get the properties
-        // Start with the properties from the test definition
-        Map<String, DBObject> propsMap = new HashMap<String, DBObject>(testDefEntry.testDefPropsMap);
+            // now get the properties
+            // Start with the properties from the test definition
+            propsMap = new HashMap<String, DBObject>(testDefEntry.testDefPropsMap);
 
-        // Fetch the properties for the test
-        DBCursor testPropsCursor = getTestPropertiesRaw(testObjId, null);
-        // Combine
-        MongoTestDAO.mergeProperties(propsMap, testPropsCursor);
-        // Fetch the properties for the test run
-        DBCursor runPropsCursor = getTestPropertiesRaw(testObjId, runObjId);
-        // Combine
-        MongoTestDAO.mergeProperties(propsMap, runPropsCursor);
+            // Fetch the properties for the test
+            DBCursor testPropsCursor = getTestPropertiesRaw(testObjId, null);
+            // Combine
+            MongoTestDAO.mergeProperties(propsMap, testPropsCursor);
+            // Fetch the properties for the test run
+            DBCursor runPropsCursor = getTestPropertiesRaw(testObjId, runObjId);
+            // Combine
+            MongoTestDAO.mergeProperties(propsMap, runPropsCursor);
 
-        return propsMap;
+            putTestRunPropsCached(
+                    cacheGeneration, testObjId, runObjId,
+                    testVersion, runVersion,
+                    testPropsVersion, runPropsVersion,
+                    propsMap);
+        }
+
+        // Callers are free to change what they are given
+        Map<String, DBObject> propsMapCopy = new HashMap<String, DBObject>(propsMap.size() * 2);
+        for (Map.Entry<String, DBObject> entry : propsMap.entrySet())
+        {
+            propsMapCopy.put(entry.getKey(), copyDBObject(entry.getValue()));
+        }
+        return propsMapCopy;
     }
 
     /**
@@ -2054,6 +2348,11 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
 
         WriteResult result = testRuns.update(queryObj, updateObj);
         boolean written = (result.getN() > 0);
+        // Only state changes are of interest to the drivers; progress updates are not
+        if (written && testRunState != null)
+        {
+            publishTestRunEvent(runId, testRunState, scheduled);
+        }
 
         // Done
         if (logger.isDebugEnabled())
@@ -2073,6 +2372,91 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
         return written;
     }
 
+    /**
+     * Let the drivers know that a test run has changed.  Failure to write the event is
+     * not fatal as the drivers will still find the change when they next look for test runs.
+     * 
+     * @param runObjId
+     *        the ID of the test run
+     * @param testRunState
+     *        the new state of the test run or <tt>null</tt> if the test run was deleted
+     * @param scheduled
+     *        the time when the test run is scheduled to start (<null> if not changed)
+     */
+    private void publishTestRunEvent(ObjectId runObjId, TestRunState testRunState, Long scheduled)
+    {
+        BasicDBObjectBuilder eventObjBuilder = BasicDBObjectBuilder
+                .start()
+                .add(FIELD_TIME, System.currentTimeMillis())
+                .add(FIELD_RUN, runObjId);
+        if (testRunState != null)
+        {
+            eventObjBuilder.add(FIELD_STATE, testRunState.toString());
+        }
+        if (scheduled != null)
+        {
+            eventObjBuilder.add(FIELD_SCHEDULED, scheduled);
+        }
+        DBObject eventObj = eventObjBuilder.get();
+        try
+        {
+            testRunEvents.insert(eventObj);
+        }
+        catch (MongoException e)
+        {
+            logger.warn("Failed to publish test run event: " + eventObj, e);
+        }
+    }
+
+    /**
+     * @return the ID of the most recent test run event or <tt>null</tt> if there
+     *         are no events
+     */
+    public ObjectId getLastTestRunEventId()
+    {
+        DBCursor cursor = testRunEvents
+                .find()
+                .sort(new BasicDBObject("$natural", -1))
+                .limit(1);
+        try
+        {
+            return cursor.hasNext() ? (ObjectId) cursor.next().get(FIELD_ID) : null;
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Get a tailable cursor that follows the test run events as they are published.
+     * Each event carries the test run ID ({@link #FIELD_RUN}) and, unless the run was
+     * deleted, the new {@link #FIELD_STATE state} and any {@link #FIELD_SCHEDULED
+     * scheduled time}.
+     * <p/>
+     * The events are returned in the order in which they were inserted, starting with
+     * the oldest event still held.  Event IDs are generated by the servers that publish
+     * them, so they do not follow the insertion order and cannot be used to resume the
+     * cursor; instead, the caller must skip events until it sees the last event it
+     * handled.  If that event is not found, it has been overwritten and events may have
+     * been missed.
+     * <p/>
+     * The cursor waits a short time for new events, so {@link DBCursor#tryNext()} may
+     * return <tt>null</tt> while the cursor remains open.  Once the cursor
+     * {@link DBCursor#getCursorId() is dead} e.g. because events were overwritten before
+     * they were read, events may have been missed and a new cursor is required.
+     * 
+     * @return a tailable cursor over the test run events in insertion order
+     */
+    public DBCursor getTestRunEvents()
+    {
+        return testRunEvents
+                .find()
+                .sort(new BasicDBObject("$natural", 1))
+                .addOption(Bytes.QUERYOPTION_TAILABLE)
+                .addOption(Bytes.QUERYOPTION_AWAITDATA);
+    }
+
     /**
      * Register a driver with a test run
      * 
@@ -2178,6 +2562,11 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
                 .add(FIELD_RUN, runObjId)
                 .get();
         testProps.remove(propDelObj);
+        invalidateTestRunProps(testObjId, runObjId);
+        if (written)
+        {
+            publishTestRunEvent(runObjId, null, null);
+        }
 
         // Done
         if (logger.isDebugEnabled())
@@ -2621,6 +3010,12 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
         {
             written = false;
         }
+        if (written)
+        {
+            incrementPropsVersion(testObjId, runObjId);
+            // Test overrides apply to all the runs of the test
+            invalidateTestRunProps(testObjId, runObjId);
+        }
 
         // Done
         if (logger.isDebugEnabled())
@@ -2722,6 +3117,12 @@ public class MongoTestDAO implements LifecycleListener, TestConstants
             logger.error(msg);
             throw new RuntimeException(msg, e);
         }
+        finally
+        {
+            // Anything read while the properties were being replaced is out of date
+            incrementPropsVersion(testObjId, runObjId);
+            invalidateTestRunProps(testObjId, runObjId);
+        }
         // Done
         if (logger.isDebugEnabled())
         {
@@ -193,6 +193,7 @@ public class RestAPITest implements TestConstants
         collectionNames.add("test.defs");
         collectionNames.add("tests");
         collectionNames.add("test.runs");
+        collectionNames.add("test.run.events");
         collectionNames.add("test.props");
 
         Set<String> dbColNames = removeSystemValues(appDB.getCollectionNames());
@@ -0,0 +1,105 @@
+package org.alfresco.bm.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.bm.log.TestRunLogService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import com.mongodb.DB;
+
+/**
+ * @see BulkEventWriter
+ *
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class BulkEventWriterTest
+{
+    private LocalEventService eventService;
+    private boolean failInserts;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        // Snapshots are off, so the database is never used
+        eventService = new LocalEventService(Mockito.mock(DB.class), "es")
+        {
+            @Override
+            public List<String> putEvents(List<Event> events)
+            {
+                if (failInserts)
+                {
+                    throw new RuntimeException("Insert failed");
+                }
+                return super.putEvents(events);
+            }
+        };
+        eventService.start();
+    }
+
+    /**
+     * Put an event into the queue and claim it, as if it has just been processed
+     */
+    private Event claimEvent()
+    {
+        long now = System.currentTimeMillis();
+        eventService.putEvent(new Event("A", now, null));
+        Event event = eventService.nextEvent(null, now);
+        assertNotNull(event);
+        return event;
+    }
+
+    private void write(boolean async)
+    {
+        Event event = claimEvent();
+        BulkEventWriter eventWriter = new BulkEventWriter("test", eventService, Mockito.mock(TestRunLogService.class), 10, 5);
+        if (async)
+        {
+            eventWriter.start();
+        }
+        eventWriter.write(event, Collections.singletonList(new Event("B", System.currentTimeMillis(), null)));
+        if (async)
+        {
+            eventWriter.stop();
+        }
+    }
+
+    @Test
+    public void write()
+    {
+        write(true);
+        assertEquals(1, eventService.count());
+        assertEquals("B", eventService.nextEvent(null, Long.MAX_VALUE).getName());
+    }
+
+    @Test
+    public void failedInsertKeepsEvent()
+    {
+        failInserts = true;
+        write(true);
+        // The processed event is still there and can be claimed again
+        assertEquals(1, eventService.count());
+        Event event = eventService.nextEvent(null, Long.MAX_VALUE);
+        assertNotNull(event);
+        assertEquals("A", event.getName());
+        assertNull(eventService.nextEvent(null, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void failedInsertKeepsEventWhenNotRunning()
+    {
+        failInserts = true;
+        write(false);
+        assertEquals(1, eventService.count());
+        assertEquals("A", eventService.nextEvent(null, Long.MAX_VALUE).getName());
+    }
+}
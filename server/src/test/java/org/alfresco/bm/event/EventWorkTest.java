@@ -192,6 +192,34 @@ public class EventWorkTest
         assertNull(eventService.nextEvent(null, Long.MAX_VALUE));
     }
     
+    @Test
+    public void testWriteBehind() throws Exception
+    {
+        BulkEventWriter eventWriter = new BulkEventWriter(TEST_RUN_FQN, eventService, logService, 10, 5);
+        eventWriter.start();
+        work = new EventWork(
+                DRIVER_ID, TEST_RUN_FQN, event,
+                new String[] {DRIVER_ID},
+                new TestEventProcessor(),
+                eventProducers,
+                eventService, resultService, sessionService,
+                logService,
+                eventWriter);
+        
+        nextEvents.add(new Event(EVENT_NAME, "MORE_DATA"));
+        nextEvents.add(new Event(EVENT_NAME, "YET_MORE_DATA"));
+        EventResult result = new EventResult(nextEvents);
+        Mockito.when(processor.processEvent(Mockito.any(Event.class), Mockito.any(StopWatch.class))).thenReturn(result);
+        
+        work.run();
+        // Stopping the writer flushes everything
+        eventWriter.stop();
+        
+        assertEquals(1, resultService.countResultsBySuccess());
+        assertEquals(2, eventService.count());
+        assertNull("Processed event must be removed.", eventService.getEvent(event.getId()));
+    }
+    
     @Test
     public void testMultipleEventServiceAccess() throws Exception
     {
@@ -0,0 +1,154 @@
+package org.alfresco.bm.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * @see LatencyHistogram
+ *
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest
+{
+    @Test
+    public void badArgs()
+    {
+        try
+        {
+            new LatencyHistogram(0);
+            fail("Precision must be checked.");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+        try
+        {
+            new LatencyHistogram().recordValue(-1L);
+            fail("Negative values must be checked.");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+        try
+        {
+            new LatencyHistogram(2).add(new LatencyHistogram(3));
+            fail("Precision of added histograms must be checked.");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+    }
+
+    @Test
+    public void empty()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getN());
+        assertTrue(Double.isNaN(histogram.getMean()));
+        assertTrue(Double.isNaN(histogram.getMin()));
+        assertTrue(Double.isNaN(histogram.getMax()));
+        assertTrue(Double.isNaN(histogram.getStandardDeviation()));
+        assertTrue(Double.isNaN(histogram.getPercentile(99.0)));
+        assertTrue(histogram.getBuckets().isEmpty());
+    }
+
+    @Test
+    public void buckets()
+    {
+        LatencyHistogram histogram = new LatencyHistogram(2);
+        // Small values are counted exactly
+        assertEquals(0L, histogram.getLowestEquivalentValue(-1L));
+        assertEquals(0L, histogram.getLowestEquivalentValue(0L));
+        assertEquals(199L, histogram.getLowestEquivalentValue(199L));
+        // Larger values keep at least two significant digits
+        long[] values = new long[] {1234L, 56789L, 3600000L, Long.MAX_VALUE / 2};
+        for (long value : values)
+        {
+            long lowest = histogram.getLowestEquivalentValue(value);
+            assertTrue(lowest <= value);
+            assertTrue("Precision lost for " + value + ": " + lowest, (value - lowest) <= value / 100L);
+        }
+    }
+
+    @Test
+    public void singleValue()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordValue(56789L);
+        assertEquals(1L, histogram.getN());
+        assertEquals(56789.0, histogram.getMean(), 0.0);
+        assertEquals(0.0, histogram.getStandardDeviation(), 0.0);
+        // The percentiles are limited to the range of values seen
+        assertEquals(56789.0, histogram.getPercentile(0.0), 0.0);
+        assertEquals(56789.0, histogram.getPercentile(50.0), 0.0);
+        assertEquals(56789.0, histogram.getPercentile(100.0), 0.0);
+    }
+
+    @Test
+    public void matchesSamples()
+    {
+        DescriptiveStatistics stats = new DescriptiveStatistics();
+        LatencyHistogram histogram1 = new LatencyHistogram();
+        LatencyHistogram histogram2 = new LatencyHistogram();
+        for (int i = 0; i < 10000; i++)
+        {
+            // Long tail
+            long value = (long) (Math.exp(Math.random() * 10.0));
+            stats.addValue(value);
+            LatencyHistogram histogram = (i % 2 == 0) ? histogram1 : histogram2;
+            histogram.recordValue(value);
+        }
+        histogram1.add(histogram2);
+        assertEquals(10000L, histogram1.getN());
+        assertEquals(stats.getMean(), histogram1.getMean(), 0.0001);
+        assertEquals(stats.getMin(), histogram1.getMin(), 0.0001);
+        assertEquals(stats.getMax(), histogram1.getMax(), 0.0001);
+        assertEquals(stats.getStandardDeviation(), histogram1.getStandardDeviation(), 0.0001);
+        for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+        {
+            double expected = stats.getPercentile(percentile);
+            double actual = histogram1.getPercentile(percentile);
+            assertEquals("Incorrect " + LatencyHistogram.getPercentileLabel(percentile), expected, actual, 1.0 + expected * 0.02);
+        }
+    }
+
+    @Test
+    public void bucketsRoundTrip()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 0L; value < 100000L; value += 7L)
+        {
+            histogram.recordValue(value);
+        }
+        Map<Long, Long> buckets = histogram.getBuckets();
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(
+                histogram.getN(), histogram.getSum(), histogram.getSumOfSquares(),
+                (long) histogram.getMin(), (long) histogram.getMax(), buckets);
+        assertEquals(buckets, copy.getBuckets());
+        assertEquals(histogram.getMean(), copy.getMean(), 0.0);
+        for (double percentile : LatencyHistogram.REPORTED_PERCENTILES)
+        {
+            assertEquals(histogram.getPercentile(percentile), copy.getPercentile(percentile), 0.0);
+        }
+    }
+
+    @Test
+    public void labels()
+    {
+        assertEquals("p50", LatencyHistogram.getPercentileLabel(50.0));
+        assertEquals("p99.9", LatencyHistogram.getPercentileLabel(99.9));
+    }
+}
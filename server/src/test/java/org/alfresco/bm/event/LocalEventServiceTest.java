@@ -0,0 +1,179 @@
+package org.alfresco.bm.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.alfresco.mongo.MongoDBForTestsFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+
+/**
+ * @see LocalEventService
+ * 
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class LocalEventServiceTest
+{
+    private static MongoDBForTestsFactory mongoFactory;
+    private LocalEventService eventService;
+    private DB db;
+    private DBCollection es;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        mongoFactory = new MongoDBForTestsFactory();
+        db = mongoFactory.getObject();
+        eventService = new LocalEventService(db, "es");
+        eventService.start();
+        es = db.getCollection("es");
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        eventService.stop();
+        mongoFactory.destroy();
+    }
+    
+    @Test
+    public void empty()
+    {
+        assertEquals(0, eventService.count());
+        assertNull(eventService.nextEvent(null, Long.MAX_VALUE));
+        assertNull(eventService.nextEvent("D01", Long.MAX_VALUE));
+    }
+    
+    @Test
+    public void uniqueStart()
+    {
+        eventService.putEvent(new Event(Event.EVENT_NAME_START, 0L, null));
+        try
+        {
+            eventService.putEvent(new Event(Event.EVENT_NAME_START, 0L, null));
+            fail("Duplicate event ID not detected.");
+        }
+        catch (RuntimeException e)
+        {
+            // Expected
+        }
+        assertEquals(1, eventService.count());
+    }
+    
+    @Test
+    public void orderAndDrivers()
+    {
+        long now = System.currentTimeMillis();
+        Event eventD02 = new Event("D02", now - 3000L, null);
+        eventD02.setDriver("D02");
+        eventService.putEvent(eventD02);
+        String idLate = eventService.putEvent(new Event("LATE", now - 1000L, null));
+        String idEarly = eventService.putEvent(new Event("EARLY", now - 2000L, null));
+        eventService.putEvent(new Event("FUTURE", now + 60000L, null));
+        assertEquals(4, eventService.count());
+        
+        // D01 cannot see the event assigned to D02 and the future event is not ready
+        List<Event> events = eventService.nextEvents("D01", now, 10);
+        assertEquals(2, events.size());
+        assertEquals(idEarly, events.get(0).getId());
+        assertEquals(idLate, events.get(1).getId());
+        assertNotNull(events.get(0).getLockOwner());
+        // Claimed events are still counted until they are deleted
+        assertEquals(4, eventService.count());
+        assertNull(eventService.nextEvent("D01", now));
+        
+        // Anyone can pick up the event for D02
+        Event event = eventService.nextEvent(null, now);
+        assertNotNull(event);
+        assertEquals("D02", event.getName());
+        
+        // Delete what we have processed
+        events.add(event);
+        assertEquals(3, eventService.deleteEvents(events));
+        assertEquals(1, eventService.count());
+        assertEquals(0, eventService.deleteEvents(events));
+        assertEquals("FUTURE", eventService.nextEvent(null, Long.MAX_VALUE).getName());
+    }
+    
+    @Test
+    public void snapshotAndReload() throws Exception
+    {
+        eventService.stop();
+        eventService = new LocalEventService(db, "es");
+        eventService.setSnapshotPeriod(100L);
+        eventService.start();
+        
+        long now = System.currentTimeMillis();
+        String id = eventService.putEvent(new Event("A", now, "a"));
+        eventService.putEvent(new Event("B", now - 1000L, null));
+        eventService.putEvent(new Event("C", now, new Object()));       // Data cannot be persisted
+        // Process B
+        Event eventB = eventService.nextEvent(null, now);
+        assertEquals("B", eventB.getName());
+        eventService.deleteEvent(eventB);
+        // Wait for the snapshot
+        Thread.sleep(500L);
+        assertEquals(1, es.count());
+        
+        // Start again
+        eventService.stop();
+        eventService = new LocalEventService(db, "es");
+        eventService.setSnapshotPeriod(100L);
+        eventService.start();
+        assertEquals(1, eventService.count());
+        Event event = eventService.nextEvent(null, now);
+        assertNotNull(event);
+        assertEquals("a", event.getData());
+        assertEquals(id, event.getId());
+    }
+    
+    @Test
+    public void unlockEvent()
+    {
+        long now = System.currentTimeMillis();
+        String eventId = eventService.putEvent(new Event("A", now, null));
+        Event event = eventService.nextEvent(null, now);
+        assertNotNull(event);
+        assertNull(eventService.nextEvent(null, now));
+        
+        assertTrue(eventService.unlockEvent(event));
+        assertFalse(eventService.unlockEvent(event));
+        Event reclaimed = eventService.nextEvent(null, now);
+        assertNotNull(reclaimed);
+        assertEquals(eventId, reclaimed.getId());
+    }
+    
+    @Test
+    public void rescheduleEvent()
+    {
+        long now = System.currentTimeMillis();
+        String eventId = eventService.putEvent(new Event("A", now + 60000L, null));
+        Event event = eventService.getEvent(eventId);
+        assertNull(eventService.nextEvent(null, now));
+        
+        assertTrue(eventService.rescheduleEvent(event, now));
+        Event claimed = eventService.nextEvent(null, now);
+        assertNotNull(claimed);
+        assertEquals(eventId, claimed.getId());
+        assertEquals(now, claimed.getScheduledTime());
+        assertEquals(1, eventService.count());
+        
+        // Claimed events stay where they are
+        assertFalse(eventService.rescheduleEvent(claimed, now + 60000L));
+        assertTrue(eventService.deleteEvent(claimed));
+        assertFalse(eventService.rescheduleEvent(claimed, now));
+    }
+}
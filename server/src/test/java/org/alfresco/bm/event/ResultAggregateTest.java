@@ -0,0 +1,71 @@
+package org.alfresco.bm.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * @see ResultAggregate
+ * 
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class ResultAggregateTest
+{
+    @Test
+    public void empty()
+    {
+        ResultAggregate aggregate = new ResultAggregate();
+        assertEquals(0L, aggregate.getN());
+        assertTrue(Double.isNaN(aggregate.getMean()));
+        assertTrue(Double.isNaN(aggregate.getMin()));
+        assertTrue(Double.isNaN(aggregate.getPercentile(50.0)));
+    }
+    
+    @Test
+    public void mergeMatchesSamples()
+    {
+        DescriptiveStatistics stats = new DescriptiveStatistics();
+        ResultAggregate aggregate1 = new ResultAggregate();
+        ResultAggregate aggregate2 = new ResultAggregate();
+        for (int i = 0; i < 1000; i++)
+        {
+            long time = (long) (Math.random() * 1000.0);
+            stats.addValue(time);
+            ResultAggregate aggregate = (i % 2 == 0) ? aggregate1 : aggregate2;
+            aggregate.addValue(time, i % 10 != 0);
+        }
+        aggregate1.merge(aggregate2);
+        assertEquals(1000L, aggregate1.getN());
+        assertEquals(100L, aggregate1.getFailures());
+        assertEquals(stats.getMean(), aggregate1.getMean(), 0.0001);
+        assertEquals(stats.getMin(), aggregate1.getMin(), 0.0001);
+        assertEquals(stats.getMax(), aggregate1.getMax(), 0.0001);
+        assertEquals(stats.getStandardDeviation(), aggregate1.getStandardDeviation(), 0.0001);
+        // Percentiles are accurate to the histogram precision
+        double p90 = stats.getPercentile(90.0);
+        assertEquals(p90, aggregate1.getPercentile(90.0), 10.0);
+    }
+    
+    @Test
+    public void startDelays()
+    {
+        ResultAggregate aggregate1 = new ResultAggregate();
+        aggregate1.addValue(10L, 100L, true);
+        aggregate1.addValue(10L, -5L, true);
+        // Results without a start delay
+        aggregate1.addValue(10L, true);
+        ResultAggregate aggregate2 = new ResultAggregate();
+        aggregate2.addValue(10L, 200L, false);
+        aggregate1.merge(aggregate2);
+        assertEquals(4L, aggregate1.getN());
+        assertEquals(3L, aggregate1.getStartDelays().getN());
+        assertEquals(0.0, aggregate1.getStartDelays().getMin(), 0.0001);
+        assertEquals(200.0, aggregate1.getStartDelays().getMax(), 0.0001);
+        assertEquals(100.0, aggregate1.getStartDelays().getMean(), 0.0001);
+    }
+}
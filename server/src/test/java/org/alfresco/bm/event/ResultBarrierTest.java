@@ -0,0 +1,106 @@
+package org.alfresco.bm.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.alfresco.bm.event.mongo.MongoResultService;
+import org.alfresco.mongo.MongoDBForTestsFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.mongodb.DB;
+
+/**
+ * @see ResultBarrier
+ *
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class ResultBarrierTest
+{
+    private MongoDBForTestsFactory mongoFactory;
+    private MongoResultService resultService;
+    private LocalEventService eventService;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mongoFactory = new MongoDBForTestsFactory();
+        DB db = mongoFactory.getObject();
+        resultService = new MongoResultService(db, "rs");
+        resultService.start();
+        eventService = new LocalEventService(db, "es");
+        eventService.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        eventService.stop();
+        resultService.stop();
+        mongoFactory.destroy();
+    }
+
+    private void recordResults(int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            Event event = new Event("counted", null);
+            resultService.recordResult(new EventRecord("DRIVER", true, System.currentTimeMillis(), 10L, null, event));
+        }
+    }
+
+    @Test
+    public void notReleased() throws Exception
+    {
+        recordResults(5);
+        ResultBarrier barrier = new ResultBarrier("counted", 10L, "next", resultService);
+        barrier.setCheckInterval(50L);
+        EventResult result = barrier.processEvent(new Event("barrier", null));
+        assertEquals(1, result.getNextEvents().size());
+        assertEquals("barrier", result.getNextEvents().get(0).getName());
+    }
+
+    @Test
+    public void released() throws Exception
+    {
+        recordResults(10);
+        ResultBarrier barrier = new ResultBarrier("counted", 10L, "next", resultService);
+        barrier.setEventService(eventService);
+        EventResult result = barrier.processEvent(new Event("barrier", null));
+        assertEquals(1, result.getNextEvents().size());
+        assertEquals("next", result.getNextEvents().get(0).getName());
+        assertEquals(0L, eventService.count());
+    }
+
+    @Test
+    public void checkBroughtForwardWhenResultsAreRecorded() throws Exception
+    {
+        recordResults(5);
+        ResultBarrier barrier = new ResultBarrier("counted", 10L, "next", resultService);
+        barrier.setCheckInterval(60000L);
+        barrier.setEventService(eventService);
+        
+        // The next check is queued directly and is not due yet
+        EventResult result = barrier.processEvent(new Event("barrier", null));
+        assertEquals(0, result.getNextEvents().size());
+        assertEquals(1L, eventService.count());
+        assertNull(eventService.nextEvent(null, System.currentTimeMillis()));
+        
+        // The check becomes due as soon as there are enough results
+        recordResults(4);
+        assertNull(eventService.nextEvent(null, System.currentTimeMillis()));
+        recordResults(1);
+        Event check = eventService.nextEvent(null, System.currentTimeMillis());
+        assertNotNull(check);
+        assertEquals("barrier", check.getName());
+        
+        result = barrier.processEvent(check);
+        assertEquals(1, result.getNextEvents().size());
+        assertEquals("next", result.getNextEvents().get(0).getName());
+    }
+}
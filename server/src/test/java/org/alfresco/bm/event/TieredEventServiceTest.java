@@ -0,0 +1,198 @@
+package org.alfresco.bm.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.bm.event.mongo.MongoEventService;
+import org.alfresco.mongo.MongoDBForTestsFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.mongodb.DB;
+
+/**
+ * @see TieredEventService
+ * 
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class TieredEventServiceTest
+{
+    private static MongoDBForTestsFactory mongoFactory;
+    private DB db;
+    private TieredEventService eventService;
+    private MongoEventService otherDriverEventService;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        mongoFactory = new MongoDBForTestsFactory();
+        db = mongoFactory.getObject();
+        eventService = new TieredEventService(db, "es", "D01");
+        eventService.setLocalCapacity(2);
+        eventService.start();
+        otherDriverEventService = new MongoEventService(db, "es");
+        otherDriverEventService.start();
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        eventService.stop();
+        otherDriverEventService.stop();
+        mongoFactory.destroy();
+    }
+    
+    private Event createEvent(String name, long scheduledTime, String driver)
+    {
+        Event event = new Event(name, scheduledTime, null);
+        event.setDriver(driver);
+        return event;
+    }
+    
+    @Test
+    public void empty()
+    {
+        assertEquals(0, eventService.count());
+        assertNull(eventService.nextEvent("D01", Long.MAX_VALUE));
+    }
+    
+    @Test
+    public void tiers()
+    {
+        long now = System.currentTimeMillis();
+        List<Event> events = new ArrayList<Event>();
+        events.add(createEvent("LOCAL-1", now, "D01"));
+        events.add(createEvent("OTHER", now - 1000L, "D02"));
+        events.add(createEvent("LOCAL-2", now, "D01"));
+        events.add(createEvent("FUTURE", now + TieredEventService.DEFAULT_LOCAL_WINDOW * 2, "D01"));
+        events.add(createEvent("OVERFLOW", now, "D01"));
+        List<String> eventIds = eventService.putEvents(events);
+        assertEquals(5, eventIds.size());
+        assertEquals(5, eventService.count());
+        
+        // Only the spilled events are shared, along with the placeholder for the local events
+        assertEquals(4, otherDriverEventService.count());
+        assertEquals("LOCAL-1", eventService.getEvent(eventIds.get(0)).getName());
+        assertNull(otherDriverEventService.getEvent(eventIds.get(0)));
+        assertNotNull(otherDriverEventService.getEvent(eventIds.get(4)));
+        // The placeholder is not due
+        assertEquals("OTHER", otherDriverEventService.nextEvent(null, now).getName());
+        
+        // This driver gets local and spilled events
+        List<Event> claimed = eventService.nextEvents("D01", now, 10);
+        assertEquals(3, claimed.size());
+        assertEquals(3, eventService.deleteEvents(claimed));
+        assertEquals(2, eventService.count());
+        
+        // The placeholder is gone with the local events
+        assertEquals(2, otherDriverEventService.count());
+    }
+    
+    @Test
+    public void dataInMemory()
+    {
+        long now = System.currentTimeMillis();
+        eventService.setLocalCapacity(0);
+        Event event = new Event("MEM", now, new Object());
+        String eventId = eventService.putEvent(event);
+        // Kept locally regardless of capacity
+        assertNull(otherDriverEventService.getEvent(eventId));
+        assertEquals(1, eventService.count());
+        Event claimed = eventService.nextEvent("D01", now);
+        assertNotNull(claimed);
+        assertEquals(true, eventService.deleteEvent(claimed));
+        assertEquals(0, eventService.count());
+        assertEquals(0, otherDriverEventService.count());
+    }
+    
+    @Test
+    public void stopSpillsLocalEvents() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        String eventId = eventService.putEvent(createEvent("LOCAL", now, "D01"));
+        assertNull(otherDriverEventService.getEvent(eventId));
+        assertEquals(1, otherDriverEventService.count());
+        
+        eventService.stop();
+        // The event is shared and the placeholder is gone
+        assertEquals(1, otherDriverEventService.count());
+        Event spilled = otherDriverEventService.getEvent(eventId);
+        assertNotNull(spilled);
+        assertEquals("LOCAL", spilled.getName());
+        assertNull(spilled.getLockOwner());
+    }
+    
+    @Test
+    public void expiredHoldIsRemoved() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        eventService.setHoldExpiry(100L);
+        eventService.putEvent(createEvent("LOCAL", now + 10000L, "D01"));
+        assertEquals(1, otherDriverEventService.count());
+        
+        // The driver stops renewing the placeholder
+        Thread.sleep(200L);
+        TieredEventService otherTieredEventService = new TieredEventService(db, "es", "D02");
+        otherTieredEventService.start();
+        try
+        {
+            // Stale events are searched for without a driver
+            assertEquals(0, otherTieredEventService.nextEvents(null, System.currentTimeMillis(), 10).size());
+            assertEquals(0, otherDriverEventService.count());
+        }
+        finally
+        {
+            otherTieredEventService.stop();
+        }
+    }
+    
+    @Test
+    public void holdIsRenewed() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        eventService.setHoldExpiry(100L);
+        eventService.putEvent(createEvent("LOCAL", now + 10000L, "D01"));
+        for (int i = 0; i < 4; i++)
+        {
+            Thread.sleep(60L);
+            assertEquals(0, eventService.nextEvents("D01", System.currentTimeMillis(), 10).size());
+        }
+        // Only the current placeholder is shared
+        assertEquals(1, otherDriverEventService.count());
+        assertEquals(1, eventService.count());
+    }
+    
+    @Test
+    public void spilledEventsMoveBackToLocal()
+    {
+        long now = System.currentTimeMillis();
+        eventService.setSharedSearchPeriod(0L);
+        List<Event> events = new ArrayList<Event>();
+        events.add(createEvent("LOCAL-1", now + 1000L, "D01"));
+        events.add(createEvent("LOCAL-2", now + 2000L, "D01"));
+        events.add(createEvent("SPILLED", now + 3000L, "D01"));
+        List<String> eventIds = eventService.putEvents(events);
+        // The spilled event and the placeholder
+        assertEquals(2, otherDriverEventService.count());
+        
+        // Make room in the local tier
+        List<Event> claimed = eventService.nextEvents("D01", now + 1000L, 1);
+        assertEquals(1, claimed.size());
+        assertEquals(1, eventService.deleteEvents(claimed));
+        
+        // The next search moves the spilled event back
+        assertEquals(0, eventService.nextEvents("D01", now, 10).size());
+        assertEquals(2, eventService.count());
+        assertEquals(1, otherDriverEventService.count());
+        assertNull(otherDriverEventService.getEvent(eventIds.get(2)));
+        assertEquals("SPILLED", eventService.getEvent(eventIds.get(2)).getName());
+    }
+}
@@ -19,11 +19,13 @@
 package org.alfresco.bm.event.mongo;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -166,6 +168,32 @@ public class MongoEventServiceTest
         assertEquals(100, eventService.count());
     }
     
+    @Test
+    public void putAndDeleteEventsInBulk()
+    {
+        List<Event> events = new ArrayList<Event>(10);
+        for (int i = 0; i < 10; i++)
+        {
+            events.add(createEvent());
+        }
+        // Add an event that keeps its data in memory
+        events.add(new Event("t1", this));
+        List<String> eventIds = eventService.putEvents(events);
+        assertEquals(11, eventIds.size());
+        assertEquals(11, eventService.count());
+        assertTrue("In-mem data not handled.", this == eventService.getEvent(eventIds.get(10)).getData());
+        
+        // Delete them again
+        List<Event> eventsToDelete = new ArrayList<Event>(11);
+        for (String eventId : eventIds)
+        {
+            eventsToDelete.add(eventService.getEvent(eventId));
+        }
+        assertEquals(11, eventService.deleteEvents(eventsToDelete));
+        assertEquals(0, eventService.count());
+        assertEquals("Nothing left to delete.", 0, eventService.deleteEvents(eventsToDelete));
+    }
+    
     @Test
     public void nextEventAnyDriver()
     {
@@ -204,6 +232,38 @@ public class MongoEventServiceTest
         assertNull(event66);
     }
     
+    @Test
+    public void nextEventsBatch()
+    {
+        pumpEvents(100);
+        long now = System.currentTimeMillis();
+        
+        // Only one event is assigned to each driver
+        List<Event> events = eventService.nextEvents("DRIVER-66", now, 10);
+        assertEquals("Only one event assigned to the driver", 1, events.size());
+        
+        // Claim the rest in batches
+        Set<String> eventIds = new HashSet<String>(100);
+        eventIds.add(events.get(0).getId());
+        long lastScheduledTime = 0L;
+        for (int i = 0; i < 11; i++)
+        {
+            events = eventService.nextEvents(null, now, 10);
+            assertTrue("Batch size exceeded: " + events.size(), events.size() <= 10);
+            for (Event event : events)
+            {
+                assertNotNull("Lock owner should be supplied. ", event.getLockOwner());
+                assertTrue("Scheduled time must be increasing. ", event.getScheduledTime() >= lastScheduledTime);
+                lastScheduledTime = event.getScheduledTime();
+                assertTrue("Event claimed twice: " + event, eventIds.add(event.getId()));
+            }
+        }
+        assertEquals("All events should have been claimed exactly once.", 100, eventIds.size());
+        assertEquals("Nothing left to claim.", 0, eventService.nextEvents(null, now, 10).size());
+        // The events are still present until deleted
+        assertEquals(100, eventService.count());
+    }
+    
     @Test
     public void nextEventUnassignedEvent()
     {
@@ -301,4 +361,50 @@ public class MongoEventServiceTest
         // Exactly the same search should give nothing
         assertNull("Should not be able to get the same event twice", eventService.nextEvent("lockEventAutomatic", now));
     }
+    
+    @Test
+    public void unlockEvent()
+    {
+        long now = System.currentTimeMillis();
+        String eventId = eventService.putEvent(new Event("unlockEvent", now, null));
+        List<Event> claimed = eventService.nextEvents(null, now, 2);
+        assertEquals(1, claimed.size());
+        Event event = claimed.get(0);
+        assertNull(eventService.nextEvent(null, now));
+        
+        // A stale claim cannot release the event
+        Event stale = eventService.getEvent(eventId);
+        stale.setLockTime(event.getLockTime() - 1L);
+        assertFalse(eventService.unlockEvent(stale));
+        
+        assertTrue(eventService.unlockEvent(event));
+        assertEquals(1, eventService.count());
+        assertNull(eventService.getEvent(eventId).getLockOwner());
+        Event reclaimed = eventService.nextEvent(null, now);
+        assertNotNull(reclaimed);
+        assertEquals(eventId, reclaimed.getId());
+        // The earlier claim no longer holds the event
+        assertFalse(eventService.unlockEvent(event));
+    }
+    
+    @Test
+    public void rescheduleEvent()
+    {
+        long now = System.currentTimeMillis();
+        String eventId = eventService.putEvent(new Event("rescheduleEvent", now + 60000L, null));
+        Event event = eventService.getEvent(eventId);
+        assertNull(eventService.nextEvent(null, now));
+        
+        assertTrue(eventService.rescheduleEvent(event, now));
+        Event claimed = eventService.nextEvent(null, now);
+        assertNotNull(claimed);
+        assertEquals(eventId, claimed.getId());
+        assertEquals(now, claimed.getScheduledTime());
+        
+        // Claimed events stay where they are
+        assertFalse(eventService.rescheduleEvent(claimed, now + 60000L));
+        assertEquals(now, eventService.getEvent(eventId).getScheduledTime());
+        assertTrue(eventService.deleteEvent(claimed));
+        assertFalse(eventService.rescheduleEvent(claimed, now));
+    }
 }
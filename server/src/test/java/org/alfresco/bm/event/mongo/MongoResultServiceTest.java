@@ -24,6 +24,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -34,8 +35,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.alfresco.bm.event.Event;
 import org.alfresco.bm.event.EventRecord;
+import org.alfresco.bm.event.LatencyHistogram;
+import org.alfresco.bm.event.ResultAggregate;
 import org.alfresco.bm.event.ResultService;
+import org.alfresco.bm.event.ResultService.EventRecordHandler;
+import org.alfresco.bm.event.ResultService.ResultAggregateHandler;
 import org.alfresco.bm.event.ResultService.ResultHandler;
+import org.alfresco.bm.event.ResultService.StartDelayResultHandler;
 import org.alfresco.mongo.MongoDBForTestsFactory;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.junit.After;
@@ -48,6 +54,7 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 
 /**
@@ -108,6 +115,7 @@ public class MongoResultServiceTest
         assertNotNull(rs);
         Set<String> collectionNames = new HashSet<String>();
         collectionNames.add("rs");
+        collectionNames.add("rs.buckets");
         assertEquals(collectionNames, removeSystemValues(
                 db.getCollectionNames()));
         
@@ -132,7 +140,7 @@ public class MongoResultServiceTest
                     @Override
                     public boolean processResult(
                             long fromTime, long toTime,
-                            Map<String, DescriptiveStatistics> statsByEventName,
+                            Map<String, LatencyHistogram> statsByEventName,
                             Map<String, Integer> failuresByEventName) throws Throwable
                     {
                         fail("Should not have any results");
@@ -246,6 +254,126 @@ public class MongoResultServiceTest
         assertEquals(100, resultService.countResultsByFailure() + resultService.countResultsBySuccess());
     }
     
+    @Test
+    public void bufferedRecording() throws Exception
+    {
+        // Restart the service with buffering
+        resultService.stop();
+        resultService = new MongoResultService(db, "rs");
+        resultService.setRecordBatchSize(20);
+        resultService.setRecordFlushPeriod(60000L);
+        resultService.setRecordQueueSize(50);
+        resultService.start();
+        
+        pumpRecords(45);
+        // Nothing forced a flush but some batches will have been written in the background
+        assertTrue("Too many results buffered: " + resultService.getRecordQueueDepth(), resultService.getRecordQueueDepth() <= 45);
+        // Reads see all the results recorded by this instance
+        assertEquals(45, resultService.countResults());
+        assertEquals(0, resultService.getRecordQueueDepth());
+        assertTrue("Buffered results were not written in bulk.", resultService.getRecordFlushCount() >= 3);
+        
+        // The buffer is written when the service stops
+        pumpRecords(10);
+        resultService.stop();
+        assertEquals(55, rs.count());
+        
+        // Back-pressure: the buffer limit causes the recording threads to write
+        resultService = new MongoResultService(db, "rs");
+        resultService.setRecordBatchSize(100);
+        resultService.setRecordFlushPeriod(60000L);
+        resultService.setRecordQueueSize(10);
+        resultService.start();
+        pumpRecords(10);
+        assertEquals(65, rs.count());
+    }
+    
+    /**
+     * Results that cannot be written are kept; the rest are written, counted and aggregated
+     */
+    @Test
+    public void bufferedRecordingFailures() throws Exception
+    {
+        resultService.stop();
+        resultService = new MongoResultService(db, "rs");
+        resultService.setRecordBatchSize(100);
+        resultService.setRecordFlushPeriod(60000L);
+        resultService.start();
+        
+        // Only successful results can be written for now
+        db.command(new BasicDBObject("collMod", "rs").append("validator", new BasicDBObject(EventRecord.FIELD_SUCCESS, true)));
+        pumpRecords(50);
+        // Reading does not fail and sees the results that were written
+        long written = resultService.countResults();
+        assertEquals(rs.count(), written);
+        assertEquals(written, resultService.countResultsBySuccess());
+        assertEquals(0L, resultService.countResultsByFailure());
+        assertEquals(50L - written, resultService.getRecordQueueDepth());
+        
+        // The rest are written once they can be
+        db.command(new BasicDBObject("collMod", "rs").append("validator", new BasicDBObject()));
+        assertEquals(50L, resultService.countResults());
+        assertEquals(0, resultService.getRecordQueueDepth());
+        assertEquals(rs.count(new BasicDBObject(EventRecord.FIELD_SUCCESS, false)), resultService.countResultsByFailure());
+    }
+    
+    /**
+     * Drivers race to create the same counts and buckets; no results may be lost from either
+     */
+    @Test
+    public void concurrentRecording() throws Exception
+    {
+        final MongoResultService otherResultService = new MongoResultService(db, "rs");
+        otherResultService.start();
+        final long startTime = System.currentTimeMillis();
+        List<Thread> threads = new ArrayList<Thread>(8);
+        for (int i = 0; i < 8; i++)
+        {
+            final ResultService threadResultService = (i % 2 == 0) ? resultService : otherResultService;
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 50; j++)
+                    {
+                        threadResultService.recordResult(createEventRecord(startTime + j * 100L));
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        otherResultService.stop();
+        assertEquals(400L, rs.count());
+        
+        long bucketN = 0L;
+        DBCursor cursor = db.getCollection("rs.buckets").find();
+        try
+        {
+            while (cursor.hasNext())
+            {
+                bucketN += ((Number) cursor.next().get("n")).longValue();
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        assertEquals(400L, bucketN);
+        assertEquals(400L, resultService.countResults());
+        long total = 0L;
+        for (String name : resultService.getEventNames())
+        {
+            total += resultService.countResultsByEventName(name);
+        }
+        assertEquals(400L, total);
+    }
+    
     @Test
     public void countEventsByName()
     {
@@ -260,6 +388,45 @@ public class MongoResultServiceTest
         assertEquals(100, total);
     }
     
+    /**
+     * Results are counted as they are recorded; the counts must match the results
+     */
+    @Test
+    public void countsMatchResults() throws Exception
+    {
+        pumpRecords(100);
+        assertEquals(rs.count(), resultService.countResults());
+        assertEquals(rs.count(new BasicDBObject(EventRecord.FIELD_SUCCESS, true)), resultService.countResultsBySuccess());
+        assertEquals(rs.count(new BasicDBObject(EventRecord.FIELD_SUCCESS, false)), resultService.countResultsByFailure());
+        for (String name : resultService.getEventNames())
+        {
+            assertEquals(rs.count(new BasicDBObject(EventRecord.FIELD_EVENT_NAME, name)), resultService.countResultsByEventName(name));
+        }
+        assertEquals(0L, resultService.countResultsByEventName("no such event"));
+        
+        // Results recorded before they were counted are still counted
+        db.getCollection("rs.counts").drop();
+        assertEquals(100, resultService.countResults());
+        assertEquals(100, resultService.countResultsByFailure() + resultService.countResultsBySuccess());
+        long total = 0L;
+        for (String name : resultService.getEventNames())
+        {
+            total += resultService.countResultsByEventName(name);
+        }
+        assertEquals(100, total);
+        
+        // They are counted when the service starts, so results recorded afterwards add to them
+        resultService.stop();
+        resultService = new MongoResultService(db, "rs");
+        resultService.start();
+        pumpRecords(10);
+        assertEquals(110, resultService.countResults());
+        for (String name : resultService.getEventNames())
+        {
+            assertEquals(rs.count(new BasicDBObject(EventRecord.FIELD_EVENT_NAME, name)), resultService.countResultsByEventName(name));
+        }
+    }
+    
     @Test
     public void getResultsPagedAll()
     {
@@ -373,7 +540,7 @@ public class MongoResultServiceTest
                     @Override
                     public boolean processResult(
                             long fromTime, long toTime,
-                            Map<String, DescriptiveStatistics> statsByEventName,
+                            Map<String, LatencyHistogram> statsByEventName,
                             Map<String, Integer> failuresByEventName) throws Throwable
                     {
                         // Check that we have a failure count for each event
@@ -411,7 +578,7 @@ public class MongoResultServiceTest
                     @Override
                     public boolean processResult(
                             long fromTime, long toTime,
-                            Map<String, DescriptiveStatistics> statsByEventName,
+                            Map<String, LatencyHistogram> statsByEventName,
                             Map<String, Integer> failuresByEventName) throws Throwable
                     {
                         if (toTime <= firstEventTime)
@@ -450,7 +617,7 @@ public class MongoResultServiceTest
         pumpRecords(10);
         
         final AtomicInteger count = new AtomicInteger();
-        final Map<String, DescriptiveStatistics> lastStatsByEventName = new HashMap<String, DescriptiveStatistics>(17);
+        final Map<String, LatencyHistogram> lastStatsByEventName = new HashMap<String, LatencyHistogram>(17);
         
         resultService.getResults(
                 new ResultHandler()
@@ -458,7 +625,7 @@ public class MongoResultServiceTest
                     @Override
                     public boolean processResult(
                             long fromTime, long toTime,
-                            Map<String, DescriptiveStatistics> statsByEventName,
+                            Map<String, LatencyHistogram> statsByEventName,
                             Map<String, Integer> failuresByEventName) throws Throwable
                     {
                         // Always keep the last stats
@@ -484,7 +651,7 @@ public class MongoResultServiceTest
             {
                 eventStats.addValue(eventRecord.getTime());
             }
-            DescriptiveStatistics lastEventStats = lastStatsByEventName.get(eventName);
+            LatencyHistogram lastEventStats = lastStatsByEventName.get(eventName);
             assertNotNull("No last report for event '" + eventName  + "'.", lastEventStats);
             // Now check that this matched the last report exactly
             assertEquals(
@@ -492,4 +659,192 @@ public class MongoResultServiceTest
                     (long) Math.floor(eventStats.getMean()), (long) Math.floor(lastStatsByEventName.get(eventName).getMean()));
         }
     }
+    
+    /**
+     * Start delays are reported by handlers that ask for them
+     */
+    @Test
+    public void getStartDelaysUsingHandler()
+    {
+        // All in one report period
+        long now = (System.currentTimeMillis() / 1000L) * 1000L;
+        for (int i = 0; i < 10; i++)
+        {
+            EventRecord eventRecord = new EventRecord("DRIVER", true, now + i, 50L, null, new Event("late", null));
+            eventRecord.setStartDelay(i * 10L);
+            resultService.recordResult(eventRecord);
+        }
+        
+        final Map<String, LatencyHistogram> lastStartDelaysByEventName = new HashMap<String, LatencyHistogram>(17);
+        resultService.getResults(
+                new StartDelayResultHandler()
+                {
+                    @Override
+                    public boolean processResult(
+                            long fromTime, long toTime,
+                            Map<String, LatencyHistogram> statsByEventName,
+                            Map<String, Integer> failuresByEventName) throws Throwable
+                    {
+                        fail("Start delays were not reported.");
+                        return false;
+                    }
+                    
+                    @Override
+                    public boolean processResult(
+                            long fromTime, long toTime,
+                            Map<String, LatencyHistogram> statsByEventName,
+                            Map<String, Integer> failuresByEventName,
+                            Map<String, LatencyHistogram> startDelaysByEventName) throws Throwable
+                    {
+                        assertEquals(statsByEventName.keySet(), startDelaysByEventName.keySet());
+                        lastStartDelaysByEventName.clear();
+                        lastStartDelaysByEventName.putAll(startDelaysByEventName);
+                        return true;
+                    }
+                },
+                0L, 1000L, 1000L, false);
+        
+        LatencyHistogram startDelays = lastStartDelaysByEventName.get("late");
+        assertNotNull(startDelays);
+        assertEquals(10L, startDelays.getN());
+        assertEquals(0.0, startDelays.getMin(), 0.5);
+        assertEquals(90.0, startDelays.getMax(), 0.5);
+    }
+    
+    /**
+     * Check that streamed results are complete and in order, even when start times are shared
+     */
+    @Test
+    public void streamResults()
+    {
+        pumpRecords(100);
+        long startTime = resultService.getFirstResult().getStartTime();
+        for (int i = 0; i < 50; i++)
+        {
+            resultService.recordResult(createEventRecord(startTime + 500L));
+        }
+        long endTime = resultService.getLastResult().getStartTime() + 1L;
+        
+        final List<EventRecord> streamed = new ArrayList<EventRecord>(150);
+        long count = resultService.streamResults(
+                startTime, endTime, false,
+                new EventRecordHandler()
+                {
+                    @Override
+                    public boolean processResult(EventRecord eventRecord)
+                    {
+                        streamed.add(eventRecord);
+                        return true;
+                    }
+                });
+        assertEquals(150L, count);
+        assertEquals(150, streamed.size());
+        Set<String> ids = new HashSet<String>(301);
+        long lastStartTime = Long.MIN_VALUE;
+        for (EventRecord eventRecord : streamed)
+        {
+            assertTrue("Results out of order. ", eventRecord.getStartTime() >= lastStartTime);
+            lastStartTime = eventRecord.getStartTime();
+            assertTrue("Result streamed twice: " + eventRecord, ids.add(eventRecord.getId()));
+        }
+        
+        // The end time is exclusive
+        assertEquals(149L, resultService.streamResults(startTime, endTime - 1L, false, new EventRecordHandler()
+        {
+            @Override
+            public boolean processResult(EventRecord eventRecord)
+            {
+                return true;
+            }
+        }));
+        
+        // The handler can stop the stream
+        final AtomicInteger seen = new AtomicInteger();
+        count = resultService.streamResults(
+                startTime, endTime, false,
+                new EventRecordHandler()
+                {
+                    @Override
+                    public boolean processResult(EventRecord eventRecord)
+                    {
+                        return seen.incrementAndGet() < 10;
+                    }
+                });
+        assertEquals(10L, count);
+        assertEquals(10, seen.get());
+    }
+    
+    /**
+     * Check that the pre-aggregated results match the raw results
+     */
+    @Test
+    public void getAggregatedResults()
+    {
+        pumpRecords(300);
+        
+        final AtomicInteger count = new AtomicInteger();
+        final Map<String, ResultAggregate> totalsByEventName = new HashMap<String, ResultAggregate>(17);
+        boolean aggregated = resultService.getAggregatedResults(
+                new ResultAggregateHandler()
+                {
+                    @Override
+                    public boolean processResult(
+                            long fromTime, long toTime,
+                            Map<String, ResultAggregate> aggregatesByEventName) throws Throwable
+                    {
+                        assertEquals("Window not rebased. ", 0L, toTime % 1000L);
+                        assertEquals("Window size incorrect", 1000L, toTime - fromTime);
+                        for (Map.Entry<String, ResultAggregate> entry : aggregatesByEventName.entrySet())
+                        {
+                            ResultAggregate total = totalsByEventName.get(entry.getKey());
+                            if (total == null)
+                            {
+                                total = new ResultAggregate();
+                                totalsByEventName.put(entry.getKey(), total);
+                            }
+                            total.merge(entry.getValue());
+                        }
+                        count.incrementAndGet();
+                        return true;
+                    }
+                },
+                0L, 1000L, 1000L, false);
+        assertTrue("Results were not aggregated.", aggregated);
+        // 3 seconds of results will span 3 or 4 report periods
+        assertTrue("Incorrect number of reports: " + count.get(), count.get() >= 3 && count.get() <= 4);
+        
+        // Compare with the raw results
+        for (String eventName : resultService.getEventNames())
+        {
+            List<EventRecord> eventResults = resultService.getResults(eventName, 0, 1000);
+            DescriptiveStatistics eventStats = new DescriptiveStatistics();
+            int failures = 0;
+            for (EventRecord eventRecord : eventResults)
+            {
+                eventStats.addValue(eventRecord.getTime());
+                failures += eventRecord.isSuccess() ? 0 : 1;
+            }
+            ResultAggregate total = totalsByEventName.get(eventName);
+            assertNotNull("No aggregate for event '" + eventName  + "'.", total);
+            assertEquals(eventStats.getN(), total.getN());
+            assertEquals(failures, total.getFailures());
+            assertEquals(eventStats.getMean(), total.getMean(), 0.001);
+            assertEquals(eventStats.getMax(), total.getMax(), 0.001);
+            assertEquals(eventStats.getStandardDeviation(), total.getStandardDeviation(), 0.001);
+        }
+        
+        // Report periods that are not a multiple of the bucket size have to use the raw results
+        assertEquals(false, resultService.getAggregatedResults(
+                new ResultAggregateHandler()
+                {
+                    @Override
+                    public boolean processResult(
+                            long fromTime, long toTime,
+                            Map<String, ResultAggregate> aggregatesByEventName) throws Throwable
+                    {
+                        return true;
+                    }
+                },
+                0L, 200L, 10L, false));
+    }
 }
@@ -0,0 +1,134 @@
+package org.alfresco.bm.report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.bm.event.EventRecord;
+import org.alfresco.bm.event.mongo.MongoResultService;
+import org.alfresco.bm.event.mongo.MongoResultServiceTest;
+import org.alfresco.bm.report.ResultScan.ResultAggregator;
+import org.alfresco.mongo.MongoDBForTestsFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.mongodb.DB;
+
+/**
+ * @see ResultScan
+ *
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class ResultScanTest
+{
+    private MongoDBForTestsFactory mongoFactory;
+    private MongoResultService resultService;
+    private DB db;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mongoFactory = new MongoDBForTestsFactory();
+        db = mongoFactory.getObject();
+        resultService = new MongoResultService(db, "rs");
+        resultService.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        resultService.stop();
+        mongoFactory.destroy();
+    }
+
+    /**
+     * Counts results and optionally stops asking for them
+     */
+    private static class CountingAggregator implements ResultAggregator
+    {
+        private final int max;
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicInteger finished = new AtomicInteger();
+        private CountingAggregator(int max)
+        {
+            this.max = max;
+        }
+        @Override
+        public boolean processResult(EventRecord eventRecord)
+        {
+            return count.incrementAndGet() < max;
+        }
+        @Override
+        public void finish()
+        {
+            finished.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void empty()
+    {
+        CountingAggregator aggregator = new CountingAggregator(Integer.MAX_VALUE);
+        ResultScan scan = new ResultScan(resultService);
+        scan.addAggregator(aggregator);
+        assertEquals(0L, scan.scan());
+        assertEquals(0, aggregator.count.get());
+        assertEquals(1, aggregator.finished.get());
+    }
+
+    @Test
+    public void fanOut()
+    {
+        long testStartTime = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++)
+        {
+            resultService.recordResult(MongoResultServiceTest.createEventRecord(testStartTime + i * 10L));
+        }
+        CountingAggregator all = new CountingAggregator(Integer.MAX_VALUE);
+        CountingAggregator some = new CountingAggregator(10);
+        ResultSummaryAggregator summaryAggregator = new ResultSummaryAggregator(false);
+        ResultScan scan = new ResultScan(resultService);
+        scan.addAggregator(all);
+        scan.addAggregator(some);
+        scan.addAggregator(summaryAggregator);
+
+        // The results are read once, regardless of the number of aggregators
+        assertEquals(100L, scan.scan());
+        assertEquals(100, all.count.get());
+        assertEquals(10, some.count.get());
+        assertEquals(1, all.finished.get());
+        assertEquals(1, some.finished.get());
+
+        TreeMap<String, ResultSummary> summaries = summaryAggregator.getSummaries();
+        long total = 0L;
+        for (ResultSummary summary : summaries.values())
+        {
+            total += summary.getTotalResults();
+        }
+        assertEquals(100L, total);
+        assertEquals(resultService.getEventNames().size(), summaries.size());
+    }
+
+    @Test
+    public void stopWhenNoAggregatorWantsMore()
+    {
+        long testStartTime = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++)
+        {
+            resultService.recordResult(MongoResultServiceTest.createEventRecord(testStartTime + i * 10L));
+        }
+        CountingAggregator some = new CountingAggregator(10);
+        CountingAggregator more = new CountingAggregator(20);
+        ResultScan scan = new ResultScan(resultService);
+        scan.addAggregator(some);
+        scan.addAggregator(more);
+        assertEquals(20L, scan.scan());
+        assertTrue(more.finished.get() == 1 && some.finished.get() == 1);
+    }
+}
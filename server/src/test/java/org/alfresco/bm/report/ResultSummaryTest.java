@@ -85,4 +85,25 @@ public class ResultSummaryTest
         Assert.assertEquals(2, summary.getStats(false).getN());
         Assert.assertEquals(30.0, summary.getStats(false).getMean(), 0.001);
     }
+
+    @Test
+    public void startDelays()
+    {
+        ResultSummary summary = new ResultSummary("A");
+        summary.addSample(true, 20L, 0L);
+        summary.addSample(false, 20L, 100L);
+        Assert.assertEquals(2, summary.getTotalResults());
+        Assert.assertEquals(2, summary.getStartDelays().getN());
+        Assert.assertEquals(50.0, summary.getStartDelays().getMean(), 0.001);
+        Assert.assertEquals(100.0, summary.getStartDelays().getMax(), 0.001);
+        try
+        {
+            summary.addSample(true, 20L, -1L);
+            Assert.fail("Did not detect negative start delay");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+    }
 }
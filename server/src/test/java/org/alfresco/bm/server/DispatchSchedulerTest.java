@@ -0,0 +1,139 @@
+package org.alfresco.bm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.bm.event.Event;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * @see TokenBucketDispatchScheduler
+ * @see ScheduledTimeDispatchScheduler
+ * 
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class DispatchSchedulerTest
+{
+    @Test
+    public void tokenBucketRate()
+    {
+        DispatchScheduler scheduler = new TokenBucketDispatchScheduler(200.0, 10);
+        long before = System.currentTimeMillis();
+        int claimed = 0;
+        while (claimed < 100)
+        {
+            int count = scheduler.awaitClaim(10, 1000L);
+            // Nothing is found, which costs one token
+            scheduler.claimed(Collections.<Event>emptyList(), count);
+            claimed += (count > 0) ? 1 : 0;
+        }
+        long elapsed = System.currentTimeMillis() - before;
+        // 100 searches at 200 per second take half a second
+        assertTrue("Searches were not limited: " + elapsed, elapsed >= 400L);
+        assertTrue("Searches were too slow: " + elapsed, elapsed < 2000L);
+    }
+    
+    @Test
+    public void tokenBucketDispatchesImmediately()
+    {
+        DispatchScheduler scheduler = new TokenBucketDispatchScheduler(1000.0, 10);
+        Event event = new Event("A", System.currentTimeMillis() + 60000L, null);
+        int count = scheduler.awaitClaim(10, 1000L);
+        assertTrue(count > 0);
+        scheduler.claimed(Collections.singletonList(event), count);
+        assertEquals(1, scheduler.getPendingCount());
+        List<Event> dueEvents = new ArrayList<Event>();
+        assertEquals(1, scheduler.drainDue(dueEvents, 1000L));
+        assertEquals(event, dueEvents.get(0));
+        assertEquals(0, scheduler.getPendingCount());
+    }
+    
+    @Test
+    public void scheduledTimeOrder()
+    {
+        DispatchScheduler scheduler = new ScheduledTimeDispatchScheduler(1000L, 100L, 10);
+        assertEquals(1000L, scheduler.getLookAhead());
+        long now = System.currentTimeMillis();
+        Event eventLate = new Event("LATE", now + 300L, null);
+        Event eventEarly = new Event("EARLY", now + 100L, null);
+        Event eventPast = new Event("PAST", now - 100L, null);
+        
+        assertEquals(5, scheduler.awaitClaim(5, 1000L));
+        scheduler.claimed(Arrays.asList(eventLate, eventEarly, eventPast), 5);
+        // The claim came up short so we have to wait before searching again
+        assertEquals(0, scheduler.awaitClaim(5, 1000L));
+        
+        List<Event> dueEvents = new ArrayList<Event>();
+        scheduler.drainDue(dueEvents, 1000L);
+        assertEquals(Collections.singletonList(eventPast), dueEvents);
+        
+        dueEvents.clear();
+        while (dueEvents.size() < 2)
+        {
+            scheduler.drainDue(dueEvents, 1000L);
+        }
+        long dispatchTime = System.currentTimeMillis();
+        assertEquals(Arrays.asList(eventEarly, eventLate), dueEvents);
+        assertTrue("Event was dispatched before its scheduled time.", dispatchTime >= eventLate.getScheduledTime());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+    
+    @Test
+    public void scheduledTimeCapacity()
+    {
+        DispatchScheduler scheduler = new ScheduledTimeDispatchScheduler(1000L, 100L, 2);
+        long scheduledTime = System.currentTimeMillis() + 500L;
+        assertEquals(2, scheduler.awaitClaim(5, 1000L));
+        scheduler.claimed(Arrays.asList(new Event("A", scheduledTime, null), new Event("B", scheduledTime, null)), 2);
+        // Full, so no more can be claimed
+        assertEquals(0, scheduler.awaitClaim(5, 1000L));
+    }
+    
+    @Test
+    public void scheduledTimeWaitsWithoutClaims()
+    {
+        DispatchScheduler scheduler = new ScheduledTimeDispatchScheduler(1000L, 100L, 10);
+        long now = System.currentTimeMillis();
+        Event eventPast = new Event("PAST", now - 100L, null);
+        Event eventLate = new Event("LATE", now + 600L, null);
+        assertEquals(2, scheduler.awaitClaim(2, 1000L));
+        scheduler.claimed(Arrays.asList(eventPast, eventLate), 2);
+        List<Event> dueEvents = new ArrayList<Event>();
+        assertEquals(1, scheduler.drainDue(dueEvents, 1000L));
+        
+        // Nothing is claimed, as when all the threads are busy, so the drain must not spin
+        long before = System.currentTimeMillis();
+        int drains = 0;
+        dueEvents.clear();
+        while (dueEvents.isEmpty())
+        {
+            scheduler.drainDue(dueEvents, 1000L);
+            drains++;
+        }
+        long elapsed = System.currentTimeMillis() - before;
+        assertEquals(Collections.singletonList(eventLate), dueEvents);
+        assertTrue("Event was dispatched before its scheduled time.", System.currentTimeMillis() >= eventLate.getScheduledTime());
+        assertTrue("Draining did not wait: " + drains + " drains in " + elapsed + "ms", drains <= 10);
+    }
+    
+    @Test
+    public void scheduledTimeWaitsWhenFull()
+    {
+        DispatchScheduler scheduler = new ScheduledTimeDispatchScheduler(1000L, 100L, 1);
+        Event event = new Event("A", System.currentTimeMillis() + 300L, null);
+        assertEquals(1, scheduler.awaitClaim(5, 1000L));
+        scheduler.claimed(Collections.singletonList(event), 1);
+        // Full, so the drain waits for the event to become due
+        List<Event> dueEvents = new ArrayList<Event>();
+        assertEquals(1, scheduler.drainDue(dueEvents, 1000L));
+        assertTrue(System.currentTimeMillis() >= event.getScheduledTime());
+    }
+}
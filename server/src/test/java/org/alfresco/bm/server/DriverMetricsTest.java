@@ -0,0 +1,95 @@
+package org.alfresco.bm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.alfresco.bm.server.DriverMetrics.Counter;
+import org.alfresco.bm.server.DriverMetrics.Histogram;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.mongodb.DBObject;
+
+/**
+ * @see DriverMetrics
+ * 
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class DriverMetricsTest
+{
+    @Test
+    public void countersFromManyThreads() throws Exception
+    {
+        final DriverMetrics metrics = new DriverMetrics();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 10000; j++)
+                    {
+                        metrics.getCounter("a").increment();
+                        metrics.getHistogram("b").record(j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertSame(metrics.getCounter("a"), metrics.getCounter("a"));
+        assertEquals(80000L, metrics.getCounter("a").get());
+        assertEquals(80000L, metrics.getHistogram("b").getCount());
+        assertEquals(9999L, metrics.getHistogram("b").getMax());
+        assertEquals(4999.5, metrics.getHistogram("b").getMean(), 0.001);
+    }
+    
+    @Test
+    public void histogramPercentiles()
+    {
+        Histogram histogram = new DriverMetrics().getHistogram("h");
+        assertEquals(0L, histogram.getPercentile(50.0));
+        assertEquals(0.0, histogram.getMean(), 0.0);
+        for (int i = 0; i < 90; i++)
+        {
+            histogram.record(10L);
+        }
+        for (int i = 0; i < 10; i++)
+        {
+            histogram.record(1000L);
+        }
+        histogram.record(-5L);
+        // Percentiles are the upper bound of the power-of-two bucket
+        assertEquals(15L, histogram.getPercentile(50.0));
+        assertEquals(1000L, histogram.getPercentile(99.0));
+        assertEquals(0L, histogram.getPercentile(0.0));
+    }
+    
+    @Test
+    public void snapshot()
+    {
+        DriverMetrics metrics = new DriverMetrics();
+        Counter counter = metrics.getCounter(DriverMetrics.METRIC_EVENTS_IN_FLIGHT);
+        counter.increment();
+        counter.increment();
+        counter.decrement();
+        metrics.getHistogram(DriverMetrics.METRIC_EVENTS_CLAIM).record(3L);
+        DBObject metricsObj = metrics.toDBObject();
+        assertTrue(metricsObj.get(DriverMetrics.FIELD_TIME) instanceof Long);
+        DBObject countersObj = (DBObject) metricsObj.get(DriverMetrics.FIELD_COUNTERS);
+        assertEquals(1L, countersObj.get(DriverMetrics.METRIC_EVENTS_IN_FLIGHT));
+        DBObject histogramsObj = (DBObject) metricsObj.get(DriverMetrics.FIELD_HISTOGRAMS);
+        DBObject claimObj = (DBObject) histogramsObj.get(DriverMetrics.METRIC_EVENTS_CLAIM);
+        assertEquals(1L, claimObj.get(DriverMetrics.FIELD_COUNT));
+        assertEquals(3L, claimObj.get(DriverMetrics.FIELD_MAX));
+        assertEquals(3L, claimObj.get("p99"));
+    }
+}
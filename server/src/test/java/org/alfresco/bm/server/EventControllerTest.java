@@ -0,0 +1,249 @@
+package org.alfresco.bm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.bm.event.AbstractEventProcessor;
+import org.alfresco.bm.event.Event;
+import org.alfresco.bm.event.EventProcessorRegistry;
+import org.alfresco.bm.event.EventResult;
+import org.alfresco.bm.event.EventService;
+import org.alfresco.bm.event.ResultService;
+import org.alfresco.bm.event.producer.EventProducerRegistry;
+import org.alfresco.bm.log.TestRunLogService;
+import org.alfresco.bm.server.EventController.DispatchModel;
+import org.alfresco.bm.session.SessionService;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+/**
+ * @see EventController
+ * 
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class EventControllerTest
+{
+    private static boolean isVirtualThreadSupported()
+    {
+        try
+        {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        }
+        catch (NoSuchMethodException e)
+        {
+            return false;
+        }
+    }
+    
+    @Test
+    public void virtualThreadExecutor() throws Exception
+    {
+        ExecutorService executor = EventController.createVirtualThreadExecutor("test-");
+        if (!isVirtualThreadSupported())
+        {
+            assertNull("Virtual threads are not available on this JVM.", executor);
+            return;
+        }
+        // Many more tasks than platform threads can wait at the same time
+        final int count = 10000;
+        final CountDownLatch allStarted = new CountDownLatch(count);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger finished = new AtomicInteger();
+        for (int i = 0; i < count; i++)
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    allStarted.countDown();
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    finished.incrementAndGet();
+                }
+            });
+        }
+        assertTrue("Tasks did not all run at the same time.", allStarted.await(30, TimeUnit.SECONDS));
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(count, finished.get());
+    }
+    
+    /**
+     * Counts the drains of a scheduler so that spinning can be detected
+     */
+    private static class CountingDispatchScheduler implements DispatchScheduler
+    {
+        private final DispatchScheduler scheduler;
+        private final AtomicInteger drains = new AtomicInteger();
+        private CountingDispatchScheduler(DispatchScheduler scheduler)
+        {
+            this.scheduler = scheduler;
+        }
+        @Override
+        public int awaitClaim(int maxCount, long maxWait)
+        {
+            return scheduler.awaitClaim(maxCount, maxWait);
+        }
+        @Override
+        public long getLookAhead()
+        {
+            return scheduler.getLookAhead();
+        }
+        @Override
+        public void claimed(List<Event> events, int claimCount)
+        {
+            scheduler.claimed(events, claimCount);
+        }
+        @Override
+        public int drainDue(List<Event> dueEvents, long maxWait)
+        {
+            drains.incrementAndGet();
+            return scheduler.drainDue(dueEvents, maxWait);
+        }
+        @Override
+        public int drainAll(List<Event> events)
+        {
+            return scheduler.drainAll(events);
+        }
+        @Override
+        public int getPendingCount()
+        {
+            return scheduler.getPendingCount();
+        }
+    }
+    
+    @Test
+    public void openDispatchWaitsForPermits() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger processed = new AtomicInteger();
+        EventProcessorRegistry eventProcessors = new EventProcessorRegistry();
+        eventProcessors.register("A", new AbstractEventProcessor()
+        {
+            @Override
+            protected EventResult processEvent(Event event) throws Exception
+            {
+                release.await();
+                processed.incrementAndGet();
+                return new EventResult("Done", Collections.<Event>emptyList());
+            }
+        });
+        // One event is due now and the next is claimed well before it is due
+        long now = System.currentTimeMillis();
+        Event eventNow = new Event("A", now, null);
+        Event eventLater = new Event("A", now + 1500L, null);
+        EventService eventService = Mockito.mock(EventService.class);
+        Mockito.when(eventService.nextEvents(Mockito.anyString(), Mockito.anyLong(), Mockito.anyInt()))
+                .thenReturn(Arrays.asList(eventNow, eventLater))
+                .thenReturn(Collections.<Event>emptyList());
+        Mockito.when(eventService.count()).thenReturn(1L);
+        Mockito.when(eventService.deleteEvent(Mockito.any(Event.class))).thenReturn(true);
+        
+        DriverMetrics metrics = new DriverMetrics();
+        CountingDispatchScheduler scheduler = new CountingDispatchScheduler(new ScheduledTimeDispatchScheduler(1000L, 100L, 10));
+        EventController controller = new EventController(
+                "driver", "test.run",
+                eventService,
+                new EventProducerRegistry(),
+                eventProcessors,
+                Mockito.mock(ResultService.class),
+                Mockito.mock(SessionService.class),
+                Mockito.mock(TestRunLogService.class),
+                1);
+        controller.setDispatchModel(DispatchModel.OPEN);
+        controller.setDispatchQueueSize(0);
+        controller.setEventBatchSize(2);
+        controller.setDispatchScheduler(scheduler);
+        controller.setMetrics(metrics);
+        controller.start();
+        try
+        {
+            // The only thread is busy and the held event is not due, so the controller must wait
+            Thread.sleep(500L);
+            assertEquals(0, processed.get());
+            assertEquals(1L, metrics.getCounter(DriverMetrics.METRIC_EVENTS_IN_FLIGHT).get());
+            int drains = scheduler.drains.get();
+            assertTrue("Controller is spinning: " + drains + " drains", drains <= 10);
+            
+            release.countDown();
+            long timeout = System.currentTimeMillis() + 10000L;
+            while (processed.get() < 2 && System.currentTimeMillis() < timeout)
+            {
+                Thread.sleep(50L);
+            }
+            assertEquals(2, processed.get());
+            assertTrue("Event was processed early.", System.currentTimeMillis() >= eventLater.getScheduledTime());
+        }
+        finally
+        {
+            release.countDown();
+            controller.stop();
+        }
+        // Every permit was given back
+        assertEquals(2L, metrics.getCounter(DriverMetrics.METRIC_EVENTS_DISPATCHED).get());
+        assertEquals(0L, metrics.getCounter(DriverMetrics.METRIC_EVENTS_IN_FLIGHT).get());
+    }
+    
+    @Test
+    public void stopReleasesClaimedEvents() throws Exception
+    {
+        // The event is claimed well before it is due
+        long now = System.currentTimeMillis();
+        Event eventLater = new Event("A", now + 60000L, null);
+        eventLater.setId("000000000000000000000002");
+        eventLater.setLockOwner("driver");
+        eventLater.setLockTime(now);
+        EventService eventService = Mockito.mock(EventService.class);
+        Mockito.when(eventService.nextEvents(Mockito.anyString(), Mockito.anyLong(), Mockito.anyInt()))
+                .thenReturn(Collections.singletonList(eventLater))
+                .thenReturn(Collections.<Event>emptyList());
+        Mockito.when(eventService.count()).thenReturn(1L);
+        Mockito.when(eventService.unlockEvent(Mockito.any(Event.class))).thenReturn(true);
+        
+        EventController controller = new EventController(
+                "driver", "test.run",
+                eventService,
+                new EventProducerRegistry(),
+                new EventProcessorRegistry(),
+                Mockito.mock(ResultService.class),
+                Mockito.mock(SessionService.class),
+                Mockito.mock(TestRunLogService.class),
+                1);
+        controller.setDispatchModel(DispatchModel.OPEN);
+        controller.setDispatchLookAhead(120000L);
+        controller.start();
+        try
+        {
+            Thread.sleep(200L);
+        }
+        finally
+        {
+            controller.stop();
+        }
+        // The held event is unlocked rather than removed
+        Mockito.verify(eventService).unlockEvent(eventLater);
+        Mockito.verify(eventService, Mockito.never()).deleteEvent(Mockito.any(Event.class));
+        Mockito.verify(eventService, Mockito.never()).putEvent(Mockito.any(Event.class));
+    }
+}
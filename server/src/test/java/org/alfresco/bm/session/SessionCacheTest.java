@@ -0,0 +1,162 @@
+package org.alfresco.bm.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Checks the session data caching done by {@link AbstractSessionService}
+ *
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class SessionCacheTest
+{
+    /**
+     * Keeps sessions in a map and counts the reads
+     */
+    private static class MapSessionService extends AbstractSessionService
+    {
+        private final Map<String, SessionData> sessions = new HashMap<String, SessionData>();
+        private int finds = 0;
+
+        @Override
+        protected String newSession(SessionData sessionData)
+        {
+            String sessionId = "" + sessions.size();
+            sessions.put(sessionId, sessionData);
+            return sessionId;
+        }
+
+        @Override
+        protected SessionData findSessionData(String sessionId)
+        {
+            finds++;
+            SessionData sessionData = sessions.get(sessionId);
+            if (sessionData == null)
+            {
+                return null;
+            }
+            SessionData copy = new SessionData(sessionData.getData());
+            copy.setId(sessionId);
+            copy.setStartTime(sessionData.getStartTime());
+            copy.setEndTime(sessionData.getEndTime());
+            return copy;
+        }
+
+        @Override
+        protected void updateSessionEndTime(String sessionId, long endTime)
+        {
+            sessions.get(sessionId).setEndTime(endTime);
+        }
+
+        @Override
+        protected boolean updateSessionData(String sessionId, DBObject data)
+        {
+            SessionData sessionData = sessions.get(sessionId);
+            if (sessionData == null)
+            {
+                return false;
+            }
+            sessionData.setData(data);
+            return true;
+        }
+
+        @Override
+        public long getActiveSessionsCount()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getCompletedSessionsCount()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getAllSessionsCount()
+        {
+            return sessions.size();
+        }
+
+        @Override
+        public boolean clear()
+        {
+            sessions.clear();
+            clearCache();
+            return true;
+        }
+    }
+
+    private MapSessionService sessionService;
+
+    @Before
+    public void setUp()
+    {
+        sessionService = new MapSessionService();
+    }
+
+    @Test
+    public void readsAreCached()
+    {
+        String sessionId = sessionService.startSession(new BasicDBObject("key", "abc"));
+        assertTrue(sessionService.getSessionStartTime(sessionId) > 0L);
+        assertEquals(-1L, sessionService.getSessionEndTime(sessionId));
+        assertEquals("abc", sessionService.getSessionData(sessionId).get("key"));
+        assertEquals("A new session should not need reading.", 0, sessionService.finds);
+
+        // Updates are written through
+        sessionService.setSessionData(sessionId, new BasicDBObject("key", "def"));
+        sessionService.endSession(sessionId);
+        assertEquals("def", sessionService.sessions.get(sessionId).getData().get("key"));
+        assertTrue(sessionService.sessions.get(sessionId).getEndTime() > 0L);
+        assertEquals("def", sessionService.getSessionData(sessionId).get("key"));
+        assertEquals(sessionService.sessions.get(sessionId).getEndTime(), sessionService.getSessionEndTime(sessionId));
+        assertEquals(0, sessionService.finds);
+
+        // Once cleared, the session is read
+        sessionService.clearCache();
+        sessionService.getSessionStartTime(sessionId);
+        sessionService.getSessionEndTime(sessionId);
+        assertEquals(1, sessionService.finds);
+    }
+
+    @Test
+    public void cachedDataIsIsolated()
+    {
+        DBObject data = new BasicDBObject("key", "abc");
+        String sessionId = sessionService.startSession(data);
+        data.put("key", "changed");
+        DBObject cachedData = sessionService.getSessionData(sessionId);
+        assertEquals("abc", cachedData.get("key"));
+        cachedData.put("key", "changed");
+        assertEquals("abc", sessionService.getSessionData(sessionId).get("key"));
+    }
+
+    @Test
+    public void cacheDisabled()
+    {
+        sessionService.setCacheSize(0L);
+        String sessionId = sessionService.startSession(null);
+        sessionService.getSessionStartTime(sessionId);
+        sessionService.getSessionEndTime(sessionId);
+        assertEquals(2, sessionService.finds);
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void missingSession()
+    {
+        sessionService.getSessionStartTime("does not exist");
+    }
+}
@@ -35,6 +35,7 @@ import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.core.env.PropertiesPropertySource;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
 import com.mongodb.DBObject;
 
 /**
@@ -121,6 +122,55 @@ public class SessionServiceTest
         assertEquals(200, sessionService.getAllSessionsCount());
     }
     
+    /**
+     * Counts are kept across services sharing the collection and sessions are only counted as ended once
+     */
+    @Test
+    public void sharedCounts() throws Exception
+    {
+        DB db = ctx.getBean(DB.class);
+        MongoSessionService otherSessionService = new MongoSessionService(db, COLLECTION_BM_USER_DATA_SERVICE);
+        otherSessionService.start();
+        
+        long sessionAllCountStart = sessionService.getAllSessionsCount();
+        long sessionCompletedCountStart = sessionService.getCompletedSessionsCount();
+        long sessionActiveCountStart = sessionService.getActiveSessionsCount();
+        String sessionId = sessionService.startSession(null);
+        otherSessionService.startSession(null);
+        assertEquals(sessionAllCountStart + 2L, otherSessionService.getAllSessionsCount());
+        assertEquals(sessionActiveCountStart + 2L, sessionService.getActiveSessionsCount());
+        
+        sessionService.endSession(sessionId);
+        otherSessionService.endSession(sessionId);
+        assertEquals(sessionCompletedCountStart + 1L, otherSessionService.getCompletedSessionsCount());
+        assertEquals(sessionActiveCountStart + 1L, sessionService.getActiveSessionsCount());
+    }
+    
+    /**
+     * Sessions recorded before the counts were kept are counted when the service starts
+     */
+    @Test
+    public void countsSeededFromSessions() throws Exception
+    {
+        DB db = ctx.getBean(DB.class);
+        String sessionId = sessionService.startSession(null);
+        sessionService.startSession(null);
+        sessionService.endSession(sessionId);
+        long sessionAllCount = sessionService.getAllSessionsCount();
+        long sessionCompletedCount = sessionService.getCompletedSessionsCount();
+        
+        db.getCollection(COLLECTION_BM_USER_DATA_SERVICE + ".stats").drop();
+        MongoSessionService otherSessionService = new MongoSessionService(db, COLLECTION_BM_USER_DATA_SERVICE);
+        otherSessionService.start();
+        assertEquals(sessionAllCount, otherSessionService.getAllSessionsCount());
+        assertEquals(sessionCompletedCount, otherSessionService.getCompletedSessionsCount());
+        
+        // Seeding again does not lose sessions counted since
+        otherSessionService.startSession(null);
+        otherSessionService.start();
+        assertEquals(sessionAllCount + 1L, sessionService.getAllSessionsCount());
+    }
+    
     @Test
     public void failureModes()
     {
@@ -28,6 +28,7 @@ import static org.junit.Assert.fail;
 import java.io.InputStream;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -55,6 +56,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
@@ -1063,6 +1065,103 @@ public class MongoTestDAOTest implements TestConstants
         checkPropertyValue(testA, runA1, "one.int", "123", null, 0, TestPropertyOrigin.DEFAULTS);
     }
     
+    @Test
+    public void testCachedTestRunProperties() throws ObjectNotFoundException
+    {
+        String test = createTest(null);
+        String run = createTestRun(test, null);
+        DBObject runObj = dao.getTestRun(test, run, false);
+        ObjectId testId = (ObjectId) runObj.get(FIELD_TEST);
+        ObjectId runId = (ObjectId) runObj.get(FIELD_ID);
+        
+        // Changes made by the caller must not leak into the cache
+        Map<String, DBObject> propsMap = dao.getTestRunPropertiesMap(testId, runId, test, run);
+        assertEquals("123", propsMap.get("one.int").get(FIELD_DEFAULT));
+        propsMap.get("one.int").put(FIELD_DEFAULT, "changed");
+        propsMap.remove("one.str");
+        propsMap = dao.getTestRunPropertiesMap(testId, runId, test, run);
+        assertEquals("123", propsMap.get("one.int").get(FIELD_DEFAULT));
+        assertNotNull(propsMap.get("one.str"));
+        
+        // Test and run overrides are seen straight away
+        dao.setPropertyOverride(test, null, "one.int", 0, "456");
+        checkPropertyValue(test, run, "one.int", "456", null, 0, TestPropertyOrigin.TEST);
+        dao.setPropertyOverride(test, run, "one.int", 0, "789");
+        checkPropertyValue(test, run, "one.int", "456", "789", 1, TestPropertyOrigin.RUN);
+        
+        // Locked properties are seen straight away
+        dao.lockProperties(testId, runId);
+        propsMap = dao.getTestRunPropertiesMap(testId, runId, test, run);
+        assertEquals(Integer.valueOf(Short.MAX_VALUE + 1), propsMap.get("one.int").get(FIELD_VERSION));
+        assertEquals("789", propsMap.get("one.int").get(FIELD_VALUE));
+        
+        // Deleted runs are not found
+        assertTrue(dao.deleteTestRun(runId));
+        try
+        {
+            dao.getTestRunPropertiesMap(testId, runId, test, run);
+            fail("Properties of a deleted test run should not be found.");
+        }
+        catch (ObjectNotFoundException e)
+        {
+            // Expected
+        }
+    }
+    
+    @Test
+    public void testCachedTestRunPropertiesAcrossDAOs() throws Exception
+    {
+        String test = createTest(null);
+        String run = createTestRun(test, null);
+        DBObject runObj = dao.getTestRun(test, run, false);
+        ObjectId testId = (ObjectId) runObj.get(FIELD_TEST);
+        ObjectId runId = (ObjectId) runObj.get(FIELD_ID);
+        
+        // Another server or driver has the properties cached
+        MongoTestDAO otherDao = new MongoTestDAO(db);
+        otherDao.start();
+        try
+        {
+            assertEquals("123", otherDao.getTestRunPropertiesMap(testId, runId, test, run).get("one.int").get(FIELD_DEFAULT));
+            assertNull(otherDao.getTestRunPropertiesMap(testId, runId, test, run).get("one.int").get(FIELD_VALUE));
+            
+            // Test overrides made elsewhere are seen
+            dao.setPropertyOverride(test, null, "one.int", 0, "456");
+            assertEquals("456", otherDao.getTestRunPropertiesMap(testId, runId, test, run).get("one.int").get(FIELD_VALUE));
+            // Run overrides made elsewhere are seen
+            dao.setPropertyOverride(test, run, "one.int", 0, "789");
+            assertEquals("789", otherDao.getTestRunPropertiesMap(testId, runId, test, run).get("one.int").get(FIELD_VALUE));
+            assertEquals("789", getRunProperty(otherDao.getTestRun(runId, true), "one.int").get(FIELD_VALUE));
+            // Locked properties made elsewhere are seen
+            dao.lockProperties(testId, runId);
+            assertEquals(
+                    Integer.valueOf(Short.MAX_VALUE + 1),
+                    otherDao.getTestRunPropertiesMap(testId, runId, test, run).get("one.int").get(FIELD_VERSION));
+            
+            // The version used to check the cache is not exposed
+            assertNull(otherDao.getTestRun(runId, false).get(FIELD_PROPS_VERSION));
+        }
+        finally
+        {
+            otherDao.stop();
+        }
+    }
+    
+    /**
+     * Find a property in the property list of a test run
+     */
+    private static DBObject getRunProperty(DBObject runObj, String propName)
+    {
+        for (Object propObj : (BasicDBList) runObj.get(FIELD_PROPERTIES))
+        {
+            if (propName.equals(((DBObject) propObj).get(FIELD_NAME)))
+            {
+                return (DBObject) propObj;
+            }
+        }
+        return null;
+    }
+    
     @Test
     public void testUpdateTestRunState() throws ObjectNotFoundException
     {
@@ -1169,6 +1268,106 @@ public class MongoTestDAOTest implements TestConstants
         assertNotNull(runObj.get(FIELD_SUCCESS_RATE));
     }
     
+    @Test
+    public void testTestRunEvents() throws ObjectNotFoundException
+    {
+        String test = createTest(null);
+        String run = createTestRun(test, null);
+        ObjectId runId = (ObjectId) dao.getTestRun(test, run, false).get(FIELD_ID);
+        
+        ObjectId lastEventId = dao.getLastTestRunEventId();
+        assertNotNull("There must always be an event to follow.", lastEventId);
+        DBCursor cursor = dao.getTestRunEvents();
+        try
+        {
+            skipTo(cursor, lastEventId);
+            
+            // Progress updates are not published
+            assertTrue(dao.updateTestRunState(runId, 0, null, null, null, null, null, 10L, 0.5D, null, null));
+            assertNull(cursor.tryNext());
+            
+            // State changes are published
+            long scheduled = System.currentTimeMillis() + 60000L;
+            assertTrue(dao.updateTestRunState(runId, 1, TestRunState.SCHEDULED, scheduled, null, null, null, null, null, null, null));
+            DBObject eventObj = cursor.tryNext();
+            assertNotNull(eventObj);
+            assertEquals(runId, eventObj.get(FIELD_RUN));
+            assertEquals(TestRunState.SCHEDULED.toString(), eventObj.get(FIELD_STATE));
+            assertEquals(Long.valueOf(scheduled), eventObj.get(FIELD_SCHEDULED));
+            
+            // Deletions are published without a state
+            assertTrue(dao.deleteTestRun(runId));
+            eventObj = cursor.tryNext();
+            assertNotNull(eventObj);
+            assertEquals(runId, eventObj.get(FIELD_RUN));
+            assertNull(eventObj.get(FIELD_STATE));
+            assertEquals(eventObj.get(FIELD_ID), dao.getLastTestRunEventId());
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+    
+    /**
+     * Events are published with IDs generated by each server, so an event may have a
+     * lower ID than events published before it
+     */
+    @Test
+    public void testTestRunEventsInInsertionOrder() throws ObjectNotFoundException
+    {
+        String test = createTest(null);
+        String run = createTestRun(test, null);
+        ObjectId runId = (ObjectId) dao.getTestRun(test, run, false).get(FIELD_ID);
+        
+        ObjectId lastEventId = dao.getLastTestRunEventId();
+        DBCursor cursor = dao.getTestRunEvents();
+        try
+        {
+            skipTo(cursor, lastEventId);
+            // An event from a server with a clock that is behind
+            ObjectId earlyEventId = new ObjectId(new Date(0L));
+            db.getCollection(MongoTestDAO.COLLECTION_TEST_RUN_EVENTS).insert(new BasicDBObject(FIELD_ID, earlyEventId).append(FIELD_RUN, runId));
+            assertEquals(earlyEventId, dao.getLastTestRunEventId());
+            assertEquals(earlyEventId, cursor.tryNext().get(FIELD_ID));
+        }
+        finally
+        {
+            cursor.close();
+        }
+        
+        // A new cursor resumes after the last event seen, regardless of its ID
+        cursor = dao.getTestRunEvents();
+        try
+        {
+            skipTo(cursor, dao.getLastTestRunEventId());
+            assertTrue(dao.deleteTestRun(runId));
+            DBObject eventObj = cursor.tryNext();
+            assertNotNull(eventObj);
+            assertEquals(runId, eventObj.get(FIELD_RUN));
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+    
+    /**
+     * Move a test run events cursor past the given event
+     */
+    private static void skipTo(DBCursor cursor, ObjectId eventId)
+    {
+        while (true)
+        {
+            DBObject eventObj = cursor.tryNext();
+            assertNotNull("Did not find event " + eventId, eventObj);
+            if (eventId.equals(eventObj.get(FIELD_ID)))
+            {
+                return;
+            }
+        }
+    }
+    
     @Test
     public void testAddAndRemoveTestRunDrivers() throws ObjectNotFoundException
     {
@@ -19,13 +19,28 @@
 package org.alfresco.bm.cm;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -40,7 +55,7 @@ import com.mongodb.WriteResult;
  * @author Derek Hulley
  * @since 4.0.4
  */
-public class FileFolderService implements InitializingBean
+public class FileFolderService implements InitializingBean, DisposableBean
 {
     public static final String FIELD_ID = "_id";
     public static final String FIELD_CONTEXT = "context";
@@ -56,15 +71,326 @@ public class FileFolderService implements InitializingBean
     /** The collection of users, which can be reused by derived extensions. */
     protected final DBCollection collection;
     
+    private boolean sampleInMemory = false;
+    private long sampleRefreshPeriod = 0L;
+    /** Folders held in memory for random selection; <tt>null</tt> until first used */
+    private volatile RandomFolderSampler sampler;
+    private volatile long samplerLoadTime;
+    
+    private long incrementFlushPeriod = 0L;
+    /** Count increments that have not been written yet */
+    private final ConcurrentMap<FolderKey, PendingCounts> pendingCounts = new ConcurrentHashMap<FolderKey, PendingCounts>(1024);
+    /** Held for reading while folders are read and for writing while pending counts are written */
+    private final ReentrantReadWriteLock pendingCountsLock = new ReentrantReadWriteLock();
+    private volatile Thread incrementFlushThread;
+    
+    /**
+     * Identifies a folder by its context and path
+     */
+    private static class FolderKey
+    {
+        private final String context;
+        private final String path;
+        private FolderKey(String context, String path)
+        {
+            this.context = context;
+            this.path = path;
+        }
+        @Override
+        public int hashCode()
+        {
+            return context.hashCode() * 31 + path.hashCode();
+        }
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof FolderKey))
+            {
+                return false;
+            }
+            FolderKey that = (FolderKey) obj;
+            return this.context.equals(that.context) && this.path.equals(that.path);
+        }
+    }
+    
+    /**
+     * The subfolder and file count changes made to a folder but not yet written
+     */
+    private static class PendingCounts
+    {
+        private final LongAdder folderCountInc = new LongAdder();
+        private final LongAdder fileCountInc = new LongAdder();
+        /** The number of changes being made, plus {@link Integer#MIN_VALUE} while the entry is being removed */
+        private final AtomicInteger updaters = new AtomicInteger();
+        
+        private boolean isEmpty()
+        {
+            return folderCountInc.sum() == 0L && fileCountInc.sum() == 0L;
+        }
+    }
+    
     public FileFolderService(DB db, String collection)
     {
         this.collection = db.getCollection(collection);
     }
     
+    /**
+     * Pick random folders from memory rather than by querying the database.
+     * <p/>
+     * All folders are loaded when a random folder is first requested and are then kept up
+     * to date by the changes made through this service.  Changes made by other services
+     * (other drivers, for example) are only seen when the folders are
+     * {@link #setSampleRefreshPeriod(long) reloaded}.
+     * 
+     * @param sampleInMemory            <tt>true</tt> to pick random folders from memory (default <tt>false</tt>)
+     */
+    public void setSampleInMemory(boolean sampleInMemory)
+    {
+        this.sampleInMemory = sampleInMemory;
+    }
+
+    /**
+     * @param sampleRefreshPeriod       how long (ms) folders are held in memory before they are reloaded.
+     *                                  The default of <tt>0</tt> means that they are never reloaded.
+     */
+    public void setSampleRefreshPeriod(long sampleRefreshPeriod)
+    {
+        this.sampleRefreshPeriod = sampleRefreshPeriod;
+    }
+    
+    /**
+     * Write changes to subfolder and file counts in bulk rather than one at a time.
+     * <p/>
+     * When greater than zero, {@link #incrementFolderCount(String, String, long) increments}
+     * are added up in memory and written by a background thread at the given period.  Folders
+     * read through this service include the increments that have not been written yet but
+     * queries that filter by the counts only see what has been written.  Increments to folders
+     * that do not exist are logged when written rather than rejected.
+     * <p/>
+     * This must be set before {@link #afterPropertiesSet()} is called.
+     * 
+     * @param incrementFlushPeriod      how often (ms) increments are written.
+     *                                  The default of <tt>0</tt> means that they are written immediately.
+     */
+    public void setIncrementFlushPeriod(long incrementFlushPeriod)
+    {
+        if (incrementFlushPeriod < 0L)
+        {
+            throw new IllegalArgumentException("'incrementFlushPeriod' may not be negative.");
+        }
+        this.incrementFlushPeriod = incrementFlushPeriod;
+    }
+    
     @Override
     public void afterPropertiesSet() throws Exception
     {
         checkIndexes();
+        
+        if (incrementFlushPeriod > 0L)
+        {
+            Thread thread = new Thread(new IncrementFlusher(), "FileFolderService-" + collection.getName());
+            thread.setDaemon(true);
+            incrementFlushThread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops any background writing of increments and writes all pending increments
+     */
+    @Override
+    public void destroy() throws Exception
+    {
+        Thread thread = incrementFlushThread;
+        if (thread != null)
+        {
+            incrementFlushThread = null;
+            LockSupport.unpark(thread);
+            try { thread.join(); } catch (InterruptedException e) {}
+        }
+        flushIncrements();
+    }
+    
+    /**
+     * Background writer of pending increments
+     */
+    private class IncrementFlusher implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            long flushPeriodNs = TimeUnit.MILLISECONDS.toNanos(incrementFlushPeriod);
+            while (incrementFlushThread == Thread.currentThread())
+            {
+                LockSupport.parkNanos(this, flushPeriodNs);
+                try
+                {
+                    flushIncrements();
+                }
+                catch (Throwable e)
+                {
+                    logger.error("Failed to write folder counts to " + collection.getFullName(), e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Write all pending subfolder and file count increments in a single, unordered bulk update.
+     * <p/>
+     * Folders are not read while the increments are written, so pending increments are never
+     * missed or counted twice.  Increments that fail are kept and written with the next flush.
+     */
+    public void flushIncrements()
+    {
+        if (pendingCounts.isEmpty())
+        {
+            return;
+        }
+        pendingCountsLock.writeLock().lock();
+        try
+        {
+            List<PendingCounts> flushed = new ArrayList<PendingCounts>(pendingCounts.size());
+            List<long[]> flushedIncs = new ArrayList<long[]>(pendingCounts.size());
+            BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+            for (Map.Entry<FolderKey, PendingCounts> entry : pendingCounts.entrySet())
+            {
+                PendingCounts pending = entry.getValue();
+                long folderCountInc = pending.folderCountInc.sum();
+                long fileCountInc = pending.fileCountInc.sum();
+                if (folderCountInc == 0L && fileCountInc == 0L)
+                {
+                    continue;
+                }
+                DBObject queryObj = BasicDBObjectBuilder.start()
+                        .add(FIELD_CONTEXT, entry.getKey().context)
+                        .add(FIELD_PATH, entry.getKey().path)
+                        .get();
+                DBObject updateObj = BasicDBObjectBuilder.start()
+                        .push("$inc")
+                            .add(FIELD_FOLDER_COUNT, folderCountInc)
+                            .add(FIELD_FILE_COUNT, fileCountInc)
+                        .pop()
+                        .get();
+                bulk.find(queryObj).updateOne(updateObj);
+                flushed.add(pending);
+                flushedIncs.add(new long[] {folderCountInc, fileCountInc});
+            }
+            if (flushed.isEmpty())
+            {
+                removeEmptyPendingCounts();
+                return;
+            }
+            
+            BulkWriteResult result;
+            try
+            {
+                result = bulk.execute();
+            }
+            catch (BulkWriteException e)
+            {
+                // Keep only the increments that were not written
+                for (BulkWriteError error : e.getWriteErrors())
+                {
+                    flushedIncs.set(error.getIndex(), null);
+                }
+                removePendingCounts(flushed, flushedIncs);
+                throw new RuntimeException(
+                        "Failed to write " + e.getWriteErrors().size() + " of " + flushed.size() + " folder count increments.",
+                        e);
+            }
+            removePendingCounts(flushed, flushedIncs);
+            removeEmptyPendingCounts();
+            if (result.getMatchedCount() != flushed.size())
+            {
+                logger.warn(
+                        "Failed to update the counts of some folders: \n" +
+                        "   Collection: " + collection.getName() + "\n" +
+                        "   Folders:    " + flushed.size() + "\n" +
+                        "   Result:     " + result);
+            }
+            // Done
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Wrote count increments for " + flushed.size() + " folders to " + collection.getName());
+            }
+        }
+        finally
+        {
+            pendingCountsLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Take written increments off the pending counts, leaving anything added since
+     */
+    private static void removePendingCounts(List<PendingCounts> flushed, List<long[]> flushedIncs)
+    {
+        for (int i = 0; i < flushed.size(); i++)
+        {
+            long[] incs = flushedIncs.get(i);
+            if (incs != null)
+            {
+                flushed.get(i).folderCountInc.add(-incs[0]);
+                flushed.get(i).fileCountInc.add(-incs[1]);
+            }
+        }
+    }
+    
+    /**
+     * Remove the folders that have no increments left to write so that only folders with
+     * recent changes are held.  This must be called with the write lock held.
+     * <p/>
+     * An entry is only removed if no increments are being added to it; increments added
+     * afterwards see that it has been removed and go into a new entry.
+     */
+    private void removeEmptyPendingCounts()
+    {
+        Iterator<Map.Entry<FolderKey, PendingCounts>> iterator = pendingCounts.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            Map.Entry<FolderKey, PendingCounts> entry = iterator.next();
+            PendingCounts pending = entry.getValue();
+            if (!pending.isEmpty() || !pending.updaters.compareAndSet(0, Integer.MIN_VALUE))
+            {
+                continue;
+            }
+            // No more increments can be added, so check for any added since the last look
+            if (pending.isEmpty())
+            {
+                iterator.remove();
+            }
+            else
+            {
+                // Keep it and clear the flag, leaving any updates that are waiting to retry
+                pending.updaters.addAndGet(Integer.MIN_VALUE);
+            }
+        }
+    }
+    
+    /**
+     * Stop pending increments from being written while folders are read.  This does nothing
+     * unless increments are {@link #setIncrementFlushPeriod(long) written in bulk}.
+     * 
+     * @return                          <tt>true</tt> if {@link #unlockPendingCounts()} must be called
+     */
+    private boolean lockPendingCounts()
+    {
+        if (incrementFlushPeriod <= 0L)
+        {
+            return false;
+        }
+        pendingCountsLock.readLock().lock();
+        return true;
+    }
+    
+    private void unlockPendingCounts()
+    {
+        pendingCountsLock.readLock().unlock();
     }
 
     /**
@@ -129,6 +455,50 @@ public class FileFolderService implements InitializingBean
         collection.createIndex(idxCtxFolderCount, optCtxFolderCount);
     }
     
+    /**
+     * Get the in-memory folders, loading them if necessary
+     * 
+     * @return                          the in-memory folders or <tt>null</tt> if random folders
+     *                                  are not picked from memory
+     */
+    private RandomFolderSampler getSampler()
+    {
+        if (!sampleInMemory)
+        {
+            return null;
+        }
+        RandomFolderSampler sampler = this.sampler;
+        if (sampler != null &&
+                (sampleRefreshPeriod <= 0L || System.currentTimeMillis() - samplerLoadTime < sampleRefreshPeriod))
+        {
+            return sampler;
+        }
+        synchronized (this)
+        {
+            // Check again in case another thread got here first
+            sampler = this.sampler;
+            if (sampler != null &&
+                    (sampleRefreshPeriod <= 0L || System.currentTimeMillis() - samplerLoadTime < sampleRefreshPeriod))
+            {
+                return sampler;
+            }
+            long now = System.currentTimeMillis();
+            sampler = new RandomFolderSampler();
+            for (FolderData folder : fromDBCursor(collection.find()))
+            {
+                sampler.put(folder);
+            }
+            this.sampler = sampler;
+            this.samplerLoadTime = now;
+            // Done
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Loaded folders into memory from " + collection.getName());
+            }
+            return sampler;
+        }
+    }
+    
     /**
      * Helper to convert a Mongo DBObject into the API consumable object
      * <p/>
@@ -146,6 +516,13 @@ public class FileFolderService implements InitializingBean
         String path = (String) folderDataObj.get(FIELD_PATH);
         Long folderCount = (Long) folderDataObj.get(FIELD_FOLDER_COUNT);
         Long fileCount = (Long) folderDataObj.get(FIELD_FILE_COUNT);
+        // Include increments that have not been written yet
+        PendingCounts pending = pendingCounts.isEmpty() ? null : pendingCounts.get(new FolderKey(context, path));
+        if (pending != null)
+        {
+            folderCount += pending.folderCountInc.sum();
+            fileCount += pending.fileCountInc.sum();
+        }
         FolderData folderData = new FolderData(id, context, path, folderCount, fileCount);
         // Done
         return folderData;
@@ -156,9 +533,10 @@ public class FileFolderService implements InitializingBean
      */
     protected List<FolderData> fromDBCursor(DBCursor cursor)
     {
-        int count = cursor.count();
+        boolean locked = lockPendingCounts();
         try
         {
+            int count = cursor.count();
             List<FolderData> folderDatas = new ArrayList<FolderData>(count);
             while (cursor.hasNext())
             {
@@ -172,6 +550,10 @@ public class FileFolderService implements InitializingBean
         finally
         {
             cursor.close();
+            if (locked)
+            {
+                unlockPendingCounts();
+            }
         }
     }
     
@@ -211,6 +593,11 @@ public class FileFolderService implements InitializingBean
             // We just rethrow as per the API
             throw e;
         }
+        RandomFolderSampler sampler = this.sampler;
+        if (sampler != null)
+        {
+            sampler.put(data);
+        }
     }
     
     /**
@@ -242,6 +629,15 @@ public class FileFolderService implements InitializingBean
             WriteResult wr = collection.remove(queryObj);
             deleted += wr.getN();
         }
+        if (!pendingCounts.isEmpty())
+        {
+            dropPendingCounts(context, path, cascade);
+        }
+        RandomFolderSampler sampler = this.sampler;
+        if (sampler != null)
+        {
+            sampler.remove(context, path, cascade);
+        }
         // Done
         if (logger.isDebugEnabled())
         {
@@ -255,6 +651,76 @@ public class FileFolderService implements InitializingBean
         return deleted;
     }
     
+    /**
+     * Drop the pending increments of deleted folders
+     */
+    private void dropPendingCounts(String context, String path, boolean cascade)
+    {
+        pendingCountsLock.writeLock().lock();
+        try
+        {
+            pendingCounts.remove(new FolderKey(context, path));
+            if (cascade)
+            {
+                String prefix = path + "/";
+                Iterator<FolderKey> iterator = pendingCounts.keySet().iterator();
+                while (iterator.hasNext())
+                {
+                    FolderKey key = iterator.next();
+                    if (key.context.equals(context) && key.path.startsWith(prefix))
+                    {
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            pendingCountsLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Add to the increments of a folder that have not been written yet
+     */
+    private void addPendingCounts(String context, String path, long folderCountInc, long fileCountInc)
+    {
+        FolderKey key = new FolderKey(context, path);
+        while (true)
+        {
+            PendingCounts pending = getPendingCounts(key);
+            // Register the change and then check that the entry is not being removed
+            if (pending.updaters.incrementAndGet() > 0)
+            {
+                pending.folderCountInc.add(folderCountInc);
+                pending.fileCountInc.add(fileCountInc);
+                pending.updaters.decrementAndGet();
+                return;
+            }
+            // The entry is being removed, so wait for the flush to finish with it and try again
+            pending.updaters.decrementAndGet();
+            Thread.yield();
+        }
+    }
+    
+    /**
+     * @return                  the pending increments for the folder, which are created if necessary
+     */
+    private PendingCounts getPendingCounts(FolderKey key)
+    {
+        PendingCounts pending = pendingCounts.get(key);
+        if (pending == null)
+        {
+            pending = new PendingCounts();
+            PendingCounts existing = pendingCounts.putIfAbsent(key, pending);
+            if (existing != null)
+            {
+                pending = existing;
+            }
+        }
+        return pending;
+    }
+    
     /**
      * Retrieve a folder by the ID
      * 
@@ -266,9 +732,20 @@ public class FileFolderService implements InitializingBean
         DBObject queryObj = BasicDBObjectBuilder.start()
                 .add(FIELD_ID, id)
                 .get();
-        DBObject folderDataObj = collection.findOne(queryObj);
-        FolderData folderData = fromDBObject(folderDataObj);
-        return folderData;
+        boolean locked = lockPendingCounts();
+        try
+        {
+            DBObject folderDataObj = collection.findOne(queryObj);
+            FolderData folderData = fromDBObject(folderDataObj);
+            return folderData;
+        }
+        finally
+        {
+            if (locked)
+            {
+                unlockPendingCounts();
+            }
+        }
     }
     
     /**
@@ -284,13 +761,26 @@ public class FileFolderService implements InitializingBean
                 .add(FIELD_CONTEXT, context)
                 .add(FIELD_PATH, path)
                 .get();
-        DBObject folderDataObj = collection.findOne(queryObj);
-        FolderData folderData = fromDBObject(folderDataObj);
-        return folderData;
+        boolean locked = lockPendingCounts();
+        try
+        {
+            DBObject folderDataObj = collection.findOne(queryObj);
+            FolderData folderData = fromDBObject(folderDataObj);
+            return folderData;
+        }
+        finally
+        {
+            if (locked)
+            {
+                unlockPendingCounts();
+            }
+        }
     }
     
     /**
      * Increment the count of the subfolders in a folder.
+     * <p/>
+     * The change may be {@link #setIncrementFlushPeriod(long) written later}.
      * 
      * @param context           the context in which the folder path is valid (mandatory)
      * @param path              the folder path relative to the given context
@@ -298,23 +788,35 @@ public class FileFolderService implements InitializingBean
      */
     public void incrementFolderCount(String context, String path, long folderCountInc)
     {
-        DBObject queryObj = BasicDBObjectBuilder.start()
-                .add(FIELD_CONTEXT, context)
-                .add(FIELD_PATH, path)
-                .get();
-        DBObject updateObj = BasicDBObjectBuilder.start()
-                .push("$inc")
-                    .add(FIELD_FOLDER_COUNT, folderCountInc)
-                .pop()
-                .get();
-        WriteResult result = collection.update(queryObj, updateObj);
-        if (result.getN() != 1)
+        if (incrementFlushPeriod > 0L)
+        {
+            addPendingCounts(context, path, folderCountInc, 0L);
+        }
+        else
+        {
+            DBObject queryObj = BasicDBObjectBuilder.start()
+                    .add(FIELD_CONTEXT, context)
+                    .add(FIELD_PATH, path)
+                    .get();
+            DBObject updateObj = BasicDBObjectBuilder.start()
+                    .push("$inc")
+                        .add(FIELD_FOLDER_COUNT, folderCountInc)
+                    .pop()
+                    .get();
+            WriteResult result = collection.update(queryObj, updateObj);
+            if (result.getN() != 1)
+            {
+                throw new RuntimeException(
+                        "Failed to update folder's subfolder count: \n" +
+                        "   Context:  " + context + "\n" +
+                        "   Path:     " + path + "\n" +
+                        "   Result:   " + result);
+            }
+        }
+        RandomFolderSampler sampler = this.sampler;
+        if (sampler != null)
         {
-            throw new RuntimeException(
-                    "Failed to update folder's subfolder count: \n" +
-                    "   Context:  " + context + "\n" +
-                    "   Path:     " + path + "\n" +
-                    "   Result:   " + result);
+            sampler.increment(context, path, folderCountInc, 0L);
         }
         // Done
         if (logger.isDebugEnabled())
@@ -325,6 +827,8 @@ public class FileFolderService implements InitializingBean
     
     /**
      * Increment the count of the files in a folder.
+     * <p/>
+     * The change may be {@link #setIncrementFlushPeriod(long) written later}.
      * 
      * @param context           the context in which the folder path is valid (mandatory)
      * @param path              the folder path relative to the given context
@@ -332,23 +836,35 @@ public class FileFolderService implements InitializingBean
      */
     public void incrementFileCount(String context, String path, long fileCountInc)
     {
-        DBObject queryObj = BasicDBObjectBuilder.start()
-                .add(FIELD_CONTEXT, context)
-                .add(FIELD_PATH, path)
-                .get();
-        DBObject updateObj = BasicDBObjectBuilder.start()
-                .push("$inc")
-                    .add(FIELD_FILE_COUNT, fileCountInc)
-                .pop()
-                .get();
-        WriteResult result = collection.update(queryObj, updateObj);
-        if (result.getN() != 1)
+        if (incrementFlushPeriod > 0L)
+        {
+            addPendingCounts(context, path, 0L, fileCountInc);
+        }
+        else
         {
-            throw new RuntimeException(
-                    "Failed to update folder's file count: \n" +
-                    "   Context:  " + context + "\n" +
-                    "   Path:     " + path + "\n" +
-                    "   Result:   " + result);
+            DBObject queryObj = BasicDBObjectBuilder.start()
+                    .add(FIELD_CONTEXT, context)
+                    .add(FIELD_PATH, path)
+                    .get();
+            DBObject updateObj = BasicDBObjectBuilder.start()
+                    .push("$inc")
+                        .add(FIELD_FILE_COUNT, fileCountInc)
+                    .pop()
+                    .get();
+            WriteResult result = collection.update(queryObj, updateObj);
+            if (result.getN() != 1)
+            {
+                throw new RuntimeException(
+                        "Failed to update folder's file count: \n" +
+                        "   Context:  " + context + "\n" +
+                        "   Path:     " + path + "\n" +
+                        "   Result:   " + result);
+            }
+        }
+        RandomFolderSampler sampler = this.sampler;
+        if (sampler != null)
+        {
+            sampler.increment(context, path, 0L, fileCountInc);
         }
         // Done
         if (logger.isDebugEnabled())
@@ -553,4 +1069,76 @@ public class FileFolderService implements InitializingBean
         }
         return results;
     }
+
+    /**
+     * Pick a folder at random, filtered by level and by the number of child files and/or folders.
+     * Every matching folder has the same chance of being picked.
+     * <p/>
+     * Apart from the context, all parameters are optional.  When folders are
+     * {@link #setSampleInMemory(boolean) held in memory} no query is made; otherwise the matching
+     * folders are counted and one is fetched using {@link #getFoldersByCounts(String, Long, Long, Long, Long, Long, Long, int, int)}.
+     * 
+     * @param context           the context in which the folder path is valid (mandatory)
+     * @param minLevel          the minimum folder level to consider (inclusive, optional)
+     * @param maxLevel          the maximum folder level to consider (inclusive, optional)
+     * @param minFolders        the minimum number of subfolders in the folder (inclusive, optional)
+     * @param maxFolders        the maximum number of subfolders in the folder (inclusive, optional)
+     * @param minFiles          the minimum number of files in the folder (inclusive, optional)
+     * @param maxFiles          the maximum number of files in the folder (inclusive, optional)
+     * @return                  a random folder or <tt>null</tt> if there are no matching folders
+     */
+    public FolderData getRandomFolder(
+            String context,
+            Long minLevel, Long maxLevel,
+            Long minFolders, Long maxFolders,
+            Long minFiles, Long maxFiles)
+    {
+        if (context == null)
+        {
+            throw new IllegalArgumentException();
+        }
+        RandomFolderSampler sampler = getSampler();
+        if (sampler != null)
+        {
+            return sampler.getRandomFolder(context, minLevel, maxLevel, minFolders, maxFolders, minFiles, maxFiles);
+        }
+        
+        BasicDBObjectBuilder queryObjBuilder = BasicDBObjectBuilder.start()
+                .add(FIELD_CONTEXT, context);
+        addRange(queryObjBuilder, FIELD_LEVEL, minLevel, maxLevel);
+        addRange(queryObjBuilder, FIELD_FOLDER_COUNT, minFolders, maxFolders);
+        addRange(queryObjBuilder, FIELD_FILE_COUNT, minFiles, maxFiles);
+        long count = collection.count(queryObjBuilder.get());
+        if (count == 0L)
+        {
+            return null;
+        }
+        int skip = (int) ThreadLocalRandom.current().nextLong(Math.min(count, Integer.MAX_VALUE));
+        List<FolderData> folders = getFoldersByCounts(
+                context,
+                minLevel, maxLevel,
+                minFolders, maxFolders,
+                minFiles, maxFiles,
+                skip, 1);
+        // The folders may have changed since they were counted
+        return folders.isEmpty() ? null : folders.get(0);
+    }
+    
+    private static void addRange(BasicDBObjectBuilder queryObjBuilder, String field, Long min, Long max)
+    {
+        if (min == null && max == null)
+        {
+            return;
+        }
+        queryObjBuilder.push(field);
+        if (min != null)
+        {
+            queryObjBuilder.add("$gte", min);
+        }
+        if (max != null)
+        {
+            queryObjBuilder.add("$lte", max);
+        }
+        queryObjBuilder.pop();
+    }
 }
@@ -0,0 +1,421 @@
+package org.alfresco.bm.cm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Holds folders in memory so that a folder can be picked at random by level and by the
+ * number of subfolders and files it holds, without going to the database.
+ * <p/>
+ * The folders of each context are grouped by level and then by ranges of subfolder and file
+ * counts that double in size: 0, 1, 2-3, 4-7 and so on.  Each group is a dense array, so a
+ * pick only has to look at the groups that overlap the levels and counts requested, no matter
+ * how many folders there are.  Groups that only partly overlap the requested counts are
+ * sampled and the pick is retried if the folder does not match, which keeps every matching
+ * folder equally likely to be picked.
+ * <p/>
+ * {@link FolderData} is immutable, so the held folders are handed out directly.
+ * This class is thread-safe.
+ *
+ * @since 2.2
+ */
+public class RandomFolderSampler
+{
+    /** The number of picks from partly matching groups before matching folders are counted exactly */
+    private static final int MAX_ATTEMPTS = 16;
+    /** The number of count ranges: one for zero and one per bit */
+    private static final int RANGE_COUNT = 65;
+
+    /**
+     * The position of a folder in its group
+     */
+    private static class Slot
+    {
+        private FolderData folder;
+        private Bucket bucket;
+        private int index;
+        private Slot(FolderData folder)
+        {
+            this.folder = folder;
+        }
+    }
+
+    /**
+     * A dense array of the folders at one level with subfolder and file counts in given ranges
+     */
+    private static class Bucket
+    {
+        private final long minFolders;
+        private final long maxFolders;
+        private final long minFiles;
+        private final long maxFiles;
+        private Slot[] slots = new Slot[16];
+        private int count;
+
+        private Bucket(int folderRange, int fileRange)
+        {
+            this.minFolders = getRangeMin(folderRange);
+            this.maxFolders = getRangeMax(folderRange);
+            this.minFiles = getRangeMin(fileRange);
+            this.maxFiles = getRangeMax(fileRange);
+        }
+
+        private void add(Slot slot)
+        {
+            if (count == slots.length)
+            {
+                slots = Arrays.copyOf(slots, count * 2);
+            }
+            slot.bucket = this;
+            slot.index = count;
+            slots[count++] = slot;
+        }
+
+        private void remove(Slot slot)
+        {
+            // Fill the gap with the last folder
+            Slot last = slots[--count];
+            slots[slot.index] = last;
+            last.index = slot.index;
+            slots[count] = null;
+            slot.bucket = null;
+        }
+
+        /**
+         * @return                  <tt>0</tt> if no folders can match, <tt>1</tt> if some folders
+         *                          may match or <tt>2</tt> if all folders match
+         */
+        private int overlap(Long minFolders, Long maxFolders, Long minFiles, Long maxFiles)
+        {
+            if ((minFolders != null && this.maxFolders < minFolders) ||
+                    (maxFolders != null && this.minFolders > maxFolders) ||
+                    (minFiles != null && this.maxFiles < minFiles) ||
+                    (maxFiles != null && this.minFiles > maxFiles))
+            {
+                return 0;
+            }
+            if ((minFolders != null && this.minFolders < minFolders) ||
+                    (maxFolders != null && this.maxFolders > maxFolders) ||
+                    (minFiles != null && this.minFiles < minFiles) ||
+                    (maxFiles != null && this.maxFiles > maxFiles))
+            {
+                return 1;
+            }
+            return 2;
+        }
+    }
+
+    /**
+     * The folders of a single context
+     */
+    private static class ContextFolders
+    {
+        private final Map<String, Slot> slotsByPath = new HashMap<String, Slot>(1024);
+        /* Level -> count ranges -> folders */
+        private final TreeMap<Integer, Map<Integer, Bucket>> bucketsByLevel = new TreeMap<Integer, Map<Integer, Bucket>>();
+    }
+
+    private final Map<String, ContextFolders> contexts;
+
+    public RandomFolderSampler()
+    {
+        this.contexts = new HashMap<String, ContextFolders>(7);
+    }
+
+    /**
+     * @return                      the count range holding the given subfolder or file count
+     */
+    private static int getRange(long count)
+    {
+        return (count <= 0L) ? 0 : (64 - Long.numberOfLeadingZeros(count));
+    }
+
+    private static long getRangeMin(int range)
+    {
+        return (range == 0) ? Long.MIN_VALUE : (1L << (range - 1));
+    }
+
+    private static long getRangeMax(int range)
+    {
+        return (range == 0) ? 0L : (range == 64) ? Long.MAX_VALUE : ((1L << range) - 1L);
+    }
+
+    /**
+     * @return                      the number of folders held for the context
+     */
+    public synchronized int size(String context)
+    {
+        ContextFolders contextFolders = contexts.get(context);
+        return (contextFolders == null) ? 0 : contextFolders.slotsByPath.size();
+    }
+
+    /**
+     * Add or replace a folder
+     */
+    public synchronized void put(FolderData folder)
+    {
+        ContextFolders contextFolders = contexts.get(folder.getContext());
+        if (contextFolders == null)
+        {
+            contextFolders = new ContextFolders();
+            contexts.put(folder.getContext(), contextFolders);
+        }
+        Slot slot = contextFolders.slotsByPath.get(folder.getPath());
+        if (slot == null)
+        {
+            slot = new Slot(folder);
+            contextFolders.slotsByPath.put(folder.getPath(), slot);
+        }
+        else
+        {
+            slot.bucket.remove(slot);
+            slot.folder = folder;
+        }
+        getBucket(contextFolders, folder).add(slot);
+    }
+
+    /**
+     * Change the subfolder and file counts of a folder, if present
+     */
+    public synchronized void increment(String context, String path, long folderCountInc, long fileCountInc)
+    {
+        ContextFolders contextFolders = contexts.get(context);
+        Slot slot = (contextFolders == null) ? null : contextFolders.slotsByPath.get(path);
+        if (slot == null)
+        {
+            return;
+        }
+        FolderData folder = slot.folder;
+        put(new FolderData(
+                folder.getId(), context, path,
+                folder.getFolderCount() + folderCountInc, folder.getFileCount() + fileCountInc));
+    }
+
+    /**
+     * Remove a folder, if present, and optionally all the folders below it
+     *
+     * @return                      the number of folders removed
+     */
+    public synchronized int remove(String context, String path, boolean cascade)
+    {
+        ContextFolders contextFolders = contexts.get(context);
+        if (contextFolders == null)
+        {
+            return 0;
+        }
+        int removed = 0;
+        Slot slot = contextFolders.slotsByPath.remove(path);
+        if (slot != null)
+        {
+            slot.bucket.remove(slot);
+            removed++;
+        }
+        if (cascade)
+        {
+            String prefix = path + "/";
+            Iterator<Map.Entry<String, Slot>> iterator = contextFolders.slotsByPath.entrySet().iterator();
+            while (iterator.hasNext())
+            {
+                Map.Entry<String, Slot> entry = iterator.next();
+                if (entry.getKey().startsWith(prefix))
+                {
+                    entry.getValue().bucket.remove(entry.getValue());
+                    iterator.remove();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return                      the folder or <tt>null</tt> if it is not present
+     */
+    public synchronized FolderData get(String context, String path)
+    {
+        ContextFolders contextFolders = contexts.get(context);
+        Slot slot = (contextFolders == null) ? null : contextFolders.slotsByPath.get(path);
+        return (slot == null) ? null : slot.folder;
+    }
+
+    /**
+     * Pick a folder at random.  Every matching folder has the same chance of being picked.
+     * Apart from the context, all parameters are optional.
+     *
+     * @param context               the context in which the folder path is valid (mandatory)
+     * @param minLevel              the minimum folder level (inclusive, optional)
+     * @param maxLevel              the maximum folder level (inclusive, optional)
+     * @param minFolders            the minimum number of subfolders in the folder (inclusive, optional)
+     * @param maxFolders            the maximum number of subfolders in the folder (inclusive, optional)
+     * @param minFiles              the minimum number of files in the folder (inclusive, optional)
+     * @param maxFiles              the maximum number of files in the folder (inclusive, optional)
+     * @return                      a random folder or <tt>null</tt> if there are no matching folders
+     */
+    public synchronized FolderData getRandomFolder(
+            String context,
+            Long minLevel, Long maxLevel,
+            Long minFolders, Long maxFolders,
+            Long minFiles, Long maxFiles)
+    {
+        ContextFolders contextFolders = contexts.get(context);
+        if (contextFolders == null)
+        {
+            return null;
+        }
+        Map<Integer, Map<Integer, Bucket>> levels = contextFolders.bucketsByLevel;
+        if (minLevel != null || maxLevel != null)
+        {
+            int fromLevel = (minLevel == null) ? Integer.MIN_VALUE : (int) Math.max(Integer.MIN_VALUE, minLevel);
+            int toLevel = (maxLevel == null) ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, maxLevel);
+            if (fromLevel > toLevel)
+            {
+                return null;
+            }
+            levels = contextFolders.bucketsByLevel.subMap(fromLevel, true, toLevel, true);
+        }
+
+        // Count the folders in all the groups that overlap the request
+        int total = 0;
+        boolean partial = false;
+        for (Map<Integer, Bucket> buckets : levels.values())
+        {
+            for (Bucket bucket : buckets.values())
+            {
+                int overlap = bucket.overlap(minFolders, maxFolders, minFiles, maxFiles);
+                if (overlap > 0)
+                {
+                    total += bucket.count;
+                    partial |= (overlap == 1);
+                }
+            }
+        }
+        if (total == 0)
+        {
+            return null;
+        }
+
+        // Pick from the overlapping groups and try again if the folder does not match
+        int attempts = partial ? MAX_ATTEMPTS : 1;
+        for (int i = 0; i < attempts; i++)
+        {
+            int index = ThreadLocalRandom.current().nextInt(total);
+            FolderData folder = pick(levels, index, false, minFolders, maxFolders, minFiles, maxFiles);
+            if (matches(folder, minFolders, maxFolders, minFiles, maxFiles))
+            {
+                return folder;
+            }
+        }
+
+        // Few of the folders match, so count exactly which ones do
+        int matching = 0;
+        for (Map<Integer, Bucket> buckets : levels.values())
+        {
+            for (Bucket bucket : buckets.values())
+            {
+                matching += countMatching(bucket, minFolders, maxFolders, minFiles, maxFiles);
+            }
+        }
+        if (matching == 0)
+        {
+            return null;
+        }
+        int index = ThreadLocalRandom.current().nextInt(matching);
+        return pick(levels, index, true, minFolders, maxFolders, minFiles, maxFiles);
+    }
+
+    /**
+     * Find the folder at the given position among the folders in overlapping groups
+     *
+     * @param exact                 <tt>true</tt> to count only the matching folders or
+     *                              <tt>false</tt> to count all the folders in overlapping groups
+     */
+    private static FolderData pick(
+            Map<Integer, Map<Integer, Bucket>> levels, int index, boolean exact,
+            Long minFolders, Long maxFolders, Long minFiles, Long maxFiles)
+    {
+        for (Map<Integer, Bucket> buckets : levels.values())
+        {
+            for (Bucket bucket : buckets.values())
+            {
+                int overlap = bucket.overlap(minFolders, maxFolders, minFiles, maxFiles);
+                if (overlap == 0)
+                {
+                    continue;
+                }
+                if (!exact || overlap == 2)
+                {
+                    if (index < bucket.count)
+                    {
+                        return bucket.slots[index].folder;
+                    }
+                    index -= bucket.count;
+                    continue;
+                }
+                for (int i = 0; i < bucket.count; i++)
+                {
+                    FolderData folder = bucket.slots[i].folder;
+                    if (matches(folder, minFolders, maxFolders, minFiles, maxFiles) && index-- == 0)
+                    {
+                        return folder;
+                    }
+                }
+            }
+        }
+        throw new IllegalStateException("Random index out of range.");
+    }
+
+    private static int countMatching(Bucket bucket, Long minFolders, Long maxFolders, Long minFiles, Long maxFiles)
+    {
+        switch (bucket.overlap(minFolders, maxFolders, minFiles, maxFiles))
+        {
+            case 0:
+                return 0;
+            case 2:
+                return bucket.count;
+            default:
+                int count = 0;
+                for (int i = 0; i < bucket.count; i++)
+                {
+                    if (matches(bucket.slots[i].folder, minFolders, maxFolders, minFiles, maxFiles))
+                    {
+                        count++;
+                    }
+                }
+                return count;
+        }
+    }
+
+    private static boolean matches(FolderData folder, Long minFolders, Long maxFolders, Long minFiles, Long maxFiles)
+    {
+        long folderCount = folder.getFolderCount();
+        long fileCount = folder.getFileCount();
+        return (minFolders == null || folderCount >= minFolders) &&
+                (maxFolders == null || folderCount <= maxFolders) &&
+                (minFiles == null || fileCount >= minFiles) &&
+                (maxFiles == null || fileCount <= maxFiles);
+    }
+
+    private static Bucket getBucket(ContextFolders contextFolders, FolderData folder)
+    {
+        Map<Integer, Bucket> buckets = contextFolders.bucketsByLevel.get(folder.getLevel());
+        if (buckets == null)
+        {
+            buckets = new HashMap<Integer, Bucket>(17);
+            contextFolders.bucketsByLevel.put(folder.getLevel(), buckets);
+        }
+        int folderRange = getRange(folder.getFolderCount());
+        int fileRange = getRange(folder.getFileCount());
+        Integer key = folderRange * RANGE_COUNT + fileRange;
+        Bucket bucket = buckets.get(key);
+        if (bucket == null)
+        {
+            bucket = new Bucket(folderRange, fileRange);
+            buckets.put(key, bucket);
+        }
+        return bucket;
+    }
+}
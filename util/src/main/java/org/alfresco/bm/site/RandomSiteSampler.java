@@ -0,0 +1,396 @@
+package org.alfresco.bm.site;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.alfresco.bm.data.DataCreationState;
+
+/**
+ * Holds sites and site members in memory so that they can be picked at random,
+ * uniformly and in constant time, without going to the database.
+ * <p/>
+ * Every site is held in a dense array for each combination of domain and creation state
+ * that it can be looked up by, where a <tt>null</tt> domain or state matches any value.
+ * Site members are held in the same way by site, creation state and role.  Removing an
+ * entry moves the last entry of each array into the gap, so that the arrays never contain
+ * holes and a pick needs no more than a few map lookups and a random index.
+ * <p/>
+ * Copies of the sites and members are handed out, so clients may modify the data returned.
+ * This class is thread-safe.
+ *
+ * @since 2.2
+ */
+public class RandomSiteSampler
+{
+    /**
+     * An entry and its position in each of the arrays holding it
+     */
+    private static class Slot
+    {
+        private final Object data;
+        private final Bucket[] buckets;
+        private final int[] indexes;
+        private Slot(Object data, Bucket[] buckets)
+        {
+            this.data = data;
+            this.buckets = buckets;
+            this.indexes = new int[buckets.length];
+        }
+    }
+
+    /**
+     * A dense array of the entries matching a single combination of keys
+     */
+    private static class Bucket
+    {
+        private Slot[] slots = new Slot[16];
+        private int count;
+
+        private void add(Slot slot, int position)
+        {
+            if (count == slots.length)
+            {
+                slots = Arrays.copyOf(slots, count * 2);
+            }
+            slot.indexes[position] = count;
+            slots[count++] = slot;
+        }
+
+        private void remove(Slot slot, int position)
+        {
+            int index = slot.indexes[position];
+            // Fill the gap with the last entry
+            Slot last = slots[--count];
+            slots[index] = last;
+            slots[count] = null;
+            for (int i = 0; i < last.buckets.length; i++)
+            {
+                if (last.buckets[i] == this)
+                {
+                    last.indexes[i] = index;
+                    break;
+                }
+            }
+        }
+    }
+
+    /* Domain -> state -> sites, where null keys match any value */
+    private final Map<String, Map<DataCreationState, Bucket>> siteBuckets;
+    private final Map<String, Slot> siteSlots;
+    /* Site ID -> state -> role -> members, where null keys match any value */
+    private final Map<String, Map<DataCreationState, Map<String, Bucket>>> memberBuckets;
+    /* Site ID -> username -> member */
+    private final Map<String, Map<String, Slot>> memberSlots;
+    private int memberCount;
+
+    public RandomSiteSampler()
+    {
+        this.siteBuckets = new HashMap<String, Map<DataCreationState, Bucket>>(17);
+        this.siteSlots = new HashMap<String, Slot>(1024);
+        this.memberBuckets = new HashMap<String, Map<DataCreationState, Map<String, Bucket>>>(1024);
+        this.memberSlots = new HashMap<String, Map<String, Slot>>(1024);
+        this.memberCount = 0;
+    }
+
+    /**
+     * @return                      the number of sites held
+     */
+    public synchronized int getSiteCount()
+    {
+        return siteSlots.size();
+    }
+
+    /**
+     * @return                      the number of site members held
+     */
+    public synchronized int getSiteMemberCount()
+    {
+        return memberCount;
+    }
+
+    /**
+     * Add or replace a site
+     */
+    public synchronized void putSite(SiteData site)
+    {
+        removeSite(site.getSiteId());
+        String domain = site.getDomain();
+        DataCreationState state = site.getCreationState();
+        Bucket[] buckets = distinct(
+                getSiteBucket(null, null),
+                getSiteBucket(null, state),
+                getSiteBucket(domain, null),
+                getSiteBucket(domain, state));
+        Slot slot = new Slot(copy(site), buckets);
+        for (int i = 0; i < buckets.length; i++)
+        {
+            buckets[i].add(slot, i);
+        }
+        siteSlots.put(site.getSiteId(), slot);
+    }
+
+    /**
+     * Remove a site, if present
+     *
+     * @return                      <tt>true</tt> if the site was removed
+     */
+    public synchronized boolean removeSite(String siteId)
+    {
+        Slot slot = siteSlots.remove(siteId);
+        if (slot == null)
+        {
+            return false;
+        }
+        for (int i = 0; i < slot.buckets.length; i++)
+        {
+            slot.buckets[i].remove(slot, i);
+        }
+        return true;
+    }
+
+    /**
+     * Pick a site at random.  Every matching site has the same chance of being picked.
+     *
+     * @param domain                the site domain or <tt>null</tt> for any domain
+     * @param state                 the site creation state or <tt>null</tt> for any state
+     * @return                      a random site or <tt>null</tt> if there are no matching sites
+     */
+    public synchronized SiteData getRandomSite(String domain, DataCreationState state)
+    {
+        Map<DataCreationState, Bucket> domainBuckets = siteBuckets.get(domain);
+        Bucket bucket = (domainBuckets == null) ? null : domainBuckets.get(state);
+        if (bucket == null || bucket.count == 0)
+        {
+            return null;
+        }
+        int index = ThreadLocalRandom.current().nextInt(bucket.count);
+        return copy((SiteData) bucket.slots[index].data);
+    }
+
+    /**
+     * Add or replace a site member
+     */
+    public synchronized void putSiteMember(SiteMemberData member)
+    {
+        removeSiteMember(member.getSiteId(), member.getUsername());
+        String siteId = member.getSiteId();
+        DataCreationState state = member.getCreationState();
+        String role = member.getRole();
+        Bucket[] buckets = distinct(
+                getMemberBucket(null, null, null),
+                getMemberBucket(null, null, role),
+                getMemberBucket(null, state, null),
+                getMemberBucket(null, state, role),
+                getMemberBucket(siteId, null, null),
+                getMemberBucket(siteId, null, role),
+                getMemberBucket(siteId, state, null),
+                getMemberBucket(siteId, state, role));
+        Slot slot = new Slot(copy(member), buckets);
+        for (int i = 0; i < buckets.length; i++)
+        {
+            buckets[i].add(slot, i);
+        }
+        Map<String, Slot> siteMemberSlots = memberSlots.get(siteId);
+        if (siteMemberSlots == null)
+        {
+            siteMemberSlots = new HashMap<String, Slot>(17);
+            memberSlots.put(siteId, siteMemberSlots);
+        }
+        siteMemberSlots.put(member.getUsername(), slot);
+        memberCount++;
+    }
+
+    /**
+     * Remove a site member, if present
+     *
+     * @return                      <tt>true</tt> if the member was removed
+     */
+    public synchronized boolean removeSiteMember(String siteId, String username)
+    {
+        Map<String, Slot> siteMemberSlots = memberSlots.get(siteId);
+        Slot slot = (siteMemberSlots == null) ? null : siteMemberSlots.remove(username);
+        if (slot == null)
+        {
+            return false;
+        }
+        for (int i = 0; i < slot.buckets.length; i++)
+        {
+            slot.buckets[i].remove(slot, i);
+        }
+        memberCount--;
+        return true;
+    }
+
+    /**
+     * Pick a site member at random.  Every matching member has the same chance of being picked.
+     *
+     * @param siteId                the site or <tt>null</tt> for any site
+     * @param state                 the membership creation state or <tt>null</tt> for any state
+     * @param roles                 the roles to choose from or <tt>null</tt> or empty for any role
+     * @return                      a random site member or <tt>null</tt> if there are no matching members
+     */
+    public synchronized SiteMemberData getRandomSiteMember(String siteId, DataCreationState state, String... roles)
+    {
+        Map<DataCreationState, Map<String, Bucket>> siteBuckets = memberBuckets.get(siteId);
+        Map<String, Bucket> stateBuckets = (siteBuckets == null) ? null : siteBuckets.get(state);
+        if (stateBuckets == null)
+        {
+            return null;
+        }
+        if (roles == null || roles.length == 0)
+        {
+            Bucket bucket = stateBuckets.get(null);
+            if (bucket == null || bucket.count == 0)
+            {
+                return null;
+            }
+            int index = ThreadLocalRandom.current().nextInt(bucket.count);
+            return copy((SiteMemberData) bucket.slots[index].data);
+        }
+        // Weight each role by its number of members
+        int total = 0;
+        for (int i = 0; i < roles.length; i++)
+        {
+            Bucket bucket = getRoleBucket(stateBuckets, roles, i);
+            total += (bucket == null) ? 0 : bucket.count;
+        }
+        if (total == 0)
+        {
+            return null;
+        }
+        int index = ThreadLocalRandom.current().nextInt(total);
+        for (int i = 0; i < roles.length; i++)
+        {
+            Bucket bucket = getRoleBucket(stateBuckets, roles, i);
+            int count = (bucket == null) ? 0 : bucket.count;
+            if (index < count)
+            {
+                return copy((SiteMemberData) bucket.slots[index].data);
+            }
+            index -= count;
+        }
+        throw new IllegalStateException("Random index out of range.");
+    }
+
+    /**
+     * @return                      the members with the role at the given position or <tt>null</tt>
+     *                              if there are none or the role has already been given
+     */
+    private static Bucket getRoleBucket(Map<String, Bucket> stateBuckets, String[] roles, int position)
+    {
+        String role = roles[position];
+        if (role == null)
+        {
+            return null;
+        }
+        for (int i = 0; i < position; i++)
+        {
+            if (role.equals(roles[i]))
+            {
+                return null;
+            }
+        }
+        return stateBuckets.get(role);
+    }
+
+    private Bucket getSiteBucket(String domain, DataCreationState state)
+    {
+        Map<DataCreationState, Bucket> domainBuckets = siteBuckets.get(domain);
+        if (domainBuckets == null)
+        {
+            domainBuckets = new HashMap<DataCreationState, Bucket>(7);
+            siteBuckets.put(domain, domainBuckets);
+        }
+        Bucket bucket = domainBuckets.get(state);
+        if (bucket == null)
+        {
+            bucket = new Bucket();
+            domainBuckets.put(state, bucket);
+        }
+        return bucket;
+    }
+
+    private Bucket getMemberBucket(String siteId, DataCreationState state, String role)
+    {
+        Map<DataCreationState, Map<String, Bucket>> siteBuckets = memberBuckets.get(siteId);
+        if (siteBuckets == null)
+        {
+            siteBuckets = new HashMap<DataCreationState, Map<String, Bucket>>(7);
+            memberBuckets.put(siteId, siteBuckets);
+        }
+        Map<String, Bucket> stateBuckets = siteBuckets.get(state);
+        if (stateBuckets == null)
+        {
+            stateBuckets = new HashMap<String, Bucket>(7);
+            siteBuckets.put(state, stateBuckets);
+        }
+        Bucket bucket = stateBuckets.get(role);
+        if (bucket == null)
+        {
+            bucket = new Bucket();
+            stateBuckets.put(role, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Drop repeated buckets, which occur when an entry has <tt>null</tt> values
+     */
+    private static Bucket[] distinct(Bucket... buckets)
+    {
+        int count = 0;
+        for (int i = 0; i < buckets.length; i++)
+        {
+            boolean repeated = false;
+            for (int j = 0; j < count; j++)
+            {
+                if (buckets[j] == buckets[i])
+                {
+                    repeated = true;
+                    break;
+                }
+            }
+            if (!repeated)
+            {
+                buckets[count++] = buckets[i];
+            }
+        }
+        return (count == buckets.length) ? buckets : Arrays.copyOf(buckets, count);
+    }
+
+    /**
+     * Copy a site so that the held sites are isolated from clients
+     */
+    private static SiteData copy(SiteData site)
+    {
+        SiteData copy = new SiteData();
+        copy.setRandomizer(site.getRandomizer());
+        copy.setDomain(site.getDomain());
+        copy.setSiteId(site.getSiteId());
+        copy.setGuid(site.getGuid());
+        copy.setPath(site.getPath());
+        copy.setSitePreset(site.getSitePreset());
+        copy.setTitle(site.getTitle());
+        copy.setDescription(site.getDescription());
+        copy.setVisibility(site.getVisibility());
+        copy.setType(site.getType());
+        copy.setCreationState(site.getCreationState());
+        return copy;
+    }
+
+    /**
+     * Copy a site member so that the held members are isolated from clients
+     */
+    private static SiteMemberData copy(SiteMemberData member)
+    {
+        SiteMemberData copy = new SiteMemberData();
+        copy.setRandomizer(member.getRandomizer());
+        copy.setCreationState(member.getCreationState());
+        copy.setUsername(member.getUsername());
+        copy.setSiteId(member.getSiteId());
+        copy.setRole(member.getRole());
+        return copy;
+    }
+}
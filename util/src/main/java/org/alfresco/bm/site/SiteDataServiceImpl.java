@@ -38,12 +38,44 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
     private DBCollection sitesCollection;
     private DBCollection siteMembersCollection;
 
+    private boolean sampleInMemory = false;
+    private long sampleRefreshPeriod = 0L;
+    /** Sites and site members held in memory for random selection; <tt>null</tt> until first used */
+    private volatile RandomSiteSampler sampler;
+    private volatile long samplerLoadTime;
+
     public SiteDataServiceImpl(DB db, String sites, String siteMembers)
     {
         this.sitesCollection = db.getCollection(sites);
         this.siteMembersCollection = db.getCollection(siteMembers);
     }
 
+    /**
+     * Pick random sites and site members from memory rather than by querying the database.
+     * <p/>
+     * All sites and site members are loaded when a random site or member is first requested
+     * and are then kept up to date by the changes made through this service.  Changes made
+     * by other services (other drivers, for example) are only seen when the data is
+     * {@link #setSampleRefreshPeriod(long) reloaded}.
+     * 
+     * @param sampleInMemory
+     *        <tt>true</tt> to pick random sites and members from memory (default <tt>false</tt>)
+     */
+    public void setSampleInMemory(boolean sampleInMemory)
+    {
+        this.sampleInMemory = sampleInMemory;
+    }
+
+    /**
+     * @param sampleRefreshPeriod
+     *        how long (ms) sites and members are held in memory before they are reloaded.
+     *        The default of <tt>0</tt> means that they are never reloaded.
+     */
+    public void setSampleRefreshPeriod(long sampleRefreshPeriod)
+    {
+        this.sampleRefreshPeriod = sampleRefreshPeriod;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception
     {
@@ -105,6 +137,72 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
                 optSiteCreatedRoleRand);
     }
 
+    /**
+     * Get the in-memory sites and site members, loading them if necessary
+     * 
+     * @return the in-memory sites and members or <tt>null</tt> if random
+     *         picks are not made from memory
+     */
+    private RandomSiteSampler getSampler()
+    {
+        if (!sampleInMemory)
+        {
+            return null;
+        }
+        RandomSiteSampler sampler = this.sampler;
+        if (sampler != null &&
+                (sampleRefreshPeriod <= 0L || System.currentTimeMillis() - samplerLoadTime < sampleRefreshPeriod))
+        {
+            return sampler;
+        }
+        synchronized (this)
+        {
+            // Check again in case another thread got here first
+            sampler = this.sampler;
+            if (sampler != null &&
+                    (sampleRefreshPeriod <= 0L || System.currentTimeMillis() - samplerLoadTime < sampleRefreshPeriod))
+            {
+                return sampler;
+            }
+            long now = System.currentTimeMillis();
+            sampler = new RandomSiteSampler();
+            DBCursor cursor = sitesCollection.find();
+            try
+            {
+                while (cursor.hasNext())
+                {
+                    sampler.putSite(convertSiteDataDBObject(cursor.next()));
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+            cursor = siteMembersCollection.find();
+            try
+            {
+                while (cursor.hasNext())
+                {
+                    sampler.putSiteMember(convertSiteMemberDBObject(cursor.next()));
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+            this.sampler = sampler;
+            this.samplerLoadTime = now;
+            // Done
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Loaded " + sampler.getSiteCount() + " sites and " + sampler.getSiteMemberCount()
+                        + " site members into memory from " + sitesCollection.getName() + " and "
+                        + siteMembersCollection.getName());
+            }
+            return sampler;
+        }
+    }
+
     /**
      * Converts {@link DBObject} to {@link SiteData}.
      */
@@ -272,6 +370,11 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
     {
         DBObject data = convertSiteData(newSite);
         sitesCollection.insert(data);
+        RandomSiteSampler sampler = this.sampler;
+        if (sampler != null)
+        {
+            sampler.putSite(newSite);
+        }
     }
 
     @Override
@@ -288,6 +391,11 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
                 .get();
         DBObject newObj = sitesCollection.findAndModify(findObj, null, null,
                 false, updateObj, true, false);
+        RandomSiteSampler sampler = this.sampler;
+        if (sampler != null && newObj != null)
+        {
+            sampler.putSite(convertSiteDataDBObject(newObj));
+        }
         // Done
         if (logger.isDebugEnabled())
         {
@@ -360,6 +468,11 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
     @Override
     public SiteData randomSite(String domain, DataCreationState state)
     {
+        RandomSiteSampler sampler = getSampler();
+        if (sampler != null)
+        {
+            return sampler.getRandomSite(domain, state);
+        }
         SiteData site = null;
 
         BasicDBObject query = new BasicDBObject();
@@ -421,6 +534,11 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
             throw new RuntimeException(
                     "Failed to insert site member: " + siteMember, e);
         }
+        RandomSiteSampler sampler = this.sampler;
+        if (sampler != null)
+        {
+            sampler.putSiteMember(siteMember);
+        }
     }
 
     @Override
@@ -469,6 +587,12 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
     public SiteMemberData randomSiteMember(String siteId,
             DataCreationState state, String username, String... roles)
     {
+        // Members are not held by username, but the database can find those directly
+        RandomSiteSampler sampler = (username == null) ? getSampler() : null;
+        if (sampler != null)
+        {
+            return sampler.getRandomSiteMember(siteId, state, roles);
+        }
         QueryBuilder queryObjBuilder = QueryBuilder
                 .start(SiteMemberData.FIELD_SITE_ID).exists(Boolean.TRUE);
         if (siteId != null)
@@ -539,8 +663,13 @@ public class SiteDataServiceImpl implements SiteDataService, InitializingBean
                 .add(SiteMemberData.FIELD_CREATION_STATE, state.toString())
                 .pop()
                 .get();
-        siteMembersCollection.findAndModify(findObj, null, null, false,
-                updateObj, false, false);
+        DBObject newObj = siteMembersCollection.findAndModify(findObj, null, null, false,
+                updateObj, true, false);
+        RandomSiteSampler sampler = this.sampler;
+        if (sampler != null && newObj != null)
+        {
+            sampler.putSiteMember(convertSiteMemberDBObject(newObj));
+        }
     }
 
     @Override
@@ -18,12 +18,17 @@
  */
 package org.alfresco.bm.user;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.alfresco.bm.data.DataCreationState;
 import org.alfresco.bm.event.AbstractEventProcessor;
 import org.alfresco.bm.event.Event;
 import org.alfresco.bm.event.EventResult;
 
-import com.mongodb.DuplicateKeyException;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBObject;
 
 /**
  * <p>Prepare a specific number of users for interaction with Alfresco.
@@ -76,7 +81,8 @@ import com.mongodb.DuplicateKeyException;
  * 
  * <h1>Input</h1>
  * 
- * None.
+ * None or, when the preparation is {@link #setParallelEvents(int) split into parallel events},
+ * the range of users to prepare or the ranges to check for completion.
  * 
  * <h1>Data</h1>
  * 
@@ -84,10 +90,11 @@ import com.mongodb.DuplicateKeyException;
  * 
  * <h1>Actions</h1>
  * 
- * Users data objects are created.  This data is local only.
+ * Users data objects are created in batches.  This data is local only.
  * 
  * <h1>Output</h1>
- * {@link #EVENT_NAME_USERS_PREPARED}: Marker indicating completion
+ * {@link #EVENT_NAME_USERS_PREPARED}: Marker indicating completion<br/>
+ * Events named after the input event when the preparation is split into parallel events
  *
  * @author Derek Hulley
  * @since 1.1
@@ -99,7 +106,15 @@ public class PrepareUsers extends AbstractEventProcessor
     private static final String PATTERN_LAST_NAME = "[lastName]";
     private static final String PATTERN_EMAIL_ADDRESS = "[emailAddress]";
     
+    private static final String FIELD_START = "start";
+    private static final String FIELD_END = "end";
+    private static final String FIELD_CHECK = "check";
+    private static final String FIELD_DEADLINE = "deadline";
+    
     public static final long DEFAULT_USERS_PER_DOMAIN = 100L;
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final long DEFAULT_DELAY_CHECK_PREPARED = 1000L;
+    public static final long DEFAULT_TIMEOUT_CHECK_PREPARED = 3600000L;
     public static final String EVENT_NAME_USERS_PREPARED = "usersPrepared";
     public static final String DEFAULT_DOMAIN_PATTERN = UserDataService.DEFAULT_DOMAIN;
     public static final String DEFAULT_EMAIL_DOMAIN_PATTERN = "%05d.example.com";
@@ -121,6 +136,10 @@ public class PrepareUsers extends AbstractEventProcessor
     private String usernamePattern;
     private String passwordPattern;
     private boolean assumeCreated;
+    private int batchSize;
+    private int parallelEvents;
+    private long delayCheckPrepared;
+    private long timeoutCheckPrepared;
     
     /**
      * @param userDataService       service for {@link UserData} operations
@@ -140,6 +159,10 @@ public class PrepareUsers extends AbstractEventProcessor
         this.usernamePattern = DEFAULT_USERNAME_PATTERN;
         this.passwordPattern = DEFAULT_PASSWORD_PATTERN;
         this.assumeCreated = false;
+        this.batchSize = DEFAULT_BATCH_SIZE;
+        this.parallelEvents = 1;
+        this.delayCheckPrepared = DEFAULT_DELAY_CHECK_PREPARED;
+        this.timeoutCheckPrepared = DEFAULT_TIMEOUT_CHECK_PREPARED;
     }
 
     /**
@@ -251,105 +274,116 @@ public class PrepareUsers extends AbstractEventProcessor
         this.assumeCreated = assumeCreated;
     }
 
+    /**
+     * Override the {@link #DEFAULT_BATCH_SIZE default} number of users written to the
+     * {@link UserDataService#createNewUsers(List) user store} at a time
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize < 1)
+        {
+            throw new IllegalArgumentException("'batchSize' must be at least 1.");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Split the preparation into a number of events that can be processed in parallel.
+     * Each event prepares a range of the users and a final check event, which reschedules
+     * itself until all the ranges are complete, raises the {@link #EVENT_NAME_USERS_PREPARED}
+     * event.  The events are raised using the name of the event received by this processor.
+     * 
+     * @param parallelEvents        the number of events to split the preparation into (default <tt>1</tt>)
+     */
+    public void setParallelEvents(int parallelEvents)
+    {
+        if (parallelEvents < 1)
+        {
+            throw new IllegalArgumentException("'parallelEvents' must be at least 1.");
+        }
+        this.parallelEvents = parallelEvents;
+    }
+
+    /**
+     * @param delayCheckPrepared    how long (ms) to wait before checking again if all parallel
+     *                              preparation events have completed
+     */
+    public void setDelayCheckPrepared(long delayCheckPrepared)
+    {
+        if (delayCheckPrepared < 0L)
+        {
+            throw new IllegalArgumentException("'delayCheckPrepared': a positive value is required!");
+        }
+        this.delayCheckPrepared = delayCheckPrepared;
+    }
+
+    /**
+     * Override the {@link #DEFAULT_TIMEOUT_CHECK_PREPARED default} time allowed for each
+     * parallel preparation event to complete.  The check event fails if no further range
+     * of users has been prepared in this time e.g. because a range event failed.
+     * 
+     * @param timeoutCheckPrepared  how long (ms) to wait for the next range of users
+     */
+    public void setTimeoutCheckPrepared(long timeoutCheckPrepared)
+    {
+        if (timeoutCheckPrepared <= 0L)
+        {
+            throw new IllegalArgumentException("'timeoutCheckPrepared': a positive value is required!");
+        }
+        this.timeoutCheckPrepared = timeoutCheckPrepared;
+    }
+
     public EventResult processEvent(Event event) throws Exception
     {
+        Object data = event.getData();
+        if (data instanceof DBObject && ((DBObject) data).containsField(FIELD_CHECK))
+        {
+            return checkPrepared(event, (DBObject) data);
+        }
+        else if (data instanceof DBObject && ((DBObject) data).containsField(FIELD_START))
+        {
+            // Prepare a range of users
+            DBObject range = (DBObject) data;
+            long start = ((Number) range.get(FIELD_START)).longValue();
+            long end = ((Number) range.get(FIELD_END)).longValue();
+            long count = prepareUsers(start, end);
+            // No further events; the check event watches for completion
+            String msg = "Created " + count + " users from " + start + " to " + end + ".";
+            return new EventResult(msg, true);
+        }
+        
         // First wipe out any users that were not created
         userDataService.deleteUsers(DataCreationState.Unknown);
         userDataService.deleteUsers(DataCreationState.NotScheduled);
         userDataService.deleteUsers(DataCreationState.Scheduled);
         userDataService.deleteUsers(DataCreationState.Failed);
         
-        // How many domains must we create?
-        long domainsToCreate = (long) (Math.ceil((double)numberOfUsers/(double)usersPerDomain));
-        
-        long count = 0L;
-        // Loop over domains and users and make sure they exist
-        for (long i = 0L; i < domainsToCreate; i++)
+        if (parallelEvents > 1 && numberOfUsers > batchSize)
         {
-            // Numerical pattern for email domain
-            String emailDomain = emailDomainPattern;
-            if (emailDomain.contains("%"))
+            // Split the users into ranges that are prepared by separate events
+            long usersPerEvent = (long) Math.ceil((double) numberOfUsers / (double) parallelEvents);
+            List<Event> nextEvents = new ArrayList<Event>(parallelEvents + 1);
+            BasicDBList lastUsers = new BasicDBList();
+            for (long start = 0L; start < numberOfUsers; start += usersPerEvent)
             {
-                emailDomain = String.format(emailDomainPattern, i);
-            }
-            // Substitutions for email
-            String domain = domainPattern;
-            domain = domain.replace(PATTERN_EMAIL_DOMAIN, emailDomain);
-            // Build users for the domain
-            for (int j = 0; count < numberOfUsers && j < usersPerDomain; j++)
-            {
-                // Numerical pattern for first name
-                String firstName = firstNamePattern;
-                if (firstName.contains("%"))
-                {
-                    firstName = String.format(firstNamePattern, count);
-                }
-                // Numerical pattern for last name
-                String lastName = lastNamePattern;
-                if (lastName.contains("%"))
-                {
-                    lastName = String.format(lastNamePattern, count);
-                }
-                // Substitutions for email
-                String email = emailAddressPattern;
-                email = email.replace(PATTERN_FIRST_NAME, firstName);
-                email = email.replace(PATTERN_LAST_NAME, lastName);
-                email = email.replace(PATTERN_EMAIL_DOMAIN, emailDomain);
-                // Substitutions for username
-                String username = usernamePattern;
-                username = username.replace(PATTERN_EMAIL_ADDRESS, email);
-                username = username.replace(PATTERN_FIRST_NAME, firstName);
-                username = username.replace(PATTERN_LAST_NAME, lastName);
-                username = username.replace(PATTERN_EMAIL_DOMAIN, emailDomain);
-                // Substitutions for password
-                String password = passwordPattern;
-                password = password.replace(PATTERN_EMAIL_ADDRESS, email);
-                password = password.replace(PATTERN_FIRST_NAME, firstName);
-                password = password.replace(PATTERN_LAST_NAME, lastName);
-                password = password.replace(PATTERN_EMAIL_DOMAIN, emailDomain);
-                // Does the user exist (by email)
-                UserData user = userDataService.findUserByUsername(username);
-                if (user != null)
-                {
-                    switch (user.getCreationState())
-                    {
-                        case Created:
-                            // These are acceptable cases, which we ignore
-                            break;
-                        default:
-                            logger.warn("Found a user that was NOT created even though we cleared those out: " + user);
-                    }
-                    // User already exists
-                    continue;
-                }
-                // Create data
-                user = new UserData();
-                user.setCreationState(DataCreationState.NotScheduled);
-                user.setDomain(domain);
-                user.setEmail(email);
-                user.setFirstName(firstName);
-                user.setLastName(lastName);
-                user.setPassword(password);
-                user.setUsername(username);
-                // Check if the user must be assumed to exist
-                if (assumeCreated)
-                {
-                    user.setCreationState(DataCreationState.Created);
-                }
-                // Persist
-                try
-                {
-                    userDataService.createNewUser(user);
-                }
-                catch (DuplicateKeyException e)
-                {
-                    // We checked if the user existed and it didn't ... but now it does
-                    logger.warn("User data has been created by a separate process.  Ignoring: " + username);
-                    continue;
-                }
-                count++;
+                long end = Math.min(start + usersPerEvent, numberOfUsers);
+                DBObject range = BasicDBObjectBuilder.start()
+                        .add(FIELD_START, start)
+                        .add(FIELD_END, end)
+                        .get();
+                nextEvents.add(new Event(event.getName(), range));
+                lastUsers.add(end - 1);
             }
+            DBObject check = BasicDBObjectBuilder.start()
+                    .add(FIELD_CHECK, lastUsers)
+                    .add(FIELD_DEADLINE, System.currentTimeMillis() + timeoutCheckPrepared)
+                    .get();
+            nextEvents.add(new Event(event.getName(), System.currentTimeMillis() + delayCheckPrepared, check));
+            String msg = "Split the preparation of " + numberOfUsers + " users into " + (nextEvents.size() - 1) + " events.";
+            return new EventResult(msg, nextEvents);
         }
+        
+        long count = prepareUsers(0L, numberOfUsers);
         // Raise an event saying we're done
         Event doneEvent = new Event(eventNameUsersPrepared, null);
         // Done
@@ -357,4 +391,143 @@ public class PrepareUsers extends AbstractEventProcessor
         EventResult result = new EventResult(msg, doneEvent);
         return result;
     }
+    
+    /**
+     * Check that the last user of each range exists.  Each range writes its last user on its own,
+     * after all other users in the range, so its presence means that the range is complete.
+     * <p/>
+     * Completed ranges are not checked again.  The check fails if no range completes before
+     * the {@link #setTimeoutCheckPrepared(long) timeout}, which happens if a range event fails.
+     */
+    private EventResult checkPrepared(Event event, DBObject data)
+    {
+        BasicDBList lastUsers = (BasicDBList) data.get(FIELD_CHECK);
+        BasicDBList remainingUsers = new BasicDBList();
+        String username = null;
+        for (Object lastUser : lastUsers)
+        {
+            String lastUsername = createUser(((Number) lastUser).longValue()).getUsername();
+            if (userDataService.findUserByUsername(lastUsername) == null)
+            {
+                remainingUsers.add(lastUser);
+                if (username == null)
+                {
+                    username = lastUsername;
+                }
+            }
+        }
+        if (remainingUsers.isEmpty())
+        {
+            // Raise an event saying we're done
+            Event doneEvent = new Event(eventNameUsersPrepared, null);
+            String msg = "Prepared " + numberOfUsers + " users.";
+            return new EventResult(msg, doneEvent);
+        }
+        
+        long now = System.currentTimeMillis();
+        Number deadline = (Number) data.get(FIELD_DEADLINE);
+        if (deadline == null || remainingUsers.size() < lastUsers.size())
+        {
+            // Another range is done, so allow time for the next one
+            deadline = now + timeoutCheckPrepared;
+        }
+        else if (now > deadline.longValue())
+        {
+            String msg =
+                    "Gave up waiting for users to be prepared.  No range of users was completed in the last " +
+                    timeoutCheckPrepared + "ms and " + remainingUsers.size() + " ranges are outstanding, " +
+                    "starting with user " + username + ".  Check for failed '" + event.getName() + "' events.";
+            return new EventResult(msg, false);
+        }
+        // Still busy
+        DBObject check = BasicDBObjectBuilder.start()
+                .add(FIELD_CHECK, remainingUsers)
+                .add(FIELD_DEADLINE, deadline.longValue())
+                .get();
+        Event nextEvent = new Event(event.getName(), now + delayCheckPrepared, check);
+        String msg = "Still waiting for user " + username + " to be prepared.";
+        return new EventResult(msg, nextEvent);
+    }
+    
+    /**
+     * Write users to the user store in batches, ignoring users that already exist
+     * 
+     * @param start                 the index of the first user to prepare
+     * @param end                   the index of the user after the last user to prepare
+     * @return                      the number of users created
+     */
+    private long prepareUsers(long start, long end)
+    {
+        long count = 0L;
+        List<UserData> users = new ArrayList<UserData>(batchSize);
+        for (long i = start; i < end; i++)
+        {
+            users.add(createUser(i));
+            // The last user goes in on its own so that it marks the completion of the range
+            if (users.size() == batchSize || i == end - 2L)
+            {
+                count += userDataService.createNewUsers(users);
+                users.clear();
+            }
+        }
+        count += userDataService.createNewUsers(users);
+        return count;
+    }
+    
+    /**
+     * Generate the data for a user
+     * 
+     * @param index                 the index of the user across all users
+     */
+    private UserData createUser(long index)
+    {
+        // Numerical pattern for email domain
+        String emailDomain = emailDomainPattern;
+        if (emailDomain.contains("%"))
+        {
+            emailDomain = String.format(emailDomainPattern, index / usersPerDomain);
+        }
+        // Substitutions for email
+        String domain = domainPattern;
+        domain = domain.replace(PATTERN_EMAIL_DOMAIN, emailDomain);
+        // Numerical pattern for first name
+        String firstName = firstNamePattern;
+        if (firstName.contains("%"))
+        {
+            firstName = String.format(firstNamePattern, index);
+        }
+        // Numerical pattern for last name
+        String lastName = lastNamePattern;
+        if (lastName.contains("%"))
+        {
+            lastName = String.format(lastNamePattern, index);
+        }
+        // Substitutions for email
+        String email = emailAddressPattern;
+        email = email.replace(PATTERN_FIRST_NAME, firstName);
+        email = email.replace(PATTERN_LAST_NAME, lastName);
+        email = email.replace(PATTERN_EMAIL_DOMAIN, emailDomain);
+        // Substitutions for username
+        String username = usernamePattern;
+        username = username.replace(PATTERN_EMAIL_ADDRESS, email);
+        username = username.replace(PATTERN_FIRST_NAME, firstName);
+        username = username.replace(PATTERN_LAST_NAME, lastName);
+        username = username.replace(PATTERN_EMAIL_DOMAIN, emailDomain);
+        // Substitutions for password
+        String password = passwordPattern;
+        password = password.replace(PATTERN_EMAIL_ADDRESS, email);
+        password = password.replace(PATTERN_FIRST_NAME, firstName);
+        password = password.replace(PATTERN_LAST_NAME, lastName);
+        password = password.replace(PATTERN_EMAIL_DOMAIN, emailDomain);
+        // Create data
+        UserData user = new UserData();
+        user.setCreationState(assumeCreated ? DataCreationState.Created : DataCreationState.NotScheduled);
+        user.setDomain(domain);
+        user.setEmail(email);
+        user.setFirstName(firstName);
+        user.setLastName(lastName);
+        user.setPassword(password);
+        user.setUsername(username);
+        return user;
+    }
 }
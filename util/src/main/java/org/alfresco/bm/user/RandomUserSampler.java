@@ -0,0 +1,264 @@
+package org.alfresco.bm.user;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Holds {@link org.alfresco.bm.data.DataCreationState#Created created} users in memory so
+ * that a user can be picked at random, uniformly and in constant time, without going to
+ * the database.
+ * <p/>
+ * Users are held in one dense array for all users and one dense array per domain.
+ * Removing a user moves the last user in each array into the gap, so that the arrays
+ * never contain holes.
+ * <p/>
+ * Copies of the users are handed out, so clients may modify the users returned.
+ * This class is thread-safe.
+ *
+ * @since 2.2
+ */
+public class RandomUserSampler
+{
+    /**
+     * The position of a user in the arrays
+     */
+    private static class Slot
+    {
+        private final UserData user;
+        private int index;
+        private int domainIndex;
+        private Slot(UserData user)
+        {
+            this.user = user;
+        }
+    }
+
+    /**
+     * A dense array of the slots for a single domain
+     */
+    private static class DomainSlots
+    {
+        private Slot[] slots = new Slot[16];
+        private int count;
+    }
+
+    private final Map<String, Slot> slotsByUsername;
+    private final Map<String, DomainSlots> slotsByDomain;
+    private Slot[] slots;
+    private int count;
+
+    public RandomUserSampler()
+    {
+        this.slotsByUsername = new HashMap<String, Slot>(1024);
+        this.slotsByDomain = new HashMap<String, DomainSlots>(17);
+        this.slots = new Slot[1024];
+        this.count = 0;
+    }
+
+    /**
+     * Remove all users
+     */
+    public synchronized void clear()
+    {
+        slotsByUsername.clear();
+        slotsByDomain.clear();
+        slots = new Slot[1024];
+        count = 0;
+    }
+
+    /**
+     * @return                      the number of users that can be picked
+     */
+    public synchronized int size()
+    {
+        return count;
+    }
+
+    /**
+     * Add or replace a user
+     */
+    public synchronized void put(UserData user)
+    {
+        remove(user.getUsername());
+        Slot slot = new Slot(copy(user));
+        // Add to the end of all users
+        if (count == slots.length)
+        {
+            slots = Arrays.copyOf(slots, count * 2);
+        }
+        slot.index = count;
+        slots[count++] = slot;
+        // Add to the end of the domain users
+        DomainSlots domainSlots = slotsByDomain.get(user.getDomain());
+        if (domainSlots == null)
+        {
+            domainSlots = new DomainSlots();
+            slotsByDomain.put(user.getDomain(), domainSlots);
+        }
+        if (domainSlots.count == domainSlots.slots.length)
+        {
+            domainSlots.slots = Arrays.copyOf(domainSlots.slots, domainSlots.count * 2);
+        }
+        slot.domainIndex = domainSlots.count;
+        domainSlots.slots[domainSlots.count++] = slot;
+
+        slotsByUsername.put(user.getUsername(), slot);
+    }
+
+    /**
+     * Remove a user, if present
+     *
+     * @return                      <tt>true</tt> if the user was removed
+     */
+    public synchronized boolean remove(String username)
+    {
+        Slot slot = slotsByUsername.remove(username);
+        if (slot == null)
+        {
+            return false;
+        }
+        // Fill the gap with the last of all users
+        Slot last = slots[--count];
+        slots[slot.index] = last;
+        last.index = slot.index;
+        slots[count] = null;
+        // Fill the gap with the last of the domain users
+        String domain = slot.user.getDomain();
+        DomainSlots domainSlots = slotsByDomain.get(domain);
+        Slot domainLast = domainSlots.slots[--domainSlots.count];
+        domainSlots.slots[slot.domainIndex] = domainLast;
+        domainLast.domainIndex = slot.domainIndex;
+        domainSlots.slots[domainSlots.count] = null;
+        if (domainSlots.count == 0)
+        {
+            slotsByDomain.remove(domain);
+        }
+        return true;
+    }
+
+    /**
+     * @return                      a copy of the user or <tt>null</tt> if the user is not present
+     */
+    public synchronized UserData get(String username)
+    {
+        Slot slot = slotsByUsername.get(username);
+        return (slot == null) ? null : copy(slot.user);
+    }
+
+    /**
+     * @return                      a random user or <tt>null</tt> if there are no users
+     */
+    public synchronized UserData getRandomUser()
+    {
+        if (count == 0)
+        {
+            return null;
+        }
+        int index = ThreadLocalRandom.current().nextInt(count);
+        return copy(slots[index].user);
+    }
+
+    /**
+     * Pick a user at random from some domains.  Every user in the given domains has
+     * the same chance of being picked.
+     *
+     * @param domains               the domains to choose from or empty for all domains
+     * @return                      a random user or <tt>null</tt> if there are no users in the domains
+     */
+    public synchronized UserData getRandomUser(List<String> domains)
+    {
+        if (domains.size() == 0)
+        {
+            return getRandomUser();
+        }
+        List<DomainSlots> candidates = new ArrayList<DomainSlots>(domains.size());
+        int total = 0;
+        for (String domain : domains)
+        {
+            DomainSlots domainSlots = slotsByDomain.get(domain);
+            if (domainSlots != null && !candidates.contains(domainSlots))
+            {
+                candidates.add(domainSlots);
+                total += domainSlots.count;
+            }
+        }
+        if (total == 0)
+        {
+            return null;
+        }
+        int index = ThreadLocalRandom.current().nextInt(total);
+        for (DomainSlots domainSlots : candidates)
+        {
+            if (index < domainSlots.count)
+            {
+                return copy(domainSlots.slots[index].user);
+            }
+            index -= domainSlots.count;
+        }
+        throw new IllegalStateException("Random index out of range.");
+    }
+
+    /**
+     * Change the password of a user, if present
+     */
+    public synchronized void setPassword(String username, String password)
+    {
+        Slot slot = slotsByUsername.get(username);
+        if (slot != null)
+        {
+            slot.user.setPassword(password);
+        }
+    }
+
+    /**
+     * Change the groups of a user, if present
+     *
+     * @param add                   <tt>true</tt> to add the groups or <tt>false</tt> to remove them
+     */
+    public synchronized void updateGroups(String username, List<String> groups, boolean add)
+    {
+        Slot slot = slotsByUsername.get(username);
+        if (slot == null)
+        {
+            return;
+        }
+        List<String> userGroups = slot.user.getGroups();
+        userGroups = (userGroups == null) ? new ArrayList<String>(groups.size()) : new ArrayList<String>(userGroups);
+        for (String group : groups)
+        {
+            if (add && !userGroups.contains(group))
+            {
+                userGroups.add(group);
+            }
+            else if (!add)
+            {
+                userGroups.remove(group);
+            }
+        }
+        slot.user.setGroups(userGroups);
+    }
+
+    /**
+     * Copy a user so that the held users are isolated from clients
+     */
+    private static UserData copy(UserData user)
+    {
+        UserData copy = new UserData();
+        copy.setUsername(user.getUsername());
+        copy.setPassword(user.getPassword());
+        copy.setCreationState(user.getCreationState());
+        copy.setFirstName(user.getFirstName());
+        copy.setLastName(user.getLastName());
+        copy.setEmail(user.getEmail());
+        copy.setDomain(user.getDomain());
+        if (user.getGroups() != null)
+        {
+            copy.setGroups(new ArrayList<String>(user.getGroups()));
+        }
+        return copy;
+    }
+}
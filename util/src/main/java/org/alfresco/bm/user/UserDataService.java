@@ -33,6 +33,15 @@ public interface UserDataService
      */
     void createNewUser(UserData data);
 
+    /**
+     * Create many users at once.  Users whose username or email address is already used are
+     * ignored.
+     * 
+     * @param data                      the users to create
+     * @return                          the number of users created
+     */
+    long createNewUsers(List<UserData> data);
+
     /**
      * Update a user's password
      */
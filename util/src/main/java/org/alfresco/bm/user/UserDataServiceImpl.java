@@ -20,8 +20,10 @@ package org.alfresco.bm.user;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.alfresco.bm.data.DataCreationState;
 import org.apache.commons.logging.Log;
@@ -30,6 +32,10 @@ import org.springframework.beans.factory.InitializingBean;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -59,6 +65,9 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
     public static final String FIELD_DOMAIN = "domain";
     public static final String FIELD_GROUPS = "groups";
 
+    /** The MongoDB error code for a unique index violation */
+    private static final int ERR_DUPLICATE_KEY = 11000;
+
     public static final String FIELD_ID = "id";
     public static final String FIELD_KEY = "key";
     
@@ -67,11 +76,41 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
     /** The collection of users, which can be reused by derived extensions. */
     protected final DBCollection collection;
     
+    private boolean sampleInMemory = false;
+    private long sampleRefreshPeriod = 0L;
+    /** Created users held in memory for random selection; <tt>null</tt> until first used */
+    private volatile RandomUserSampler sampler;
+    private volatile long samplerLoadTime;
+    
     public UserDataServiceImpl(DB db, String collection)
     {
         this.collection = db.getCollection(collection);
     }
     
+    /**
+     * Pick random users from memory rather than by querying the database.
+     * <p/>
+     * All {@link DataCreationState#Created created} users are loaded when a random user is first
+     * requested and are then kept up to date by the changes made through this service.  Changes
+     * made by other services (other drivers, for example) are only seen when the users are
+     * {@link #setSampleRefreshPeriod(long) reloaded}.
+     * 
+     * @param sampleInMemory            <tt>true</tt> to pick random users from memory (default <tt>false</tt>)
+     */
+    public void setSampleInMemory(boolean sampleInMemory)
+    {
+        this.sampleInMemory = sampleInMemory;
+    }
+
+    /**
+     * @param sampleRefreshPeriod       how long (ms) users are held in memory before they are reloaded.
+     *                                  The default of <tt>0</tt> means that they are never reloaded.
+     */
+    public void setSampleRefreshPeriod(long sampleRefreshPeriod)
+    {
+        this.sampleRefreshPeriod = sampleRefreshPeriod;
+    }
+    
     @Override
     public void afterPropertiesSet() throws Exception
     {
@@ -125,6 +164,61 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
         collection.createIndex(idxCreationStateRand, optCreationStateRand);
     }
     
+    /**
+     * Get the in-memory users, loading them if necessary
+     * 
+     * @return                          the in-memory users or <tt>null</tt> if random users
+     *                                  are not picked from memory
+     */
+    private RandomUserSampler getSampler()
+    {
+        if (!sampleInMemory)
+        {
+            return null;
+        }
+        RandomUserSampler sampler = this.sampler;
+        if (sampler != null &&
+                (sampleRefreshPeriod <= 0L || System.currentTimeMillis() - samplerLoadTime < sampleRefreshPeriod))
+        {
+            return sampler;
+        }
+        synchronized (this)
+        {
+            // Check again in case another thread got here first
+            sampler = this.sampler;
+            if (sampler != null &&
+                    (sampleRefreshPeriod <= 0L || System.currentTimeMillis() - samplerLoadTime < sampleRefreshPeriod))
+            {
+                return sampler;
+            }
+            long now = System.currentTimeMillis();
+            sampler = new RandomUserSampler();
+            DBObject queryObj = BasicDBObjectBuilder.start()
+                    .add(FIELD_CREATION_STATE, DataCreationState.Created.toString())
+                    .get();
+            DBCursor cursor = collection.find(queryObj);
+            try
+            {
+                while (cursor.hasNext())
+                {
+                    sampler.put(fromDBObject(cursor.next()));
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+            this.sampler = sampler;
+            this.samplerLoadTime = now;
+            // Done
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Loaded " + sampler.size() + " created users into memory from " + collection.getName());
+            }
+            return sampler;
+        }
+    }
+    
     /**
      * Helper to convert a Mongo DBObject into the API consumable object
      * <p/>
@@ -190,10 +284,9 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
     }
 
     /**
-     * {@inheritDoc}
+     * Helper to convert the API object into a Mongo DBObject for insertion
      */
-    @Override
-    public void createNewUser(UserData data)
+    protected DBObject toDBObject(UserData data)
     {
         BasicDBObjectBuilder insertObjBuilder = BasicDBObjectBuilder.start()
                 .add(FIELD_RANDOMIZER, data.getRandomizer())
@@ -205,7 +298,16 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
                 .add(FIELD_EMAIL, data.getEmail())
                 .add(FIELD_DOMAIN, data.getDomain())
                 .add(FIELD_GROUPS, data.getGroups());
-        DBObject insertObj = insertObjBuilder.get();
+        return insertObjBuilder.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void createNewUser(UserData data)
+    {
+        DBObject insertObj = toDBObject(data);
         
         try
         {
@@ -216,6 +318,75 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
             // We just rethrow as per the API
             throw e;
         }
+        RandomUserSampler sampler = this.sampler;
+        if (sampler != null && data.getCreationState() == DataCreationState.Created)
+        {
+            sampler.put(data);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The users are written in a single unordered bulk insert, so a duplicate user
+     * does not prevent the remaining users from being created.
+     */
+    @Override
+    public long createNewUsers(List<UserData> data)
+    {
+        if (data.size() == 0)
+        {
+            return 0L;
+        }
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (UserData user : data)
+        {
+            bulk.insert(toDBObject(user));
+        }
+        
+        long inserted;
+        Set<Integer> failedIndexes = Collections.emptySet();
+        try
+        {
+            BulkWriteResult result = bulk.execute();
+            inserted = result.getInsertedCount();
+        }
+        catch (BulkWriteException e)
+        {
+            failedIndexes = new HashSet<Integer>(e.getWriteErrors().size() * 2);
+            for (BulkWriteError error : e.getWriteErrors())
+            {
+                if (error.getCode() != ERR_DUPLICATE_KEY)
+                {
+                    // Only duplicates are tolerated
+                    throw e;
+                }
+                failedIndexes.add(error.getIndex());
+            }
+            if (e.getWriteConcernError() != null)
+            {
+                throw e;
+            }
+            inserted = e.getWriteResult().getInsertedCount();
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Ignored " + failedIndexes.size() + " users that already exist.");
+            }
+        }
+        RandomUserSampler sampler = this.sampler;
+        if (sampler != null)
+        {
+            for (int i = 0; i < data.size(); i++)
+            {
+                UserData user = data.get(i);
+                if (!failedIndexes.contains(i) && user.getCreationState() == DataCreationState.Created)
+                {
+                    sampler.put(user);
+                }
+            }
+        }
+        // Done
+        return inserted;
     }
     
     /**
@@ -241,6 +412,11 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
                     "   Password: " + password + "\n" +
                     "   Result:   " + result);
         }
+        RandomUserSampler sampler = this.sampler;
+        if (sampler != null)
+        {
+            sampler.setPassword(username, password);
+        }
     }
 
     /**
@@ -266,6 +442,22 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
                     "   Creation State: " + creationState + "\n" +
                     "   Result:         " + result);
         }
+        RandomUserSampler sampler = this.sampler;
+        if (sampler != null)
+        {
+            if (creationState == DataCreationState.Created)
+            {
+                UserData user = findUserByUsername(username);
+                if (user != null)
+                {
+                    sampler.put(user);
+                }
+            }
+            else
+            {
+                sampler.remove(username);
+            }
+        }
     }
     
     @Override
@@ -296,6 +488,11 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
         DBObject queryObj = queryObjBuilder.get();
         
         WriteResult result = collection.remove(queryObj);
+        RandomUserSampler sampler = this.sampler;
+        if (sampler != null && (creationState == null || creationState == DataCreationState.Created))
+        {
+            sampler.clear();
+        }
         return result.getN();
     }
 
@@ -341,6 +538,11 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
     @Override
     public UserData getRandomUser()
     {
+        RandomUserSampler sampler = getSampler();
+        if (sampler != null)
+        {
+            return sampler.getRandomUser();
+        }
         int random = (int) (Math.random() * (double) 1e6);
         DBObject queryObj = BasicDBObjectBuilder.start()
                 .add(FIELD_CREATION_STATE, DataCreationState.Created.toString())
@@ -425,6 +627,11 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
     @Override
     public UserData getRandomUserFromDomains(List<String> domains)
     {
+        RandomUserSampler sampler = getSampler();
+        if (sampler != null)
+        {
+            return sampler.getRandomUser(domains);
+        }
         Range range = getRandomizerRange(domains);
         int upper = range.getMax();
         int lower = range.getMin();
@@ -466,6 +673,11 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
                 .pop()
                 .get();
         collection.update(queryObj, updateObj);
+        RandomUserSampler sampler = this.sampler;
+        if (sampler != null)
+        {
+            sampler.updateGroups(username, groups, true);
+        }
     }
     
     @Override
@@ -480,6 +692,11 @@ public class UserDataServiceImpl extends AbstractUserDataService implements Init
                 .pop()
                 .get();
         collection.update(queryObj, updateObj);
+        RandomUserSampler sampler = this.sampler;
+        if (sampler != null)
+        {
+            sampler.updateGroups(username, groups, false);
+        }
     }
     
     /*
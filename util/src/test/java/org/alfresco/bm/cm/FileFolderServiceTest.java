@@ -21,6 +21,7 @@ package org.alfresco.bm.cm;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.HashSet;
 import java.util.List;
@@ -33,6 +34,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
@@ -66,6 +68,7 @@ public class FileFolderServiceTest
     @After
     public void tearDown() throws Exception
     {
+        fileFolderService.destroy();
         mongoFactory.destroy();
     }
     
@@ -172,6 +175,91 @@ public class FileFolderServiceTest
         assertEquals(20L, folderDataCheck.getFileCount());
     }
     
+    @Test
+    public void incrementInBulk() throws Exception
+    {
+        fileFolderService = new FileFolderService(db, "ffs");
+        fileFolderService.setIncrementFlushPeriod(60000L);
+        fileFolderService.afterPropertiesSet();
+        
+        FolderData folderData = new FolderData("A123", "home", "/myfolders/tests", 3L, 17L);
+        fileFolderService.createNewFolder(folderData);
+        fileFolderService.createNewFolder("B123", "home", "/myfolders/tests/b");
+        fileFolderService.incrementFolderCount("home", "/myfolders/tests", 3L);
+        fileFolderService.incrementFileCount("home", "/myfolders/tests", 3L);
+        fileFolderService.incrementFileCount("home", "/myfolders/tests", 1L);
+        fileFolderService.incrementFileCount("home", "/myfolders/tests/b", 5L);
+        // Nothing written yet but the increments are visible
+        assertEquals(17L, ffs.findOne(new BasicDBObject(FileFolderService.FIELD_ID, "A123")).get(FileFolderService.FIELD_FILE_COUNT));
+        FolderData folderDataCheck = fileFolderService.getFolder("A123");
+        assertEquals(6L, folderDataCheck.getFolderCount());
+        assertEquals(21L, folderDataCheck.getFileCount());
+        assertEquals(21L, fileFolderService.getFolder("home", "/myfolders/tests").getFileCount());
+        assertEquals(5L, fileFolderService.getChildFolders("home", "/myfolders/tests", 0, 10).get(0).getFileCount());
+        
+        // Write and check that nothing is counted twice
+        fileFolderService.flushIncrements();
+        assertEquals(21L, ffs.findOne(new BasicDBObject(FileFolderService.FIELD_ID, "A123")).get(FileFolderService.FIELD_FILE_COUNT));
+        folderDataCheck = fileFolderService.getFolder("A123");
+        assertEquals(6L, folderDataCheck.getFolderCount());
+        assertEquals(21L, folderDataCheck.getFileCount());
+        
+        // Increments to deleted folders are dropped
+        fileFolderService.incrementFileCount("home", "/myfolders/tests/b", 5L);
+        fileFolderService.deleteFolder("home", "/myfolders/tests", true);
+        fileFolderService.createNewFolder("B123", "home", "/myfolders/tests/b");
+        assertEquals(0L, fileFolderService.getFolder("B123").getFileCount());
+        
+        // Anything left is written when the service is stopped
+        fileFolderService.incrementFileCount("home", "/myfolders/tests/b", 2L);
+        fileFolderService.destroy();
+        assertEquals(2L, ffs.findOne(new BasicDBObject(FileFolderService.FIELD_ID, "B123")).get(FileFolderService.FIELD_FILE_COUNT));
+    }
+    
+    /**
+     * Written folders are dropped from the pending increments while other threads keep adding to them
+     */
+    @Test
+    public void incrementInBulkConcurrently() throws Exception
+    {
+        fileFolderService = new FileFolderService(db, "ffs");
+        fileFolderService.setIncrementFlushPeriod(60000L);
+        fileFolderService.afterPropertiesSet();
+        fileFolderService.createNewFolder("A123", "home", "/myfolders/tests");
+        
+        final int threadCount = 4;
+        final int incCount = 1000;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < incCount; j++)
+                    {
+                        fileFolderService.incrementFileCount("home", "/myfolders/tests", 1L);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+        {
+            while (thread.isAlive())
+            {
+                fileFolderService.flushIncrements();
+            }
+        }
+        fileFolderService.flushIncrements();
+        
+        long expected = (long) threadCount * incCount;
+        assertEquals(expected, ffs.findOne(new BasicDBObject(FileFolderService.FIELD_ID, "A123")).get(FileFolderService.FIELD_FILE_COUNT));
+        assertEquals(expected, fileFolderService.getFolder("A123").getFileCount());
+        fileFolderService.destroy();
+    }
+    
     @Test
     public void childFolderCounts()
     {
@@ -260,4 +348,56 @@ public class FileFolderServiceTest
         // All
         assertEquals(1, fileFolderService.getFoldersByCounts("home", 2L, 2L, 2L, 2L, 30L, 30L, 0, 10).size());
     }
+    
+    private void createRandomFolders()
+    {
+        fileFolderService.createNewFolder("a", "home", "/a");
+        fileFolderService.createNewFolder("aa", "home", "/a/a");
+        fileFolderService.createNewFolder("ab", "home", "/a/b");
+        fileFolderService.createNewFolder("ac", "home", "/a/c");
+        fileFolderService.createNewFolder("aca", "home", "/a/c/a");
+        fileFolderService.createNewFolder("b", "home", "/b");
+        
+        fileFolderService.incrementFolderCount("home", "/a", 3L);
+        fileFolderService.incrementFolderCount("home", "/a/c", 1L);
+        fileFolderService.incrementFileCount("home", "/a/a", 10L);
+        fileFolderService.incrementFileCount("home", "/a/c", 30L);
+    }
+    
+    private void checkRandomFolders()
+    {
+        assertNull(fileFolderService.getRandomFolder("missing", null, null, null, null, null, null));
+        assertNull(fileFolderService.getRandomFolder("home", 4L, null, null, null, null, null));
+        assertNull(fileFolderService.getRandomFolder("home", null, null, 5L, null, null, null));
+        assertNotNull(fileFolderService.getRandomFolder("home", null, null, null, null, null, null));
+        for (int i = 0; i < 20; i++)
+        {
+            FolderData folder = fileFolderService.getRandomFolder("home", 2L, 2L, null, null, 5L, 50L);
+            assertTrue(folder.getPath().equals("/a/a") || folder.getPath().equals("/a/c"));
+        }
+        assertEquals("/a/c", fileFolderService.getRandomFolder("home", 2L, 2L, 1L, 1L, 30L, 30L).getPath());
+        
+        // Changes are seen straight away
+        fileFolderService.incrementFileCount("home", "/b", 100L);
+        assertEquals("/b", fileFolderService.getRandomFolder("home", null, null, null, null, 100L, null).getPath());
+        fileFolderService.deleteFolder("home", "/a", true);
+        assertNull(fileFolderService.getRandomFolder("home", 2L, null, null, null, null, null));
+        fileFolderService.createNewFolder("ba", "home", "/b/a");
+        assertEquals("/b/a", fileFolderService.getRandomFolder("home", 2L, null, null, null, null, null).getPath());
+    }
+    
+    @Test
+    public void getRandomFolder()
+    {
+        createRandomFolders();
+        checkRandomFolders();
+    }
+    
+    @Test
+    public void getRandomFolderInMemory()
+    {
+        fileFolderService.setSampleInMemory(true);
+        createRandomFolders();
+        checkRandomFolders();
+    }
 }
@@ -0,0 +1,102 @@
+package org.alfresco.bm.cm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * @see RandomFolderSampler
+ *
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class RandomFolderSamplerTest
+{
+    private RandomFolderSampler sampler;
+
+    @Before
+    public void setUp()
+    {
+        // 10 top-level folders, each with 10 subfolders holding 0 to 9 files
+        sampler = new RandomFolderSampler();
+        for (int i = 0; i < 10; i++)
+        {
+            sampler.put(new FolderData("f" + i, "home", "/f" + i, 10L, 0L));
+            for (int j = 0; j < 10; j++)
+            {
+                sampler.put(new FolderData("f" + i + j, "home", "/f" + i + "/" + j, 0L, (long) j));
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        sampler = new RandomFolderSampler();
+        assertEquals(0, sampler.size("home"));
+        assertNull(sampler.getRandomFolder("home", null, null, null, null, null, null));
+    }
+
+    @Test
+    public void testRandomFolder()
+    {
+        assertEquals(110, sampler.size("home"));
+        assertNull(sampler.getRandomFolder("other", null, null, null, null, null, null));
+        assertNull(sampler.getRandomFolder("home", 3L, null, null, null, null, null));
+        assertNull(sampler.getRandomFolder("home", 2L, 1L, null, null, null, null));
+        for (int i = 0; i < 100; i++)
+        {
+            FolderData folder = sampler.getRandomFolder("home", 1L, 1L, null, null, null, null);
+            assertEquals(1, folder.getLevel());
+            folder = sampler.getRandomFolder("home", null, null, null, null, 5L, 6L);
+            assertTrue(folder.getFileCount() == 5L || folder.getFileCount() == 6L);
+        }
+        // Every matching folder should be picked roughly equally, including those in partly matching ranges
+        Map<String, Integer> counts = new HashMap<String, Integer>(37);
+        for (int i = 0; i < 30000; i++)
+        {
+            FolderData folder = sampler.getRandomFolder("home", 2L, 2L, null, null, 3L, 4L);
+            Integer count = counts.get(folder.getPath());
+            counts.put(folder.getPath(), (count == null) ? 1 : count + 1);
+        }
+        assertEquals(20, counts.size());
+        for (Integer count : counts.values())
+        {
+            assertTrue("Folder picked too rarely: " + count, count > 1200);
+        }
+    }
+
+    @Test
+    public void testChanges()
+    {
+        assertNull(sampler.getRandomFolder("home", null, null, null, null, 10L, null));
+        sampler.increment("home", "/f3/3", 0L, 7L);
+        assertEquals("/f3/3", sampler.getRandomFolder("home", null, null, null, null, 10L, null).getPath());
+        assertEquals(10L, sampler.get("home", "/f3/3").getFileCount());
+        sampler.increment("home", "/f3/3", 0L, -1L);
+        assertNull(sampler.getRandomFolder("home", null, null, null, null, 10L, null));
+        // Missing folders are ignored
+        sampler.increment("home", "/missing", 1L, 1L);
+        assertNull(sampler.get("home", "/missing"));
+
+        assertEquals(11, sampler.remove("home", "/f0", true));
+        assertEquals(1, sampler.remove("home", "/f1/1", false));
+        assertEquals(0, sampler.remove("home", "/f1/1", false));
+        assertEquals(98, sampler.size("home"));
+        for (int i = 0; i < 100; i++)
+        {
+            FolderData folder = sampler.getRandomFolder("home", null, null, null, null, 1L, 1L);
+            assertNotNull(folder);
+            assertTrue(!folder.getPath().startsWith("/f0/") && !folder.getPath().equals("/f1/1"));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.alfresco.bm.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.bm.data.DataCreationState;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * @see RandomSiteSampler
+ *
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class RandomSiteSamplerTest
+{
+    private static final String[] ROLES = new String[] {"SiteManager", "SiteCollaborator", "SiteConsumer"};
+
+    private RandomSiteSampler sampler;
+
+    @Before
+    public void setUp()
+    {
+        sampler = new RandomSiteSampler();
+        for (int i = 0; i < 300; i++)
+        {
+            DataCreationState state = (i % 2 == 0) ? DataCreationState.Created : DataCreationState.Scheduled;
+            sampler.putSite(createSite("site" + i, "domain" + (i % 3), state));
+            for (int j = 0; j < 3; j++)
+            {
+                sampler.putSiteMember(createMember("site" + i, "user" + j, ROLES[j], state));
+            }
+        }
+    }
+
+    private static SiteData createSite(String siteId, String domain, DataCreationState state)
+    {
+        SiteData site = new SiteData();
+        site.setSiteId(siteId);
+        site.setDomain(domain);
+        site.setCreationState(state);
+        return site;
+    }
+
+    private static SiteMemberData createMember(String siteId, String username, String role, DataCreationState state)
+    {
+        SiteMemberData member = new SiteMemberData();
+        member.setSiteId(siteId);
+        member.setUsername(username);
+        member.setRole(role);
+        member.setCreationState(state);
+        return member;
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        sampler = new RandomSiteSampler();
+        assertEquals(0, sampler.getSiteCount());
+        assertEquals(0, sampler.getSiteMemberCount());
+        assertNull(sampler.getRandomSite(null, null));
+        assertNull(sampler.getRandomSiteMember(null, null));
+        assertNull(sampler.getRandomSiteMember("site0", DataCreationState.Created, ROLES));
+    }
+
+    @Test
+    public void testRandomSite()
+    {
+        assertEquals(300, sampler.getSiteCount());
+        assertNull(sampler.getRandomSite("missing", null));
+        for (int i = 0; i < 1000; i++)
+        {
+            SiteData site = sampler.getRandomSite("domain1", DataCreationState.Created);
+            assertNotNull(site);
+            assertEquals("domain1", site.getDomain());
+            assertEquals(DataCreationState.Created, site.getCreationState());
+        }
+        // Every site should be picked roughly equally
+        Map<String, Integer> counts = new HashMap<String, Integer>(307);
+        for (int i = 0; i < 30000; i++)
+        {
+            String siteId = sampler.getRandomSite(null, null).getSiteId();
+            Integer count = counts.get(siteId);
+            counts.put(siteId, (count == null) ? 1 : count + 1);
+        }
+        assertEquals(300, counts.size());
+        for (Integer count : counts.values())
+        {
+            assertTrue("Site picked too rarely: " + count, count > 40);
+        }
+    }
+
+    @Test
+    public void testSiteStateChanges()
+    {
+        // Move all the scheduled sites of a domain to created
+        for (int i = 1; i < 300; i += 2)
+        {
+            if (i % 3 == 1)
+            {
+                sampler.putSite(createSite("site" + i, "domain1", DataCreationState.Created));
+            }
+        }
+        assertEquals(300, sampler.getSiteCount());
+        assertNull(sampler.getRandomSite("domain1", DataCreationState.Scheduled));
+        assertNotNull(sampler.getRandomSite("domain0", DataCreationState.Scheduled));
+
+        assertTrue(sampler.removeSite("site0"));
+        assertFalse(sampler.removeSite("site0"));
+        assertEquals(299, sampler.getSiteCount());
+
+        // Changes to sites handed out are not seen by the sampler
+        SiteData site = sampler.getRandomSite("domain1", null);
+        site.setDomain("changed");
+        assertNull(sampler.getRandomSite("changed", null));
+    }
+
+    @Test
+    public void testRandomSiteMember()
+    {
+        assertEquals(900, sampler.getSiteMemberCount());
+        for (int i = 0; i < 100; i++)
+        {
+            SiteMemberData member = sampler.getRandomSiteMember("site2", DataCreationState.Created);
+            assertNotNull(member);
+            assertEquals("site2", member.getSiteId());
+        }
+        assertNull(sampler.getRandomSiteMember("site1", DataCreationState.Created));
+        assertNull(sampler.getRandomSiteMember("site2", DataCreationState.Created, "missing"));
+
+        // Roles are weighted by their number of members
+        Map<String, Integer> counts = new HashMap<String, Integer>(7);
+        for (int i = 0; i < 3000; i++)
+        {
+            SiteMemberData member = sampler.getRandomSiteMember(null, null, ROLES[0], ROLES[2], ROLES[2], "missing");
+            assertNotNull(member);
+            Integer count = counts.get(member.getRole());
+            counts.put(member.getRole(), (count == null) ? 1 : count + 1);
+        }
+        assertEquals(2, counts.size());
+        assertTrue(counts.get(ROLES[0]) > 1200);
+        assertTrue(counts.get(ROLES[2]) > 1200);
+
+        // Membership changes
+        sampler.putSiteMember(createMember("site1", "user0", ROLES[0], DataCreationState.Created));
+        assertEquals(900, sampler.getSiteMemberCount());
+        assertEquals("user0", sampler.getRandomSiteMember("site1", DataCreationState.Created).getUsername());
+        assertTrue(sampler.removeSiteMember("site1", "user0"));
+        assertFalse(sampler.removeSiteMember("site1", "user0"));
+        assertNull(sampler.getRandomSiteMember("site1", null, ROLES[0]));
+        assertEquals(899, sampler.getSiteMemberCount());
+    }
+}
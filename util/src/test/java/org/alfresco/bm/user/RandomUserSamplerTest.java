@@ -0,0 +1,118 @@
+package org.alfresco.bm.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.bm.data.DataCreationState;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * @see RandomUserSampler
+ *
+ * @since 2.2
+ */
+@RunWith(JUnit4.class)
+public class RandomUserSamplerTest
+{
+    private RandomUserSampler sampler;
+
+    @Before
+    public void setUp()
+    {
+        sampler = new RandomUserSampler();
+        for (int i = 0; i < 3000; i++)
+        {
+            sampler.put(createUser("user" + i, "domain" + (i % 3)));
+        }
+    }
+
+    private static UserData createUser(String username, String domain)
+    {
+        UserData user = new UserData();
+        user.setUsername(username);
+        user.setPassword(username);
+        user.setCreationState(DataCreationState.Created);
+        user.setDomain(domain);
+        return user;
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        sampler.clear();
+        assertEquals(0, sampler.size());
+        assertNull(sampler.getRandomUser());
+        assertNull(sampler.getRandomUser(Collections.singletonList("domain0")));
+    }
+
+    @Test
+    public void testPutAndRemove()
+    {
+        assertEquals(3000, sampler.size());
+        // Replacing a user does not change the count
+        sampler.put(createUser("user0", "domain2"));
+        assertEquals(3000, sampler.size());
+        assertEquals("domain2", sampler.get("user0").getDomain());
+
+        // Remove all users from one domain
+        for (int i = 1; i < 3000; i += 3)
+        {
+            assertTrue(sampler.remove("user" + i));
+        }
+        assertFalse(sampler.remove("user1"));
+        assertEquals(2000, sampler.size());
+        assertNull(sampler.getRandomUser(Collections.singletonList("domain1")));
+        for (int i = 0; i < 1000; i++)
+        {
+            UserData user = sampler.getRandomUser();
+            assertNotNull(user);
+            assertEquals(user.getDomain(), sampler.get(user.getUsername()).getDomain());
+            assertFalse("domain1".equals(user.getDomain()));
+        }
+    }
+
+    @Test
+    public void testRandomFromDomains()
+    {
+        Map<String, Integer> counts = new HashMap<String, Integer>(7);
+        for (int i = 0; i < 3000; i++)
+        {
+            UserData user = sampler.getRandomUser(Arrays.asList("domain0", "domain2", "missing"));
+            assertNotNull(user);
+            Integer count = counts.get(user.getDomain());
+            counts.put(user.getDomain(), (count == null) ? 1 : count + 1);
+        }
+        assertEquals(2, counts.size());
+        // Domains of equal size should be picked roughly equally
+        assertTrue(counts.get("domain0") > 1200);
+        assertTrue(counts.get("domain2") > 1200);
+    }
+
+    @Test
+    public void testUpdates()
+    {
+        sampler.setPassword("user5", "secret");
+        assertEquals("secret", sampler.get("user5").getPassword());
+        sampler.updateGroups("user5", Arrays.asList("A", "B"), true);
+        sampler.updateGroups("user5", Arrays.asList("B"), true);
+        assertEquals(Arrays.asList("A", "B"), sampler.get("user5").getGroups());
+        sampler.updateGroups("user5", Arrays.asList("A"), false);
+        assertEquals(Arrays.asList("B"), sampler.get("user5").getGroups());
+
+        // Changes to users handed out are not seen by the sampler
+        UserData user = sampler.get("user5");
+        user.setPassword("changed");
+        assertEquals("secret", sampler.get("user5").getPassword());
+    }
+}
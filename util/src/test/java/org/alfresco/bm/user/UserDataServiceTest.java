@@ -21,8 +21,10 @@ package org.alfresco.bm.user;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 import org.alfresco.bm.data.DataCreationState;
@@ -126,6 +128,24 @@ public class UserDataServiceTest
         }
     }
     
+    @Test
+    public void testCreateNewUsers()
+    {
+        List<UserData> users = new ArrayList<UserData>();
+        for (int i = 0; i < 10; i++)
+        {
+            users.add(createUserData("testCreateNewUsers" + i));
+        }
+        // Include users that already exist
+        users.add(createUserData(USERS[0]));
+        users.add(createUserData(USERS[1]));
+        assertEquals(10L, userDataService.createNewUsers(users));
+        assertEquals(USERS.length + 10, userDataService.countUsers(null, DataCreationState.NotScheduled));
+        // Nothing new the second time
+        assertEquals(0L, userDataService.createNewUsers(users));
+        assertEquals(0L, userDataService.createNewUsers(Collections.<UserData>emptyList()));
+    }
+    
     @Test
     public void testDuplicateEmail()
     {
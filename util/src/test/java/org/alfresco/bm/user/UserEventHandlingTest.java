@@ -18,6 +18,7 @@
  */
 package org.alfresco.bm.user;
 
+import java.util.List;
 import java.util.Properties;
 
 import org.alfresco.bm.data.DataCreationState;
@@ -141,6 +142,73 @@ public class UserEventHandlingTest
         Assert.assertEquals("Found 1 created users.  Minimum was 1.", result.getData().toString());
     }
     
+    @Test
+    public void prepareUsersInParallel() throws Exception
+    {
+        PrepareUsers prep = new PrepareUsers(userDataService, 200);
+        prep.setUsersPerDomain(20);
+        prep.setDomainPattern("[emailDomain]");
+        prep.setBatchSize(30);
+        prep.setParallelEvents(3);
+        prep.setDelayCheckPrepared(0L);
+        
+        Event event = new Event("X", null);
+        EventResult result = prep.processEvent(event);
+        List<Event> nextEvents = result.getNextEvents();
+        Assert.assertEquals("Expected 3 ranges and a check.", 4, nextEvents.size());
+        
+        // Nothing is done until the ranges have been prepared
+        Event checkEvent = nextEvents.get(3);
+        result = prep.processEvent(checkEvent);
+        Assert.assertEquals(1, result.getNextEvents().size());
+        Assert.assertEquals("X", result.getNextEvents().get(0).getName());
+        
+        // Prepare the ranges
+        for (int i = 0; i < 3; i++)
+        {
+            Event rangeEvent = nextEvents.get(i);
+            Assert.assertEquals("X", rangeEvent.getName());
+            result = prep.processEvent(rangeEvent);
+            Assert.assertEquals(0, result.getNextEvents().size());
+        }
+        Assert.assertEquals(200,  userDataService.countUsers(null, null));
+        Assert.assertNotNull(userDataService.findUserByUsername("0000000.Test@00000.example.com"));
+        Assert.assertNotNull(userDataService.findUserByUsername("0000199.Test@00009.example.com"));
+        
+        // Now the check completes
+        result = prep.processEvent(checkEvent);
+        Assert.assertEquals(1, result.getNextEvents().size());
+        Assert.assertEquals(PrepareUsers.EVENT_NAME_USERS_PREPARED, result.getNextEvents().get(0).getName());
+    }
+    
+    @Test
+    public void prepareUsersInParallelTimesOut() throws Exception
+    {
+        PrepareUsers prep = new PrepareUsers(userDataService, 200);
+        prep.setBatchSize(30);
+        prep.setParallelEvents(2);
+        prep.setDelayCheckPrepared(0L);
+        prep.setTimeoutCheckPrepared(50L);
+        
+        Event event = new Event("X", null);
+        List<Event> nextEvents = prep.processEvent(event).getNextEvents();
+        Assert.assertEquals("Expected 2 ranges and a check.", 3, nextEvents.size());
+        
+        // One range completes, which gives the other range more time
+        prep.processEvent(nextEvents.get(0));
+        Thread.sleep(100L);
+        EventResult result = prep.processEvent(nextEvents.get(2));
+        Assert.assertTrue(result.isSuccess());
+        Event checkEvent = result.getNextEvents().get(0);
+        
+        // The other range never completes
+        Thread.sleep(100L);
+        result = prep.processEvent(checkEvent);
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertEquals(0, result.getNextEvents().size());
+        Assert.assertTrue(result.getData().toString().startsWith("Gave up waiting for users to be prepared."));
+    }
+    
     @Test
     public void createUsers() throws Exception
     {